@@ -19,6 +19,7 @@
 package org.apache.aries.containers;
 
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import org.osgi.annotation.versioning.ProviderType;
 
@@ -68,6 +69,16 @@ public interface Container extends Comparable<Container> {
      */
     Map<Integer, Integer> getExposedPorts();
 
+    /**
+     * Obtain the readiness of this container. The container is ready once it passes
+     * all {@link HealthCheck}s of its service, or as soon as it runs if the service has
+     * no health checks.
+     *
+     * @return A completion stage that completes with this container when it is ready,
+     * or completes exceptionally if the container is removed before it became ready.
+     */
+    CompletionStage<Container> readiness();
+
     /**
      * Obtain the service to which this container belongs.
      *
@@ -19,6 +19,7 @@
 package org.apache.aries.containers;
 
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 import org.osgi.annotation.versioning.ProviderType;
 
@@ -29,6 +30,13 @@ public interface Service {
      */
     void destroy();
 
+    /**
+     * Destroy the service and all its containers asynchronously.
+     *
+     * @return A completion stage that completes when the service is destroyed.
+     */
+    CompletionStage<Void> destroyAsync();
+
     /**
      * Obtain the current instance count.
      *
@@ -58,9 +66,66 @@ public interface Service {
      */
     void setInstanceCount(int count);
 
+    /**
+     * Change the service to run the specified number of replica containers
+     * asynchronously. The calling thread is not blocked while the containers are
+     * being created or destroyed.
+     *
+     * @param count The desired number of containers.
+     * @return A completion stage that completes when the instance count has been
+     * changed, or completes exceptionally if the change failed.
+     */
+    CompletionStage<Void> setInstanceCountAsync(int count);
+
+    /**
+     * Roll the service to a new configuration. The containers are replaced in batches
+     * bounded by the {@link ServiceConfig#getMaxSurge() maximum surge} and the
+     * {@link ServiceConfig#getMaxUnavailable() maximum unavailable} containers of the
+     * new configuration, so that large services are updated quickly without dropping
+     * more capacity than allowed. Afterwards the service runs the requested instance
+     * count of the new configuration.
+     *
+     * @param config The new configuration. It must have the same service name.
+     */
+    void update(ServiceConfig config);
+
+    /**
+     * Roll the service to a new configuration asynchronously.
+     *
+     * @param config The new configuration. It must have the same service name.
+     * @return A completion stage that completes when all containers run the new
+     * configuration, or completes exceptionally if the update failed.
+     * @see #update(ServiceConfig)
+     */
+    CompletionStage<Void> updateAsync(ServiceConfig config);
+
+    /**
+     * Wait for a number of containers of the service to be ready, that is to pass
+     * all {@link HealthCheck}s of the service. Containers of a service without health
+     * checks are ready as soon as they run. This replaces polling
+     * {@link #listContainers()} after the instance count has been changed.
+     * <p>
+     * The completion stage does not time out by itself. If the requested number of
+     * containers never becomes ready, for example because the instance count is lower,
+     * it never completes.
+     *
+     * @param count The number of ready containers to wait for.
+     * @return A completion stage that completes with the ready containers once at least
+     * {@code count} containers of the service are ready.
+     */
+    CompletionStage<List<Container>> awaitReady(int count);
+
     /**
      * Update the internal representation of the service with the actual runtime state
      * which can be useful if it has been changed from the outside.
      */
     void refresh();
-}
\ No newline at end of file
+
+    /**
+     * Asynchronously update the internal representation of the service with the
+     * actual runtime state.
+     *
+     * @return A completion stage that completes when the service has been refreshed.
+     */
+    CompletionStage<Void> refreshAsync();
+}
@@ -18,12 +18,20 @@
  */
 package org.apache.aries.containers;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.osgi.annotation.versioning.ProviderType;
 
@@ -45,10 +53,14 @@ public class ServiceConfig {
     private String entryPoint;
     private Map<String, String> envVars = new HashMap<>();
     private List<HealthCheck> healthChecks = new ArrayList<>();
+    private int maxSurge = 1;
+    private int maxUnavailable = 0;
     private double requestedCPUunits = 0.5;
     private int requestedInstances = 1;
     private double requestedMemory = 64;
     private String serviceName;
+    private int warmPoolSize = 0;
+    private String fingerprint;
 
     /** Clients use the Builder to create instances */
     private ServiceConfig() {
@@ -104,6 +116,24 @@ public class ServiceConfig {
         return envVars;
     }
 
+    /**
+     * The number of containers that can be created above the requested instance count
+     * while the service is rolled to a new configuration.
+     * @return The maximum surge.
+     */
+    public int getMaxSurge() {
+        return maxSurge;
+    }
+
+    /**
+     * The number of containers that can be missing below the requested instance count
+     * while the service is rolled to a new configuration.
+     * @return The maximum number of unavailable containers.
+     */
+    public int getMaxUnavailable() {
+        return maxUnavailable;
+    }
+
     /**
      * @return The cpu units required for each container running this service.
      */
@@ -134,6 +164,114 @@ public class ServiceConfig {
         return serviceName;
     }
 
+    /**
+     * The number of containers that are created ahead of time, but not started,
+     * so that the service can be scaled up quickly. Implementations that do not
+     * support this ignore it.
+     * @return The warm pool size, {@code 0} if no containers are kept ready.
+     */
+    public int getWarmPoolSize() {
+        return warmPoolSize;
+    }
+
+    /**
+     * A stable hash of the settings that determine what runs inside the containers of
+     * the service: the image, entry point, command line, environment, ports, resources
+     * and health checks. The instance count, rolling update bounds and warm pool size
+     * are not included, as they do not change the containers themselves.
+     * <p>
+     * Back-ends can label the containers they launch with the fingerprint, so that
+     * containers running an outdated configuration are detected by comparing a
+     * single value.
+     * @return The fingerprint, as a hexadecimal string.
+     */
+    public String getFingerprint() {
+        String fp = fingerprint;
+        if (fp == null) {
+            fp = computeFingerprint();
+            fingerprint = fp;
+        }
+        return fp;
+    }
+
+    private String computeFingerprint() {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new DigestOutputStream(new NullOutputStream(), md))) {
+            writeString(out, serviceName);
+            writeString(out, containerImage);
+            writeString(out, entryPoint);
+            out.writeInt(commandLine.length);
+            for (String arg : commandLine) {
+                writeString(out, arg);
+            }
+
+            // Sorted, so that the order in which the variables were added does not matter
+            Map<String, String> sortedEnv = new TreeMap<>(envVars);
+            out.writeInt(sortedEnv.size());
+            for (Map.Entry<String, String> entry : sortedEnv.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+
+            out.writeInt(containerPorts.size());
+            for (Integer port : containerPorts) {
+                out.writeInt(port);
+            }
+            out.writeDouble(requestedCPUunits);
+            out.writeDouble(requestedMemory);
+
+            out.writeInt(healthChecks.size());
+            for (HealthCheck hc : healthChecks) {
+                writeString(out, hc.getType().name());
+                writeString(out, hc.getParameters());
+                out.writeInt(hc.getGracePeriod());
+                out.writeInt(hc.getInterval());
+                out.writeInt(hc.getTimeout());
+                out.writeInt(hc.getMaxFailures());
+                out.writeInt(hc.getPort() == null ? -1 : hc.getPort());
+                out.writeInt(hc.getPortIndex() == null ? -1 : hc.getPortIndex());
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to a digest
+            throw new IllegalStateException(e);
+        }
+
+        // Half of the digest is plenty to tell configurations apart and keeps labels short
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++) {
+            sb.append(String.format("%02x", digest[i]));
+        }
+        return sb.toString();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -144,6 +282,8 @@ public class ServiceConfig {
         result = prime * result + ((entryPoint == null) ? 0 : entryPoint.hashCode());
         result = prime * result + ((envVars == null) ? 0 : envVars.hashCode());
         result = prime * result + ((healthChecks == null) ? 0 : healthChecks.hashCode());
+        result = prime * result + maxSurge;
+        result = prime * result + maxUnavailable;
         long temp;
         temp = Double.doubleToLongBits(requestedCPUunits);
         result = prime * result + (int) (temp ^ (temp >>> 32));
@@ -151,6 +291,7 @@ public class ServiceConfig {
         temp = Double.doubleToLongBits(requestedMemory);
         result = prime * result + (int) (temp ^ (temp >>> 32));
         result = prime * result + ((serviceName == null) ? 0 : serviceName.hashCode());
+        result = prime * result + warmPoolSize;
         return result;
     }
 
@@ -190,6 +331,10 @@ public class ServiceConfig {
                 return false;
         } else if (!healthChecks.equals(other.healthChecks))
             return false;
+        if (maxSurge != other.maxSurge)
+            return false;
+        if (maxUnavailable != other.maxUnavailable)
+            return false;
         if (Double.doubleToLongBits(requestedCPUunits) != Double.doubleToLongBits(other.requestedCPUunits))
             return false;
         if (requestedInstances != other.requestedInstances)
@@ -201,6 +346,8 @@ public class ServiceConfig {
                 return false;
         } else if (!serviceName.equals(other.serviceName))
             return false;
+        if (warmPoolSize != other.warmPoolSize)
+            return false;
         return true;
     }
 
@@ -335,6 +482,40 @@ public class ServiceConfig {
             return this;
         }
 
+        /**
+         * Specify the number of containers to keep created but not started, so
+         * that scaling up only needs to start them.
+         *
+         * @param size The number of containers to keep ready.
+         * @return the current builder for further building.
+         */
+        public Builder warmPool(int size) {
+            candidate.warmPoolSize = size;
+            return this;
+        }
+
+        /**
+         * Bound the rolling update to a new configuration. The containers are replaced
+         * in batches, during which at most {@code maxSurge} containers above and at most
+         * {@code maxUnavailable} containers below the requested instance count run.
+         * At least one of the two has to be positive. The defaults are 1 and 0, which
+         * replace one container at a time without reducing the capacity of the service.
+         *
+         * @param maxSurge The number of containers that can be created above the
+         * requested instance count.
+         * @param maxUnavailable The number of containers that can be missing below
+         * the requested instance count.
+         * @return the current builder for further building.
+         */
+        public Builder rollingUpdate(int maxSurge, int maxUnavailable) {
+            if (maxSurge < 0 || maxUnavailable < 0 || maxSurge + maxUnavailable == 0)
+                throw new IllegalArgumentException("Invalid rolling update bounds, maxSurge: " + maxSurge +
+                        " maxUnavailable: " + maxUnavailable);
+            candidate.maxSurge = maxSurge;
+            candidate.maxUnavailable = maxUnavailable;
+            return this;
+        }
+
         /**
          * Build the configuration from the information gathered in the builder.
          *
@@ -19,6 +19,7 @@
 package org.apache.aries.containers;
 
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
 
 import org.osgi.annotation.versioning.ProviderType;
 
@@ -52,6 +53,17 @@ public interface ServiceManager {
      */
     Service getService(ServiceConfig config) throws Exception;
 
+    /**
+     * Obtain a service for the specified configuration asynchronously. This
+     * has the same semantics as {@link #getService(ServiceConfig)} but does not
+     * block the calling thread while the service is being discovered or created.
+     *
+     * @param config The service configuration for the service.
+     * @return A completion stage that completes with the {@link Service} instance
+     * or completes exceptionally if the service could not be obtained.
+     */
+    CompletionStage<Service> getServiceAsync(ServiceConfig config);
+
     /**
      * List available services by name.
      * @return A set with the service names. If no services are found an empty
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.metrics;
+
+import java.util.Map;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/** Latency and throughput metrics of a service manager back-end. <p>
+ *
+ * Service managers register an instance of this interface as an OSGi service
+ * with the same {@code container.factory.binding} service property as the
+ * service manager itself. Operations are identified by name, for example
+ * {@code getService} for the service manager API or {@code docker.run} and
+ * {@code marathon.getApp} for the calls made to the back-end.
+ */
+@ProviderType
+public interface ContainerMetrics {
+    /**
+     * Obtain a snapshot of the metrics of all operations recorded so far.
+     *
+     * @return A map of operation name to statistics, sorted by operation name.
+     * If nothing was recorded yet an empty map is returned.
+     */
+    Map<String, OperationStats> getSnapshot();
+
+    /**
+     * Obtain a snapshot of the metrics of a single operation.
+     *
+     * @param operation The operation name.
+     * @return The statistics or {@code null} if the operation was never recorded.
+     */
+    OperationStats getStats(String operation);
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/** A {@link ContainerMetrics} implementation that back-ends can use to record
+ * their operations. A histogram is created for each operation name on first use.
+ */
+public class MetricsRecorder implements ContainerMetrics {
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Obtain the histogram of an operation, creating it if needed.
+     *
+     * @param operation The operation name.
+     * @return The histogram.
+     */
+    public LatencyHistogram histogram(String operation) {
+        LatencyHistogram h = histograms.get(operation);
+        if (h != null)
+            return h;
+        return histograms.computeIfAbsent(operation, k -> new LatencyHistogram());
+    }
+
+    /**
+     * Record an invocation that started at the given time and has just finished.
+     *
+     * @param operation The operation name.
+     * @param startNanos The start time as obtained from {@link System#nanoTime()}.
+     * @param error Whether the invocation failed.
+     */
+    public void record(String operation, long startNanos, boolean error) {
+        histogram(operation).record(System.nanoTime() - startNanos, error);
+    }
+
+    /**
+     * Time a synchronous invocation. The invocation counts as failed if it throws.
+     *
+     * @param operation The operation name.
+     * @param invocation The invocation to time.
+     * @return The result of the invocation.
+     * @throws E The exception thrown by the invocation.
+     */
+    public <T, E extends Exception> T time(String operation, Invocation<T, E> invocation) throws E {
+        long start = System.nanoTime();
+        boolean error = true;
+        try {
+            T res = invocation.invoke();
+            error = false;
+            return res;
+        } finally {
+            record(operation, start, error);
+        }
+    }
+
+    /**
+     * Time an asynchronous invocation until the future it returns completes.
+     * The invocation counts as failed if it throws or if the future completes
+     * exceptionally.
+     *
+     * @param operation The operation name.
+     * @param invocation Starts the invocation and returns its future.
+     * @return The future returned by the invocation.
+     */
+    public <T> CompletableFuture<T> timeAsync(String operation, Supplier<CompletableFuture<T>> invocation) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = invocation.get();
+        } catch (RuntimeException | Error e) {
+            record(operation, start, true);
+            throw e;
+        }
+        future.whenComplete((r, t) -> record(operation, start, t != null));
+        return future;
+    }
+
+    @Override
+    public Map<String, OperationStats> getSnapshot() {
+        SortedMap<String, OperationStats> res = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            res.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return Collections.unmodifiableSortedMap(res);
+    }
+
+    @Override
+    public OperationStats getStats(String operation) {
+        LatencyHistogram h = histograms.get(operation);
+        return h == null ? null : h.snapshot(operation);
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsRecorder " + histograms.keySet();
+    }
+
+    /** An invocation that can be timed. */
+    @FunctionalInterface
+    public interface Invocation<T, E extends Exception> {
+        T invoke() throws E;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+/** An immutable snapshot of the metrics of a single operation. Latencies are
+ * kept in a log-linear histogram, so percentiles are accurate to within
+ * 1/16th of the reported value.
+ */
+@ProviderType
+public class OperationStats {
+    private final String operation;
+    private final long count;
+    private final long errorCount;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] buckets;
+
+    OperationStats(String operation, long count, long errorCount, long totalNanos, long maxNanos, long[] buckets) {
+        this.operation = operation;
+        this.count = count;
+        this.errorCount = errorCount;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.buckets = buckets;
+    }
+
+    /** @return The name of the operation. */
+    public String getOperation() {
+        return operation;
+    }
+
+    /** @return The number of times the operation was invoked. */
+    public long getCount() {
+        return count;
+    }
+
+    /** @return The number of invocations that failed. */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /** @return The time spent in all invocations together, in nanoseconds. */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /** @return The longest invocation, in nanoseconds. */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /** @return The average duration of an invocation, in nanoseconds. */
+    public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    /**
+     * Obtain a latency percentile.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The duration in nanoseconds that the given percentage of the
+     * invocations did not exceed.
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile should be between 0 and 100: " + percentile);
+
+        long total = Arrays.stream(buckets).sum();
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return Math.min(LatencyHistogram.highestValue(i), maxNanos);
+        }
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "OperationStats [operation=" + operation + ", count=" + count + ", errors=" + errorCount
+                + ", meanMs=" + millis(getMeanNanos()) + ", p50Ms=" + millis(getPercentileNanos(50))
+                + ", p99Ms=" + millis(getPercentileNanos(99)) + ", maxMs=" + millis(maxNanos) + "]";
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -16,7 +16,7 @@
  * specific language governing permissions and limitations
  * under the License.
  */
-@Version("0.0.1")
+@Version("0.1.0")
 package org.apache.aries.containers;
 
 import org.osgi.annotation.versioning.Version;
\ No newline at end of file
@@ -0,0 +1,364 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.reconcile;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.metrics.MetricsRecorder;
+
+/**
+ * Keeps services at their desired instance count. {@link Service#setInstanceCount(int)}
+ * only changes the instance count once, if containers die afterwards the service
+ * silently runs fewer instances. The reconciler records the desired instance count
+ * of each service it manages and compares it with the instance count reported by
+ * the service, periodically and whenever it is {@link #trigger(String) triggered},
+ * for example from a back-end event. <p>
+ *
+ * A service that diverged is converged in waves: each wave refreshes the service
+ * and then creates or removes at most the configured number of containers. Waves
+ * of the same service are at least the configured wave interval apart, so that
+ * a large divergence does not overload the back-end. <p>
+ *
+ * The reconciler works with any {@link Service} implementation. It records the
+ * following operations in its {@link #getMetrics() metrics}:
+ * <ul>
+ * <li>{@code reconcile.wave}: the duration of each wave, failed if the service
+ * could not be refreshed or scaled.</li>
+ * <li>{@code reconcile.convergence}: the convergence lag, that is the time from
+ * detecting that a service diverged until it runs its desired instance count again.</li>
+ * </ul>
+ */
+public class Reconciler implements Closeable {
+    static final String WAVE = "reconcile.wave";
+    static final String CONVERGENCE = "reconcile.convergence";
+
+    private final ConcurrentMap<String, ServiceState> services = new ConcurrentHashMap<>();
+    private final MetricsRecorder metrics = new MetricsRecorder();
+    private final ScheduledExecutorService scheduler;
+    private final long intervalNanos;
+    private final long waveIntervalNanos;
+    private final int maxWaveSize;
+
+    Reconciler(long intervalNanos, long waveIntervalNanos, int maxWaveSize, int threads) {
+        this.intervalNanos = intervalNanos;
+        this.waveIntervalNanos = waveIntervalNanos;
+        this.maxWaveSize = maxWaveSize;
+
+        AtomicInteger counter = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, "aries-containers-reconciler-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if (intervalNanos > 0)
+            scheduler.scheduleWithFixedDelay(this::triggerAll, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Start managing a service, or change the desired instance count of a service
+     * that is already managed. The service is reconciled right away.
+     *
+     * @param service The service.
+     * @param desiredCount The number of instances the service should run.
+     */
+    public void setDesiredInstanceCount(Service service, int desiredCount) {
+        if (desiredCount < 0)
+            throw new IllegalArgumentException("The desired instance count cannot be negative: " + desiredCount);
+
+        String name = service.getConfiguration().getServiceName();
+        ServiceState state = services.compute(name, (n, s) ->
+            s != null && s.service == service ? s : new ServiceState(service));
+        state.desired = desiredCount;
+        trigger(name);
+    }
+
+    /**
+     * @param serviceName The name of the service.
+     * @return The desired instance count or -1 if the service is not managed.
+     */
+    public int getDesiredInstanceCount(String serviceName) {
+        ServiceState state = services.get(serviceName);
+        return state == null ? -1 : state.desired;
+    }
+
+    /**
+     * Stop managing a service. The service itself is not changed.
+     *
+     * @param serviceName The name of the service.
+     */
+    public void remove(String serviceName) {
+        services.remove(serviceName);
+    }
+
+    /**
+     * Reconcile a service as soon as possible, rather than at the next interval.
+     * Does nothing if the service is not managed.
+     *
+     * @param serviceName The name of the service.
+     */
+    public void trigger(String serviceName) {
+        ServiceState state = services.get(serviceName);
+        if (state != null)
+            schedule(state, 0);
+    }
+
+    /**
+     * Reconcile all managed services as soon as possible.
+     */
+    public void triggerAll() {
+        for (ServiceState state : services.values()) {
+            schedule(state, 0);
+        }
+    }
+
+    /**
+     * @param serviceName The name of the service.
+     * @return How long the service has been diverged from its desired instance
+     * count in nanoseconds, or 0 if it runs its desired instance count or is not managed.
+     */
+    public long getConvergenceLagNanos(String serviceName) {
+        ServiceState state = services.get(serviceName);
+        if (state == null)
+            return 0;
+
+        long since = state.divergedSince;
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    /**
+     * @return The metrics of the waves and of the convergence lag.
+     */
+    public MetricsRecorder getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        services.clear();
+    }
+
+    private void schedule(ServiceState state, long delayNanos) {
+        if (scheduler.isShutdown())
+            return;
+
+        // Set before claiming the service, so that a check or wave that finishes
+        // concurrently either sees it or lets this call claim the service
+        state.pending = true;
+        if (!state.busy.compareAndSet(false, true)) {
+            // Reconciled again once the current check or wave is done
+            return;
+        }
+        try {
+            scheduler.schedule(() -> reconcile(state), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed
+            state.busy.set(false);
+        }
+    }
+
+    private void reconcile(ServiceState state) {
+        state.pending = false;
+        if (services.get(state.name) != state) {
+            done(state, -1);
+            return;
+        }
+
+        int observed;
+        try {
+            observed = state.service.getActualInstanceCount();
+        } catch (RuntimeException e) {
+            observed = -1;
+        }
+        if (observed < 0) {
+            // The back-end cannot be reached, try again at the next interval
+            done(state, -1);
+            return;
+        }
+
+        if (observed == state.desired) {
+            long since = state.divergedSince;
+            if (since != 0) {
+                state.divergedSince = 0;
+                metrics.record(CONVERGENCE, since, false);
+            }
+            done(state, -1);
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (state.divergedSince == 0)
+            state.divergedSince = now;
+
+        long wait = state.lastWave + waveIntervalNanos - now;
+        if (state.lastWave != 0 && wait > 0) {
+            done(state, wait);
+            return;
+        }
+        state.lastWave = now;
+        CompletableFuture<Void> wave;
+        try {
+            wave = wave(state);
+        } catch (RuntimeException e) {
+            // The service failed before the wave started, try again after the wave interval
+            done(state, waveIntervalNanos);
+            return;
+        }
+        wave.whenComplete((v, t) -> done(state, waveIntervalNanos));
+    }
+
+    /**
+     * Refresh the service and move it at most one wave towards its desired instance count.
+     * The wave starts from the instance count requested by the previous wave, as the
+     * back-end may still be starting the instances it was asked for, for example while
+     * a Marathon deployment is staging its tasks. Only the first wave starts from the
+     * observed instance count. If the previous wave already requested the desired count,
+     * the desired count is requested again, so that lost instances are replaced.
+     */
+    private CompletableFuture<Void> wave(ServiceState state) {
+        Service svc = state.service;
+        return metrics.timeAsync(WAVE, () -> svc.refreshAsync().toCompletableFuture().thenCompose(v -> {
+            int desired = state.desired;
+            int from = state.requested;
+            if (from < 0) {
+                from = svc.getActualInstanceCount();
+                if (from < 0)
+                    from = svc.listContainers().size();
+                if (from == desired)
+                    return CompletableFuture.<Void>completedFuture(null);
+            }
+
+            int step = Math.max(-maxWaveSize, Math.min(maxWaveSize, desired - from));
+            int count = from + step;
+            state.requested = count;
+            return svc.setInstanceCountAsync(count).toCompletableFuture().whenComplete((r, t) -> {
+                if (t != null)
+                    state.requested = -1; // Not known whether the count was applied
+            });
+        }));
+    }
+
+    /**
+     * Finish a check or wave, and check the service again after the given delay
+     * if it has not converged or was triggered in the mean time.
+     */
+    private void done(ServiceState state, long recheckNanos) {
+        state.busy.set(false);
+        if (state.pending)
+            schedule(state, 0);
+        else if (recheckNanos >= 0 && state.divergedSince != 0)
+            schedule(state, recheckNanos);
+    }
+
+    /**
+     * Create a reconciler builder.
+     * @return A reconciler builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A builder for reconcilers.
+     */
+    public static class Builder {
+        private long interval = TimeUnit.SECONDS.toNanos(30);
+        private long waveInterval = TimeUnit.SECONDS.toNanos(1);
+        private int maxWaveSize = 10;
+        private int threads = 1;
+
+        Builder() {
+        }
+
+        /**
+         * Specify how often all services are reconciled.
+         * @param interval The interval, 0 to only reconcile when triggered.
+         * @param unit The unit of the interval.
+         * @return the current builder for further building.
+         */
+        public Builder interval(long interval, TimeUnit unit) {
+            this.interval = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Specify the minimum time between two waves of the same service.
+         * @param interval The wave interval.
+         * @param unit The unit of the wave interval.
+         * @return the current builder for further building.
+         */
+        public Builder waveInterval(long interval, TimeUnit unit) {
+            this.waveInterval = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Specify the maximum number of containers created or removed in one wave.
+         * @param size The maximum wave size.
+         * @return the current builder for further building.
+         */
+        public Builder maxWaveSize(int size) {
+            if (size < 1)
+                throw new IllegalArgumentException("The wave size should be at least 1: " + size);
+            this.maxWaveSize = size;
+            return this;
+        }
+
+        /**
+         * Specify the number of threads that check services.
+         * @param threads The number of threads.
+         * @return the current builder for further building.
+         */
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Reconciler build() {
+            return new Reconciler(interval, waveInterval, maxWaveSize, threads);
+        }
+    }
+
+    private static class ServiceState {
+        final Service service;
+        final String name;
+        final AtomicBoolean busy = new AtomicBoolean();
+        volatile int desired;
+        // The instance count requested by the most recent wave, -1 if not known
+        volatile int requested = -1;
+        volatile boolean pending;
+        volatile long divergedSince;
+        volatile long lastWave;
+
+        ServiceState(Service service) {
+            this.service = service;
+            this.name = service.getConfiguration().getServiceName();
+        }
+    }
+}
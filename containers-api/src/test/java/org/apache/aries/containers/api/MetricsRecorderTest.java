@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.api;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.containers.metrics.LatencyHistogram;
+import org.apache.aries.containers.metrics.MetricsRecorder;
+import org.apache.aries.containers.metrics.OperationStats;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsRecorderTest {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            h.record(TimeUnit.MICROSECONDS.toNanos(i), i % 100 == 0);
+        }
+
+        OperationStats stats = h.snapshot("op");
+        assertEquals("op", stats.getOperation());
+        assertEquals(1000, stats.getCount());
+        assertEquals(10, stats.getErrorCount());
+        assertEquals(1_000_000, stats.getMaxNanos());
+        assertEquals(500_500, stats.getMeanNanos());
+        assertWithin(500_000, stats.getPercentileNanos(50));
+        assertWithin(990_000, stats.getPercentileNanos(99));
+        assertEquals(1_000_000, stats.getPercentileNanos(100));
+        assertWithin(1_000, stats.getPercentileNanos(0));
+    }
+
+    @Test
+    public void testEmpty() {
+        OperationStats stats = new LatencyHistogram().snapshot("op");
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getMeanNanos());
+        assertEquals(0, stats.getPercentileNanos(99));
+    }
+
+    @Test
+    public void testSmallAndLargeValues() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-5, false);
+        h.record(3, false);
+        h.record(Long.MAX_VALUE, false);
+
+        OperationStats stats = h.snapshot("op");
+        assertEquals(0, stats.getPercentileNanos(1));
+        assertEquals(3, stats.getPercentileNanos(50));
+        assertEquals(Long.MAX_VALUE, stats.getPercentileNanos(100));
+    }
+
+    @Test
+    public void testTime() throws Exception {
+        MetricsRecorder mr = new MetricsRecorder();
+        assertEquals("foo", mr.time("a", () -> "foo"));
+        try {
+            mr.time("a", () -> {
+                throw new IOException("bar");
+            });
+            fail("Should have thrown an exception");
+        } catch (IOException e) {
+            assertEquals("bar", e.getMessage());
+        }
+
+        CompletableFuture<String> f = mr.timeAsync("b", CompletableFuture::new);
+        assertNull("Not recorded before completion", mr.getStats("b"));
+        f.completeExceptionally(new IOException());
+
+        Map<String, OperationStats> snapshot = mr.getSnapshot();
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(snapshot.keySet().toArray()));
+        assertEquals(2, snapshot.get("a").getCount());
+        assertEquals(1, snapshot.get("a").getErrorCount());
+        assertEquals(1, snapshot.get("b").getErrorCount());
+        assertNull(mr.getStats("c"));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        MetricsRecorder mr = new MetricsRecorder();
+        ExecutorService es = Executors.newFixedThreadPool(4);
+        CountDownLatch done = new CountDownLatch(4);
+        try {
+            for (int i = 0; i < 4; i++) {
+                es.execute(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        mr.histogram("op").record(j, false);
+                    }
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        } finally {
+            es.shutdown();
+        }
+
+        OperationStats stats = mr.getStats("op");
+        assertEquals(40000, stats.getCount());
+        assertEquals(9999, stats.getMaxNanos());
+        assertEquals(4L * 9999 * 10000 / 2, stats.getTotalNanos());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.apache.aries.containers.Container;
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.metrics.OperationStats;
+import org.apache.aries.containers.reconcile.Reconciler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconcilerTest {
+    @Test
+    public void testConvergeInWaves() throws Exception {
+        CountingService svc = new CountingService("svc");
+        try (Reconciler r = Reconciler.builder().interval(0, TimeUnit.SECONDS).
+                waveInterval(10, TimeUnit.MILLISECONDS).maxWaveSize(3).build()) {
+            r.setDesiredInstanceCount(svc, 10);
+            waitFor(() -> svc.count.get() == 10);
+            assertEquals(Collections.nCopies(3, 3), svc.waves.subList(0, 3));
+            assertEquals(Integer.valueOf(1), svc.waves.get(3));
+            assertEquals(4, svc.waves.size());
+
+            waitFor(() -> r.getConvergenceLagNanos("svc") == 0);
+            OperationStats lag = r.getMetrics().getStats("reconcile.convergence");
+            assertEquals(1, lag.getCount());
+            assertTrue(lag.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(30));
+            assertEquals(4, r.getMetrics().getStats("reconcile.wave").getCount());
+
+            r.setDesiredInstanceCount(svc, 8);
+            waitFor(() -> svc.count.get() == 8);
+            assertEquals(Integer.valueOf(-2), svc.waves.get(4));
+        }
+    }
+
+    @Test
+    public void testTriggerAfterExternalChange() throws Exception {
+        CountingService svc = new CountingService("svc");
+        svc.count.set(5);
+        try (Reconciler r = Reconciler.builder().interval(0, TimeUnit.SECONDS).
+                waveInterval(0, TimeUnit.MILLISECONDS).maxWaveSize(100).build()) {
+            r.setDesiredInstanceCount(svc, 5);
+            assertEquals(5, r.getDesiredInstanceCount("svc"));
+
+            // Containers die behind the back of the service
+            svc.count.set(2);
+            r.trigger("svc");
+            waitFor(() -> svc.count.get() == 5);
+            assertEquals(Collections.singletonList(3), svc.waves);
+
+            r.remove("svc");
+            assertEquals(-1, r.getDesiredInstanceCount("svc"));
+            svc.count.set(1);
+            r.trigger("svc");
+            Thread.sleep(50);
+            assertEquals(1, svc.count.get());
+        }
+    }
+
+    @Test
+    public void testInterval() throws Exception {
+        CountingService svc = new CountingService("svc");
+        try (Reconciler r = Reconciler.builder().interval(20, TimeUnit.MILLISECONDS).
+                waveInterval(0, TimeUnit.MILLISECONDS).build()) {
+            r.setDesiredInstanceCount(svc, 2);
+            waitFor(() -> svc.count.get() == 2);
+
+            svc.count.set(0);
+            waitFor(() -> svc.count.get() == 2);
+        }
+    }
+
+    @Test
+    public void testUnreachableBackend() throws Exception {
+        CountingService svc = new CountingService("svc");
+        svc.count.set(-1);
+        try (Reconciler r = Reconciler.builder().interval(0, TimeUnit.SECONDS).build()) {
+            r.setDesiredInstanceCount(svc, 2);
+            Thread.sleep(50);
+            assertEquals(0, svc.waves.size());
+            assertEquals(0, r.getConvergenceLagNanos("svc"));
+        }
+    }
+
+    @Test
+    public void testRefreshThrows() throws Exception {
+        AtomicInteger refreshes = new AtomicInteger();
+        CountingService svc = new CountingService("svc") {
+            @Override
+            public CompletableFuture<Void> refreshAsync() {
+                if (refreshes.incrementAndGet() == 1)
+                    throw new IllegalStateException("Back-end not reachable");
+                return super.refreshAsync();
+            }
+        };
+        try (Reconciler r = Reconciler.builder().interval(0, TimeUnit.SECONDS).
+                waveInterval(10, TimeUnit.MILLISECONDS).build()) {
+            r.setDesiredInstanceCount(svc, 2);
+
+            // The failed wave does not keep the service from being reconciled again
+            waitFor(() -> svc.count.get() == 2);
+            assertEquals(Collections.singletonList(2), svc.waves);
+            OperationStats waves = r.getMetrics().getStats("reconcile.wave");
+            assertEquals(2, waves.getCount());
+            assertEquals(1, waves.getErrorCount());
+        }
+    }
+
+    @Test
+    public void testObservedCountLags() throws Exception {
+        // Like a Marathon deployment, the instances start running some time
+        // after they were requested
+        List<Integer> requested = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger target = new AtomicInteger();
+        CountingService svc = new CountingService("svc") {
+            @Override
+            public void setInstanceCount(int c) {
+                requested.add(c);
+                target.set(c);
+            }
+
+            @Override
+            public CompletableFuture<Void> refreshAsync() {
+                if (count.get() < target.get())
+                    count.incrementAndGet();
+                return super.refreshAsync();
+            }
+        };
+        try (Reconciler r = Reconciler.builder().interval(0, TimeUnit.SECONDS).
+                waveInterval(0, TimeUnit.MILLISECONDS).maxWaveSize(2).build()) {
+            r.setDesiredInstanceCount(svc, 10);
+            waitFor(() -> svc.count.get() == 10);
+
+            // Every wave moves the requested count on, none moves it back to the running count
+            assertEquals(Arrays.asList(2, 4, 6, 8, 10), requested.subList(0, 5));
+            for (int c : requested.subList(5, requested.size())) {
+                assertEquals(10, c);
+            }
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition not met in time", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A service that only keeps count of its instances and records the size of
+     * each change.
+     */
+    private static class CountingService implements Service {
+        final ServiceConfig config;
+        final AtomicInteger count = new AtomicInteger();
+        final List<Integer> waves = Collections.synchronizedList(new ArrayList<>());
+
+        CountingService(String name) {
+            config = ServiceConfig.builder(name, "img").build();
+        }
+
+        @Override
+        public void destroy() {
+            count.set(0);
+        }
+
+        @Override
+        public CompletableFuture<Void> destroyAsync() {
+            destroy();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public int getActualInstanceCount() {
+            return count.get();
+        }
+
+        @Override
+        public ServiceConfig getConfiguration() {
+            return config;
+        }
+
+        @Override
+        public List<Container> listContainers() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void setInstanceCount(int c) {
+            waves.add(c - count.getAndSet(c));
+        }
+
+        @Override
+        public CompletableFuture<Void> setInstanceCountAsync(int c) {
+            setInstanceCount(c);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void update(ServiceConfig c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> updateAsync(ServiceConfig c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<List<Container>> awaitReady(int c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void refresh() {
+        }
+
+        @Override
+        public CompletableFuture<Void> refreshAsync() {
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+}
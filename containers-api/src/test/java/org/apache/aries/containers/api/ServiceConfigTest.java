@@ -28,7 +28,10 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 public class ServiceConfigTest {
     @Test
@@ -36,6 +39,7 @@ public class ServiceConfigTest {
         ServiceConfig sc = ServiceConfig.builder("svc1", "myimg").build();
         assertEquals("svc1", sc.getServiceName());
         assertEquals("myimg", sc.getContainerImage());
+        assertEquals(0, sc.getWarmPoolSize());
     }
 
     @Test
@@ -50,6 +54,7 @@ public class ServiceConfigTest {
                 memory(5.5).
                 port(8080).
                 port(9090).
+                warmPool(3).
                 build();
 
         assertArrayEquals(new String[] {"-c", "runscript.sh"}, sc.getCommandLine());
@@ -63,6 +68,7 @@ public class ServiceConfigTest {
         assertEquals(17, sc.getRequestedInstances());
         assertEquals(5.5, sc.getRequestedMemory(), 0.01);
         assertEquals(Arrays.asList(8080, 9090), sc.getContainerPorts());
+        assertEquals(3, sc.getWarmPoolSize());
     }
 
     @Test
@@ -76,6 +82,25 @@ public class ServiceConfigTest {
         assertEquals(env, sc.getEnvVars());
     }
 
+    @Test
+    public void testRollingUpdate() {
+        ServiceConfig sc = ServiceConfig.builder("svc1", "myimg").build();
+        assertEquals(1, sc.getMaxSurge());
+        assertEquals(0, sc.getMaxUnavailable());
+
+        ServiceConfig sc2 = ServiceConfig.builder("svc1", "myimg").rollingUpdate(0, 3).build();
+        assertEquals(0, sc2.getMaxSurge());
+        assertEquals(3, sc2.getMaxUnavailable());
+        assertFalse(sc.equals(sc2));
+
+        try {
+            ServiceConfig.builder("svc1", "myimg").rollingUpdate(0, 0);
+            fail("A rolling update needs to be able to make progress");
+        } catch (IllegalArgumentException e) {
+            // good
+        }
+    }
+
     @Test
     public void testHealthCheck() {
         HealthCheck hc = HealthCheck.builder(HealthCheck.Type.HTTP).
@@ -104,4 +129,24 @@ public class ServiceConfigTest {
         assertNull(hc3.getPort());
         assertEquals(new Integer(0), hc3.getPortIndex());
     }
+
+    @Test
+    public void testFingerprint() {
+        ServiceConfig sc1 = ServiceConfig.builder("mysvc", "animg").
+                env("A", "1").env("B", "2").port(80).instances(2).build();
+        ServiceConfig sc2 = ServiceConfig.builder("mysvc", "animg").
+                env("B", "2").env("A", "1").port(80).instances(5).warmPool(1).rollingUpdate(2, 1).build();
+        assertEquals("Environment order and instance settings do not matter",
+                sc1.getFingerprint(), sc2.getFingerprint());
+        assertEquals(32, sc1.getFingerprint().length());
+
+        ServiceConfig sc3 = ServiceConfig.builder("mysvc", "animg:2").
+                env("A", "1").env("B", "2").port(80).build();
+        assertNotEquals(sc1.getFingerprint(), sc3.getFingerprint());
+
+        ServiceConfig sc4 = ServiceConfig.builder("mysvc", "animg").
+                env("A", "1").env("B", "2").port(80).
+                healthCheck(HealthCheck.builder(HealthCheck.Type.TCP).portIndex(0).build()).build();
+        assertNotEquals(sc1.getFingerprint(), sc4.getFingerprint());
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building a {@link ServiceConfig} and using it as a key, which the
+ * service managers do for every {@code getService} call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceConfigBenchmark {
+    private ServiceConfig config;
+    private ServiceConfig same;
+    private ServiceConfig different;
+
+    @Setup
+    public void setup() {
+        config = newConfig("myservice");
+        same = newConfig("myservice");
+        different = newConfig("otherservice");
+    }
+
+    @Benchmark
+    public ServiceConfig build() {
+        return newConfig("myservice");
+    }
+
+    @Benchmark
+    public int hashCodeOf() {
+        return config.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSame() {
+        return config.equals(same);
+    }
+
+    @Benchmark
+    public boolean equalsDifferent() {
+        return config.equals(different);
+    }
+
+    static ServiceConfig newConfig(String serviceName) {
+        return ServiceConfig.builder(serviceName, "httpd").
+                commandLine("/bin/sh", "-c", "httpd-foreground").
+                cpu(0.5).
+                memory(64).
+                instances(3).
+                port(80).
+                port(443).
+                env("LOG_LEVEL", "info").
+                env("SERVER_NAME", serviceName).
+                healthCheck(HealthCheck.builder(HealthCheck.Type.COMMAND).
+                        parameters("curl -f http://localhost/").interval(30).timeout(5).build()).
+                build();
+    }
+}
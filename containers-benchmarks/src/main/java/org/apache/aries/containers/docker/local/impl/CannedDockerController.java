@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Returns canned output for the docker commands instead of running them, so
+ * that the benchmarks measure only the work done in this process.
+ */
+class CannedDockerController extends LocalDockerController {
+    private final String ps;
+    private final String psLabels;
+    private final String inspect;
+
+    CannedDockerController(String ps, String psLabels, String inspect) {
+        this.ps = ps;
+        this.psLabels = psLabels;
+        this.inspect = inspect;
+    }
+
+    @Override
+    String runCommand(String... command) {
+        List<String> cmd = Arrays.asList(command);
+        if (cmd.contains("run"))
+            return "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef\n";
+        if (cmd.contains("inspect"))
+            return inspect;
+        if (cmd.contains("--format"))
+            return psLabels;
+        return ps;
+    }
+
+    @Override
+    <T> T runCommand(StreamParser<T> parser, String... command) throws IOException {
+        return parser.parse(new ByteArrayInputStream(runCommand(command).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public Closeable events(String label, Consumer<DockerEvent> listener, Runnable onEnd) {
+        return () -> {};
+    }
+}
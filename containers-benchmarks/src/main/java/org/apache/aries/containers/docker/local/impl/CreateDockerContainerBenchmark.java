@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.containers.HealthCheck;
+import org.apache.aries.containers.ServiceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures assembling the {@code docker run} command line in
+ * {@link LocalDockerServiceManager#createDockerContainer(ServiceConfig)}, including
+ * leasing a host port for every exposed port. The command is not executed and the
+ * ports are returned to the pool after every invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateDockerContainerBenchmark {
+    @Param({"0", "4"})
+    int ports;
+
+    private LocalDockerServiceManager manager;
+    private ServiceConfig config;
+
+    @Setup
+    public void setup() {
+        manager = new LocalDockerServiceManager(new CannedDockerController("", "", "[]"), 1);
+
+        ServiceConfig.Builder builder = ServiceConfig.builder("myservice", "httpd").
+                entryPoint("/bin/sh").
+                commandLine("-c", "httpd-foreground").
+                env("LOG_LEVEL", "info").
+                env("SERVER_NAME", "myservice").
+                healthCheck(HealthCheck.builder(HealthCheck.Type.COMMAND).
+                        parameters("curl -f http://localhost/").interval(30).timeout(5).build());
+        for (int i = 0; i < ports; i++) {
+            builder.port(8080 + i);
+        }
+        config = builder.build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public ContainerImpl createDockerContainer() throws Exception {
+        ContainerImpl c = manager.createDockerContainer(config);
+        manager.release(c);
+        return c;
+    }
+}
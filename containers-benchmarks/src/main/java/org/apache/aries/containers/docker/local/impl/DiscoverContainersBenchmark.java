@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.containers.ServiceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LocalDockerServiceManager#discoverContainers(ServiceConfig)},
+ * which lists the containers of a service and parses their {@code docker inspect}
+ * output, for services of growing size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoverContainersBenchmark {
+    @Param({"1", "10", "100"})
+    int containers;
+
+    private LocalDockerServiceManager manager;
+    private ServiceConfig config;
+
+    @Setup
+    public void setup() {
+        StringBuilder ps = new StringBuilder();
+        StringBuilder inspect = new StringBuilder("[");
+        for (int i = 0; i < containers; i++) {
+            String id = String.format("%064x", i);
+            ps.append(id).append('\n');
+            if (i > 0)
+                inspect.append(',');
+            inspect.append(ListServicesBenchmark.inspectJSON(id, "myservice"));
+        }
+        inspect.append(']');
+
+        manager = new LocalDockerServiceManager(new CannedDockerController(ps.toString(), "", inspect.toString()), 1);
+        config = ServiceConfig.builder("myservice", "img").instances(containers).port(80).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public List<ContainerImpl> discoverContainers() throws Exception {
+        return manager.discoverContainers(config);
+    }
+}
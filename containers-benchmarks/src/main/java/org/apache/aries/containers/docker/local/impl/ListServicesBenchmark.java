@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.containers.Container;
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.apache.felix.utils.json.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link LocalDockerServiceManager#listServices()} as the number of
+ * labelled containers grows. The docker command output is canned so that only
+ * the work done in the service manager is measured. The {@code inspectAll}
+ * benchmark reproduces the previous implementation, which inspected every
+ * container not owned by a known service, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListServicesBenchmark {
+    @Param({"100", "1000", "10000"})
+    int containers;
+
+    @Param({"10"})
+    int containersPerService;
+
+    private CannedDockerController docker;
+    private LocalDockerServiceManager psManager;
+    private LocalDockerServiceManager indexManager;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder ps = new StringBuilder();
+        StringBuilder psLabels = new StringBuilder();
+        StringBuilder inspect = new StringBuilder("[");
+        for (int i = 0; i < containers; i++) {
+            String id = String.format("%064x", i);
+            String serviceName = "service" + (i / containersPerService);
+            ps.append(id).append('\n');
+            psLabels.append(id).append(' ').append(serviceName).append('\n');
+            if (i > 0)
+                inspect.append(',');
+            inspect.append(inspectJSON(id, serviceName));
+        }
+        inspect.append(']');
+        docker = new CannedDockerController(ps.toString(), psLabels.toString(), inspect.toString());
+
+        psManager = new LocalDockerServiceManager(docker, 1);
+        indexManager = new LocalDockerServiceManager(docker, 1);
+        indexManager.enableContainerIndex();
+
+        // A quarter of the services are known to the service managers
+        for (int s = 0; s < containers / containersPerService; s += 4) {
+            List<ContainerImpl> cs = new ArrayList<>();
+            for (int i = s * containersPerService; i < (s + 1) * containersPerService && i < containers; i++) {
+                cs.add(new ContainerImpl(String.format("%064x", i), "localhost", Collections.emptyMap()));
+            }
+            ServiceConfig config = ServiceConfig.builder("service" + s, "img").instances(cs.size()).build();
+            psManager.services.put(config.getServiceName(), new ServiceImpl(config, psManager, cs));
+            indexManager.services.put(config.getServiceName(), new ServiceImpl(config, indexManager, cs));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        psManager.close();
+        indexManager.close();
+    }
+
+    @Benchmark
+    @SuppressWarnings("rawtypes")
+    public Set<String> inspectAll() throws Exception {
+        Set<String> res = new HashSet<>();
+        List<String> ids = docker.ps(LocalDockerServiceManager.SERVICE_NAME_LABEL);
+
+        for (Service svc : psManager.services.values()) {
+            res.add(svc.getConfiguration().getServiceName());
+            for (Container c : svc.listContainers()) {
+                ids.remove(c.getID());
+            }
+        }
+
+        String json = docker.inspect(ids);
+        for (Object data : new JSONParser(json).getParsedList()) {
+            if (!(data instanceof Map))
+                continue;
+
+            Object cd = ((Map) data).get("Config");
+            if (cd instanceof Map) {
+                Object ld = ((Map) cd).get("Labels");
+                if (ld instanceof Map) {
+                    Object serviceName = ((Map) ld).get(LocalDockerServiceManager.SERVICE_NAME_LABEL);
+                    if (serviceName instanceof String)
+                        res.add((String) serviceName);
+                }
+            }
+        }
+        return res;
+    }
+
+    @Benchmark
+    public Set<String> psLabels() throws Exception {
+        return psManager.listServices();
+    }
+
+    @Benchmark
+    public Set<String> containerIndex() throws Exception {
+        return indexManager.listServices();
+    }
+
+    static String inspectJSON(String id, String serviceName) {
+        return "{\"Id\": \"" + id + "\", \"Created\": \"2017-06-01T10:00:00.000000000Z\", " +
+                "\"Path\": \"/bin/sh\", \"Args\": [\"-c\", \"sleep 3600\"], " +
+                "\"State\": {\"Status\": \"running\", \"Running\": true, \"Pid\": 4242, \"ExitCode\": 0}, " +
+                "\"Image\": \"sha256:" + id + "\", \"Name\": \"/c" + id.substring(56) + "\", " +
+                "\"HostConfig\": {\"NanoCpus\": 500000000, \"Memory\": 67108864, " +
+                "\"PortBindings\": {\"80/tcp\": [{\"HostIp\": \"\", \"HostPort\": \"32768\"}]}}, " +
+                "\"Config\": {\"Hostname\": \"" + id.substring(0, 12) + "\", \"Env\": [\"PATH=/usr/bin:/bin\"], " +
+                "\"Cmd\": [\"sleep\", \"3600\"], \"Image\": \"img\", " +
+                "\"Labels\": {\"" + LocalDockerServiceManager.SERVICE_NAME_LABEL + "\": \"" + serviceName + "\"}}, " +
+                "\"NetworkSettings\": {\"IPAddress\": \"172.17.0.2\", " +
+                "\"Ports\": {\"80/tcp\": [{\"HostIp\": \"0.0.0.0\", \"HostPort\": \"32768\"}]}}}";
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.containers.Container;
+import org.apache.aries.containers.ServiceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a service that is scaled up and down from several threads at the same
+ * time while other threads list its containers. The docker commands are not
+ * executed, so that the benchmark measures the bookkeeping of the containers and
+ * the coalescing of the instance count changes. When the service is scaled to
+ * zero at the end, no containers may be left behind.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScaleChurnBenchmark {
+    @Param({"10", "100"})
+    int maxInstances;
+
+    private final AtomicInteger live = new AtomicInteger();
+    private LocalDockerServiceManager manager;
+    private ServiceImpl service;
+
+    @Setup
+    public void setup() {
+        AtomicInteger idCounter = new AtomicInteger();
+        LocalDockerController docker = new CannedDockerController("", "", "[]") {
+            @Override
+            public DockerContainerInfo run(List<String> command) {
+                live.incrementAndGet();
+                return new DockerContainerInfo("c" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                live.addAndGet(-ids.size());
+                return Collections.emptyMap();
+            }
+        };
+        manager = new LocalDockerServiceManager(docker, 8);
+        ServiceConfig config = ServiceConfig.builder("churn", "httpd").build();
+        service = new ServiceImpl(config, manager, Collections.emptyList());
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.setInstanceCount(0);
+        manager.close();
+        if (live.get() != 0)
+            throw new IllegalStateException(live.get() + " containers left behind");
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(4)
+    public void scale() {
+        service.setInstanceCount(ThreadLocalRandom.current().nextInt(maxInstances + 1));
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(4)
+    public List<Container> listContainers() {
+        return service.listContainers();
+    }
+}
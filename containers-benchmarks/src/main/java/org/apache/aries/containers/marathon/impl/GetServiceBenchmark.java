@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.containers.HealthCheck;
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mesosphere.marathon.client.Marathon;
+import mesosphere.marathon.client.model.v2.GetAppsResponse;
+
+/**
+ * Measures the construction of the Marathon {@code App} in
+ * {@link MarathonServiceManager#getService(ServiceConfig)} for a service that
+ * does not exist yet. The Marathon client is a stub that finds no existing apps
+ * and echoes the created app back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetServiceBenchmark {
+    private MarathonServiceManager manager;
+    private ServiceConfig config;
+
+    @Setup
+    public void setup() {
+        GetAppsResponse noApps = new GetAppsResponse();
+        noApps.setApps(Collections.emptyList());
+
+        Marathon marathon = (Marathon) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {Marathon.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getApps":
+                        return noApps;
+                    case "createApp":
+                        return args[0];
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        manager = new MarathonServiceManager(marathon);
+
+        config = ServiceConfig.builder("myservice", "httpd").
+                commandLine("/bin/sh", "-c", "httpd-foreground -f 'my config.conf'").
+                cpu(0.5).
+                memory(64).
+                instances(3).
+                port(80).
+                port(443).
+                env("LOG_LEVEL", "info").
+                healthCheck(HealthCheck.builder(HealthCheck.Type.HTTP).
+                        parameters("/health").portIndex(0).interval(30).timeout(5).build()).
+                build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public Service getService() throws Exception {
+        return manager.getService(config);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.aries.containers.Container;
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.test.marathon.FakeMarathon;
+import org.apache.aries.containers.test.marathon.FakeMarathonServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives {@link MarathonServiceManager} over HTTP against an in-memory Marathon
+ * holding many apps, one of which has many tasks. Unlike {@link GetServiceBenchmark}
+ * the Marathon client, JSON serialization and the connections are part of the
+ * measurement. Both the throughput and the distribution of the latencies,
+ * including their percentiles, are reported; pass {@code -tu s} to report the
+ * throughput in operations per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarathonScaleBenchmark {
+    @Param({"10", "1000"})
+    int apps;
+
+    @Param({"100", "1000", "5000"})
+    int tasks;
+
+    private FakeMarathon marathon;
+    private FakeMarathonServer server;
+    private MarathonServiceManager manager;
+    private ServiceConfig config;
+    private Service service;
+    private boolean scaledDown;
+
+    @Setup
+    public void setup() throws Exception {
+        marathon = new FakeMarathon();
+        server = new FakeMarathonServer(marathon);
+        manager = new MarathonServiceManager(server.getURL());
+
+        for (int i = 0; i < apps - 1; i++) {
+            Map<String, Object> app = new HashMap<>();
+            app.put("id", "app" + i);
+            app.put("instances", 1);
+            app.put("labels", Collections.singletonMap(MarathonServiceManager.SERVICE_NAME, "app" + i));
+            marathon.createApp(app);
+        }
+
+        config = ServiceConfig.builder("bigservice", "httpd").instances(tasks).port(80).port(443).build();
+        service = manager.getService(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        server.close();
+        marathon.close();
+    }
+
+    @Benchmark
+    public Set<String> listServices() throws Exception {
+        return manager.listServices();
+    }
+
+    @Benchmark
+    public Service getExistingService() throws Exception {
+        return manager.getService(config);
+    }
+
+    @Benchmark
+    public List<Container> listContainers() {
+        return service.listContainers();
+    }
+
+    @Benchmark
+    public void scaleDownAndUp() {
+        // Alternate between the full and half the number of tasks, each is a deployment
+        scaledDown = !scaledDown;
+        service.setInstanceCount(scaledDown ? tasks / 2 : tasks);
+    }
+}
@@ -18,24 +18,74 @@
  */
 package org.apache.aries.containers.docker.local.impl;
 
+import java.io.File;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
 import org.apache.aries.containers.ServiceManager;
+import org.apache.aries.containers.metrics.ContainerMetrics;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
 public class Activator implements BundleActivator {
+    /**
+     * Framework property to select the Docker Engine API instead of the {@code docker}
+     * command line tool. The value is the docker host to connect to, for example
+     * {@code unix:///var/run/docker.sock}.
+     */
+    public static final String DOCKER_HOST_PROPERTY = "org.apache.aries.containers.docker.local.host";
+
+    /**
+     * Framework property to disable the event-driven container index. When set to
+     * {@code false} the service manager queries docker on every container lookup.
+     */
+    public static final String CONTAINER_INDEX_PROPERTY = "org.apache.aries.containers.docker.local.index";
+
+    /**
+     * Framework property to keep a registry of the services and their containers in
+     * the given directory, so that a restarted service manager does not have to
+     * rediscover them. Not set by default.
+     */
+    public static final String SERVICE_REGISTRY_PROPERTY = "org.apache.aries.containers.docker.local.registry";
+
+    private LocalDockerServiceManager serviceManager;
+
     @Override
     public void start(BundleContext context) throws Exception {
+        String dockerHost = context.getProperty(DOCKER_HOST_PROPERTY);
+        if (dockerHost == null) {
+            serviceManager = new LocalDockerServiceManager();
+        } else {
+            serviceManager = new LocalDockerServiceManager(dockerHost);
+        }
+
+        String registryDir = context.getProperty(SERVICE_REGISTRY_PROPERTY);
+        if (registryDir != null) {
+            try {
+                serviceManager.enableServiceRegistry(new File(registryDir));
+            } catch (Exception e) {
+                LocalDockerServiceManager.LOG.warn("Unable to open the service registry in {}, " +
+                        "services will be discovered on demand", registryDir, e);
+            }
+        }
+
+        if (!"false".equals(context.getProperty(CONTAINER_INDEX_PROPERTY))) {
+            // Seeding the index queries docker, which must not hold up the framework
+            serviceManager.enableContainerIndexAsync().whenComplete((v, e) -> {
+                if (e != null)
+                    LocalDockerServiceManager.LOG.warn("Unable to subscribe to docker events, " +
+                            "containers will be looked up on demand", LocalDockerServiceManager.unwrap(e));
+            });
+        }
+
         Dictionary<String, Object> props = new Hashtable<>();
         props.put(ServiceManager.BINDING, "docker.local");
-        context.registerService(ServiceManager.class,
-                new LocalDockerServiceManager(), props);
+        context.registerService(ServiceManager.class, serviceManager, props);
+        context.registerService(ContainerMetrics.class, serviceManager.getMetrics(), props);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
-        // Nothing to do
+        serviceManager.close();
     }
 }
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.aries.containers.metrics.MetricsRecorder;
+
+/**
+ * Works out the host on which the published ports of the containers can be
+ * reached. A number of strategies are tried in order, the first one that applies
+ * wins, and {@code localhost} is used if none does:
+ * <ul>
+ * <li>{@code env}: the host of the {@code DOCKER_HOST} environment variable, if it
+ * points to a remote daemon.</li>
+ * <li>{@code context}: the host of the endpoint of the current docker context.</li>
+ * <li>{@code machine}: the IP address of the {@code docker-machine} VM named by the
+ * {@code DOCKER_MACHINE_NAME} environment variable.</li>
+ * </ul>
+ * The host is resolved in the background when it is first asked for, and then
+ * cached until {@link #refresh()} is called. The time taken by each strategy is
+ * recorded as {@code hostProbe.<strategy>} in the metrics that were
+ * {@link #addMetrics(MetricsRecorder) added} when it runs.
+ */
+class ContainerHostResolver {
+    static final String DEFAULT_HOST = "localhost";
+
+    /**
+     * A way of finding out the container host.
+     */
+    interface Strategy {
+        String getName();
+
+        /**
+         * @return The host, or {@code null} if this strategy does not apply.
+         */
+        String resolve() throws Exception;
+    }
+
+    private static final ContainerHostResolver DEFAULT = new ContainerHostResolver(Arrays.asList(
+            new EnvStrategy(), new ContextStrategy(), new MachineStrategy()));
+
+    private final List<Strategy> strategies;
+    private final List<MetricsRecorder> metrics = new CopyOnWriteArrayList<>();
+    private final AtomicReference<CompletableFuture<String>> resolution = new AtomicReference<>();
+
+    ContainerHostResolver(List<Strategy> strategies) {
+        this.strategies = Collections.unmodifiableList(strategies);
+    }
+
+    static ContainerHostResolver getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Start resolving the host if that has not happened yet.
+     *
+     * @return A future that completes with the host. It does not complete
+     * exceptionally, strategies that fail are skipped.
+     */
+    CompletableFuture<String> resolveAsync() {
+        CompletableFuture<String> res = resolution.get();
+        if (res != null)
+            return res;
+
+        CompletableFuture<String> probe = new CompletableFuture<>();
+        if (!resolution.compareAndSet(null, probe))
+            return resolution.get();
+
+        Thread t = new Thread(() -> probe.complete(probe()), "aries-containers-docker-host-probe");
+        t.setDaemon(true);
+        t.start();
+        return probe;
+    }
+
+    /**
+     * @return The host, waiting for it to be resolved if needed.
+     */
+    String getHost() {
+        return resolveAsync().join();
+    }
+
+    /**
+     * Forget the resolved host and resolve it again, for example after the
+     * docker machine was restarted with a different address.
+     */
+    void refresh() {
+        resolution.set(null);
+        resolveAsync();
+    }
+
+    /**
+     * Record the strategies of the probes that run from now on in the given metrics,
+     * for example in those of a service manager.
+     */
+    void addMetrics(MetricsRecorder recorder) {
+        metrics.add(recorder);
+    }
+
+    void removeMetrics(MetricsRecorder recorder) {
+        metrics.remove(recorder);
+    }
+
+    private String probe() {
+        long start = System.nanoTime();
+        for (Strategy strategy : strategies) {
+            long strategyStart = System.nanoTime();
+            boolean error = true;
+            try {
+                String host = strategy.resolve();
+                error = false;
+                if (host != null && host.length() > 0) {
+                    LocalDockerServiceManager.LOG.info("Container host {} resolved by strategy {} in {} ms",
+                            host, strategy.getName(), (System.nanoTime() - start) / 1000000);
+                    return host;
+                }
+            } catch (Exception e) {
+                LocalDockerServiceManager.LOG.warn("Unable to resolve the container host with strategy {}",
+                        strategy.getName(), e);
+            } finally {
+                for (MetricsRecorder recorder : metrics) {
+                    recorder.record("hostProbe." + strategy.getName(), strategyStart, error);
+                }
+            }
+        }
+        LocalDockerServiceManager.LOG.debug("Container host defaults to {}, probing took {} ms",
+                DEFAULT_HOST, (System.nanoTime() - start) / 1000000);
+        return DEFAULT_HOST;
+    }
+
+    /**
+     * @param dockerHost A docker daemon address such as {@code tcp://10.0.0.5:2376}.
+     * @return The host name of the address if the daemon is remote, {@code null} for
+     * local addresses such as {@code unix:///var/run/docker.sock}.
+     */
+    static String hostOf(String dockerHost) {
+        if (dockerHost == null)
+            return null;
+
+        URI uri;
+        try {
+            uri = URI.create(dockerHost.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        String scheme = uri.getScheme();
+        if (scheme == null)
+            return null;
+
+        switch (scheme) {
+        case "tcp":
+        case "http":
+        case "https":
+        case "ssh":
+            return uri.getHost();
+        default:
+            return null;
+        }
+    }
+
+    static class EnvStrategy implements Strategy {
+        @Override
+        public String getName() {
+            return "env";
+        }
+
+        @Override
+        public String resolve() {
+            return hostOf(System.getenv("DOCKER_HOST"));
+        }
+    }
+
+    static class ContextStrategy implements Strategy {
+        @Override
+        public String getName() {
+            return "context";
+        }
+
+        @Override
+        public String resolve() throws Exception {
+            String docker = System.getProperty(LocalDockerServiceManager.DOCKER_EXECUTABLE_PROPERTY, "docker");
+            Process process;
+            try {
+                process = ProcessRunner.run(Collections.emptyMap(),
+                        docker, "context", "inspect", "--format", "{{.Endpoints.docker.Host}}");
+            } catch (IOException e) {
+                // No docker command line tool, for example when talking to the Engine API
+                return null;
+            }
+            String output = ProcessRunner.waitFor(process);
+            // Docker versions without contexts fail the command
+            if (process == null || process.exitValue() != 0)
+                return null;
+            return hostOf(output);
+        }
+    }
+
+    static class MachineStrategy implements Strategy {
+        @Override
+        public String getName() {
+            return "machine";
+        }
+
+        @Override
+        public String resolve() throws Exception {
+            String machineName = System.getenv("DOCKER_MACHINE_NAME");
+            if (machineName == null || !onPath("docker-machine"))
+                return null;
+
+            Process process = ProcessRunner.run(Collections.emptyMap(), "docker-machine", "ip", machineName);
+            String output = ProcessRunner.waitFor(process);
+            if (process != null && process.exitValue() != 0)
+                throw new IOException("docker-machine ip " + machineName + " failed: " + output);
+            return output;
+        }
+
+        private static boolean onPath(String executable) {
+            String path = System.getenv("PATH");
+            if (path == null)
+                return false;
+
+            return Stream.of(path.split(Pattern.quote(File.pathSeparator)))
+                    .map(Paths::get)
+                    .anyMatch(p -> Files.exists(p.resolve(executable)));
+        }
+    }
+}
@@ -21,15 +21,32 @@ package org.apache.aries.containers.docker.local.impl;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.aries.containers.Container;
 import org.apache.aries.containers.Service;
 
 class ContainerImpl implements Container {
+    /**
+     * Health source for the command health check run by docker.
+     */
+    static final String DOCKER_HEALTH = "docker";
+
+    /**
+     * Health source for the checks run by the {@link HealthChecker}.
+     */
+    static final String CHECKER_HEALTH = "checker";
+
     private final String id;
     private final String ip;
     private final Map<Integer, Integer> ports;
+    private final CompletableFuture<Container> readiness = new CompletableFuture<>();
+    private final Set<String> pendingHealth = ConcurrentHashMap.newKeySet();
     private ServiceImpl service;
+    private volatile String fingerprint;
 
     ContainerImpl(String id, String ip, Map<Integer, Integer> ports) {
         this.id = id;
@@ -70,6 +87,57 @@ class ContainerImpl implements Container {
         service = svc;
     }
 
+    /**
+     * @return The fingerprint of the configuration the container was launched with,
+     * or {@code null} if it is not known.
+     */
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public CompletionStage<Container> readiness() {
+        // A dependent stage, so that callers cannot complete the readiness
+        return readiness.thenApply(c -> c);
+    }
+
+    boolean isReady() {
+        return readiness.isDone() && !readiness.isCompletedExceptionally();
+    }
+
+    /**
+     * Set the health sources that must report the container healthy before it is
+     * ready. Without sources the container is ready right away.
+     */
+    void awaitHealth(Set<String> sources) {
+        pendingHealth.addAll(sources);
+        if (pendingHealth.isEmpty())
+            readiness.complete(this);
+    }
+
+    boolean isAwaitingHealth(String source) {
+        return pendingHealth.contains(source);
+    }
+
+    /**
+     * Called when a health source reports the container healthy.
+     */
+    void healthy(String source) {
+        if (pendingHealth.remove(source) && pendingHealth.isEmpty())
+            readiness.complete(this);
+    }
+
+    /**
+     * Called when the container no longer runs.
+     */
+    void removed() {
+        readiness.completeExceptionally(new IllegalStateException("Container " + id + " was removed"));
+    }
+
 
     @Override
     public int hashCode() {
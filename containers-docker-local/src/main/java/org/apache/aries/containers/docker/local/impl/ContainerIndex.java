@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory index of the running containers per service, together with the
+ * fingerprint label of each container. The index is seeded once from
+ * {@code docker ps} and then kept up to date from docker events.
+ * Reads are lock-free, updates are serialized.
+ */
+class ContainerIndex {
+    private final ConcurrentMap<String, String> serviceByID = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> fingerprintByID = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> idsByService = new ConcurrentHashMap<>();
+    private final Set<String> removedWhileSeeding = new HashSet<>();
+    private boolean seeding = true;
+    private volatile boolean live = true;
+
+    /**
+     * Seed the index with the containers running at the time of subscription.
+     * Containers that were reported removed by an event before the seed arrived
+     * are skipped.
+     *
+     * @param containers A map of container ID to service name.
+     * @param fingerprints A map of container ID to the value of the fingerprint label.
+     */
+    synchronized void seed(Map<String, String> containers, Map<String, String> fingerprints) {
+        for (Map.Entry<String, String> entry : containers.entrySet()) {
+            if (!removedWhileSeeding.contains(entry.getKey()))
+                add(entry.getKey(), entry.getValue(), fingerprints.get(entry.getKey()));
+        }
+        removedWhileSeeding.clear();
+        seeding = false;
+    }
+
+    /**
+     * @param fingerprint The value of the fingerprint label, or {@code null} if it
+     * is not known.
+     */
+    synchronized void add(String id, String serviceName, String fingerprint) {
+        if (fingerprint != null && fingerprint.length() > 0)
+            fingerprintByID.put(id, fingerprint);
+
+        String previous = serviceByID.put(id, serviceName);
+        if (previous != null && !previous.equals(serviceName)) {
+            Set<String> ids = idsByService.get(previous);
+            if (ids != null)
+                ids.remove(id);
+        }
+        idsByService.computeIfAbsent(serviceName, k -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    synchronized boolean remove(String id) {
+        if (seeding)
+            removedWhileSeeding.add(id);
+
+        fingerprintByID.remove(id);
+        String serviceName = serviceByID.remove(id);
+        if (serviceName == null)
+            return false;
+
+        Set<String> ids = idsByService.get(serviceName);
+        if (ids != null)
+            ids.remove(id);
+        return true;
+    }
+
+    List<String> getIDs(String serviceName) {
+        Set<String> ids = idsByService.get(serviceName);
+        if (ids == null)
+            return new ArrayList<>();
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * @return The IDs of the containers of a service, mapped to the value of their
+     * fingerprint label or to an empty string if it is not known.
+     */
+    Map<String, String> getFingerprints(String serviceName) {
+        Map<String, String> res = new HashMap<>();
+        for (String id : getIDs(serviceName)) {
+            res.put(id, fingerprintByID.getOrDefault(id, ""));
+        }
+        return res;
+    }
+
+    int count(String serviceName) {
+        Set<String> ids = idsByService.get(serviceName);
+        return ids == null ? 0 : ids.size();
+    }
+
+    Set<String> getServiceNames() {
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, Set<String>> entry : idsByService.entrySet()) {
+            if (!entry.getValue().isEmpty())
+                names.add(entry.getKey());
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @return {@code true} while the index is being updated from the event stream.
+     */
+    boolean isLive() {
+        return live;
+    }
+
+    /**
+     * Mark the index as no longer being updated, for example because the event
+     * stream ended.
+     */
+    void invalidate() {
+        live = false;
+    }
+}
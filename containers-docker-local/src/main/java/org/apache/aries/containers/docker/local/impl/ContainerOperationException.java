@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thrown when some of the containers in a bulk create or destroy operation
+ * could not be processed. The exception reports the containers for which the
+ * operation succeeded as well as the cause of each failure.
+ */
+class ContainerOperationException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final List<ContainerImpl> succeeded;
+    private final Map<String, Throwable> failures;
+
+    ContainerOperationException(String operation, List<ContainerImpl> succeeded, Map<String, Throwable> failures) {
+        super(operation + " succeeded for " + succeeded.size() + " of " + (succeeded.size() + failures.size()) +
+                " containers. Failed: " + failures.keySet(), failures.values().iterator().next());
+        this.succeeded = Collections.unmodifiableList(succeeded);
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+
+        for (Throwable t : failures.values()) {
+            if (t != getCause())
+                addSuppressed(t);
+        }
+    }
+
+    /**
+     * @return The containers for which the operation succeeded.
+     */
+    List<ContainerImpl> getSucceeded() {
+        return succeeded;
+    }
+
+    /**
+     * @return The failures, keyed by the instance or container ID that failed.
+     */
+    Map<String, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -18,13 +18,45 @@
  */
 package org.apache.aries.containers.docker.local.impl;
 
+import java.util.Collections;
+import java.util.Map;
+
 class DockerContainerInfo {
     private final String id;
     private final String ip;
+    private final Map<Integer, Integer> ports;
+    private final Map<String, String> labels;
+    private final String health;
 
     public DockerContainerInfo(String id, String ipAddress) {
+        this(id, ipAddress, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * @param id The container ID.
+     * @param ipAddress The address on which the container can be reached.
+     * @param ports The exposed ports, mapping the container port to the host port.
+     * @param labels The labels of the container.
+     */
+    public DockerContainerInfo(String id, String ipAddress, Map<Integer, Integer> ports, Map<String, String> labels) {
+        this(id, ipAddress, ports, labels, null);
+    }
+
+    /**
+     * @param id The container ID.
+     * @param ipAddress The address on which the container can be reached.
+     * @param ports The exposed ports, mapping the container port to the host port.
+     * @param labels The labels of the container.
+     * @param health The health status reported by docker, or {@code null} if the
+     * container has no health check.
+     */
+    public DockerContainerInfo(String id, String ipAddress, Map<Integer, Integer> ports, Map<String, String> labels,
+            String health) {
         this.id = id;
         this.ip = ipAddress;
+        this.ports = Collections.unmodifiableMap(ports);
+        this.labels = Collections.unmodifiableMap(labels);
+        this.health = health;
     }
 
     public String getID() {
@@ -34,4 +66,26 @@ class DockerContainerInfo {
     public String getIP() {
         return ip;
     }
+
+    public Map<Integer, Integer> getPorts() {
+        return ports;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return The health status reported by docker, {@code starting}, {@code healthy}
+     * or {@code unhealthy}, or {@code null} if the container has no health check.
+     */
+    public String getHealth() {
+        return health;
+    }
+
+    @Override
+    public String toString() {
+        return "DockerContainerInfo [id=" + id + ", ip=" + ip + ", ports=" + ports + ", labels=" + labels +
+                ", health=" + health + "]";
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The docker operations used by the {@link LocalDockerServiceManager}. They are
+ * provided by the {@link LocalDockerController}, which runs the {@code docker}
+ * command line tool, and by the {@link DockerEngineController}, which talks to the
+ * Docker Engine API.
+ */
+interface DockerController extends Closeable {
+    default String kill(String id) throws Exception {
+        return kill(id, "KILL");
+    }
+
+    String kill(String id, String signal) throws Exception;
+
+    /**
+     * Remove a container, killing it if it is still running.
+     */
+    String remove(String id) throws Exception;
+
+    /**
+     * Remove a number of containers, killing those that are still running.
+     *
+     * @param ids The IDs of the containers to remove.
+     * @return The IDs of the containers that could not be removed, mapped to the
+     * error reported by docker. Empty if all containers were removed.
+     */
+    Map<String, String> remove(List<String> ids) throws Exception;
+
+    /**
+     * Create and start a container.
+     *
+     * @param command The arguments to {@code docker run}.
+     * @return The information of the started container.
+     */
+    DockerContainerInfo run(List<String> command) throws Exception;
+
+    /**
+     * Create a container without starting it.
+     *
+     * @param command The arguments to {@code docker create}.
+     * @return The information of the created container.
+     */
+    DockerContainerInfo create(List<String> command) throws Exception;
+
+    /**
+     * Start a container that was previously created.
+     */
+    String start(String id) throws Exception;
+
+    /**
+     * List the running containers that match a label filter.
+     *
+     * @param labelFilter The label filter, for example {@code key=value}.
+     * @return The container IDs.
+     */
+    List<String> ps(String labelFilter) throws IOException;
+
+    /**
+     * List the containers that were created but never started and that carry all
+     * of the given labels.
+     *
+     * @param labelFilters The label filters, for example {@code key=value}.
+     * @return The container IDs.
+     */
+    List<String> psCreated(String... labelFilters) throws IOException;
+
+    /**
+     * List the running containers that carry the given label.
+     *
+     * @param label The label key.
+     * @return A map of container ID to the value of the label.
+     */
+    default Map<String, String> psLabels(String label) throws IOException {
+        return psLabels(label, label);
+    }
+
+    /**
+     * List the running containers that match a label filter, together with the
+     * value of a label.
+     *
+     * @param labelFilter The label filter, for example {@code key=value}.
+     * @param label The key of the label to report.
+     * @return A map of container ID to the value of the label, an empty string for
+     * containers that do not carry the label.
+     */
+    Map<String, String> psLabels(String labelFilter, String label) throws IOException;
+
+    /**
+     * Subscribe to the container events for containers that carry the given label.
+     *
+     * @param label The label key.
+     * @param listener Receives the events, on a background thread.
+     * @param onEnd Called when the event stream has ended.
+     * @return A handle that cancels the subscription.
+     */
+    Closeable events(String label, Consumer<DockerEvent> listener, Runnable onEnd) throws IOException;
+
+    /**
+     * @param ids The IDs of the containers to inspect.
+     * @return The {@code docker inspect} output, a JSON array. Containers that do
+     * not exist are left out.
+     */
+    String inspect(List<String> ids) throws IOException;
+
+    /**
+     * Inspect the containers.
+     *
+     * @param ids The IDs of the containers to inspect.
+     * @return The container information, which includes the exposed ports and labels.
+     * Containers that do not exist are left out.
+     */
+    List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,458 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.felix.utils.json.JSONParser;
+import org.apache.felix.utils.json.JSONWriter;
+
+/**
+ * A {@link DockerController} that talks to the Docker Engine API directly rather
+ * than forking a {@code docker} CLI process for each operation. The {@code docker run}
+ * arguments produced by the {@link LocalDockerServiceManager} are translated into
+ * the equivalent Engine API container create request. No {@code docker} processes
+ * are run by this controller.
+ */
+class DockerEngineController implements DockerController {
+    static final String API_PREFIX = "/v1.25";
+
+    private final EngineApiClient client;
+
+    DockerEngineController(EngineTransport transport) {
+        this(new EngineApiClient(transport));
+    }
+
+    DockerEngineController(EngineApiClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public String kill(String id, String signal) throws Exception {
+        check(client.request("POST", containerPath(id) + "/kill?signal=" + encode(signal)), "kill " + id);
+        return id;
+    }
+
+    @Override
+    public String remove(String id) throws Exception {
+        check(client.request("DELETE", containerPath(id) + "?force=true"), "remove " + id);
+        return id;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The Engine API removes one container per request, the requests are sent
+     * one after the other over the same connection.
+     */
+    @Override
+    public Map<String, String> remove(List<String> ids) throws Exception {
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (String id : ids) {
+            try {
+                remove(id);
+            } catch (IOException e) {
+                failures.put(id, e.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The container is created and then started. If it cannot be started it is
+     * removed again, so that no stopped containers are left behind.
+     */
+    @Override
+    public DockerContainerInfo run(List<String> command) throws Exception {
+        DockerContainerInfo info = create(command);
+        try {
+            start(info.getID());
+        } catch (Exception e) {
+            try {
+                remove(info.getID());
+            } catch (Exception e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
+        }
+        return info;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Like {@code docker create} the image is pulled if it is not available locally.
+     */
+    @Override
+    public DockerContainerInfo create(List<String> command) throws Exception {
+        String request = toCreateRequest(command);
+        EngineResponse created = client.request("POST", API_PREFIX + "/containers/create", request);
+        if (created.getStatus() == 404) {
+            // No such image
+            pull((String) new JSONParser(request).getParsed().get("Image"));
+            created = client.request("POST", API_PREFIX + "/containers/create", request);
+        }
+        check(created, "create");
+        Object id = new JSONParser(created.getBodyAsString()).getParsed().get("Id");
+        if (id == null)
+            throw new IOException("Docker Engine did not return a container ID: " + created);
+
+        return new DockerContainerInfo(id.toString(), LocalDockerServiceManager.getContainerHost());
+    }
+
+    /**
+     * Pull an image. The engine reports the progress of the pull as a stream of JSON
+     * objects, a failure is reported in that stream rather than by the status.
+     */
+    @SuppressWarnings("rawtypes")
+    void pull(String image) throws IOException {
+        String path = API_PREFIX + "/images/create?fromImage=" + encode(image);
+        // Without a tag or digest all tags of the repository would be pulled
+        if (image.indexOf('@') < 0 && image.lastIndexOf(':') <= image.lastIndexOf('/'))
+            path += "&tag=latest";
+
+        LocalDockerServiceManager.LOG.info("Pulling image {}", image);
+        EngineResponse res = check(client.request("POST", path), "pull " + image);
+        for (String line : res.getBodyAsString().split("\\r?\\n")) {
+            if (line.trim().isEmpty())
+                continue;
+
+            Map progress = new JSONParser(line).getParsed();
+            Object error = progress == null ? null : progress.get("error");
+            if (error != null)
+                throw new IOException("Unable to pull image " + image + ": " + error);
+        }
+    }
+
+    @Override
+    public String start(String id) throws Exception {
+        check(client.request("POST", containerPath(id) + "/start"), "start " + id);
+        return id;
+    }
+
+    @Override
+    public List<String> ps(String labelFilter) throws IOException {
+        return ids(listContainers("{\"label\":[" + quote(labelFilter) + "]}", false));
+    }
+
+    @Override
+    public List<String> psCreated(String... labelFilters) throws IOException {
+        StringBuilder labels = new StringBuilder();
+        for (String labelFilter : labelFilters) {
+            if (labels.length() > 0)
+                labels.append(',');
+            labels.append(quote(labelFilter));
+        }
+        return ids(listContainers("{\"status\":[\"created\"],\"label\":[" + labels + "]}", true));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static List<String> ids(List<Map> containers) {
+        List<String> ids = new ArrayList<>();
+        for (Map c : containers) {
+            Object id = c.get("Id");
+            if (id != null)
+                ids.add(id.toString());
+        }
+        return ids;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map<String, String> psLabels(String labelFilter, String label) throws IOException {
+        Map<String, String> containers = new LinkedHashMap<>();
+        for (Map c : listContainers("{\"label\":[" + quote(labelFilter) + "]}", false)) {
+            Object id = c.get("Id");
+            Object labels = c.get("Labels");
+            Object value = labels instanceof Map ? ((Map) labels).get(label) : null;
+            if (id != null)
+                containers.put(id.toString(), value == null ? "" : value.toString());
+        }
+        return containers;
+    }
+
+    @Override
+    public Closeable events(String label, Consumer<DockerEvent> listener, Runnable onEnd) throws IOException {
+        String filters = "{\"type\":[\"container\"],\"label\":[" + quote(label) + "]}";
+        return client.stream(API_PREFIX + "/events?filters=" + encode(filters), line -> {
+            DockerEvent event = DockerEvent.parse(line);
+            if (event != null)
+                listener.accept(event);
+        }, onEnd);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private List<Map> listContainers(String filters, boolean all) throws IOException {
+        EngineResponse res = check(client.request("GET",
+                API_PREFIX + "/containers/json?" + (all ? "all=true&" : "") + "filters=" + encode(filters)), "ps");
+
+        List<Map> containers = new ArrayList<>();
+        for (Object c : new JSONParser(res.getBodyAsString()).getParsedList()) {
+            if (c instanceof Map)
+                containers.add((Map) c);
+        }
+        return containers;
+    }
+
+    @Override
+    public String inspect(List<String> ids) throws IOException {
+        if (ids.size() == 0)
+            return "[]";
+
+        StringBuilder sb = new StringBuilder("[");
+        for (String id : ids) {
+            EngineResponse res = client.request("GET", containerPath(id) + "/json");
+            // Like docker inspect, leave out containers that were removed in the mean time
+            if (res.getStatus() == 404)
+                continue;
+            check(res, "inspect " + id);
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append(res.getBodyAsString());
+        }
+        return sb.append(']').toString();
+    }
+
+    @Override
+    public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+        List<DockerContainerInfo> res = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            try {
+                res.add(client.request("GET", containerPath(id) + "/json",
+                        in -> InspectParser.parseContainer(in, LocalDockerServiceManager.getContainerHost())));
+            } catch (EngineStatusException e) {
+                // Like docker inspect, leave out containers that were removed in the mean time
+                if (e.getStatus() != 404)
+                    throw e;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    static String toCreateRequest(List<String> args) throws IOException {
+        Map<String, String> labels = new LinkedHashMap<>();
+        List<String> env = new ArrayList<>();
+        Map<String, String> portBindings = new LinkedHashMap<>();
+        List<String> cmd = new ArrayList<>();
+        String entryPoint = null;
+        String image = null;
+        double cpus = 0;
+        long memory = 0;
+        String healthCmd = null;
+        long healthInterval = 0;
+        long healthTimeout = 0;
+        int healthRetries = 0;
+
+        Iterator<String> it = args.iterator();
+        while (it.hasNext()) {
+            String arg = it.next();
+            if (image != null) {
+                // Everything after the image name is the command line
+                cmd.add(arg);
+                continue;
+            }
+
+            switch (arg) {
+            case "-d":
+                break;
+            case "-l":
+            case "--label":
+                String label = next(it, arg);
+                int idx = label.indexOf('=');
+                if (idx < 0)
+                    labels.put(label, "");
+                else
+                    labels.put(label.substring(0, idx), label.substring(idx + 1));
+                break;
+            case "-e":
+            case "--env":
+                env.add(next(it, arg));
+                break;
+            case "--entrypoint":
+                entryPoint = next(it, arg);
+                break;
+            case "-p":
+            case "--publish":
+                String mapping = next(it, arg);
+                int pidx = mapping.lastIndexOf(':');
+                String containerPort = mapping.substring(pidx + 1);
+                if (containerPort.indexOf('/') < 0)
+                    containerPort += "/tcp";
+                portBindings.put(containerPort, pidx < 0 ? "" : mapping.substring(0, pidx));
+                break;
+            case "--cpus":
+                cpus = Double.parseDouble(next(it, arg));
+                break;
+            case "-m":
+            case "--memory":
+                memory = parseBytes(next(it, arg));
+                break;
+            case "--health-cmd":
+                healthCmd = next(it, arg);
+                break;
+            case "--health-interval":
+                healthInterval = parseNanos(next(it, arg));
+                break;
+            case "--health-timeout":
+                healthTimeout = parseNanos(next(it, arg));
+                break;
+            case "--health-retries":
+                healthRetries = Integer.parseInt(next(it, arg));
+                break;
+            default:
+                if (arg.startsWith("-"))
+                    throw new IllegalArgumentException("Unsupported docker run option: " + arg);
+                image = arg;
+            }
+        }
+        if (image == null)
+            throw new IllegalArgumentException("No image specified in " + args);
+
+        StringWriter sw = new StringWriter();
+        JSONWriter w = new JSONWriter(sw);
+        w.object();
+        w.key("Image").value(image);
+        if (entryPoint != null)
+            w.key("Entrypoint").array().value(entryPoint).endArray();
+        if (cmd.size() > 0) {
+            w.key("Cmd").array();
+            for (String c : cmd) {
+                w.value(c);
+            }
+            w.endArray();
+        }
+        w.key("Env").array();
+        for (String e : env) {
+            w.value(e);
+        }
+        w.endArray();
+        w.key("Labels").object();
+        for (Map.Entry<String, String> l : labels.entrySet()) {
+            w.key(l.getKey()).value(l.getValue());
+        }
+        w.endObject();
+        w.key("ExposedPorts").object();
+        for (String p : portBindings.keySet()) {
+            w.key(p).object().endObject();
+        }
+        w.endObject();
+        if (healthCmd != null) {
+            w.key("Healthcheck").object();
+            w.key("Test").array().value("CMD-SHELL").value(healthCmd).endArray();
+            w.key("Interval").value(healthInterval);
+            w.key("Timeout").value(healthTimeout);
+            w.key("Retries").value(healthRetries);
+            w.endObject();
+        }
+        w.key("HostConfig").object();
+        w.key("PortBindings").object();
+        for (Map.Entry<String, String> p : portBindings.entrySet()) {
+            w.key(p.getKey()).array().object().key("HostPort").value(p.getValue()).endObject().endArray();
+        }
+        w.endObject();
+        if (cpus > 0)
+            w.key("NanoCpus").value((long) (cpus * 1_000_000_000L));
+        if (memory > 0)
+            w.key("Memory").value(memory);
+        w.endObject();
+        w.endObject();
+        w.flush();
+        return sw.toString();
+    }
+
+    private static String next(Iterator<String> it, String option) {
+        if (!it.hasNext())
+            throw new IllegalArgumentException("Missing value for docker run option " + option);
+        return it.next();
+    }
+
+    static long parseBytes(String s) {
+        char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+        if (Character.isDigit(unit))
+            return Long.parseLong(s);
+
+        long value = Long.parseLong(s.substring(0, s.length() - 1));
+        switch (unit) {
+        case 'b': return value;
+        case 'k': return value * 1024;
+        case 'm': return value * 1024 * 1024;
+        case 'g': return value * 1024 * 1024 * 1024;
+        default: throw new IllegalArgumentException("Invalid memory size: " + s);
+        }
+    }
+
+    static long parseNanos(String s) {
+        if (s.endsWith("ms"))
+            return TimeUnit.MILLISECONDS.toNanos(Long.parseLong(s.substring(0, s.length() - 2)));
+
+        char unit = s.charAt(s.length() - 1);
+        if (Character.isDigit(unit))
+            return TimeUnit.SECONDS.toNanos(Long.parseLong(s));
+
+        long value = Long.parseLong(s.substring(0, s.length() - 1));
+        switch (unit) {
+        case 's': return TimeUnit.SECONDS.toNanos(value);
+        case 'm': return TimeUnit.MINUTES.toNanos(value);
+        case 'h': return TimeUnit.HOURS.toNanos(value);
+        default: throw new IllegalArgumentException("Invalid duration: " + s);
+        }
+    }
+
+    private static String containerPath(String id) throws UnsupportedEncodingException {
+        return API_PREFIX + "/containers/" + encode(id);
+    }
+
+    private static EngineResponse check(EngineResponse res, String operation) throws IOException {
+        // 304 is returned when a container is already in the requested state
+        if (!res.isSuccess() && res.getStatus() != 304)
+            throw new EngineStatusException("Docker Engine request '" + operation + "' failed with status " +
+                    res.getStatus() + ": " + res.getBodyAsString(), res.getStatus());
+        return res;
+    }
+
+    private static String encode(String s) throws UnsupportedEncodingException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+    private static String quote(String s) throws IOException {
+        StringWriter sw = new StringWriter();
+        JSONWriter w = new JSONWriter(sw);
+        w.value(s);
+        w.flush();
+        return sw.toString();
+    }
+}
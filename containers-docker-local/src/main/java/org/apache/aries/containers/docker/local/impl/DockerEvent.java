@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.felix.utils.json.JSONParser;
+
+/**
+ * A container event as reported by {@code docker events}.
+ */
+class DockerEvent {
+    private final String action;
+    private final String id;
+    private final Map<String, String> attributes;
+
+    DockerEvent(String action, String id, Map<String, String> attributes) {
+        this.action = action;
+        this.id = id;
+        this.attributes = Collections.unmodifiableMap(new HashMap<>(attributes));
+    }
+
+    /**
+     * @return The event action, for example {@code start}, {@code die} or {@code destroy}.
+     */
+    String getAction() {
+        return action;
+    }
+
+    String getID() {
+        return id;
+    }
+
+    /**
+     * @return The attributes of the container, which include its labels.
+     */
+    Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * Parse an event from a line of JSON as written by {@code docker events --format '{{json .}}'}
+     * or by the Engine API events endpoint.
+     *
+     * @param json The JSON text.
+     * @return The event or {@code null} if the line does not describe a container event.
+     */
+    @SuppressWarnings("rawtypes")
+    static DockerEvent parse(String json) {
+        json = json.trim();
+        if (!json.startsWith("{"))
+            return null;
+
+        Map<String, Object> m;
+        try {
+            m = new JSONParser(json).getParsed();
+        } catch (RuntimeException e) {
+            LocalDockerServiceManager.LOG.debug("Ignoring unparseable docker event {}", json, e);
+            return null;
+        }
+
+        Object action = m.containsKey("Action") ? m.get("Action") : m.get("status");
+        Object id = m.get("id");
+        Map<String, String> attributes = new HashMap<>();
+        Object actor = m.get("Actor");
+        if (actor instanceof Map) {
+            if (id == null)
+                id = ((Map) actor).get("ID");
+
+            Object attrs = ((Map) actor).get("Attributes");
+            if (attrs instanceof Map) {
+                for (Object e : ((Map) attrs).entrySet()) {
+                    Map.Entry entry = (Map.Entry) e;
+                    attributes.put(entry.getKey().toString(), String.valueOf(entry.getValue()));
+                }
+            }
+        }
+        if (action == null || id == null)
+            return null;
+
+        return new DockerEvent(action.toString(), id.toString(), attributes);
+    }
+
+    @Override
+    public String toString() {
+        return "DockerEvent [action=" + action + ", id=" + id + ", attributes=" + attributes + "]";
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * HTTP client for the Docker Engine API. Connections are kept alive and
+ * pooled so that consecutive requests don't pay the connection setup cost.
+ */
+class EngineApiClient implements Closeable {
+    static final int DEFAULT_MAX_IDLE = 8;
+
+    private final EngineTransport transport;
+    private final BlockingDeque<EngineConnection> idle;
+    private volatile boolean closed;
+
+    EngineApiClient(EngineTransport transport) {
+        this(transport, DEFAULT_MAX_IDLE);
+    }
+
+    EngineApiClient(EngineTransport transport, int maxIdle) {
+        this.transport = transport;
+        this.idle = new LinkedBlockingDeque<>(maxIdle);
+    }
+
+    EngineResponse request(String method, String path) throws IOException {
+        return request(method, path, (String) null);
+    }
+
+    EngineResponse request(String method, String path, String body) throws IOException {
+        byte[] bytes = body == null ? null : body.getBytes(StandardCharsets.UTF_8);
+        return execute(conn -> conn.execute(method, path, bytes));
+    }
+
+    /**
+     * Execute a request and parse the response body as it is read from the connection.
+     *
+     * @throws EngineStatusException If the Docker Engine returned an error status.
+     * @throws IOException If the request failed.
+     */
+    <T> T request(String method, String path, StreamParser<T> parser) throws IOException {
+        return execute(conn -> conn.execute(method, path, parser));
+    }
+
+    private <T> T execute(ConnectionTask<T> task) throws IOException {
+        if (closed)
+            throw new IOException("Docker Engine client is closed");
+
+        EngineConnection conn = idle.pollFirst();
+        if (conn != null) {
+            try {
+                return executeAndRelease(conn, task);
+            } catch (EngineConnection.NoResponseException e) {
+                // The pooled connection was closed by the engine while idle, retry on a new one.
+                // Not when the response broke off later, the request might not be idempotent.
+                LocalDockerServiceManager.LOG.debug("Stale Docker Engine connection, reconnecting", e);
+            }
+        }
+        return executeAndRelease(newConnection(), task);
+    }
+
+    /**
+     * Open a streaming request on a dedicated connection. Each line of the response
+     * body is passed to the line consumer on a background thread.
+     *
+     * @param path The request path.
+     * @param lineConsumer Receives the lines of the response body.
+     * @param onEnd Called when the stream has ended, for whatever reason.
+     * @return A handle that closes the stream.
+     */
+    Closeable stream(String path, Consumer<String> lineConsumer, Runnable onEnd) throws IOException {
+        if (closed)
+            throw new IOException("Docker Engine client is closed");
+
+        EngineConnection conn = newConnection();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Thread t = new Thread(() -> {
+            try {
+                conn.stream("GET", path, lineConsumer);
+            } catch (IOException | RuntimeException e) {
+                if (!cancelled.get())
+                    LocalDockerServiceManager.LOG.warn("Docker Engine stream {} ended unexpectedly", path, e);
+            } finally {
+                conn.close();
+                onEnd.run();
+            }
+        }, "aries-containers-docker-stream");
+        t.setDaemon(true);
+        t.start();
+
+        return () -> {
+            cancelled.set(true);
+            conn.close();
+        };
+    }
+
+    private <T> T executeAndRelease(EngineConnection conn, ConnectionTask<T> task) throws IOException {
+        T res;
+        try {
+            res = task.execute(conn);
+        } catch (EngineStatusException e) {
+            // The error response was read completely
+            release(conn);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+
+        release(conn);
+        return res;
+    }
+
+    private void release(EngineConnection conn) {
+        if (closed || !conn.isReusable() || !idle.offerFirst(conn))
+            conn.close();
+    }
+
+    private EngineConnection newConnection() throws IOException {
+        return new EngineConnection(transport.connect(), transport.getHostHeader());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        EngineConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            conn.close();
+        }
+    }
+
+    private interface ConnectionTask<T> {
+        T execute(EngineConnection conn) throws IOException;
+    }
+
+    @Override
+    public String toString() {
+        return "EngineApiClient [" + transport + "]";
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A single HTTP/1.1 connection to the Docker Engine. Requests on a connection
+ * are executed sequentially, after a response has been fully read the connection
+ * can be reused for the next request unless the server asked to close it.
+ */
+class EngineConnection implements Closeable {
+    private final SocketChannel channel;
+    private final String hostHeader;
+    private final InputStream in;
+    private final OutputStream out;
+    private boolean reusable = true;
+
+    EngineConnection(SocketChannel channel, String hostHeader) {
+        this.channel = channel;
+        this.hostHeader = hostHeader;
+        this.in = new BufferedInputStream(Channels.newInputStream(channel), 8192);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 8192);
+    }
+
+    EngineResponse execute(String method, String path, byte[] body) throws IOException {
+        writeRequest(method, path, body);
+        int status = readStatus();
+        Map<String, String> headers = readHeaders();
+        if ("close".equalsIgnoreCase(headers.get("connection")))
+            reusable = false;
+
+        return new EngineResponse(status, readBody(status, method, headers));
+    }
+
+    /**
+     * Execute a request and parse a successful response directly from the connection.
+     * Any part of the body not consumed by the parser is skipped so that the
+     * connection can be reused.
+     *
+     * @throws EngineStatusException If the Docker Engine returned an error status.
+     * @throws IOException If the request failed.
+     */
+    <T> T execute(String method, String path, StreamParser<T> parser) throws IOException {
+        writeRequest(method, path, null);
+        int status = readStatus();
+        Map<String, String> headers = readHeaders();
+        if ("close".equalsIgnoreCase(headers.get("connection")))
+            reusable = false;
+
+        if (status < 200 || status >= 300) {
+            String body = new String(readBody(status, method, headers), StandardCharsets.UTF_8);
+            throw new EngineStatusException("Docker Engine request '" + method + " " + path +
+                    "' failed with status " + status + ": " + body, status);
+        }
+
+        InputStream body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = new ChunkedInputStream();
+        } else if (headers.containsKey("content-length")) {
+            body = new FixedLengthInputStream(Long.parseLong(headers.get("content-length").trim()));
+        } else {
+            reusable = false;
+            body = in;
+        }
+
+        T result = parser.parse(body);
+        if (reusable) {
+            byte[] skip = new byte[512];
+            while (body.read(skip) != -1) {
+                // Consume the rest of the body
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Execute a request with a long-lived response, such as the events endpoint, and pass
+     * each line of the response body to the consumer as it arrives. This method returns
+     * when the response ends or the connection is closed. The connection cannot be reused
+     * afterwards.
+     */
+    void stream(String method, String path, Consumer<String> lineConsumer) throws IOException {
+        reusable = false;
+        writeRequest(method, path, null);
+        int status = readStatus();
+        Map<String, String> headers = readHeaders();
+        if (status < 200 || status >= 300) {
+            String body = new String(readBody(status, method, headers), StandardCharsets.UTF_8);
+            throw new IOException("Docker Engine returned status " + status + " for " + path + ": " + body);
+        }
+
+        InputStream body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding")))
+            body = new ChunkedInputStream();
+        else if (headers.containsKey("content-length"))
+            body = new ByteArrayInputStream(readBody(status, method, headers));
+        else
+            body = in;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() > 0)
+                lineConsumer.accept(line);
+        }
+    }
+
+    private void writeRequest(String method, String path, byte[] body) throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(hostHeader).append("\r\n");
+        if (body != null)
+            sb.append("Content-Type: application/json\r\n");
+        sb.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+        sb.append("\r\n");
+
+        out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        if (body != null)
+            out.write(body);
+        out.flush();
+    }
+
+    private int readStatus() throws IOException {
+        String statusLine = readLine();
+        if (statusLine == null)
+            throw new NoResponseException();
+
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+            throw new IOException("Invalid response from Docker Engine: " + statusLine);
+        if ("HTTP/1.0".equals(parts[0]))
+            reusable = false;
+        return Integer.parseInt(parts[1]);
+    }
+
+    /**
+     * Thrown when the connection was closed before the status line of the response
+     * arrived, which is what happens when the engine closed an idle keep-alive
+     * connection. Any later end of stream means that the engine received the request
+     * and possibly acted on it.
+     */
+    static class NoResponseException extends EOFException {
+        private static final long serialVersionUID = 1L;
+
+        NoResponseException() {
+            super("Connection closed by Docker Engine before a response was received");
+        }
+    }
+
+    boolean isReusable() {
+        return reusable && channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        reusable = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private byte[] readBody(int status, String method, Map<String, String> headers) throws IOException {
+        if (status == 204 || status == 304 || "HEAD".equals(method))
+            return new byte[0];
+
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Streams.pump(new ChunkedInputStream(), baos);
+            return baos.toByteArray();
+        }
+
+        String cl = headers.get("content-length");
+        if (cl != null) {
+            int length = Integer.parseInt(cl.trim());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+            copy(length, baos);
+            return baos.toByteArray();
+        }
+
+        // No framing, the body extends to the end of the connection
+        reusable = false;
+        return Streams.suck(in);
+    }
+
+    private int readChunkSize() throws IOException {
+        String line = readLine();
+        if (line == null)
+            throw new EOFException("Unexpected end of chunked response");
+        int idx = line.indexOf(';');
+        if (idx >= 0)
+            line = line.substring(0, idx);
+        return Integer.parseInt(line.trim(), 16);
+    }
+
+    private void copy(int length, OutputStream os) throws IOException {
+        byte[] buf = new byte[Math.min(length, 8192)];
+        int remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buf, 0, Math.min(buf.length, remaining));
+            if (read == -1)
+                throw new EOFException("Unexpected end of response body");
+            os.write(buf, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine()) != null && line.length() > 0) {
+            int idx = line.indexOf(':');
+            if (idx > 0) {
+                headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Decodes a chunked response body from the connection. Chunks are passed on as soon
+     * as they arrive, which allows streaming responses to be consumed incrementally.
+     */
+    private class ChunkedInputStream extends InputStream {
+        private int remaining;
+        private boolean eof;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof)
+                return -1;
+
+            if (remaining == 0) {
+                remaining = readChunkSize();
+                if (remaining == 0) {
+                    // Skip the trailer
+                    readHeaders();
+                    eof = true;
+                    return -1;
+                }
+            }
+
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read == -1)
+                throw new EOFException("Unexpected end of chunked response");
+            remaining -= read;
+            if (remaining == 0)
+                readLine(); // CRLF at the end of each chunk
+            return read;
+        }
+    }
+
+    /**
+     * Reads a response body of a known length from the connection.
+     */
+    private class FixedLengthInputStream extends InputStream {
+        private long remaining;
+
+        FixedLengthInputStream(long length) {
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1)
+                throw new EOFException("Unexpected end of response body");
+            remaining -= read;
+            return read;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r')
+                    sb.setLength(len - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+}
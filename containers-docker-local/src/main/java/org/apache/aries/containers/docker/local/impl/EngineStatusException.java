@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the Docker Engine answered a request with an error status. The
+ * response was read completely, so the connection remains usable.
+ */
+class EngineStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    EngineStatusException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return The HTTP status returned by the Docker Engine, for example 404 if
+     * the container does not exist.
+     */
+    int getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens connections to the Docker Engine API. Implementations exist for
+ * the local unix socket and for plain TCP.
+ */
+interface EngineTransport {
+    String DEFAULT_DOCKER_HOST = "unix:///var/run/docker.sock";
+
+    /**
+     * Open a new blocking connection to the Docker Engine.
+     * @return The connected channel.
+     * @throws IOException If the connection cannot be made.
+     */
+    SocketChannel connect() throws IOException;
+
+    /**
+     * @return The value to send in the HTTP {@code Host} header.
+     */
+    String getHostHeader();
+
+    /**
+     * Create a transport from a docker host specification as used in the
+     * {@code DOCKER_HOST} environment variable, for example
+     * {@code unix:///var/run/docker.sock} or {@code tcp://127.0.0.1:2375}.
+     *
+     * @param dockerHost The docker host specification.
+     * @return The transport.
+     */
+    static EngineTransport forDockerHost(String dockerHost) {
+        if (dockerHost == null || dockerHost.trim().length() == 0)
+            dockerHost = DEFAULT_DOCKER_HOST;
+
+        URI uri = URI.create(dockerHost.trim());
+        if ("unix".equals(uri.getScheme())) {
+            return new UnixSocketEngineTransport(uri.getPath());
+        } else if ("tcp".equals(uri.getScheme()) || "http".equals(uri.getScheme())) {
+            int port = uri.getPort() == -1 ? 2375 : uri.getPort();
+            return new TcpEngineTransport(uri.getHost(), port);
+        }
+        throw new IllegalArgumentException("Unsupported docker host: " + dockerHost);
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.aries.containers.HealthCheck;
+
+/**
+ * Runs the {@code HTTP}, {@code HTTPS} and {@code TCP} health checks of containers
+ * in-process. All probes are non-blocking and driven by a single selector thread,
+ * so that a large number of containers can be checked without a thread, or a
+ * process inside the container, per check.
+ * <p>
+ * A check passes if a connection can be made to the port, and for {@code HTTP}
+ * and {@code HTTPS} checks if the request returns a status between 200 and 399,
+ * within the timeout. Failures are ignored during the grace period until the check
+ * first passes. A container is healthy when all of its checks pass, and has failed
+ * once one of its checks failed {@link HealthCheck#getMaxFailures()} times in a row.
+ * <p>
+ * The certificates of {@code HTTPS} checks are not verified, as containers commonly
+ * use self-signed certificates.
+ */
+class HealthChecker implements Closeable {
+    static final int MAX_STATUS_LINE = 1024;
+
+    /**
+     * Receives the health changes of the containers. The methods are called on the
+     * selector thread and must not block.
+     */
+    interface Listener {
+        /**
+         * Called when all checks of a container pass, or when a check of a healthy
+         * container no longer passes.
+         */
+        void healthChanged(ContainerImpl container, boolean healthy);
+
+        /**
+         * Called once when a check of the container failed the maximum number of
+         * consecutive times. The container is no longer checked.
+         */
+        void failed(ContainerImpl container);
+    }
+
+    private final Listener listener;
+    private final long unitNanos;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    // Only accessed from the selector thread
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private volatile boolean closed;
+
+    HealthChecker(Listener listener) throws IOException {
+        this(listener, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param listener The listener for health changes.
+     * @param unit The unit of the intervals, timeouts and grace periods of the
+     * health checks, seconds unless tests need a faster pace.
+     */
+    HealthChecker(Listener listener, TimeUnit unit) throws IOException {
+        this.listener = listener;
+        this.unitNanos = unit.toNanos(1);
+        selector = Selector.open();
+        thread = new Thread(this::run, "aries-containers-docker-health");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return {@code true} if the health check type is run by this checker.
+     */
+    static boolean supports(HealthCheck.Type type) {
+        switch (type) {
+        case HTTP:
+        case HTTPS:
+        case TCP:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Start checking a container. Checks of a type that is not {@link #supports supported}
+     * are ignored. If the container is already checked this has no effect.
+     *
+     * @param container The container.
+     * @param checks The health checks of its service.
+     * @param containerPorts The container ports of its service, used to find the
+     * host port of checks that specify a port index.
+     */
+    void register(ContainerImpl container, List<HealthCheck> checks, List<Integer> containerPorts) {
+        List<Check> list = new ArrayList<>();
+        for (HealthCheck hc : checks) {
+            if (supports(hc.getType()))
+                list.add(new Check(hc, address(container, hc, containerPorts)));
+        }
+        if (list.isEmpty())
+            return;
+
+        Target target = new Target(container, list);
+        if (targets.putIfAbsent(container.getID(), target) != null)
+            return;
+
+        execute(() -> {
+            long now = System.nanoTime();
+            for (Check c : target.checks) {
+                c.started = now;
+                schedule(now, c, null);
+            }
+        });
+    }
+
+    /**
+     * Stop checking a container.
+     */
+    void unregister(String containerID) {
+        Target target = targets.remove(containerID);
+        if (target != null)
+            execute(() -> target.stop());
+    }
+
+    /**
+     * @return {@code true} if the container is checked and all its checks pass.
+     */
+    boolean isHealthy(String containerID) {
+        Target target = targets.get(containerID);
+        return target != null && target.healthy;
+    }
+
+    /**
+     * @return {@code true} if the container is checked by this checker.
+     */
+    boolean isChecked(String containerID) {
+        return targets.containsKey(containerID);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private static InetSocketAddress address(ContainerImpl container, HealthCheck hc, List<Integer> containerPorts) {
+        Integer port = hc.getPort();
+        if (port == null) {
+            int idx = hc.getPortIndex() == null ? 0 : hc.getPortIndex();
+            if (idx < 0 || idx >= containerPorts.size())
+                throw new IllegalArgumentException("Health check port index " + idx +
+                        " does not refer to a container port");
+            port = container.getExposedPorts().get(containerPorts.get(idx));
+            if (port == null)
+                throw new IllegalArgumentException("Container port " + containerPorts.get(idx) +
+                        " is not exposed by container " + container.getID());
+        }
+        return new InetSocketAddress(container.getHostName(), port);
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void schedule(long at, Check check, Probe probe) {
+        timers.add(new Timer(at, check, probe));
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                long now = System.nanoTime();
+                Timer timer;
+                while ((timer = timers.peek()) != null && timer.at - now <= 0) {
+                    timers.poll();
+                    fire(timer, now);
+                }
+
+                long wait = 0;
+                if (timer != null)
+                    wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(timer.at - now));
+                selector.select(wait);
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Probe) key.attachment()).ready(key);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed)
+                LocalDockerServiceManager.LOG.error("Health checker stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    private void fire(Timer timer, long now) {
+        Check check = timer.check;
+        if (check.stopped)
+            return;
+
+        if (timer.probe == null) {
+            if (check.probe == null)
+                start(check, now);
+        } else if (check.probe == timer.probe) {
+            timer.probe.done(false, "timed out");
+        }
+    }
+
+    private void start(Check check, long now) {
+        Probe probe = new Probe(check);
+        check.probe = probe;
+        check.lastRun = now;
+        schedule(now + check.hc.getTimeout() * unitNanos, check, probe);
+        probe.connect();
+    }
+
+    /**
+     * Record the result of a probe and schedule the next one.
+     */
+    private void completed(Check check, boolean passed) {
+        check.probe = null;
+        if (check.stopped)
+            return;
+
+        Target target = check.target;
+        long now = System.nanoTime();
+        if (passed) {
+            check.everPassed = true;
+            check.failures = 0;
+        } else if (check.everPassed || now - check.started >= check.hc.getGracePeriod() * unitNanos) {
+            check.failures++;
+        }
+        check.passing = passed;
+
+        boolean healthy = true;
+        for (Check c : target.checks) {
+            healthy &= c.passing;
+        }
+        if (healthy != target.healthy) {
+            target.healthy = healthy;
+            listener.healthChanged(target.container, healthy);
+        }
+
+        if (check.hc.getMaxFailures() > 0 && check.failures >= check.hc.getMaxFailures()) {
+            LocalDockerServiceManager.LOG.warn("Container {} failed its {} health check {} times",
+                    target.container.getID(), check.hc.getType(), check.failures);
+            targets.remove(target.container.getID(), target);
+            target.stop();
+            listener.failed(target.container);
+            return;
+        }
+
+        long interval = Math.max(1, check.hc.getInterval()) * unitNanos;
+        schedule(Math.max(now, check.lastRun + interval), check, null);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static SSLContext trustAllContext() throws GeneralSecurityException {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[] {new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return ctx;
+    }
+
+    private static class SSLContextHolder {
+        static final SSLContext CONTEXT;
+        static {
+            try {
+                CONTEXT = trustAllContext();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class Target {
+        final ContainerImpl container;
+        final List<Check> checks;
+        volatile boolean healthy;
+
+        Target(ContainerImpl container, List<Check> checks) {
+            this.container = container;
+            this.checks = checks;
+            for (Check c : checks) {
+                c.target = this;
+            }
+        }
+
+        void stop() {
+            for (Check c : checks) {
+                c.stopped = true;
+                if (c.probe != null)
+                    c.probe.close();
+            }
+        }
+    }
+
+    private static class Check {
+        final HealthCheck hc;
+        final InetSocketAddress address;
+        Target target;
+        Probe probe;
+        long started;
+        long lastRun;
+        int failures;
+        boolean everPassed;
+        boolean passing;
+        boolean stopped;
+
+        Check(HealthCheck hc, InetSocketAddress address) {
+            this.hc = hc;
+            this.address = address;
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long at;
+        final Check check;
+        final Probe probe;
+
+        Timer(long at, Check check, Probe probe) {
+            this.at = at;
+            this.check = check;
+            this.probe = probe;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            return Long.signum(at - o.at);
+        }
+    }
+
+    /**
+     * A single run of a check: connect, and for HTTP and HTTPS checks send the
+     * request and read the status line of the response.
+     */
+    private class Probe {
+        private final Check check;
+        private SocketChannel channel;
+        private SSLEngine engine;
+        private ByteBuffer request;
+        private ByteBuffer response;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private boolean closed;
+
+        Probe(Check check) {
+            this.check = check;
+        }
+
+        void connect() {
+            try {
+                if (check.address.isUnresolved())
+                    throw new IOException("Unresolved address " + check.address);
+
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(check.address))
+                    connected();
+                else
+                    channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                done(false, e.getMessage());
+            }
+        }
+
+        void ready(SelectionKey key) {
+            try {
+                if (!key.isValid())
+                    return;
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                } else {
+                    pump();
+                }
+            } catch (IOException e) {
+                done(false, e.getMessage());
+            }
+        }
+
+        private void connected() throws IOException {
+            HealthCheck.Type type = check.hc.getType();
+            if (type == HealthCheck.Type.TCP) {
+                done(true, null);
+                return;
+            }
+
+            request = ByteBuffer.wrap(httpRequest().getBytes(StandardCharsets.ISO_8859_1));
+            response = ByteBuffer.allocate(MAX_STATUS_LINE);
+            if (type == HealthCheck.Type.HTTPS) {
+                engine = SSLContextHolder.CONTEXT.createSSLEngine(
+                        check.address.getHostString(), check.address.getPort());
+                engine.setUseClientMode(true);
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+                response = ByteBuffer.allocate(MAX_STATUS_LINE + engine.getSession().getApplicationBufferSize());
+                engine.beginHandshake();
+            }
+            pump();
+        }
+
+        private String httpRequest() {
+            String path = check.hc.getParameters();
+            if (path == null || path.isEmpty()) {
+                path = "/";
+            } else if (path.startsWith("http://") || path.startsWith("https://")) {
+                URI uri = URI.create(path);
+                path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+                if (uri.getRawQuery() != null)
+                    path += "?" + uri.getRawQuery();
+            }
+
+            return "GET " + path + " HTTP/1.1\r\n" +
+                    "Host: " + check.address.getHostString() + ":" + check.address.getPort() + "\r\n" +
+                    "User-Agent: aries-containers-health\r\n" +
+                    "Accept: */*\r\n" +
+                    "Connection: close\r\n\r\n";
+        }
+
+        /**
+         * Move data between the channel and the buffers for as long as possible
+         * without blocking, then register for what is needed next.
+         */
+        private void pump() throws IOException {
+            if (engine == null) {
+                if (request.hasRemaining()) {
+                    channel.write(request);
+                    if (request.hasRemaining()) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                int n = channel.read(response);
+                if (statusLine())
+                    return;
+                if (n < 0)
+                    throw new IOException("Connection closed before the response was received");
+                interest(SelectionKey.OP_READ);
+                return;
+            }
+
+            while (!closed) {
+                // Flush pending TLS records first
+                if (netOut.position() > 0) {
+                    netOut.flip();
+                    channel.write(netOut);
+                    boolean flushed = !netOut.hasRemaining();
+                    netOut.compact();
+                    if (!flushed) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } else if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP ||
+                        (hs == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && request.hasRemaining())) {
+                    SSLEngineResult res = engine.wrap(request, netOut);
+                    if (res.getStatus() != SSLEngineResult.Status.OK)
+                        throw new SSLException("TLS wrap " + res.getStatus());
+                } else {
+                    netIn.flip();
+                    SSLEngineResult res = engine.unwrap(netIn, response);
+                    netIn.compact();
+                    if (statusLine())
+                        return;
+
+                    switch (res.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        int n = channel.read(netIn);
+                        if (n < 0)
+                            throw new IOException("Connection closed before the response was received");
+                        if (n == 0) {
+                            interest(SelectionKey.OP_READ);
+                            return;
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        throw new IOException("No status line in the response");
+                    case CLOSED:
+                        throw new IOException("Connection closed before the response was received");
+                    default:
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Check whether the status line has been received and complete the probe if so.
+         */
+        private boolean statusLine() throws IOException {
+            for (int i = 0; i < response.position(); i++) {
+                if (response.get(i) == '\n') {
+                    String line = new String(response.array(), 0, i, StandardCharsets.ISO_8859_1).trim();
+                    String[] parts = line.split(" ", 3);
+                    if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+                        throw new IOException("Invalid status line: " + line);
+
+                    int status;
+                    try {
+                        status = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid status line: " + line);
+                    }
+                    done(status >= 200 && status < 400, "status " + status);
+                    return true;
+                }
+            }
+            if (!response.hasRemaining())
+                throw new IOException("No status line in the response");
+            return false;
+        }
+
+        private void interest(int ops) throws IOException {
+            channel.register(selector, ops, this);
+        }
+
+        void done(boolean passed, String reason) {
+            if (closed)
+                return;
+            close();
+            if (!passed)
+                LocalDockerServiceManager.LOG.debug("Health check {} of container {} failed: {}",
+                        check.hc.getType(), check.target.container.getID(), reason);
+            completed(check, passed);
+        }
+
+        void close() {
+            closed = true;
+            if (channel != null)
+                closeQuietly(channel);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser for {@code docker inspect} output. Only the container ID,
+ * the exposed ports ({@code NetworkSettings.Ports}), the labels
+ * ({@code Config.Labels}) and the health status ({@code State.Health.Status})
+ * are materialized, everything else is skipped while
+ * reading so that large inspect documents don't have to be held in memory.
+ */
+class InspectParser {
+    private final Reader reader;
+    private final char[] buf = new char[8192];
+    private final StringBuilder sb = new StringBuilder();
+    private final String host;
+    private int pos;
+    private int limit;
+
+    private InspectParser(InputStream in, String host) {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        this.host = host;
+    }
+
+    /**
+     * Parse the output of {@code docker inspect}, a JSON array of container objects.
+     * Any output preceding the array, such as error messages for containers that
+     * no longer exist, is ignored.
+     *
+     * @param in The inspect output.
+     * @param host The host on which the containers can be reached.
+     * @return The containers.
+     */
+    static List<DockerContainerInfo> parse(InputStream in, String host) throws IOException {
+        InspectParser p = new InspectParser(in, host);
+        List<DockerContainerInfo> res = new ArrayList<>();
+
+        int c;
+        while ((c = p.read()) != '[') {
+            if (c == -1)
+                return res;
+        }
+        if (p.peekToken() == ']') {
+            p.read();
+            return res;
+        }
+        do {
+            res.add(p.readContainer());
+        } while (p.nextSeparator(']'));
+        return res;
+    }
+
+    /**
+     * Parse a single container object, as returned by the Docker Engine API
+     * {@code /containers/{id}/json} endpoint.
+     */
+    static DockerContainerInfo parseContainer(InputStream in, String host) throws IOException {
+        return new InspectParser(in, host).readContainer();
+    }
+
+    private DockerContainerInfo readContainer() throws IOException {
+        String id = null;
+        Map<Integer, Integer> ports = new HashMap<>();
+        Map<String, String> labels = new HashMap<>();
+        String[] health = new String[1];
+
+        expect('{');
+        if (peekToken() == '}') {
+            read();
+        } else {
+            do {
+                readKey();
+                if (keyIs("Id")) {
+                    id = readStringOrNull();
+                } else if (keyIs("Config")) {
+                    readObjectMember("Labels", () -> readLabels(labels));
+                } else if (keyIs("NetworkSettings")) {
+                    readObjectMember("Ports", () -> readPorts(ports));
+                } else if (keyIs("State")) {
+                    readObjectMember("Health", () ->
+                        readObjectMember("Status", () -> health[0] = readStringOrNull()));
+                } else {
+                    skipValue();
+                }
+            } while (nextSeparator('}'));
+        }
+
+        if (id == null)
+            throw new IOException("Container without Id in docker inspect output");
+        return new DockerContainerInfo(id, host, ports, labels, health[0]);
+    }
+
+    /**
+     * Read an object value, handing the member with the given name to the reader and
+     * skipping all other members.
+     */
+    private void readObjectMember(String name, ValueReader valueReader) throws IOException {
+        if (skipNull())
+            return;
+
+        expect('{');
+        if (peekToken() == '}') {
+            read();
+            return;
+        }
+        do {
+            readKey();
+            if (keyIs(name))
+                valueReader.read();
+            else
+                skipValue();
+        } while (nextSeparator('}'));
+    }
+
+    private void readLabels(Map<String, String> labels) throws IOException {
+        if (skipNull())
+            return;
+
+        expect('{');
+        if (peekToken() == '}') {
+            read();
+            return;
+        }
+        do {
+            readKey();
+            String key = sb.toString();
+            String value = readStringOrNull();
+            if (value != null)
+                labels.put(key, value);
+        } while (nextSeparator('}'));
+    }
+
+    private void readPorts(Map<Integer, Integer> ports) throws IOException {
+        if (skipNull())
+            return;
+
+        expect('{');
+        if (peekToken() == '}') {
+            read();
+            return;
+        }
+        do {
+            readKey();
+            int containerPort = parsePort(sb);
+            int hostPort = readHostPort();
+            if (containerPort != -1 && hostPort != -1)
+                ports.put(containerPort, hostPort);
+        } while (nextSeparator('}'));
+    }
+
+    /**
+     * Read the bindings of a port, an array of objects with a {@code HostPort}
+     * member or {@code null} if the port isn't published.
+     *
+     * @return The last host port in the bindings or {@code -1} if there is none.
+     */
+    private int readHostPort() throws IOException {
+        int hostPort = -1;
+        if (skipNull())
+            return hostPort;
+
+        expect('[');
+        if (peekToken() == ']') {
+            read();
+            return hostPort;
+        }
+        do {
+            if (skipNull())
+                continue;
+
+            expect('{');
+            if (peekToken() == '}') {
+                read();
+                continue;
+            }
+            do {
+                readKey();
+                if (keyIs("HostPort")) {
+                    readScalar();
+                    int p = parsePort(sb);
+                    if (p != -1)
+                        hostPort = p;
+                } else {
+                    skipValue();
+                }
+            } while (nextSeparator('}'));
+        } while (nextSeparator(']'));
+        return hostPort;
+    }
+
+    /**
+     * Parse the leading digits of a port specification such as {@code 80/tcp}.
+     */
+    private static int parsePort(CharSequence cs) {
+        int port = 0;
+        int i = 0;
+        for (; i < cs.length() && i < 6; i++) {
+            char c = cs.charAt(i);
+            if (c < '0' || c > '9')
+                break;
+            port = port * 10 + (c - '0');
+        }
+        return i == 0 || port > 65535 ? -1 : port;
+    }
+
+    private boolean keyIs(String key) {
+        if (sb.length() != key.length())
+            return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (sb.charAt(i) != key.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read an object member name into the buffer, followed by the colon.
+     */
+    private void readKey() throws IOException {
+        expect('"');
+        readStringContents(true);
+        expect(':');
+    }
+
+    private String readStringOrNull() throws IOException {
+        if (skipNull())
+            return null;
+
+        expect('"');
+        readStringContents(true);
+        return sb.toString();
+    }
+
+    /**
+     * Read a string or number value into the buffer.
+     */
+    private void readScalar() throws IOException {
+        int c = peekToken();
+        if (c == '"') {
+            read();
+            readStringContents(true);
+        } else {
+            sb.setLength(0);
+            while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                sb.append((char) read());
+            }
+        }
+    }
+
+    private void skipValue() throws IOException {
+        int c = peekToken();
+        switch (c) {
+        case '"':
+            read();
+            readStringContents(false);
+            break;
+        case '{':
+        case '[':
+            skipContainer();
+            break;
+        default:
+            // number, true, false or null
+            while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                read();
+            }
+        }
+    }
+
+    /**
+     * Skip an object or array, including everything nested in it.
+     */
+    private void skipContainer() throws IOException {
+        int depth = 0;
+        do {
+            int c = read();
+            switch (c) {
+            case -1:
+                throw new IOException("Unexpected end of docker inspect output");
+            case '"':
+                readStringContents(false);
+                break;
+            case '{':
+            case '[':
+                depth++;
+                break;
+            case '}':
+            case ']':
+                depth--;
+                break;
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Read the rest of a string after the opening quote.
+     *
+     * @param keep If {@code true} the unescaped contents are stored in the buffer.
+     */
+    private void readStringContents(boolean keep) throws IOException {
+        if (keep)
+            sb.setLength(0);
+
+        while (true) {
+            int c = read();
+            if (c == -1)
+                throw new IOException("Unterminated string in docker inspect output");
+            if (c == '"')
+                return;
+
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                case 'b': c = '\b'; break;
+                case 'f': c = '\f'; break;
+                case 'n': c = '\n'; break;
+                case 'r': c = '\r'; break;
+                case 't': c = '\t'; break;
+                case 'u':
+                    int cp = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int h = Character.digit(read(), 16);
+                        if (h < 0)
+                            throw new IOException("Invalid unicode escape in docker inspect output");
+                        cp = cp * 16 + h;
+                    }
+                    c = cp;
+                    break;
+                case -1:
+                    throw new IOException("Unterminated string in docker inspect output");
+                default:
+                    // '"', '\\' and '/' stand for themselves
+                }
+            }
+            if (keep)
+                sb.append((char) c);
+        }
+    }
+
+    private boolean skipNull() throws IOException {
+        if (peekToken() != 'n')
+            return false;
+
+        for (int i = 0; i < 4; i++) {
+            if (read() != "null".charAt(i))
+                throw new IOException("Invalid literal in docker inspect output");
+        }
+        return true;
+    }
+
+    /**
+     * Read the separator after an array element or object member.
+     *
+     * @return {@code true} if another element follows, {@code false} if the closing
+     * character was read.
+     */
+    private boolean nextSeparator(char close) throws IOException {
+        int c = readToken();
+        if (c == ',')
+            return true;
+        if (c == close)
+            return false;
+        throw new IOException("Expected ',' or '" + close + "' in docker inspect output but found " + describe(c));
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = readToken();
+        if (c != expected)
+            throw new IOException("Expected '" + expected + "' in docker inspect output but found " + describe(c));
+    }
+
+    private static String describe(int c) {
+        return c == -1 ? "end of input" : "'" + (char) c + "'";
+    }
+
+    private int readToken() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int peekToken() throws IOException {
+        int c;
+        while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+            pos++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return buf[pos];
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return buf[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = reader.read(buf, 0, buf.length);
+        if (n <= 0)
+            return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private interface ValueReader {
+        void read() throws IOException;
+    }
+}
@@ -19,28 +19,136 @@
 package org.apache.aries.containers.docker.local.impl;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
-class LocalDockerController {
-    public String kill(String id) throws Exception {
-        return kill(id, "KILL");
+/**
+ * A {@link DockerController} that runs the {@code docker} command line tool.
+ */
+class LocalDockerController implements DockerController {
+    /**
+     * The maximum length of the container IDs passed to a single docker command,
+     * which keeps the command line well below the limits of all platforms.
+     */
+    static final int MAX_ID_ARGS_LENGTH = 30000;
+
+    private final ProcessExecutor processes;
+    private final String executable;
+
+    LocalDockerController() {
+        this(new ProcessExecutor());
+    }
+
+    LocalDockerController(ProcessExecutor processes) {
+        this(processes, System.getProperty(LocalDockerServiceManager.DOCKER_EXECUTABLE_PROPERTY, "docker"));
     }
 
+    LocalDockerController(ProcessExecutor processes, String executable) {
+        this.processes = processes;
+        this.executable = executable;
+    }
+
+    @Override
     public String kill(String id, String signal) throws Exception {
-        return runCommandExpectSingleID("docker", "kill", "-s", signal, id);
+        return runCommandExpectSingleID(executable, "kill", "-s", signal, id);
     }
 
+    @Override
     public String remove(String id) throws Exception {
         // Kill the docker container if its still running
-        return runCommandExpectSingleID("docker", "rm", "-f", id);
+        return runCommandExpectSingleID(executable, "rm", "-f", id);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The IDs are passed to as few {@code docker rm -f} invocations as the command
+     * line length allows.
+     */
+    @Override
+    public Map<String, String> remove(List<String> ids) throws Exception {
+        Map<String, String> failures = new LinkedHashMap<>();
+        for (List<String> chunk : chunk(ids, MAX_ID_ARGS_LENGTH)) {
+            List<String> cmd = new ArrayList<>(chunk.size() + 3);
+            cmd.add(executable);
+            cmd.add("rm");
+            cmd.add("-f");
+            cmd.addAll(chunk);
+            String res = runCommand(cmd.toArray(new String [] {}));
+
+            // docker prints every removed ID on a line of its own and an error line
+            // for every container it could not remove
+            Set<String> requested = new HashSet<>(chunk);
+            Set<String> removed = new HashSet<>();
+            List<String> errors = new ArrayList<>();
+            if (res != null) {
+                for (String line : res.split("\\r?\\n")) {
+                    line = line.trim();
+                    if (requested.contains(line)) {
+                        removed.add(line);
+                    } else if (line.length() > 0) {
+                        errors.add(line);
+                    }
+                }
+            }
+
+            for (String id : chunk) {
+                if (res == null || removed.contains(id))
+                    continue;
+
+                String error = String.join("\n", errors);
+                for (String e : errors) {
+                    if (e.contains(id)) {
+                        error = e;
+                        break;
+                    }
+                }
+                failures.put(id, error);
+            }
+        }
+        return failures;
     }
 
+    /**
+     * Split a list of arguments into lists whose combined length does not exceed the
+     * given maximum. An argument longer than the maximum gets a list of its own.
+     */
+    static List<List<String>> chunk(List<String> args, int maxLength) {
+        List<List<String>> res = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        int length = 0;
+        for (String arg : args) {
+            if (current.size() > 0 && length + arg.length() + 1 > maxLength) {
+                res.add(current);
+                current = new ArrayList<>();
+                length = 0;
+            }
+            current.add(arg);
+            length += arg.length() + 1;
+        }
+        if (current.size() > 0)
+            res.add(current);
+        return res;
+    }
+
+    @Override
     public DockerContainerInfo run(List<String> command) throws Exception {
         List<String> execCmd = new ArrayList<>();
-        execCmd.add("docker");
+        execCmd.add(executable);
         execCmd.add("run");
         execCmd.addAll(command);
 
@@ -48,9 +156,39 @@ class LocalDockerController {
         return new DockerContainerInfo(id, LocalDockerServiceManager.getContainerHost());
     }
 
+    @Override
+    public DockerContainerInfo create(List<String> command) throws Exception {
+        List<String> execCmd = new ArrayList<>();
+        execCmd.add(executable);
+        execCmd.add("create");
+        execCmd.addAll(command);
+
+        String id = runCommandExpectSingleID(execCmd.toArray(new String [] {}));
+        return new DockerContainerInfo(id, LocalDockerServiceManager.getContainerHost());
+    }
+
+    @Override
+    public String start(String id) throws Exception {
+        return runCommandExpectSingleID(executable, "start", id);
+    }
+
+    @Override
     public List<String> ps(String labelFilter) throws IOException {
-        String res = runCommand("docker", "ps", "-q", "--no-trunc","-f", "label=" + labelFilter);
+        return ids(runCommand(executable, "ps", "-q", "--no-trunc","-f", "label=" + labelFilter));
+    }
+
+    @Override
+    public List<String> psCreated(String... labelFilters) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList(executable, "ps", "-a", "-q", "--no-trunc",
+                "-f", "status=created"));
+        for (String labelFilter : labelFilters) {
+            command.add("-f");
+            command.add("label=" + labelFilter);
+        }
+        return ids(runCommand(command.toArray(new String[] {})));
+    }
 
+    private static List<String> ids(String res) {
         String[] sa = res.trim().split("\\s+");
         List<String> sl = new ArrayList<>(sa.length);
         for (String s : sa) {
@@ -61,17 +199,94 @@ class LocalDockerController {
         return sl;
     }
 
+    @Override
+    public Map<String, String> psLabels(String labelFilter, String label) throws IOException {
+        String res = runCommand(executable, "ps", "--no-trunc", "-f", "label=" + labelFilter,
+                "--format", "{{.ID}} {{.Label \"" + label + "\"}}");
+
+        Map<String, String> containers = new LinkedHashMap<>();
+        if (res == null)
+            return containers;
+
+        try (BufferedReader lnr = new BufferedReader(new StringReader(res))) {
+            String line;
+            while ((line = lnr.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0)
+                    continue;
+
+                int idx = line.indexOf(' ');
+                if (idx < 0)
+                    containers.put(line, "");
+                else
+                    containers.put(line.substring(0, idx), line.substring(idx + 1).trim());
+            }
+        }
+        return containers;
+    }
+
+    @Override
+    public Closeable events(String label, Consumer<DockerEvent> listener, Runnable onEnd) throws IOException {
+        Process process = ProcessRunner.run(executable, "events", "--filter", "type=container",
+                "--filter", "label=" + label, "--format", "{{json .}}");
+        if (process == null) {
+            onEnd.run();
+            return () -> {};
+        }
+
+        Thread t = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    DockerEvent event = DockerEvent.parse(line);
+                    if (event != null)
+                        listener.accept(event);
+                }
+            } catch (IOException e) {
+                // The process was destroyed
+            } finally {
+                onEnd.run();
+            }
+        }, "aries-containers-docker-events");
+        t.setDaemon(true);
+        t.start();
+
+        return process::destroy;
+    }
+
+    @Override
     public String inspect(List<String> ids) throws IOException {
         if (ids.size() == 0)
             return "[]";
 
         List<String> cmd = new ArrayList<>();
-        cmd.add("docker");
+        cmd.add(executable);
         cmd.add("inspect");
         cmd.addAll(ids);
         return runCommand(cmd.toArray(new String [] {}));
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The {@code docker inspect} output is parsed while it is being read.
+     */
+    @Override
+    public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+        if (ids.size() == 0)
+            return new ArrayList<>();
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add(executable);
+        cmd.add("inspect");
+        cmd.addAll(ids);
+        List<DockerContainerInfo> res = runCommand(
+                in -> InspectParser.parse(in, LocalDockerServiceManager.getContainerHost()),
+                cmd.toArray(new String [] {}));
+        return res == null ? new ArrayList<>() : res;
+    }
+
     String runCommandExpectSingleID(String ... command) throws IOException {
         String res = runCommand(command);
         if (res != null) {
@@ -93,6 +308,48 @@ class LocalDockerController {
     }
 
     String runCommand(String... command) throws IOException {
-        return ProcessRunner.waitFor(ProcessRunner.run(command));
+        String res = await(processes.execute(command));
+        if (res == null)
+            return null;
+
+        res = res.trim();
+        LocalDockerServiceManager.LOG.debug("Result: {}", res);
+        return res;
+    }
+
+    /**
+     * Run a command and parse its output while it is being produced.
+     *
+     * @return The parsed output or {@code null} if commands are not executed.
+     */
+    <T> T runCommand(StreamParser<T> parser, String... command) throws IOException {
+        return await(processes.execute(parser, command));
+    }
+
+    /**
+     * Wait for a command to complete. If the waiting thread is interrupted the
+     * command is cancelled, which destroys its process.
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a docker command");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (processes != null)
+            processes.close();
     }
 }
@@ -18,83 +18,379 @@
  */
 package org.apache.aries.containers.docker.local.impl;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.apache.aries.containers.Container;
 import org.apache.aries.containers.HealthCheck;
 import org.apache.aries.containers.Service;
 import org.apache.aries.containers.ServiceConfig;
 import org.apache.aries.containers.ServiceManager;
-import org.apache.felix.utils.json.JSONParser;
+import org.apache.aries.containers.metrics.MetricsRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class LocalDockerServiceManager implements ServiceManager {
     static final Logger LOG = LoggerFactory.getLogger(LocalDockerServiceManager.class);
     static final String SERVICE_NAME_LABEL = "org.apache.aries.containers.service.name";
+    static final String FINGERPRINT_LABEL = "org.apache.aries.containers.service.fingerprint";
+    // Carried by the containers created for a warm pool
+    static final String WARM_POOL_LABEL = "org.apache.aries.containers.service.warmpool";
 
-    private static final String DOCKER_MACHINE_VM_NAME = System.getenv("DOCKER_MACHINE_NAME");
-    private static final boolean CHECK_DOCKER_MACHINE = Stream
-            .of(System.getenv("PATH").split(Pattern.quote(File.pathSeparator)))
-            .map(Paths::get)
-            .anyMatch(path -> Files.exists(path.resolve("docker-machine")));
+    /**
+     * System property to configure the maximum number of docker operations, such as
+     * container creations, that are executed in parallel.
+     */
+    public static final String CONCURRENCY_PROPERTY = "org.apache.aries.containers.docker.local.concurrency";
+    static final int DEFAULT_CONCURRENCY = 8;
 
-    private static final boolean USE_DOCKER_MACHINE = (DOCKER_MACHINE_VM_NAME != null) && CHECK_DOCKER_MACHINE;
-    static final String CONTAINER_HOST;
-    static {
-        if (USE_DOCKER_MACHINE) {
-            try {
-                CONTAINER_HOST = ProcessRunner.waitFor(ProcessRunner.run("docker-machine", "ip", DOCKER_MACHINE_VM_NAME));
-            } catch (IOException e) {
-                throw new RuntimeException("Problem invoking docker-machine", e);
-            }
-        } else {
-            CONTAINER_HOST = "localhost";
-        }
-    }
+    /**
+     * System property to configure the range of host ports that are mapped to the
+     * exposed container ports, in the form {@code lowest-highest}. Every exposed port
+     * of every container leases a host port of its own, so the default range of 2768
+     * ports limits a service with one exposed port to 2768 containers. Widen the range
+     * for larger deployments, container creation fails once all its ports are leased.
+     */
+    public static final String PORT_RANGE_PROPERTY = "org.apache.aries.containers.docker.local.ports";
+    static final String DEFAULT_PORT_RANGE = "30000-32767";
+
+    /**
+     * System property to configure the {@code docker} command line tool to invoke,
+     * either a command on the {@code PATH} or an absolute path. Defaults to {@code docker}.
+     */
+    public static final String DOCKER_EXECUTABLE_PROPERTY = "org.apache.aries.containers.docker.local.executable";
 
-    private final LocalDockerController docker;
+    /**
+     * The interval at which docker is asked for the health status of containers with
+     * a command health check that are not ready yet, if the container index is not
+     * enabled. When it is, the health status is taken from the docker event stream.
+     */
+    static final long DOCKER_HEALTH_POLL_MILLIS = 1000;
+
+    private final DockerController docker;
+    private final ExecutorService executor;
+    private final PortAllocator portAllocator;
+    private volatile ContainerIndex containerIndex;
+    private volatile Closeable eventSubscription;
+    private volatile HealthChecker healthChecker;
+    private volatile ServiceRegistry registry;
+    private ScheduledExecutorService healthPoller;
+    private final ConcurrentMap<String, ContainerImpl> awaitingDockerHealth = new ConcurrentHashMap<>();
     final ConcurrentMap<String, Service> services =
             new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<Service>> pendingServices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, WarmPool> warmPools = new ConcurrentHashMap<>();
+    private final MetricsRecorder metrics = new MetricsRecorder();
+    private final List<Consumer<String>> exitListeners = new CopyOnWriteArrayList<>();
 
     public LocalDockerServiceManager() {
         this(new LocalDockerController());
     }
 
-    LocalDockerServiceManager(LocalDockerController docker) {
+    /**
+     * Create a service manager that talks to the Docker Engine API directly
+     * instead of invoking the {@code docker} command line tool.
+     *
+     * @param dockerHost The docker host to connect to, in the format of the
+     * {@code DOCKER_HOST} environment variable, for example {@code unix:///var/run/docker.sock}
+     * or {@code tcp://localhost:2375}.
+     */
+    public LocalDockerServiceManager(String dockerHost) {
+        this(new DockerEngineController(EngineTransport.forDockerHost(dockerHost)));
+    }
+
+    LocalDockerServiceManager(DockerController docker) {
+        this(docker, Integer.getInteger(CONCURRENCY_PROPERTY, DEFAULT_CONCURRENCY));
+    }
+
+    LocalDockerServiceManager(DockerController docker, int concurrency) {
+        this(docker, concurrency, PortAllocator.forRange(System.getProperty(PORT_RANGE_PROPERTY, DEFAULT_PORT_RANGE)));
+    }
+
+    LocalDockerServiceManager(DockerController docker, int concurrency, PortAllocator portAllocator) {
+        // Probe the environment while the service manager starts up
+        ContainerHostResolver.getDefault().addMetrics(metrics);
+        ContainerHostResolver.getDefault().resolveAsync();
         this.docker = docker;
+        this.portAllocator = portAllocator;
+        this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "aries-containers-docker-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Keep an in-memory index of the containers of each service, so that container
+     * lists and instance counts can be obtained without querying docker. The index
+     * is seeded once and then updated from the docker event stream. Containers that
+     * exit are also removed from the services they belong to.
+     * <p>
+     * If the event stream ends, for example because the docker daemon restarted,
+     * the service manager falls back to querying docker directly.
+     */
+    public synchronized void enableContainerIndex() throws IOException {
+        if (eventSubscription != null || executor.isShutdown())
+            return;
+
+        // Subscribe before seeding the index so that no events are missed
+        ContainerIndex index = new ContainerIndex();
+        eventSubscription = docker.events(SERVICE_NAME_LABEL, e -> handleEvent(index, e), () -> {
+            if (index.isLive() && !executor.isShutdown())
+                LOG.warn("Docker event stream ended, container index disabled");
+            index.invalidate();
+        });
+        try {
+            Map<String, String> containers = metrics.time("docker.psLabels", () -> docker.psLabels(SERVICE_NAME_LABEL));
+            index.seed(containers, metrics.time("docker.psLabels", () ->
+                docker.psLabels(SERVICE_NAME_LABEL, FINGERPRINT_LABEL)));
+        } catch (IOException | RuntimeException e) {
+            index.invalidate();
+            eventSubscription.close();
+            eventSubscription = null;
+            throw e;
+        }
+        containerIndex = index;
+    }
+
+    /**
+     * Enable the container index in the background, see {@link #enableContainerIndex()}.
+     * Until the index has been seeded containers are looked up in docker directly.
+     *
+     * @return A future that completes when the index is live, or exceptionally if
+     * the docker events could not be subscribed to.
+     */
+    public CompletableFuture<Void> enableContainerIndexAsync() {
+        return supplyAsync(() -> {
+            enableContainerIndex();
+            return null;
+        });
+    }
+
+    /**
+     * Keep a record of the containers of each service, their host ports and the
+     * instance count changes in progress on disk. A service manager that is later
+     * started with the same directory serves the recorded services straight away,
+     * without inspecting their containers first, and verifies them against docker
+     * in the background. An instance count change that was interrupted is resumed.
+     * <p>
+     * This must be enabled before any service is obtained.
+     *
+     * @param directory The directory to keep the registry in.
+     */
+    public synchronized void enableServiceRegistry(File directory) throws IOException {
+        if (registry != null)
+            return;
+
+        ServiceRegistry reg = metrics.time("registry.load", () -> ServiceRegistry.open(directory.toPath()));
+        // Hand out no host ports that recorded containers may still hold
+        for (String serviceName : reg.getServiceNames()) {
+            for (Map<Integer, Integer> ports : reg.getContainers(serviceName).values()) {
+                portAllocator.reserve(ports.values());
+            }
+        }
+        registry = reg;
+    }
+
+    /**
+     * Register a listener that is notified when a container of a service exits,
+     * for example to trigger a {@link org.apache.aries.containers.reconcile.Reconciler}.
+     * Only exits reported by the docker event stream are notified, so the container
+     * index must be enabled. A listener is notified once per container that dies
+     * while it belongs to a service obtained from this service manager; containers
+     * that the service manager removes itself are not notified.
+     *
+     * @param listener Called with the name of the service, on the thread that reads
+     * the docker event stream.
+     */
+    public void addContainerExitListener(Consumer<String> listener) {
+        exitListeners.add(listener);
+    }
+
+    void handleEvent(ContainerIndex index, DockerEvent event) {
+        String serviceName = event.getAttributes().get(SERVICE_NAME_LABEL);
+        switch (event.getAction()) {
+        case "start":
+            if (serviceName != null)
+                index.add(event.getID(), serviceName, event.getAttributes().get(FINGERPRINT_LABEL));
+            break;
+        case "die":
+        case "destroy":
+            index.remove(event.getID());
+            if (serviceName == null)
+                break;
+
+            Service svc = services.get(serviceName);
+            // A container is only removed from its service once, containers that
+            // the service removed itself or that it never held, such as warm pool
+            // containers, are not reported
+            if (svc instanceof ServiceImpl && ((ServiceImpl) svc).containerExited(event.getID()) &&
+                    "die".equals(event.getAction())) {
+                for (Consumer<String> listener : exitListeners) {
+                    try {
+                        listener.accept(serviceName);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Container exit listener failed for service {}", serviceName, e);
+                    }
+                }
+            }
+            break;
+        default:
+            // For example "health_status: healthy"
+            if (event.getAction().startsWith("health_status:") &&
+                    "healthy".equals(event.getAction().substring("health_status:".length()).trim()))
+                dockerHealthy(event.getID());
+        }
+    }
+
+    private ContainerIndex liveIndex() {
+        ContainerIndex index = containerIndex;
+        return index != null && index.isLive() ? index : null;
     }
 
     List<String> getDockerIDs(ServiceConfig config) throws IOException {
-        return docker.ps(SERVICE_NAME_LABEL + "=" + config.getServiceName());
+        ContainerIndex index = liveIndex();
+        if (index != null)
+            return index.getIDs(config.getServiceName());
+
+        return metrics.time("docker.ps", () -> docker.ps(SERVICE_NAME_LABEL + "=" + config.getServiceName()));
+    }
+
+    /**
+     * @return The IDs of the running containers of a service, mapped to the value
+     * of their fingerprint label. The value is empty if it is not known.
+     */
+    Map<String, String> getFingerprints(ServiceConfig config) throws IOException {
+        ContainerIndex index = liveIndex();
+        if (index != null)
+            return index.getFingerprints(config.getServiceName());
+
+        return metrics.time("docker.psLabels", () ->
+            docker.psLabels(SERVICE_NAME_LABEL + "=" + config.getServiceName(), FINGERPRINT_LABEL));
+    }
+
+    int getActualInstanceCount(ServiceConfig config) throws IOException {
+        ContainerIndex index = liveIndex();
+        if (index != null)
+            return index.count(config.getServiceName());
+
+        return getDockerIDs(config).size();
     }
 
     @Override
     public Service getService(ServiceConfig config) throws Exception {
-        Service existingService = services.get(config.getServiceName());
+        return join(getServiceAsync(config));
+    }
+
+    @Override
+    public CompletableFuture<Service> getServiceAsync(ServiceConfig config) {
+        return metrics.timeAsync("getService", () -> obtainServiceAsync(config));
+    }
+
+    /**
+     * Obtain a service that is not known yet at most once at a time. Concurrent
+     * callers asking for the same service share the future of the discovery or
+     * creation that is in flight, so that the containers are only looked up and
+     * created once. A failed attempt is not remembered, the next caller tries again.
+     */
+    private CompletableFuture<Service> obtainServiceAsync(ServiceConfig config) {
+        String serviceName = config.getServiceName();
+        Service existingService = services.get(serviceName);
         if (existingService != null)
-            return existingService;
+            return CompletableFuture.completedFuture(existingService);
+
+        CompletableFuture<Service> pending = new CompletableFuture<>();
+        CompletableFuture<Service> inFlight = pendingServices.putIfAbsent(serviceName, pending);
+        if (inFlight != null)
+            return inFlight;
+
+        // The previous attempt might have registered the service just before it was done
+        existingService = services.get(serviceName);
+        CompletableFuture<Service> attempt;
+        try {
+            attempt = existingService != null ?
+                    CompletableFuture.completedFuture(existingService) : launchServiceAsync(config);
+        } catch (RuntimeException e) {
+            attempt = new CompletableFuture<>();
+            attempt.completeExceptionally(e);
+        }
+        attempt.whenComplete((svc, t) -> {
+            pendingServices.remove(serviceName, pending);
+            if (t != null)
+                pending.completeExceptionally(unwrap(t));
+            else
+                pending.complete(svc);
+        });
+        return pending;
+    }
+
+    private CompletableFuture<Service> launchServiceAsync(ServiceConfig config) {
+        ServiceRegistry reg = registry;
+        if (reg != null) {
+            Map<String, Map<Integer, Integer>> recorded = reg.getContainers(config.getServiceName());
+            if (!recorded.isEmpty())
+                return CompletableFuture.completedFuture(restoreService(config, reg, recorded));
+        }
+
+        return supplyAsync(() -> discoverContainers(config)).
+            thenCompose(discovered -> {
+                if (discovered.size() > 0)
+                    return CompletableFuture.completedFuture(discovered);
+
+                return createContainersAsync(config, config.getRequestedInstances(), c -> {}).
+                    handle((created, t) -> {
+                        if (t == null)
+                            return created;
 
-        List<ContainerImpl> containers = discoverContainers(config);
-        if (containers.size() == 0)
-            containers = createContainers(config);
+                        Throwable cause = unwrap(t);
+                        if (cause instanceof ContainerOperationException &&
+                                !((ContainerOperationException) cause).getSucceeded().isEmpty()) {
+                            LOG.error("Not all containers could be created for service {}: {}",
+                                    config.getServiceName(), cause.getMessage(), cause);
+                            return ((ContainerOperationException) cause).getSucceeded();
+                        }
+                        throw new CompletionException(cause);
+                    });
+            }).
+            thenApply(containers -> {
+                ServiceImpl svc = register(config, containers);
+                svc.replaceDrifted();
+                return svc;
+            });
+    }
 
+    private ServiceImpl register(ServiceConfig config, List<ContainerImpl> containers) {
         ServiceImpl svc = new ServiceImpl(config, this, containers);
         for (ContainerImpl c : containers) {
             c.setService(svc);
@@ -102,24 +398,294 @@ public class LocalDockerServiceManager implements ServiceManager {
 
         services.put(config.getServiceName(), svc);
 
+        WarmPool pool = getWarmPool(config);
+        if (pool != null)
+            pool.refill();
+        return svc;
+    }
+
+    /**
+     * Create a service from the containers recorded in the service registry. The
+     * containers are then checked against docker in the background: recorded
+     * containers that no longer run are dropped, containers that docker runs for
+     * the service but that were not recorded lead to a refresh of the service,
+     * containers launched with a different configuration are replaced, and an
+     * instance count change that did not complete is applied again.
+     */
+    private ServiceImpl restoreService(ServiceConfig config, ServiceRegistry reg,
+            Map<String, Map<Integer, Integer>> recorded) {
+        List<ContainerImpl> containers = new ArrayList<>(recorded.size());
+        for (Map.Entry<String, Map<Integer, Integer>> entry : recorded.entrySet()) {
+            ContainerImpl c = new ContainerImpl(entry.getKey(), getContainerHost(), entry.getValue());
+            watchHealth(config, c);
+            containers.add(c);
+        }
+        ServiceImpl svc = register(config, containers);
+        Integer pendingScale = reg.getPendingScale(config.getServiceName());
+
+        supplyAsync(() -> {
+                Map<String, String> running = getFingerprints(config);
+                // The event stream only reports changes of the health status, so
+                // containers that are healthy already are not reported by it
+                checkDockerHealth(running.keySet());
+                return running;
+            }).
+            thenCompose(running -> {
+                if (svc.retainRunning(running))
+                    return svc.refreshAsync();
+                return CompletableFuture.completedFuture(null);
+            }).
+            thenCompose(v -> svc.replaceDrifted()).
+            thenCompose(v -> {
+                if (pendingScale == null)
+                    return CompletableFuture.completedFuture(null);
+
+                LOG.info("Resuming the change of the instance count of service {} to {}",
+                        config.getServiceName(), pendingScale);
+                return svc.setInstanceCountAsync(pendingScale);
+            }).
+            whenComplete((v, t) -> {
+                if (t != null)
+                    LOG.error("Problem verifying the recorded containers of service {}",
+                            config.getServiceName(), unwrap(t));
+            });
         return svc;
     }
 
-    private List<ContainerImpl> createContainers(ServiceConfig config) throws Exception {
-        List<ContainerImpl> containers = new ArrayList<>();
+    List<ContainerImpl> createContainers(ServiceConfig config, int count,
+            Consumer<ContainerImpl> onCreated) throws Exception {
+        return join(createContainersAsync(config, count, onCreated));
+    }
+
+    /**
+     * Create a number of containers in parallel. The number of containers created
+     * concurrently is bounded by the configured concurrency. If the service has a
+     * warm pool, containers are taken from the pool first and the pool is refilled
+     * once all containers are up.
+     *
+     * @param config The configuration to create the containers for.
+     * @param count The number of containers to create.
+     * @param onCreated Called for each container as soon as it is created, possibly
+     * from multiple threads at the same time.
+     * @return A future that completes with the created containers. If one or more
+     * containers could not be created the future completes with a
+     * {@link ContainerOperationException} which holds the containers that were created.
+     */
+    CompletableFuture<List<ContainerImpl>> createContainersAsync(ServiceConfig config, int count,
+            Consumer<ContainerImpl> onCreated) {
+        WarmPool pool = getWarmPool(config);
+        Map<String, CompletableFuture<ContainerImpl>> futures = new LinkedHashMap<>();
+        for (int i=0; i<count; i++) {
+            futures.put("instance " + i, supplyAsync(() -> {
+                ContainerImpl c = pool == null ? null : startPooledContainer(pool);
+                if (c == null)
+                    c = createDockerContainer(config);
+                watchHealth(config, c);
+                recordContainer(config, c);
+                onCreated.accept(c);
+                return c;
+            }));
+        }
+
+        CompletableFuture<List<ContainerImpl>> res =
+                collect("Creating containers for service " + config.getServiceName(), futures);
+        if (pool != null)
+            res.whenComplete((created, t) -> pool.refill());
+        return res;
+    }
+
+    /**
+     * @return The warm pool of the service or {@code null} if the service does
+     * not use one.
+     */
+    WarmPool getWarmPool(ServiceConfig config) {
+        if (config.getWarmPoolSize() <= 0)
+            return null;
+
+        return warmPools.computeIfAbsent(config.getServiceName(),
+                n -> new WarmPool(config, this, removeWarmPoolLeftoversAsync(config)));
+    }
+
+    /**
+     * Remove the containers that an earlier service manager created for the warm
+     * pool of a service and did not start. Their ports are not leased by this
+     * service manager, so they are not taken over. A container that was taken
+     * from the pool and started still carries the warm pool label, but is no
+     * longer in the created state.
+     */
+    private CompletableFuture<Void> removeWarmPoolLeftoversAsync(ServiceConfig config) {
+        return this.<Void>supplyAsync(() -> {
+            List<String> ids = metrics.time("docker.ps", () -> docker.psCreated(
+                    SERVICE_NAME_LABEL + "=" + config.getServiceName(), WARM_POOL_LABEL + "=true"));
+            if (ids.isEmpty())
+                return null;
+
+            LOG.info("Removing {} warm pool containers left behind for service {}",
+                    ids.size(), config.getServiceName());
+            Map<String, String> errors = metrics.time("docker.rm", () -> docker.remove(ids));
+            if (!errors.isEmpty())
+                LOG.warn("Unable to remove warm pool containers of service {}: {}",
+                        config.getServiceName(), errors);
+            return null;
+        }).exceptionally(t -> {
+            LOG.warn("Unable to remove the warm pool containers left behind for service {}",
+                    config.getServiceName(), unwrap(t));
+            return null;
+        });
+    }
+
+    /**
+     * Start a container from the warm pool. Containers that fail to start are
+     * removed and the next one is tried.
+     *
+     * @return The started container or {@code null} if the pool is empty.
+     */
+    ContainerImpl startPooledContainer(WarmPool pool) {
+        ContainerImpl c;
+        while ((c = pool.claim()) != null) {
+            try {
+                String id = c.getID();
+                metrics.time("docker.start", () -> docker.start(id));
+                return c;
+            } catch (Exception e) {
+                LOG.warn("Unable to start pooled container {}", c.getID(), e);
+                destroyContainerQuietly(c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop refilling the warm pool of a service and remove the containers in it.
+     */
+    CompletableFuture<Void> closeWarmPoolAsync(ServiceConfig config) {
+        WarmPool pool = warmPools.remove(config.getServiceName());
+        if (pool == null)
+            return CompletableFuture.completedFuture(null);
+
+        return destroyContainersAsync(pool.close()).thenApply(destroyed -> null);
+    }
+
+    /**
+     * Destroy a number of containers with a single bulk removal.
+     *
+     * @param containers The containers to destroy.
+     * @return A future that completes with the destroyed containers. If one or more
+     * containers could not be destroyed the future completes with a
+     * {@link ContainerOperationException} which holds the containers that were destroyed.
+     */
+    CompletableFuture<List<ContainerImpl>> destroyContainersAsync(List<ContainerImpl> containers) {
+        if (containers.isEmpty())
+            return CompletableFuture.completedFuture(Collections.emptyList());
+
+        return supplyAsync(() -> {
+            List<String> ids = new ArrayList<>(containers.size());
+            for (ContainerImpl c : containers) {
+                ids.add(c.getID());
+            }
+            Map<String, String> errors = metrics.time("docker.rm", () -> docker.remove(ids));
+
+            List<ContainerImpl> destroyed = new ArrayList<>();
+            Map<String, Throwable> failures = new LinkedHashMap<>();
+            for (ContainerImpl c : containers) {
+                String error = errors.get(c.getID());
+                if (error == null) {
+                    release(c);
+                    destroyed.add(c);
+                } else {
+                    failures.put(c.getID(), new IOException("Unable to remove container " + c.getID() + ": " + error));
+                }
+            }
+
+            if (failures.size() > 0)
+                throw new ContainerOperationException("Destroying containers", destroyed, failures);
+            return destroyed;
+        });
+    }
+
+    private CompletableFuture<List<ContainerImpl>> collect(String operation,
+            Map<String, CompletableFuture<ContainerImpl>> futures) {
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()])).
+            handle((v, t) -> {
+                List<ContainerImpl> succeeded = new ArrayList<>();
+                Map<String, Throwable> failures = new LinkedHashMap<>();
+                for (Map.Entry<String, CompletableFuture<ContainerImpl>> entry : futures.entrySet()) {
+                    try {
+                        succeeded.add(entry.getValue().join());
+                    } catch (RuntimeException e) {
+                        failures.put(entry.getKey(), unwrap(e));
+                    }
+                }
+
+                if (failures.size() > 0)
+                    throw new CompletionException(new ContainerOperationException(operation, succeeded, failures));
+                return succeeded;
+            });
+    }
+
+    /**
+     * Run a task on the executor of this service manager.
+     */
+    <T> CompletableFuture<T> supplyAsync(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
 
-        for (int i=0; i<config.getRequestedInstances(); i++) {
-            containers.add(createDockerContainer(config));
+    /**
+     * Wait for the completion stage to complete and return its result. If the
+     * stage completed exceptionally the original exception is thrown.
+     */
+    static <T> T join(CompletionStage<T> stage) throws Exception {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
         }
+    }
 
-        return containers;
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
     }
 
     ContainerImpl createDockerContainer(ServiceConfig config) throws Exception {
+        return createDockerContainer(config, true);
+    }
+
+    /**
+     * Create a docker container for a service. Host ports are leased for the
+     * exposed ports of the container and returned if the container cannot be
+     * created.
+     *
+     * @param config The service configuration.
+     * @param start {@code true} to run the container, {@code false} to only create
+     * it so that it can be started later.
+     * @return The container.
+     */
+    ContainerImpl createDockerContainer(ServiceConfig config, boolean start) throws Exception {
         List<String> command = new ArrayList<>();
-        command.add("-d");
+        if (start)
+            command.add("-d");
         command.add("-l");
         command.add(SERVICE_NAME_LABEL + "=" + config.getServiceName());
+        command.add("-l");
+        command.add(FINGERPRINT_LABEL + "=" + config.getFingerprint());
+        if (!start) {
+            command.add("-l");
+            command.add(WARM_POOL_LABEL + "=true");
+        }
 
         String ep = config.getEntryPoint();
         if (ep != null) {
@@ -128,153 +694,398 @@ public class LocalDockerServiceManager implements ServiceManager {
         }
 
         Map<Integer, Integer> ports = new HashMap<>();
-        for (Integer p : config.getContainerPorts()) {
-            command.add("-p");
-            int freePort = getFreePort();
-            command.add(freePort + ":" + p);
-            ports.put(p, freePort);
+        try {
+            for (Integer p : config.getContainerPorts()) {
+                command.add("-p");
+                int freePort = portAllocator.allocate();
+                ports.put(p, freePort);
+                command.add(freePort + ":" + p);
+            }
+
+            for(Map.Entry<String, String> entry : config.getEnvVars().entrySet()) {
+                command.add("-e");
+                command.add(entry.getKey() + '=' + entry.getValue());
+            }
+
+            command.add("--cpus");
+            command.add("" + config.getRequestedCpuUnits() + "");
+
+            command.add("-m");
+            command.add("" + ((int) config.getRequestedMemory()) + "m");
+
+            HealthCheck commandCheck = null;
+            for (HealthCheck hc : config.getHealthChecks()) {
+                if (hc.getType() == HealthCheck.Type.COMMAND) {
+                    // Docker runs a single command health check inside the container
+                    if (commandCheck != null)
+                        throw new UnsupportedOperationException("Only one health check of type COMMAND is supported");
+                    commandCheck = hc;
+                } else if (!HealthChecker.supports(hc.getType())) {
+                    throw new UnsupportedOperationException("Health check of type " + hc.getType() +
+                            " not supported");
+                } else if (hc.getPort() == null && hc.getPortIndex() != null &&
+                        (hc.getPortIndex() < 0 || hc.getPortIndex() >= config.getContainerPorts().size())) {
+                    throw new IllegalArgumentException("Health check port index " + hc.getPortIndex() +
+                            " does not refer to a container port");
+                }
+            }
+
+            if (commandCheck != null) {
+                command.add("--health-cmd");
+                command.add(commandCheck.getParameters());
+                command.add("--health-interval");
+                command.add(commandCheck.getInterval() + "s");
+                command.add("--health-retries");
+                command.add("" + commandCheck.getMaxFailures());
+// TODO Add this when docker supports it in a release.
+//            command.add("--health-start-period");
+//            command.add(commandCheck.getGracePeriod() + "s");
+                command.add("--health-timeout");
+                command.add(commandCheck.getTimeout() + "s");
+            }
+
+            command.add(config.getContainerImage());
+            command.addAll(Arrays.asList(config.getCommandLine()));
 
+            DockerContainerInfo info = start
+                    ? metrics.time("docker.run", () -> docker.run(command))
+                    : metrics.time("docker.create", () -> docker.create(command));
+            ContainerImpl c = new ContainerImpl(info.getID(), info.getIP(), ports);
+            c.setFingerprint(config.getFingerprint());
+            return c;
+        } catch (Exception e) {
+            portAllocator.release(ports.values());
+            throw e;
         }
+    }
+
+    /**
+     * Remove a container and return its host ports to the pool.
+     */
+    void destroyContainer(ContainerImpl container) throws Exception {
+        destroyDockerContainer(container.getID(), true);
+        release(container);
+    }
 
-        for(Map.Entry<String, String> entry : config.getEnvVars().entrySet()) {
-            command.add("-e");
-            command.add(entry.getKey() + '=' + entry.getValue());
+    void destroyContainerQuietly(ContainerImpl container) {
+        try {
+            destroyContainer(container);
+        } catch (Exception e) {
+            LOG.warn("Unable to remove container {}", container.getID(), e);
         }
+    }
+
+    /**
+     * Return the host ports of a container that no longer runs to the pool and
+     * stop tracking its health.
+     */
+    void release(ContainerImpl container) {
+        portAllocator.release(container.getExposedPorts().values());
+        ServiceRegistry reg = registry;
+        if (reg != null)
+            reg.containerRemoved(container.getID());
+        awaitingDockerHealth.remove(container.getID(), container);
+        HealthChecker checker = healthChecker;
+        if (checker != null)
+            checker.unregister(container.getID());
+        container.removed();
+    }
 
-        command.add("--cpus");
-        command.add("" + config.getRequestedCpuUnits() + "");
+    /**
+     * Start tracking the health of a running container. The container becomes ready
+     * once docker reports its command health check healthy, if it has one, and all
+     * its in-process {@code HTTP}, {@code HTTPS} and {@code TCP} health checks pass.
+     */
+    void watchHealth(ServiceConfig config, ContainerImpl container) {
+        boolean dockerCheck = false;
+        boolean inProcessChecks = false;
+        for (HealthCheck hc : config.getHealthChecks()) {
+            if (hc.getType() == HealthCheck.Type.COMMAND)
+                dockerCheck = true;
+            else if (HealthChecker.supports(hc.getType()))
+                inProcessChecks = true;
+        }
 
-        command.add("-m");
-        command.add("" + ((int) config.getRequestedMemory()) + "m");
+        Set<String> sources = new HashSet<>();
+        if (dockerCheck)
+            sources.add(ContainerImpl.DOCKER_HEALTH);
+        if (inProcessChecks)
+            sources.add(ContainerImpl.CHECKER_HEALTH);
+        container.awaitHealth(sources);
 
-        command.add(config.getContainerImage());
-        command.addAll(Arrays.asList(config.getCommandLine()));
+        if (dockerCheck && awaitingDockerHealth.putIfAbsent(container.getID(), container) == null)
+            startHealthPoller();
 
-        if (config.getHealthChecks().size() > 0) {
-            // Only one healthcheck supported
-            HealthCheck hc = config.getHealthChecks().get(0);
-            if (hc.getType() != HealthCheck.Type.COMMAND) {
-                throw new UnsupportedOperationException("Health check of type " + hc.getType() +
-                        " not supported. Docker only supports health checks of type COMMAND");
+        if (inProcessChecks) {
+            try {
+                getHealthChecker().register(container, config.getHealthChecks(), config.getContainerPorts());
+            } catch (IOException | IllegalArgumentException e) {
+                LOG.error("Unable to health check container {} of service {}",
+                        container.getID(), config.getServiceName(), e);
             }
+        }
+    }
 
-            command.add("--health-cmd");
-            command.add(hc.getParameters());
-            command.add("--health-interval");
-            command.add(hc.getInterval() + "s");
-            command.add("--health-retries");
-            command.add("" + hc.getMaxFailures());
-// TODO Add this when docker supports it in a release.
-//            command.add("--health-start-period");
-//            command.add(hc.getGracePeriod() + "s");
-            command.add("--health-timeout");
-            command.add(hc.getTimeout() + "s");
+    private void recordContainer(ServiceConfig config, ContainerImpl container) {
+        ServiceRegistry reg = registry;
+        if (reg != null)
+            reg.containerAdded(config.getServiceName(), container.getID(), container.getExposedPorts());
+    }
+
+    /**
+     * Record that the instance count of a service is being changed, so that the
+     * change can be resumed if the service manager stops before it completes.
+     */
+    void scaleStarted(ServiceConfig config, int count) {
+        ServiceRegistry reg = registry;
+        if (reg != null)
+            reg.scaleStarted(config.getServiceName(), count);
+    }
+
+    void scaleCompleted(ServiceConfig config) {
+        ServiceRegistry reg = registry;
+        if (reg != null)
+            reg.scaleCompleted(config.getServiceName());
+    }
+
+    private void dockerHealthy(String id) {
+        ContainerImpl c = awaitingDockerHealth.remove(id);
+        if (c != null)
+            c.healthy(ContainerImpl.DOCKER_HEALTH);
+    }
+
+    private synchronized void startHealthPoller() {
+        if (healthPoller != null)
+            return;
+
+        healthPoller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "aries-containers-docker-health-status");
+            t.setDaemon(true);
+            return t;
+        });
+        healthPoller.scheduleWithFixedDelay(this::pollDockerHealth,
+                DOCKER_HEALTH_POLL_MILLIS, DOCKER_HEALTH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ask docker for the health status of all containers that wait for their command
+     * health check, unless the docker event stream reports it.
+     */
+    private void pollDockerHealth() {
+        if (liveIndex() == null)
+            checkDockerHealth(awaitingDockerHealth.keySet());
+    }
+
+    /**
+     * Ask docker for the health status of those of the given containers that wait
+     * for their command health check, with a single inspect.
+     */
+    private void checkDockerHealth(Collection<String> ids) {
+        List<String> waiting = new ArrayList<>(ids);
+        waiting.retainAll(awaitingDockerHealth.keySet());
+        if (waiting.isEmpty())
+            return;
+
+        try {
+            for (DockerContainerInfo info : metrics.time("docker.inspect", () -> docker.inspectContainers(waiting))) {
+                if ("healthy".equals(info.getHealth()))
+                    dockerHealthy(info.getID());
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to obtain the health status of containers", e);
         }
+    }
+
+    synchronized HealthChecker getHealthChecker() throws IOException {
+        if (healthChecker == null)
+            healthChecker = new HealthChecker(new HealthChecker.Listener() {
+                @Override
+                public void healthChanged(ContainerImpl container, boolean healthy) {
+                    LOG.debug("Container {} is {}", container.getID(), healthy ? "healthy" : "unhealthy");
+                    if (healthy)
+                        container.healthy(ContainerImpl.CHECKER_HEALTH);
+                }
+
+                @Override
+                public void failed(ContainerImpl container) {
+                    replaceUnhealthy(container);
+                }
+            });
+        return healthChecker;
+    }
+
+    /**
+     * Replace a container that failed its health checks, like Marathon kills
+     * and restarts unhealthy tasks.
+     */
+    private void replaceUnhealthy(ContainerImpl container) {
+        Service svc = container.getService();
+        if (!(svc instanceof ServiceImpl) || executor.isShutdown())
+            return;
+
+        ((ServiceImpl) svc).replaceContainer(container).whenComplete((v, t) -> {
+            if (t != null)
+                LOG.error("Problem replacing unhealthy container {}", container.getID(), unwrap(t));
+        });
+    }
 
-        DockerContainerInfo info = docker.run(command);
+    PortAllocator getPortAllocator() {
+        return portAllocator;
+    }
 
-        return new ContainerImpl(info.getID(), info.getIP(), ports);
+    /**
+     * @return The metrics of the service manager operations and of the docker
+     * commands they execute, as well as those of the container host probes
+     * that run while the service manager is open.
+     */
+    public MetricsRecorder getMetrics() {
+        return metrics;
     }
 
     public void destroyDockerContainer(String id, boolean remove) throws Exception {
         if (remove) {
-            docker.remove(id);
+            metrics.time("docker.rm", () -> docker.remove(id));
         } else {
-            docker.kill(id);
+            metrics.time("docker.kill", () -> docker.kill(id));
         }
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     List<ContainerImpl> discoverContainers(ServiceConfig config) throws IOException {
-        List<ContainerImpl> res = new ArrayList<>();
         List<String> ids = getDockerIDs(config);
+        releaseVanished(config, new HashSet<>(ids));
         if (ids.size() == 0)
             return Collections.emptyList();
 
-        String infoJSON = docker.inspect(ids);
-        List<Object> data = new JSONParser(infoJSON).getParsedList();
-        for (Object d : data) {
-            if (!(d instanceof Map))
-                continue;
-
-            Map m = (Map) d;
-            Object ns = m.get("NetworkSettings");
-            Map<Integer, Integer> ports = new HashMap<>();
-            if (ns instanceof Map) {
-                Object pd = ((Map) ns).get("Ports");
-                if (pd instanceof Map) {
-                    Map pm = (Map) pd;
-                    for(Map.Entry entry : (Set<Map.Entry>) pm.entrySet()) {
-                        try {
-                            String key = entry.getKey().toString();
-                            int idx = key.indexOf('/');
-                            if (idx > 0)
-                                key = key.substring(0, idx);
-                            int containerPort = Integer.parseInt(key);
-                            int hostPort = -1;
-                            for (Object val : (List) entry.getValue()) {
-                                if (val instanceof Map) {
-                                    hostPort = Integer.parseInt(((Map) val).get("HostPort").toString());
-                                }
-                            }
-
-                            if (hostPort != -1) {
-                                ports.put(containerPort, hostPort);
-                            }
-                        } catch (Exception nfe) {
-                            // ignore parsing exceptions, try next one
-                        }
-                    }
-                }
-            }
-            // TODO check that the settings match!
-            res.add(new ContainerImpl(m.get("Id").toString(), LocalDockerServiceManager.getContainerHost(), ports));
+        List<ContainerImpl> res = new ArrayList<>(ids.size());
+        for (DockerContainerInfo info : metrics.time("docker.inspect", () -> docker.inspectContainers(ids))) {
+            portAllocator.reserve(info.getPorts().values());
+            ContainerImpl c = new ContainerImpl(info.getID(), getContainerHost(), info.getPorts());
+            c.setFingerprint(info.getLabels().get(FINGERPRINT_LABEL));
+            watchHealth(config, c);
+            // Already running, so docker might not report a change of its health status
+            if ("healthy".equals(info.getHealth()))
+                dockerHealthy(info.getID());
+            recordContainer(config, c);
+            res.add(c);
         }
         return res;
     }
 
-    private int getFreePort() throws IOException {
-        try (ServerSocket ss = new ServerSocket(0)) {
-            return ss.getLocalPort();
+    /**
+     * Return the host ports recorded for containers of a service that docker no longer
+     * runs, and that the service does not hold either, for example because they exited
+     * while no service manager was running. The containers that the service holds are
+     * released when the service is refreshed.
+     */
+    private void releaseVanished(ServiceConfig config, Set<String> running) {
+        ServiceRegistry reg = registry;
+        if (reg == null)
+            return;
+
+        Set<String> held = new HashSet<>();
+        Service svc = services.get(config.getServiceName());
+        if (svc != null) {
+            for (Container c : svc.listContainers()) {
+                held.add(c.getID());
+            }
+        }
+        for (Map.Entry<String, Map<Integer, Integer>> entry : reg.getContainers(config.getServiceName()).entrySet()) {
+            if (!running.contains(entry.getKey()) && !held.contains(entry.getKey())) {
+                portAllocator.release(entry.getValue().values());
+                reg.containerRemoved(entry.getKey());
+            }
         }
     }
 
+    /**
+     * @return The host on which the published ports of the containers can be
+     * reached. The host is resolved once, in the background, when the first
+     * service manager is created, so this only blocks if that has not finished yet.
+     */
     public static String getContainerHost() {
-        return CONTAINER_HOST;
+        return ContainerHostResolver.getDefault().getHost();
+    }
+
+    /**
+     * Resolve the container host again, for example after the docker machine was
+     * restarted with a different address. Containers that are already known keep
+     * the host they were given.
+     */
+    public static void refreshContainerHost() {
+        ContainerHostResolver.getDefault().refresh();
     }
 
+    /**
+     * Release the resources held by this service manager. Running containers
+     * are not affected, containers held in warm pools are removed.
+     */
+    public void close() {
+        for (WarmPool pool : warmPools.values()) {
+            for (ContainerImpl c : pool.close()) {
+                destroyContainerQuietly(c);
+            }
+        }
+        warmPools.clear();
+        executor.shutdown();
+        HealthChecker checker = healthChecker;
+        if (checker != null)
+            checker.close();
+        Closeable subscription;
+        synchronized (this) {
+            if (healthPoller != null)
+                healthPoller.shutdown();
+            // An index that is enabled in the background either subscribed already
+            // or sees that the executor was shut down
+            subscription = eventSubscription;
+        }
+        if (subscription != null) {
+            try {
+                subscription.close();
+            } catch (IOException e) {
+                LOG.debug("Problem closing the docker event subscription", e);
+            }
+        }
+        ServiceRegistry reg = registry;
+        if (reg != null) {
+            try {
+                reg.close();
+            } catch (IOException e) {
+                LOG.warn("Problem writing the service registry", e);
+            }
+        }
+        docker.close();
+        ContainerHostResolver.getDefault().removeMetrics(metrics);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The service names are obtained from the container index when enabled, or
+     * otherwise from the service name labels reported by a single {@code docker ps}.
+     * The containers are not inspected.
+     */
     @Override
-    @SuppressWarnings("rawtypes")
     public Set<String> listServices() throws Exception {
-        Set<String> res = new HashSet<>();
-        List<String> ids = docker.ps(SERVICE_NAME_LABEL);
+        return metrics.time("listServices", this::collectServiceNames);
+    }
 
+    private Set<String> collectServiceNames() throws IOException {
+        Set<String> res = new HashSet<>();
         for (Service svc : services.values()) {
             res.add(svc.getConfiguration().getServiceName());
-            for (Container c : svc.listContainers()) {
-                ids.remove(c.getID());
-            }
         }
 
-        String json = docker.inspect(ids);
-        for (Object data : new JSONParser(json).getParsedList()) {
-            // These are services that have been launched previously and are not internally synced yet
-            if (!(data instanceof Map)) {
-                continue;
-            }
-
-            Object cd = ((Map) data).get("Config");
-            if (cd instanceof Map) {
-                Object ld = ((Map) cd).get("Labels");
-                if (ld instanceof Map) {
-                    Object serviceName = ((Map) ld).get(SERVICE_NAME_LABEL);
-                    if (serviceName instanceof String) {
-                        res.add((String) serviceName);
-                    }
-                }
+        ContainerIndex index = liveIndex();
+        if (index != null) {
+            res.addAll(index.getServiceNames());
+        } else {
+            // These include services that have been launched previously and are not internally synced yet
+            Map<String, String> labels = metrics.time("docker.psLabels", () -> docker.psLabels(SERVICE_NAME_LABEL));
+            for (String serviceName : labels.values()) {
+                if (serviceName.length() > 0)
+                    res.add(serviceName);
             }
         }
-
         return res;
     }
 }
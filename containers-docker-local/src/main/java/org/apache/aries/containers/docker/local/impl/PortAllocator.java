@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Leases host ports from a fixed range to the containers created by the service
+ * manager. The leased ports are tracked in a bitmap, so ports are handed out
+ * without probing the operating system and no two containers created
+ * concurrently receive the same port.
+ * <p>
+ * Allocation continues after the most recently leased port, so that a released
+ * port is not handed out again straight away while docker may still hold on
+ * to it.
+ */
+class PortAllocator {
+    private final int lowest;
+    private final int highest;
+    private final BitSet leased;
+    private int next;
+
+    /**
+     * @param lowest The lowest host port that may be leased.
+     * @param highest The highest host port that may be leased.
+     */
+    PortAllocator(int lowest, int highest) {
+        if (lowest < 1 || highest > 65535 || lowest > highest)
+            throw new IllegalArgumentException("Invalid port range " + lowest + "-" + highest);
+
+        this.lowest = lowest;
+        this.highest = highest;
+        this.leased = new BitSet(highest - lowest + 1);
+    }
+
+    /**
+     * Create an allocator from a port range specification.
+     *
+     * @param range The range in the form {@code lowest-highest}, for example {@code 30000-32767}.
+     * @return The port allocator.
+     */
+    static PortAllocator forRange(String range) {
+        String[] bounds = range.trim().split("\\s*-\\s*");
+        try {
+            if (bounds.length == 2)
+                return new PortAllocator(Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]));
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid port range " + range +
+                ", expected a range such as 30000-32767");
+    }
+
+    /**
+     * Lease a free port.
+     *
+     * @return The port.
+     * @throws IOException If all the ports in the range are leased.
+     */
+    synchronized int allocate() throws IOException {
+        int size = highest - lowest + 1;
+        int idx = leased.nextClearBit(next);
+        if (idx >= size) {
+            idx = leased.nextClearBit(0);
+            if (idx >= size)
+                throw new IOException("No free host port left in range " + lowest + "-" + highest);
+        }
+        leased.set(idx);
+        next = idx + 1 < size ? idx + 1 : 0;
+        return lowest + idx;
+    }
+
+    /**
+     * Mark ports as leased, for example because they are used by containers that
+     * were discovered rather than created. Ports outside of the range are ignored.
+     */
+    synchronized void reserve(Collection<Integer> ports) {
+        for (int port : ports) {
+            if (inRange(port))
+                leased.set(port - lowest);
+        }
+    }
+
+    /**
+     * Return ports to the pool. Ports outside of the range are ignored.
+     */
+    synchronized void release(Collection<Integer> ports) {
+        for (int port : ports) {
+            if (inRange(port))
+                leased.clear(port - lowest);
+        }
+    }
+
+    synchronized boolean isLeased(int port) {
+        return inRange(port) && leased.get(port - lowest);
+    }
+
+    synchronized int getLeasedCount() {
+        return leased.cardinality();
+    }
+
+    private boolean inRange(int port) {
+        return port >= lowest && port <= highest;
+    }
+
+    @Override
+    public String toString() {
+        return "PortAllocator [" + lowest + "-" + highest + "]";
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs external commands without blocking the caller. The output of each
+ * process is read while the process runs, so that a process writing more than
+ * fits in the pipe buffer does not stall. Every command has a deadline after
+ * which the process is destroyed, cancelling the returned future destroys the
+ * process as well, and the number of processes running at the same time is
+ * bounded. Commands submitted beyond that bound wait in a queue.
+ */
+class ProcessExecutor implements Closeable {
+    /**
+     * System property to configure the maximum number of docker processes that run
+     * at the same time.
+     */
+    static final String MAX_PROCESSES_PROPERTY = "org.apache.aries.containers.docker.local.processes";
+    static final int DEFAULT_MAX_PROCESSES = 16;
+
+    /**
+     * System property to configure the time in seconds after which a docker command
+     * is considered hung and its process is destroyed.
+     */
+    static final String TIMEOUT_PROPERTY = "org.apache.aries.containers.docker.local.timeout";
+    static final long DEFAULT_TIMEOUT_SECONDS = 120;
+
+    static final int BUFFER_SIZE = 16384;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final long defaultTimeoutMillis;
+    private final Semaphore permits;
+    private final Queue<Pending> waiting = new ConcurrentLinkedQueue<>();
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+    private final ThreadPoolExecutor readers;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private volatile boolean closed;
+
+    ProcessExecutor() {
+        this(Integer.getInteger(MAX_PROCESSES_PROPERTY, DEFAULT_MAX_PROCESSES),
+                TimeUnit.SECONDS.toMillis(Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS)));
+    }
+
+    /**
+     * @param maxProcesses The maximum number of processes running at the same time.
+     * @param defaultTimeoutMillis The deadline for commands that do not specify one.
+     */
+    ProcessExecutor(int maxProcesses, long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        permits = new Semaphore(maxProcesses);
+
+        // No threads are started until the first command runs
+        readers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), daemonThreads("aries-containers-docker-process-"));
+        deadlines = new ScheduledThreadPoolExecutor(1, daemonThreads("aries-containers-docker-deadline-"));
+        deadlines.setKeepAliveTime(60, TimeUnit.SECONDS);
+        deadlines.allowCoreThreadTimeOut(true);
+        deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Run a command with the default deadline.
+     *
+     * @return A future that completes with the output of the command, or with
+     * {@code null} if commands are not executed.
+     */
+    CompletableFuture<String> execute(String... command) {
+        return execute(this::readFully, defaultTimeoutMillis, TimeUnit.MILLISECONDS, command);
+    }
+
+    /**
+     * Run a command and parse its output with the default deadline.
+     */
+    <T> CompletableFuture<T> execute(StreamParser<T> parser, String... command) {
+        return execute(parser, defaultTimeoutMillis, TimeUnit.MILLISECONDS, command);
+    }
+
+    /**
+     * Run a command and parse its output while it is being produced. Any output
+     * left over by the parser is discarded.
+     *
+     * @param parser Parses the output of the command, on a background thread.
+     * @param timeout The deadline of the command, counted from the moment the process starts.
+     * @param unit The unit of the deadline.
+     * @param command The command and its arguments.
+     * @return A future that completes with the parsed output, or with {@code null}
+     * if commands are not executed. If the deadline passes the future completes
+     * with a {@link TimeoutException}. Completing the future in any other way
+     * than through the process, for example by cancelling it, destroys the process.
+     */
+    <T> CompletableFuture<T> execute(StreamParser<T> parser, long timeout, TimeUnit unit, String... command) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("The process executor is closed"));
+            return future;
+        }
+
+        waiting.add(new Pending(future, () -> start(parser, timeout, unit, command, future)));
+        startWaiting();
+        return future;
+    }
+
+    private void startWaiting() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Pending pending = waiting.poll();
+            if (pending == null || pending.future.isDone()) {
+                // Nothing to start or cancelled while waiting
+                permits.release();
+            } else {
+                pending.start.run();
+            }
+        }
+    }
+
+    private void releasePermit() {
+        permits.release();
+        startWaiting();
+    }
+
+    // Called while holding a permit
+    private <T> void start(StreamParser<T> parser, long timeout, TimeUnit unit, String[] command,
+            CompletableFuture<T> future) {
+        Process process;
+        try {
+            process = ProcessRunner.run(Collections.emptyMap(), null, command);
+        } catch (IOException | RuntimeException e) {
+            releasePermit();
+            future.completeExceptionally(e);
+            return;
+        }
+        if (process == null) {
+            releasePermit();
+            future.complete(null);
+            return;
+        }
+
+        running.add(process);
+        try {
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            // The command does not read its input anyway
+        }
+
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (finished.compareAndSet(false, true)) {
+                running.remove(process);
+                releasePermit();
+            }
+        };
+
+        ScheduledFuture<?> deadline = deadlines.schedule(() -> future.completeExceptionally(
+                new TimeoutException("Command " + Arrays.toString(command) + " did not complete within " +
+                        unit.toMillis(timeout) + " ms")), timeout, unit);
+        future.whenComplete((r, t) -> {
+            deadline.cancel(false);
+            if (t != null) {
+                process.destroyForcibly();
+                // Processes started by the command may keep the output pipe open,
+                // do not wait for the reader to see the end of it
+                finish.run();
+            }
+        });
+
+        readers.execute(() -> {
+            try (InputStream in = process.getInputStream()) {
+                T res = parser.parse(in);
+                discard(in);
+                process.waitFor();
+                future.complete(res);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            } finally {
+                finish.run();
+            }
+        });
+    }
+
+    /**
+     * Read all the output into buffers taken from the pool.
+     */
+    String readFully(InputStream in) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        try {
+            byte[] chunk = acquireBuffer();
+            chunks.add(chunk);
+            int length = 0;
+            int n;
+            while ((n = in.read(chunk, length, chunk.length - length)) != -1) {
+                length += n;
+                if (length == chunk.length) {
+                    chunk = acquireBuffer();
+                    chunks.add(chunk);
+                    length = 0;
+                }
+            }
+
+            if (chunks.size() == 1)
+                return new String(chunk, 0, length, StandardCharsets.UTF_8);
+
+            byte[] all = new byte[(chunks.size() - 1) * BUFFER_SIZE + length];
+            for (int i = 0; i < chunks.size(); i++) {
+                System.arraycopy(chunks.get(i), 0, all, i * BUFFER_SIZE, i < chunks.size() - 1 ? BUFFER_SIZE : length);
+            }
+            return new String(all, StandardCharsets.UTF_8);
+        } finally {
+            for (byte[] c : chunks) {
+                releaseBuffer(c);
+            }
+        }
+    }
+
+    private void discard(InputStream in) throws IOException {
+        byte[] buffer = acquireBuffer();
+        try {
+            while (in.read(buffer) != -1) {
+                // Drain the pipe so that the process can exit
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private byte[] acquireBuffer() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null)
+            return new byte[BUFFER_SIZE];
+
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffers.add(buffer);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of processes currently running.
+     */
+    int getRunningCount() {
+        return running.size();
+    }
+
+    /**
+     * Stop accepting commands. Commands that have not started yet fail, running
+     * commands complete or time out as usual.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Pending pending;
+        while ((pending = waiting.poll()) != null) {
+            pending.future.completeExceptionally(new IOException("The process executor is closed"));
+        }
+        readers.shutdown();
+        deadlines.shutdown();
+    }
+
+    private static class Pending {
+        final CompletableFuture<?> future;
+        final Runnable start;
+
+        Pending(CompletableFuture<?> future, Runnable start) {
+            this.future = future;
+            this.start = start;
+        }
+    }
+}
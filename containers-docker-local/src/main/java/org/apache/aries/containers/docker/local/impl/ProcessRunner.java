@@ -20,6 +20,7 @@ package org.apache.aries.containers.docker.local.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collections;
 import java.util.Map;
 
@@ -73,12 +74,15 @@ public class ProcessRunner {
         if (process == null)
             return null;
 
+        // Read the output before waiting, the process cannot exit while the pipe is full
+        String res = new String(Streams.suck(process.getInputStream())).trim();
         try {
             process.waitFor();
         } catch (InterruptedException e) {
-            // Ignore
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new InterruptedIOException("Interrupted while waiting for the process to exit");
         }
-        String res = new String(Streams.suck(process.getInputStream())).trim();
         LOG.debug("Result: {}", res);
         return res;
     }
@@ -19,36 +19,72 @@
 package org.apache.aries.containers.docker.local.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import org.apache.aries.containers.Container;
 import org.apache.aries.containers.Service;
 import org.apache.aries.containers.ServiceConfig;
 
 class ServiceImpl implements Service {
-    private final ServiceConfig config;
-    private final List<ContainerImpl> containers;
+    private volatile ServiceConfig config;
+    // Oldest containers first, these are the first to go when scaling down.
+    // Replaced as a whole when the service is refreshed.
+    private volatile Deque<ContainerImpl> containers;
     private final LocalDockerServiceManager factory;
+    private final List<ReadyWaiter> readyWaiters = new CopyOnWriteArrayList<>();
+    // Changes that are applied one at a time: the newest instance count, and the
+    // rolling updates and refreshes, which are never skipped and go first
+    private final AtomicReference<ChangeRequest> nextScale = new AtomicReference<>();
+    private final Queue<ChangeRequest> nextChanges = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scaling = new AtomicBoolean();
+    private ChangeRequest lastScale;
+    private CompletableFuture<Void> replacingDrifted;
 
     public ServiceImpl(ServiceConfig config,
             LocalDockerServiceManager factory,
             List<ContainerImpl> containers) {
         this.config = config;
         this.factory = factory;
-        this.containers = new CopyOnWriteArrayList<>(containers);
+        this.containers = new ConcurrentLinkedDeque<>(containers);
+        for (ContainerImpl c : containers) {
+            watchReadiness(c);
+        }
     }
 
     @Override
     public void destroy() {
-        setInstanceCount(0);
+        try {
+            LocalDockerServiceManager.join(destroyAsync());
+        } catch (Exception e) {
+            LocalDockerServiceManager.LOG.error("Problem destroying service {}", config.getServiceName(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> destroyAsync() {
+        return setInstanceCountAsync(0).thenCompose(v -> factory.closeWarmPoolAsync(config));
     }
 
     @Override
     public int getActualInstanceCount() {
         try {
-            return factory.getDockerIDs(config).size();
+            return factory.getActualInstanceCount(config);
         } catch (IOException e) {
             LocalDockerServiceManager.LOG.warn(
                     "Cannot obtain docker instance count for service {}", config.getServiceName(), e);
@@ -64,53 +100,417 @@ class ServiceImpl implements Service {
     @Override
     public void setInstanceCount(int count) {
         try {
-            int curSize = containers.size();
-            if (count < curSize) {
-                for (int i=0 ; i < curSize - count; i++) {
-                    killContainer(containers.remove(0));
-                }
-            } else {
-                for (int i=curSize; i < count; i++) {
-                    ContainerImpl c = factory.createDockerContainer(config);
-                    c.setService(this);
-                    containers.add(c);
-                }
-            }
+            LocalDockerServiceManager.join(setInstanceCountAsync(count));
         } catch (Exception e) {
             LocalDockerServiceManager.LOG.error("Problem changing instance count of service {} to {}",
                     config.getServiceName(), count, e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Instance count changes are applied one at a time. A change that is requested
+     * while another one is being applied waits in a single slot that only holds the
+     * newest count, so that counts which are superseded before they are applied are
+     * skipped. The future of a skipped change completes together with the change
+     * that superseded it. Rolling updates and refreshes are applied one at a time
+     * with the instance count changes.
+     */
+    @Override
+    public CompletableFuture<Void> setInstanceCountAsync(int count) {
+        return factory.getMetrics().timeAsync("setInstanceCount", () -> {
+            ChangeRequest request = new ChangeRequest(() -> changeInstanceCountAsync(count));
+            ChangeRequest superseded;
+            synchronized (nextScale) {
+                // The newest request and the slot must change together, otherwise a
+                // change that completes in between ends the change in the registry
+                lastScale = request;
+                superseded = nextScale.getAndSet(request);
+                factory.scaleStarted(config, count);
+            }
+
+            if (superseded != null)
+                request.future.whenComplete((v, t) -> superseded.completeWith(t));
+            scaleNext();
+            return request.future;
+        });
+    }
+
+    /**
+     * Apply a change one at a time with the instance count changes of this service.
+     *
+     * @param change Starts the change and returns its future.
+     * @return A future that completes when the change has been applied.
+     */
+    private CompletableFuture<Void> serialized(Supplier<CompletableFuture<Void>> change) {
+        ChangeRequest request = new ChangeRequest(change);
+        nextChanges.add(request);
+        scaleNext();
+        return request.future;
+    }
+
+    /**
+     * Apply the next queued change or else the newest requested instance count,
+     * unless a change is being applied already. The change that is being applied
+     * calls this again when it is done.
+     */
+    private void scaleNext() {
+        while (scaling.compareAndSet(false, true)) {
+            ChangeRequest queued = nextChanges.poll();
+            ChangeRequest request = queued != null ? queued : nextScale.getAndSet(null);
+            if (request == null) {
+                scaling.set(false);
+                // Look again, a request might have come in before the flag was cleared
+                if (nextChanges.isEmpty() && nextScale.get() == null)
+                    return;
+                continue;
+            }
+
+            CompletableFuture<Void> change;
+            try {
+                change = request.change.get();
+            } catch (RuntimeException e) {
+                change = new CompletableFuture<>();
+                change.completeExceptionally(e);
+            }
+            change.whenComplete((v, t) -> {
+                synchronized (nextScale) {
+                    // Only the newest count ends the change in the registry
+                    if (lastScale == request)
+                        factory.scaleCompleted(config);
+                }
+                scaling.set(false);
+                request.completeWith(t);
+                scaleNext();
+            });
+            return;
+        }
+    }
+
+    private CompletableFuture<Void> changeInstanceCountAsync(int count) {
+        Deque<ContainerImpl> containers = this.containers;
+        int curSize = containers.size();
+        if (count < curSize) {
+            List<ContainerImpl> toRemove = new ArrayList<>(curSize - count);
+            while (toRemove.size() < curSize - count) {
+                ContainerImpl c = containers.pollFirst();
+                if (c == null)
+                    break;
+                toRemove.add(c);
+            }
+            return factory.destroyContainersAsync(toRemove).handle((removed, t) -> {
+                if (t == null)
+                    return null;
+
+                Throwable cause = LocalDockerServiceManager.unwrap(t);
+                if (cause instanceof ContainerOperationException) {
+                    // Keep track of the containers that could not be removed
+                    for (ContainerImpl c : toRemove) {
+                        if (((ContainerOperationException) cause).getFailures().containsKey(c.getID()))
+                            containers.add(c);
+                    }
+                }
+                throw new CompletionException(cause);
+            });
+        } else if (count > curSize) {
+            // Containers are added as they come up, so that the list reflects
+            // the containers created even if some of them fail
+            return factory.createContainersAsync(config, count - curSize, this::adopt).thenApply(created -> null);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void update(ServiceConfig newConfig) {
+        try {
+            LocalDockerServiceManager.join(updateAsync(newConfig));
+        } catch (Exception e) {
+            LocalDockerServiceManager.LOG.error("Problem updating service {}", config.getServiceName(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(ServiceConfig newConfig) {
+        if (!config.getServiceName().equals(newConfig.getServiceName()))
+            throw new IllegalArgumentException("Cannot update service " + config.getServiceName() +
+                    " to the configuration of service " + newConfig.getServiceName());
+
+        return factory.getMetrics().timeAsync("update", () -> {
+            ServiceConfig oldConfig = config;
+            config = newConfig;
+
+            // The warm pool holds containers of the old configuration
+            return factory.closeWarmPoolAsync(oldConfig).thenCompose(v ->
+                serialized(() -> roll(newConfig, new ArrayList<>(containers))));
+        });
+    }
+
+    /**
+     * Replace the next batch of old containers. New containers are created first,
+     * as far as the maximum surge allows, and then as many old containers are
+     * removed as the maximum unavailable containers allow.
+     *
+     * @param cfg The new configuration.
+     * @param old The containers that still run the old configuration.
+     */
+    private CompletableFuture<Void> roll(ServiceConfig cfg, List<ContainerImpl> old) {
+        // Old containers might have exited in the mean time
+        old.retainAll(new HashSet<>(containers));
+        int target = cfg.getRequestedInstances();
+        int running = containers.size();
+        int updated = running - old.size();
+        if (old.isEmpty() && updated >= target)
+            return CompletableFuture.completedFuture(null);
+
+        int create = Math.max(0, Math.min(target - updated, target + cfg.getMaxSurge() - running));
+        return factory.createContainersAsync(cfg, create, this::adopt).thenCompose(created -> {
+            int remove = Math.min(old.size(),
+                    Math.max(0, containers.size() - (target - cfg.getMaxUnavailable())));
+            if (create == 0 && remove == 0)
+                throw new IllegalStateException("Rolling update of service " + cfg.getServiceName() +
+                        " cannot make progress");
+
+            List<ContainerImpl> batch = new ArrayList<>(old.subList(0, remove));
+            old.subList(0, remove).clear();
+            containers.removeAll(new HashSet<>(batch));
+            return factory.destroyContainersAsync(batch);
+        }).thenCompose(removed -> roll(cfg, old));
+    }
+
+    /**
+     * Add a newly created container to this service.
+     */
+    private void adopt(ContainerImpl container) {
+        container.setService(this);
+        containers.add(container);
+        watchReadiness(container);
+    }
+
+    private void watchReadiness(ContainerImpl container) {
+        container.readiness().whenComplete((c, t) -> readinessChanged());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Readiness is tracked from the in-process health checks and from the health
+     * status that docker reports for command health checks, so waiting does not
+     * query docker for each caller.
+     */
+    @Override
+    public CompletableFuture<List<Container>> awaitReady(int count) {
+        ReadyWaiter waiter = new ReadyWaiter(count);
+        readyWaiters.add(waiter);
+        readinessChanged();
+        return waiter.future;
+    }
+
+    /**
+     * Complete the waiters for which enough containers are ready.
+     */
+    private void readinessChanged() {
+        if (readyWaiters.isEmpty())
+            return;
+
+        List<Container> ready = new ArrayList<>();
+        for (ContainerImpl c : containers) {
+            if (c.isReady())
+                ready.add(c);
+        }
+        for (ReadyWaiter waiter : readyWaiters) {
+            if (ready.size() >= waiter.count && readyWaiters.remove(waiter))
+                waiter.future.complete(Collections.unmodifiableList(ready));
+        }
+    }
+
     void killContainer(ContainerImpl container) throws Exception {
-        factory.destroyDockerContainer(container.getID(), true);
+        factory.destroyContainer(container);
         containers.remove(container);
     }
 
+    /**
+     * Replace a container that failed its health checks with a new one.
+     */
+    CompletableFuture<Void> replaceContainer(ContainerImpl container) {
+        if (!containers.remove(container))
+            return CompletableFuture.completedFuture(null);
+
+        return factory.destroyContainersAsync(Collections.singletonList(container)).
+            thenCompose(removed -> factory.createContainersAsync(config, 1, this::adopt)).
+            thenApply(created -> null);
+    }
+
+    /**
+     * Drop the containers that docker no longer runs, for example containers that
+     * were restored from the service registry, and take over the fingerprints of
+     * the containers that still run.
+     *
+     * @param running The IDs of the containers that docker runs for this service,
+     * mapped to their fingerprint label or to an empty string if it is not known.
+     * @return {@code true} if docker runs containers for this service that it does
+     * not know about.
+     */
+    boolean retainRunning(Map<String, String> running) {
+        Set<String> unknown = new HashSet<>(running.keySet());
+        for (ContainerImpl c : containers) {
+            if (!unknown.remove(c.getID())) {
+                containerExited(c.getID());
+                continue;
+            }
+
+            String fingerprint = running.get(c.getID());
+            if (fingerprint.length() > 0)
+                c.setFingerprint(fingerprint);
+        }
+        return !unknown.isEmpty();
+    }
+
+    /**
+     * Replace the containers that were launched with a different configuration, as
+     * told by their fingerprint label, by rolling them to the current configuration.
+     * Containers without a fingerprint, such as containers launched by an earlier
+     * version, are left alone.
+     *
+     * @return A future that completes when the containers are replaced. If they are
+     * already being replaced the future of that replacement is returned.
+     */
+    synchronized CompletableFuture<Void> replaceDrifted() {
+        if (replacingDrifted != null && !replacingDrifted.isDone())
+            return replacingDrifted;
+
+        ServiceConfig cfg = config;
+        String fingerprint = cfg.getFingerprint();
+        List<ContainerImpl> drifted = new ArrayList<>();
+        for (ContainerImpl c : containers) {
+            if (c.getFingerprint() != null && !c.getFingerprint().equals(fingerprint))
+                drifted.add(c);
+        }
+        if (drifted.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        LocalDockerServiceManager.LOG.warn("{} containers of service {} run a different configuration, replacing them",
+                drifted.size(), cfg.getServiceName());
+        replacingDrifted = serialized(() -> roll(cfg, drifted)).whenComplete((v, t) -> {
+            if (t != null)
+                LocalDockerServiceManager.LOG.error("Problem replacing the outdated containers of service {}",
+                        cfg.getServiceName(), LocalDockerServiceManager.unwrap(t));
+        });
+        return replacingDrifted;
+    }
+
+    /**
+     * Called when docker reports that one of the containers of this service has exited.
+     *
+     * @return {@code true} if the container was one of the containers of this service,
+     * {@code false} if it is not known or was already removed, for example because
+     * the service was scaled down.
+     */
+    boolean containerExited(String id) {
+        boolean exited = false;
+        for (ContainerImpl c : containers) {
+            if (c.getID().equals(id) && containers.remove(c)) {
+                factory.release(c);
+                exited = true;
+            }
+        }
+        return exited;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The returned list is a snapshot, it does not change when the service scales.
+     */
     @Override
     public List<Container> listContainers() {
-        return Collections.unmodifiableList(containers);
+        return factory.getMetrics().time("listContainers", () ->
+            Collections.unmodifiableList(new ArrayList<>(containers)));
     }
 
     @Override
     public void refresh() {
-        containers.clear();
         try {
-            for (ContainerImpl c : factory.discoverContainers(config)) {
-                c.setService(this);
-                containers.add(c);
-            }
-        } catch (IOException e) {
+            LocalDockerServiceManager.join(refreshAsync());
+        } catch (Exception e) {
             LocalDockerServiceManager.LOG.error("Problem refreshing service {}", config.getServiceName(), e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The refresh is applied one at a time with the instance count changes, and
+     * the discovered containers replace the known ones in one step. Known containers
+     * that docker no longer runs are released.
+     */
+    @Override
+    public CompletableFuture<Void> refreshAsync() {
+        return factory.getMetrics().timeAsync("refresh", () -> serialized(() ->
+            factory.supplyAsync(() -> factory.discoverContainers(config)).thenAccept(discovered -> {
+                // Keep the known containers so that their readiness is retained
+                Map<String, ContainerImpl> known = new HashMap<>();
+                for (ContainerImpl c : containers) {
+                    known.put(c.getID(), c);
+                }
+
+                List<ContainerImpl> res = new ArrayList<>(discovered.size());
+                List<ContainerImpl> added = new ArrayList<>();
+                for (ContainerImpl c : discovered) {
+                    ContainerImpl k = known.get(c.getID());
+                    if (k == null) {
+                        c.setService(this);
+                        added.add(c);
+                        k = c;
+                    }
+                    res.add(k);
+                }
+                containers = new ConcurrentLinkedDeque<>(res);
+                for (ContainerImpl c : added) {
+                    watchReadiness(c);
+                }
+
+                // Containers that docker no longer runs give up their host ports and health checks
+                for (ContainerImpl c : discovered) {
+                    known.remove(c.getID());
+                }
+                for (ContainerImpl c : known.values()) {
+                    factory.release(c);
+                }
+            })).thenRun(this::replaceDrifted));
+    }
+
+    private static class ChangeRequest {
+        final Supplier<CompletableFuture<Void>> change;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        ChangeRequest(Supplier<CompletableFuture<Void>> change) {
+            this.change = change;
+        }
+
+        void completeWith(Throwable t) {
+            if (t == null)
+                future.complete(null);
+            else
+                future.completeExceptionally(LocalDockerServiceManager.unwrap(t));
+        }
+    }
+
+    private static class ReadyWaiter {
+        final int count;
+        final CompletableFuture<List<Container>> future = new CompletableFuture<>();
+
+        ReadyWaiter(int count) {
+            this.count = count;
+        }
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((config == null) ? 0 : config.hashCode());
-        result = prime * result + ((containers == null) ? 0 : containers.hashCode());
+        result = prime * result + ((containers == null) ? 0 : new ArrayList<>(containers).hashCode());
         return result;
     }
 
@@ -131,7 +531,7 @@ class ServiceImpl implements Service {
         if (containers == null) {
             if (other.containers != null)
                 return false;
-        } else if (!containers.equals(other.containers))
+        } else if (!new ArrayList<>(containers).equals(new ArrayList<>(other.containers)))
             return false;
         return true;
     }
@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk record of the containers of each service, the host ports they were
+ * given and the instance counts that were being applied, so that a restarted
+ * service manager can serve its services without rediscovering them first.
+ * <p>
+ * The registry consists of a snapshot, which is memory mapped when loaded, and an
+ * append-only journal of the changes made since. The journal is folded into a new
+ * snapshot once it holds {@link #COMPACT_RECORDS} records and when the registry is
+ * closed. Journal records are checksummed, a torn record at the end of the journal,
+ * for example after a crash, is dropped.
+ * <p>
+ * Records are not forced to disk one by one. The registry is a hint that the
+ * service manager verifies against docker, so a lost record costs a rediscovery
+ * rather than correctness.
+ */
+class ServiceRegistry implements Closeable {
+    static final String SNAPSHOT_FILE = "services.snapshot";
+    static final String JOURNAL_FILE = "services.journal";
+    static final int COMPACT_RECORDS = 4096;
+
+    private static final int SNAPSHOT_MAGIC = 0x41435352; // ACSR
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte SCALE_STARTED = 3;
+    private static final byte SCALE_COMPLETED = 4;
+
+    private final Path directory;
+    // Service name to container ID to the container port to host port mappings
+    private final Map<String, Map<String, Map<Integer, Integer>>> containers = new HashMap<>();
+    private final Map<String, String> serviceByID = new HashMap<>();
+    private final Map<String, Integer> pendingScales = new HashMap<>();
+    private FileChannel journal;
+    private int journalRecords;
+    private boolean failed;
+
+    private ServiceRegistry(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the registry in a directory, loading the snapshot and replaying the
+     * journal if they exist.
+     *
+     * @param directory The directory to keep the registry files in, created if needed.
+     * @return The registry.
+     */
+    static ServiceRegistry open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        ServiceRegistry registry = new ServiceRegistry(directory);
+        registry.load();
+        return registry;
+    }
+
+    private void load() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (FileChannel ch = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                readSnapshot(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            } catch (IOException | RuntimeException e) {
+                LocalDockerServiceManager.LOG.warn("Ignoring unreadable service registry snapshot {}", snapshot, e);
+                containers.clear();
+                serviceByID.clear();
+                pendingScales.clear();
+            }
+        }
+
+        journal = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid = replay(journal.map(FileChannel.MapMode.READ_ONLY, 0, journal.size()));
+        if (valid < journal.size()) {
+            LocalDockerServiceManager.LOG.warn("Dropping {} bytes of incomplete service registry journal records",
+                    journal.size() - valid);
+            journal.truncate(valid);
+        }
+        journal.position(valid);
+    }
+
+    private void readSnapshot(MappedByteBuffer buf) throws IOException {
+        if (buf.getInt() != SNAPSHOT_MAGIC || buf.getInt() != SNAPSHOT_VERSION)
+            throw new IOException("Not a service registry snapshot");
+
+        // The body is followed by its checksum
+        int end = buf.limit() - 4;
+        if (end < buf.position() || crc(buf, buf.position(), end - buf.position()) != buf.getInt(end))
+            throw new IOException("Service registry snapshot checksum mismatch");
+        buf.limit(end);
+
+        int services = buf.getInt();
+        for (int i = 0; i < services; i++) {
+            String serviceName = getString(buf);
+            int pending = buf.getInt();
+            if (pending >= 0)
+                pendingScales.put(serviceName, pending);
+
+            int count = buf.getInt();
+            for (int j = 0; j < count; j++) {
+                String id = getString(buf);
+                apply(serviceName, id, getPorts(buf));
+            }
+        }
+        if (buf.hasRemaining())
+            throw new IOException("Trailing data in service registry snapshot");
+    }
+
+    /**
+     * @return The length of the journal up to the last complete record.
+     */
+    private long replay(MappedByteBuffer buf) {
+        while (buf.remaining() >= 4) {
+            int start = buf.position();
+            int length = buf.getInt();
+            if (length <= 0 || length + 4 > buf.remaining())
+                return start;
+
+            int recordStart = buf.position();
+            int checksum = buf.getInt(recordStart + length);
+            if (crc(buf, recordStart, length) != checksum)
+                return start;
+
+            ByteBuffer record = buf.duplicate();
+            record.limit(recordStart + length);
+            try {
+                replayRecord(record);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return start;
+            }
+            buf.position(recordStart + length + 4);
+            journalRecords++;
+        }
+        return buf.position();
+    }
+
+    private void replayRecord(ByteBuffer buf) {
+        byte type = buf.get();
+        String key = getString(buf);
+        switch (type) {
+        case ADD:
+            String id = getString(buf);
+            apply(key, id, getPorts(buf));
+            break;
+        case REMOVE:
+            applyRemove(key);
+            break;
+        case SCALE_STARTED:
+            pendingScales.put(key, buf.getInt());
+            break;
+        case SCALE_COMPLETED:
+            pendingScales.remove(key);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown service registry record type " + type);
+        }
+    }
+
+    /**
+     * @return The containers registered for the service, mapped to their container
+     * port to host port mappings. Empty if the service is not known.
+     */
+    synchronized Map<String, Map<Integer, Integer>> getContainers(String serviceName) {
+        Map<String, Map<Integer, Integer>> res = containers.get(serviceName);
+        if (res == null)
+            return Collections.emptyMap();
+        return new LinkedHashMap<>(res);
+    }
+
+    synchronized Set<String> getServiceNames() {
+        return new HashSet<>(containers.keySet());
+    }
+
+    /**
+     * @return The instance count that was being applied to the service and did not
+     * complete, or {@code null} if there is none.
+     */
+    synchronized Integer getPendingScale(String serviceName) {
+        return pendingScales.get(serviceName);
+    }
+
+    synchronized void containerAdded(String serviceName, String id, Map<Integer, Integer> ports) {
+        Map<String, Map<Integer, Integer>> known = containers.get(serviceName);
+        if (known != null && ports.equals(known.get(id)))
+            return;
+
+        apply(serviceName, id, Collections.unmodifiableMap(new HashMap<>(ports)));
+        append(ADD, serviceName, out -> {
+            putString(out, id);
+            out.writeInt(ports.size());
+            for (Map.Entry<Integer, Integer> entry : ports.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        });
+    }
+
+    synchronized void containerRemoved(String id) {
+        if (applyRemove(id))
+            append(REMOVE, id, out -> {});
+    }
+
+    synchronized void scaleStarted(String serviceName, int count) {
+        pendingScales.put(serviceName, count);
+        append(SCALE_STARTED, serviceName, out -> out.writeInt(count));
+    }
+
+    synchronized void scaleCompleted(String serviceName) {
+        if (pendingScales.remove(serviceName) != null)
+            append(SCALE_COMPLETED, serviceName, out -> {});
+    }
+
+    private void apply(String serviceName, String id, Map<Integer, Integer> ports) {
+        String previous = serviceByID.put(id, serviceName);
+        if (previous != null && !previous.equals(serviceName))
+            removeFromService(previous, id);
+        containers.computeIfAbsent(serviceName, k -> new LinkedHashMap<>()).put(id, ports);
+    }
+
+    private boolean applyRemove(String id) {
+        String serviceName = serviceByID.remove(id);
+        if (serviceName == null)
+            return false;
+        removeFromService(serviceName, id);
+        return true;
+    }
+
+    private void removeFromService(String serviceName, String id) {
+        Map<String, Map<Integer, Integer>> ids = containers.get(serviceName);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty())
+                containers.remove(serviceName);
+        }
+    }
+
+    private void append(byte type, String key, RecordWriter payload) {
+        if (failed || journal == null)
+            return;
+
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeByte(type);
+            putString(out, key);
+            payload.write(out);
+            out.flush();
+            byte[] record = baos.toByteArray();
+
+            ByteBuffer buf = ByteBuffer.allocate(record.length + 8);
+            buf.putInt(record.length);
+            buf.put(record);
+            buf.putInt(crc(ByteBuffer.wrap(record), 0, record.length));
+            buf.flip();
+            while (buf.hasRemaining()) {
+                journal.write(buf);
+            }
+
+            if (++journalRecords >= COMPACT_RECORDS)
+                compact();
+        } catch (IOException e) {
+            // The registry is only a hint, keep going without it
+            failed = true;
+            LocalDockerServiceManager.LOG.warn("Unable to write to the service registry in {}, " +
+                    "services will be rediscovered after a restart", directory, e);
+        }
+    }
+
+    /**
+     * Write the current state to a new snapshot and empty the journal. The snapshot
+     * replaces the previous one atomically, so a crash leaves either the old snapshot
+     * with the full journal or the new snapshot.
+     */
+    synchronized void compact() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+
+        Set<String> serviceNames = new HashSet<>(containers.keySet());
+        serviceNames.addAll(pendingScales.keySet());
+        out.writeInt(serviceNames.size());
+        for (String serviceName : serviceNames) {
+            putString(out, serviceName);
+            Integer pending = pendingScales.get(serviceName);
+            out.writeInt(pending == null ? -1 : pending);
+
+            Map<String, Map<Integer, Integer>> ids = containers.getOrDefault(serviceName, Collections.emptyMap());
+            out.writeInt(ids.size());
+            for (Map.Entry<String, Map<Integer, Integer>> entry : ids.entrySet()) {
+                putString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<Integer, Integer> port : entry.getValue().entrySet()) {
+                    out.writeInt(port.getKey());
+                    out.writeInt(port.getValue());
+                }
+            }
+        }
+        out.flush();
+        byte[] data = baos.toByteArray();
+        int checksum = crc(ByteBuffer.wrap(data), 8, data.length - 8);
+
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(data.length + 4);
+            buf.put(data);
+            buf.putInt(checksum);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (journal != null) {
+            journal.truncate(0);
+            journal.position(0);
+        }
+        journalRecords = 0;
+    }
+
+    /**
+     * Fold the journal into the snapshot and close the registry.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal == null)
+            return;
+
+        try {
+            if (!failed)
+                compact();
+        } finally {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private static int crc(ByteBuffer buf, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer slice = buf.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining())
+            throw new IllegalArgumentException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<Integer, Integer> getPorts(ByteBuffer buf) {
+        int count = buf.getInt();
+        if (count < 0 || count * 8 > buf.remaining())
+            throw new IllegalArgumentException("Invalid port count " + count);
+        Map<Integer, Integer> ports = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            ports.put(buf.getInt(), buf.getInt());
+        }
+        return Collections.unmodifiableMap(ports);
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
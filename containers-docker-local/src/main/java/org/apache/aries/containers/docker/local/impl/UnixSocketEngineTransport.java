@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connects to the Docker Engine over a unix domain socket. Unix domain socket
+ * channels are only available from Java 16, as this component is compiled for
+ * Java 8 the {@code java.net.UnixDomainSocketAddress} class is accessed reflectively.
+ */
+class UnixSocketEngineTransport implements EngineTransport {
+    private static final Method ADDRESS_FACTORY = findAddressFactory();
+
+    private final String path;
+
+    UnixSocketEngineTransport(String path) {
+        this.path = path;
+    }
+
+    static boolean isSupported() {
+        return ADDRESS_FACTORY != null;
+    }
+
+    static SocketAddress address(String path) throws IOException {
+        if (ADDRESS_FACTORY == null)
+            throw new IOException("Unix domain sockets require Java 16 or newer");
+
+        try {
+            return (SocketAddress) ADDRESS_FACTORY.invoke(null, path);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IOException("Unable to create unix domain socket address for " + path, e);
+        }
+    }
+
+    @Override
+    public SocketChannel connect() throws IOException {
+        // SocketChannel.open(SocketAddress) picks the protocol family from the address
+        return SocketChannel.open(address(path));
+    }
+
+    @Override
+    public String getHostHeader() {
+        return "localhost";
+    }
+
+    @Override
+    public String toString() {
+        return "unix://" + path;
+    }
+
+    private static Method findAddressFactory() {
+        try {
+            return Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
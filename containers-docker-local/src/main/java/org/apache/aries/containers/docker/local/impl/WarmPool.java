@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.containers.ServiceConfig;
+
+/**
+ * A pool of containers for a service that are created but not started. Scaling
+ * up claims containers from the pool, which only need a {@code docker start},
+ * and the pool is refilled in the background afterwards. The pool is first filled
+ * once the containers left in the created state by an earlier pool are removed.
+ */
+class WarmPool {
+    private final ServiceConfig config;
+    private final LocalDockerServiceManager factory;
+    private final CompletableFuture<Void> leftoversRemoved;
+    private final Deque<ContainerImpl> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param config The configuration of the service.
+     * @param factory The service manager that creates the containers.
+     * @param leftoversRemoved Completes when the containers left behind by an
+     * earlier pool of the service are removed, the pool is not filled before.
+     */
+    WarmPool(ServiceConfig config, LocalDockerServiceManager factory, CompletableFuture<Void> leftoversRemoved) {
+        this.config = config;
+        this.factory = factory;
+        this.leftoversRemoved = leftoversRemoved;
+    }
+
+    /**
+     * Take a container from the pool.
+     *
+     * @return The container, which still needs to be started, or {@code null}
+     * if the pool is empty.
+     */
+    ContainerImpl claim() {
+        return idle.pollFirst();
+    }
+
+    /**
+     * Create containers in the background until the pool has the configured
+     * size. Containers that are being created count towards the size, so
+     * calling this method repeatedly does not overfill the pool. A failed
+     * creation is not retried until the next refill.
+     */
+    void refill() {
+        while (!closed) {
+            int p = pending.get();
+            if (idle.size() + p >= config.getWarmPoolSize())
+                return;
+            if (!pending.compareAndSet(p, p + 1))
+                continue;
+
+            CompletableFuture<ContainerImpl> created = leftoversRemoved.thenCompose(v ->
+                    factory.supplyAsync(() -> factory.createDockerContainer(config, false)));
+            created.whenComplete((c, t) -> {
+                pending.decrementAndGet();
+                if (t != null) {
+                    LocalDockerServiceManager.LOG.warn("Unable to create a warm pool container for service {}",
+                            config.getServiceName(), LocalDockerServiceManager.unwrap(t));
+                    return;
+                }
+
+                idle.addLast(c);
+                if (closed && idle.remove(c))
+                    factory.destroyContainerQuietly(c);
+            });
+        }
+    }
+
+    int size() {
+        return idle.size();
+    }
+
+    /**
+     * Stop refilling the pool and take out the containers it holds.
+     *
+     * @return The containers that were in the pool, which should be removed.
+     */
+    List<ContainerImpl> close() {
+        closed = true;
+        List<ContainerImpl> res = new ArrayList<>();
+        ContainerImpl c;
+        while ((c = idle.pollFirst()) != null) {
+            res.add(c);
+        }
+        return res;
+    }
+}
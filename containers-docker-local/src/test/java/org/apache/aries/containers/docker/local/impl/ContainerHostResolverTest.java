@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.containers.metrics.MetricsRecorder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ContainerHostResolverTest {
+    @Test
+    public void testHostOf() {
+        assertEquals("10.0.0.5", ContainerHostResolver.hostOf("tcp://10.0.0.5:2376"));
+        assertEquals("dockerhost", ContainerHostResolver.hostOf("ssh://me@dockerhost"));
+        assertNull(ContainerHostResolver.hostOf("unix:///var/run/docker.sock"));
+        assertNull(ContainerHostResolver.hostOf("npipe:////./pipe/docker_engine"));
+        assertNull(ContainerHostResolver.hostOf("not a url"));
+        assertNull(ContainerHostResolver.hostOf(null));
+    }
+
+    @Test
+    public void testStrategiesInOrder() {
+        AtomicInteger thirdCalls = new AtomicInteger();
+        ContainerHostResolver resolver = new ContainerHostResolver(Arrays.asList(
+                strategy("none", () -> null),
+                strategy("broken", () -> { throw new IOException("Probe failed"); }),
+                strategy("found", () -> "192.168.99.100"),
+                strategy("unused", () -> {
+                    thirdCalls.incrementAndGet();
+                    return "10.0.0.1";
+                })));
+
+        MetricsRecorder metrics = new MetricsRecorder();
+        resolver.addMetrics(metrics);
+
+        assertEquals("192.168.99.100", resolver.getHost());
+        assertEquals(0, thirdCalls.get());
+        assertEquals(1, metrics.getStats("hostProbe.none").getCount());
+        assertEquals(1, metrics.getStats("hostProbe.broken").getErrorCount());
+        assertEquals(1, metrics.getStats("hostProbe.found").getCount());
+        assertNull(metrics.getStats("hostProbe.unused"));
+    }
+
+    @Test
+    public void testDefaultHost() {
+        ContainerHostResolver resolver = new ContainerHostResolver(Arrays.asList(strategy("none", () -> null)));
+        assertEquals(ContainerHostResolver.DEFAULT_HOST, resolver.getHost());
+    }
+
+    @Test
+    public void testResolvedOnceInTheBackground() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger probes = new AtomicInteger();
+        ContainerHostResolver resolver = new ContainerHostResolver(Arrays.asList(strategy("slow", () -> {
+            probes.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            return "host" + probes.get();
+        })));
+
+        CompletableFuture<String> f = resolver.resolveAsync();
+        assertFalse("Resolving must not block the caller", f.isDone());
+        assertSame(f, resolver.resolveAsync());
+
+        release.countDown();
+        assertEquals("host1", resolver.getHost());
+        assertEquals("host1", resolver.getHost());
+        assertEquals(1, probes.get());
+
+        resolver.refresh();
+        assertEquals("host2", resolver.getHost());
+        assertEquals(2, probes.get());
+    }
+
+    private static ContainerHostResolver.Strategy strategy(String name, Probe probe) {
+        return new ContainerHostResolver.Strategy() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String resolve() throws Exception {
+                return probe.resolve();
+            }
+        };
+    }
+
+    private interface Probe {
+        String resolve() throws Exception;
+    }
+}
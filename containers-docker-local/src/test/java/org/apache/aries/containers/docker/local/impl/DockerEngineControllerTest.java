@@ -0,0 +1,380 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.test.docker.FakeEngineServer;
+import org.apache.felix.utils.json.JSONParser;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DockerEngineControllerTest {
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void testRun() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                if (req.getPath().endsWith("/containers/create"))
+                    return new FakeEngineServer.Response(201, "{\"Id\": \"abc123\"}");
+                return new FakeEngineServer.Response(204, null);
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            DockerContainerInfo info = dec.run(Arrays.asList("-d", "-l", "svc=foo",
+                    "-p", "12345:80", "-e", "A=B", "--cpus", "0.5", "-m", "64m",
+                    "--health-cmd", "exit 0", "--health-interval", "30s",
+                    "myimg", "-c", "ls"));
+            assertEquals("abc123", info.getID());
+
+            assertEquals(2, server.getRequests().size());
+            FakeEngineServer.Request create = server.getRequests().get(0);
+            assertEquals("POST", create.getMethod());
+            assertEquals("/v1.25/containers/create", create.getPath());
+            FakeEngineServer.Request start = server.getRequests().get(1);
+            assertEquals("POST", start.getMethod());
+            assertEquals("/v1.25/containers/abc123/start", start.getPath());
+
+            Map<String, Object> body = new JSONParser(create.getBody()).getParsed();
+            assertEquals("myimg", body.get("Image"));
+            assertEquals(Arrays.asList("-c", "ls"), body.get("Cmd"));
+            assertEquals(Collections.singletonList("A=B"), body.get("Env"));
+            assertEquals(Collections.singletonMap("svc", "foo"), body.get("Labels"));
+
+            Map hostConfig = (Map) body.get("HostConfig");
+            assertEquals(500_000_000L, ((Number) hostConfig.get("NanoCpus")).longValue());
+            assertEquals(64L * 1024 * 1024, ((Number) hostConfig.get("Memory")).longValue());
+            Map portBindings = (Map) hostConfig.get("PortBindings");
+            List bindings = (List) portBindings.get("80/tcp");
+            assertEquals("12345", ((Map) bindings.get(0)).get("HostPort"));
+
+            Map hc = (Map) body.get("Healthcheck");
+            assertEquals(Arrays.asList("CMD-SHELL", "exit 0"), hc.get("Test"));
+            assertEquals(30_000_000_000L, ((Number) hc.get("Interval")).longValue());
+        }
+    }
+
+    @Test
+    public void testRunPullsMissingImage() throws Exception {
+        AtomicBoolean pulled = new AtomicBoolean();
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                if (req.getPath().endsWith("/containers/create")) {
+                    if (!pulled.get())
+                        return new FakeEngineServer.Response(404, "{\"message\": \"No such image: myimg:latest\"}");
+                    return new FakeEngineServer.Response(201, "{\"Id\": \"abc123\"}");
+                }
+                if (req.getPath().startsWith("/v1.25/images/create")) {
+                    pulled.set(true);
+                    return new FakeEngineServer.Response(200,
+                            "{\"status\": \"Pulling from library/myimg\"}\n{\"status\": \"Downloaded\"}\n", true);
+                }
+                return new FakeEngineServer.Response(204, null);
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            assertEquals("abc123", dec.run(Arrays.asList("-d", "myimg")).getID());
+            assertEquals("/v1.25/images/create?fromImage=myimg&tag=latest", server.getRequests().get(1).getPath());
+            assertEquals("/v1.25/containers/create", server.getRequests().get(2).getPath());
+            assertEquals("/v1.25/containers/abc123/start", server.getRequests().get(3).getPath());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testRunPullFailure() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                if (req.getPath().endsWith("/containers/create"))
+                    return new FakeEngineServer.Response(404, "{\"message\": \"No such image: reg/myimg:1.0\"}");
+                if (req.getPath().startsWith("/v1.25/images/create"))
+                    return new FakeEngineServer.Response(200,
+                            "{\"status\": \"Pulling\"}\n{\"error\": \"manifest unknown\"}\n", true);
+                return new FakeEngineServer.Response(204, null);
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+            try {
+                dec.run(Arrays.asList("-d", "reg/myimg:1.0"));
+                fail("Should have thrown an exception");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("manifest unknown"));
+            }
+            assertEquals("A tagged image is pulled by its tag",
+                    "/v1.25/images/create?fromImage=reg%2Fmyimg%3A1.0", server.getRequests().get(1).getPath());
+            assertEquals("No retry after a failed pull", 2, server.getRequests().size());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testRunRemovesContainerThatFailsToStart() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                if (req.getPath().endsWith("/containers/create"))
+                    return new FakeEngineServer.Response(201, "{\"Id\": \"abc123\"}");
+                if (req.getPath().endsWith("/start"))
+                    return new FakeEngineServer.Response(500, "{\"message\": \"port is already allocated\"}");
+                return new FakeEngineServer.Response(204, null);
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+            try {
+                dec.run(Arrays.asList("-d", "myimg"));
+                fail("Should have thrown an exception");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("port is already allocated"));
+            }
+            assertEquals(3, server.getRequests().size());
+            assertEquals("DELETE", server.getRequests().get(2).getMethod());
+            assertEquals("/v1.25/containers/abc123?force=true", server.getRequests().get(2).getPath());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testRetryOnlyWithoutResponse() throws Exception {
+        AtomicInteger creates = new AtomicInteger();
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                if (req.getPath().startsWith("/v1.25/containers/json"))
+                    return new FakeEngineServer.Response(200, "[]");
+                switch (creates.incrementAndGet()) {
+                case 1:
+                    // The idle connection was closed by the engine
+                    return FakeEngineServer.Response.disconnect();
+                case 2:
+                    return new FakeEngineServer.Response(201, "{\"Id\": \"abc123\"}");
+                default:
+                    return new FakeEngineServer.Response(201, "{\"Id\": \"def456\"}").truncated();
+                }
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+            dec.ps("a=b");
+
+            assertEquals("abc123", dec.create(Arrays.asList("myimg")).getID());
+            assertEquals(2, creates.get());
+            assertEquals(2, server.getConnectionCount());
+
+            try {
+                dec.create(Arrays.asList("myimg"));
+                fail("Should have thrown an exception");
+            } catch (IOException e) {
+                // The engine received the request, so it must not be sent again
+            }
+            assertEquals(3, creates.get());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testPsInspectKillRemove() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                if (req.getPath().startsWith("/v1.25/containers/json"))
+                    return new FakeEngineServer.Response(200, "[{\"Id\": \"a1\"}, {\"Id\": \"b2\"}]");
+                if (req.getPath().endsWith("/json"))
+                    return new FakeEngineServer.Response(200, "{\"Id\": \"" + req.getPath().split("/")[3] + "\"}");
+                return new FakeEngineServer.Response(204, null);
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            assertEquals(Arrays.asList("a1", "b2"), dec.ps("mylabel=x"));
+            assertTrue(server.getRequests().get(0).getPath().startsWith("/v1.25/containers/json?filters="));
+
+            assertEquals("[{\"Id\": \"a1\"},{\"Id\": \"b2\"}]", dec.inspect(Arrays.asList("a1", "b2")));
+            assertEquals("[]", dec.inspect(Collections.emptyList()));
+            List<DockerContainerInfo> infos = dec.inspectContainers(Arrays.asList("a1", "b2"));
+            assertEquals("b2", infos.get(1).getID());
+
+            assertEquals("a1", dec.kill("a1"));
+            assertEquals("/v1.25/containers/a1/kill?signal=KILL", server.getRequests().get(5).getPath());
+            assertEquals("b2", dec.remove("b2"));
+            assertEquals("DELETE", server.getRequests().get(6).getMethod());
+            assertEquals("/v1.25/containers/b2?force=true", server.getRequests().get(6).getPath());
+
+            assertEquals(Arrays.asList("a1", "b2"), dec.psCreated("mylabel=x", "pooled"));
+            assertEquals("/v1.25/containers/json?all=true&filters=" +
+                    "{\"status\":[\"created\"],\"label\":[\"mylabel=x\",\"pooled\"]}",
+                    URLDecoder.decode(server.getRequests().get(7).getPath(), "UTF-8"));
+
+            assertEquals("All requests should use the same keep-alive connection", 1, server.getConnectionCount());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> new FakeEngineServer.Response(200,
+                "{\"status\":\"start\",\"id\":\"a1\",\"Type\":\"container\",\"Action\":\"start\"," +
+                "\"Actor\":{\"ID\":\"a1\",\"Attributes\":{\"svc\":\"foo\",\"image\":\"myimg\"}}}\n" +
+                "{\"Type\":\"container\",\"Action\":\"die\",\"Actor\":{\"ID\":\"b2\",\"Attributes\":{}}}\n", true))) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            List<DockerEvent> events = new CopyOnWriteArrayList<>();
+            CountDownLatch ended = new CountDownLatch(1);
+            dec.events("svc", events::add, ended::countDown);
+            assertTrue(ended.await(10, TimeUnit.SECONDS));
+
+            assertTrue(server.getRequests().get(0).getPath().startsWith("/v1.25/events?filters="));
+            assertEquals(2, events.size());
+            assertEquals("start", events.get(0).getAction());
+            assertEquals("a1", events.get(0).getID());
+            assertEquals("foo", events.get(0).getAttributes().get("svc"));
+            assertEquals("die", events.get(1).getAction());
+            assertEquals("b2", events.get(1).getID());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testInspectContainersChunked() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> new FakeEngineServer.Response(200,
+                "{\"Id\": \"" + req.getPath().split("/")[3] + "\",\n" +
+                "\"Config\": {\"Labels\": {\"svc\": \"foo\"}},\n" +
+                "\"NetworkSettings\": {\"Ports\": {\"80/tcp\": [{\"HostPort\": \"32768\"}]}},\n" +
+                "\"Mounts\": []}\n", true))) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            List<DockerContainerInfo> infos = dec.inspectContainers(Arrays.asList("a1", "b2", "c3"));
+            assertEquals(3, infos.size());
+            assertEquals("c3", infos.get(2).getID());
+            assertEquals(Collections.singletonMap(80, 32768), infos.get(2).getPorts());
+            assertEquals(Collections.singletonMap("svc", "foo"), infos.get(0).getLabels());
+            assertEquals("The rest of each body should be consumed so the connection is reused",
+                    1, server.getConnectionCount());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testInspectRemovedContainer() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> {
+                String id = req.getPath().split("/")[3];
+                if (id.equals("b2"))
+                    return new FakeEngineServer.Response(404, "{\"message\": \"No such container: b2\"}");
+                if (id.equals("e5"))
+                    return new FakeEngineServer.Response(500, "{\"message\": \"internal error\"}");
+                return new FakeEngineServer.Response(200, "{\"Id\": \"" + id + "\", \"Config\": {}}");
+            })) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            // b2 was removed after it was listed
+            List<DockerContainerInfo> infos = dec.inspectContainers(Arrays.asList("a1", "b2", "c3"));
+            assertEquals(2, infos.size());
+            assertEquals("a1", infos.get(0).getID());
+            assertEquals("c3", infos.get(1).getID());
+            assertEquals(2, new JSONParser("{\"l\":" + dec.inspect(Arrays.asList("a1", "b2", "c3")) + "}").
+                    getParsed().values().stream().mapToInt(l -> ((List<?>) l).size()).sum());
+            assertEquals("Error responses should not close the connection", 1, server.getConnectionCount());
+
+            try {
+                dec.inspectContainers(Arrays.asList("a1", "e5"));
+                fail("Should have thrown an exception");
+            } catch (EngineStatusException e) {
+                assertEquals(500, e.getStatus());
+            }
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testRemoveBulk() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(req -> req.getPath().contains("/b2?")
+                ? new FakeEngineServer.Response(404, "{\"message\": \"No such container: b2\"}")
+                : new FakeEngineServer.Response(204, null))) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+
+            Map<String, String> failures = dec.remove(Arrays.asList("a1", "b2", "c3"));
+            assertEquals(Collections.singleton("b2"), failures.keySet());
+            assertTrue(failures.get("b2").contains("No such container"));
+            assertEquals(3, server.getRequests().size());
+            assertEquals("/v1.25/containers/c3?force=true", server.getRequests().get(2).getPath());
+            dec.close();
+        }
+    }
+
+    @Test
+    public void testErrorStatus() throws Exception {
+        try (FakeEngineServer server = FakeEngineServer.tcp(
+                req -> new FakeEngineServer.Response(404, "{\"message\": \"No such container\"}"))) {
+            DockerEngineController dec = new DockerEngineController(
+                    EngineTransport.forDockerHost(server.getDockerHost()));
+            try {
+                dec.remove("nonexistent");
+                fail("Should have thrown an exception");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("No such container"));
+            }
+        }
+    }
+
+    @Test
+    public void testServiceManagerOverUnixSocket() throws Exception {
+        Assume.assumeTrue("Unix domain sockets require Java 16+", UnixSocketEngineTransport.isSupported());
+
+        Path dir = Files.createTempDirectory("engine");
+        Path socket = dir.resolve("docker.sock");
+        try (FakeEngineServer server = FakeEngineServer.unix(socket, req -> {
+                if (req.getPath().startsWith("/v1.25/containers/json"))
+                    return new FakeEngineServer.Response(200, "[]");
+                if (req.getPath().endsWith("/containers/create"))
+                    return new FakeEngineServer.Response(201, "{\"Id\": \"c" + req.getBody().length() + "\"}");
+                return new FakeEngineServer.Response(204, null);
+            })) {
+            LocalDockerServiceManager sm = new LocalDockerServiceManager(server.getDockerHost());
+
+            ServiceConfig cfg = ServiceConfig.builder("unixsvc", "myimg").instances(2).build();
+            Service svc = sm.getService(cfg);
+            assertEquals(2, svc.listContainers().size());
+            // The containers are created in parallel, so at most one connection per container
+            int connections = server.getConnectionCount();
+            assertTrue(connections <= 2);
+
+            sm.listServices();
+            sm.listServices();
+            assertEquals("Sequential requests should reuse the open connections",
+                    connections, server.getConnectionCount());
+            sm.close();
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
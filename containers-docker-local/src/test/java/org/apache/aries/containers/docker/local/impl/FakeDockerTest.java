@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.aries.containers.Container;
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.test.docker.FakeContainer;
+import org.apache.aries.containers.test.docker.FakeDocker;
+import org.apache.aries.containers.test.docker.FakeDockerCli;
+import org.apache.aries.containers.test.docker.FakeEngineServer;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FakeDockerTest {
+    private static final String SERVICE_LABEL = "org.apache.aries.containers.service.name";
+
+    @Test
+    public void testCommandLine() throws Exception {
+        Assume.assumeTrue("The docker stand-in requires bash", new File("/bin/bash").canExecute());
+
+        FakeDocker docker = new FakeDocker();
+        try (FakeDockerCli cli = new FakeDockerCli(docker)) {
+            String previous = System.setProperty(LocalDockerServiceManager.DOCKER_EXECUTABLE_PROPERTY,
+                    cli.getExecutable().toString());
+            try {
+                exercise(docker, LocalDockerServiceManager::new, 50);
+            } finally {
+                if (previous == null)
+                    System.clearProperty(LocalDockerServiceManager.DOCKER_EXECUTABLE_PROPERTY);
+                else
+                    System.setProperty(LocalDockerServiceManager.DOCKER_EXECUTABLE_PROPERTY, previous);
+            }
+        }
+    }
+
+    @Test
+    public void testEngine() throws Exception {
+        FakeDocker docker = new FakeDocker();
+        try (FakeEngineServer server = new FakeEngineServer(docker)) {
+            exercise(docker, () -> new LocalDockerServiceManager(server.getDockerHost()), 500);
+        }
+    }
+
+    @Test
+    public void testEngineAtScale() throws Exception {
+        // The default port range only holds 2768 containers with an exposed port
+        FakeDocker docker = new FakeDocker();
+        try (FakeEngineServer server = new FakeEngineServer(docker)) {
+            exercise(docker, () -> new LocalDockerServiceManager(
+                    new DockerEngineController(EngineTransport.forDockerHost(server.getDockerHost())),
+                    LocalDockerServiceManager.DEFAULT_CONCURRENCY, new PortAllocator(20000, 39999)), 10000);
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        FakeDocker docker = new FakeDocker();
+        docker.setDefaultLatency(1, TimeUnit.MILLISECONDS);
+        docker.setLatency("create", 200, TimeUnit.MILLISECONDS);
+        try (FakeEngineServer server = new FakeEngineServer(docker)) {
+            LocalDockerServiceManager sm = new LocalDockerServiceManager(server.getDockerHost());
+            long start = System.nanoTime();
+            sm.getService(ServiceConfig.builder("slowsvc", "myimg").build());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertEquals(1, docker.getInvocationCount("create"));
+            assertEquals(1, docker.getInvocationCount("start"));
+            sm.close();
+        }
+    }
+
+    private void exercise(FakeDocker docker, Callable<LocalDockerServiceManager> managers, int count) throws Exception {
+        LocalDockerServiceManager sm = managers.call();
+        sm.enableContainerIndex();
+
+        ServiceConfig cfg = ServiceConfig.builder("fakesvc", "myimg").instances(count).port(8080).build();
+        Service svc = sm.getService(cfg);
+        assertEquals(count, svc.listContainers().size());
+        assertEquals(count, docker.list(false, Collections.singleton(SERVICE_LABEL + "=fakesvc")).size());
+
+        Container c = svc.listContainers().get(0);
+        FakeContainer fc = docker.get(c.getID());
+        assertEquals("myimg", fc.getImage());
+        assertEquals(c.getExposedPorts().get(8080).toString(), fc.getPortBindings().get("8080/tcp"));
+
+        // The container index is kept up to date by the event stream
+        waitFor(() -> svc.getActualInstanceCount() == count);
+        assertEquals(Collections.singleton("fakesvc"), sm.listServices());
+
+        // Another service manager discovers the running containers
+        LocalDockerServiceManager sm2 = managers.call();
+        Service discovered = sm2.getService(cfg);
+        assertEquals(count, discovered.listContainers().size());
+        for (Container d : discovered.listContainers()) {
+            assertEquals(docker.get(d.getID()).getPortBindings().get("8080/tcp"),
+                    d.getExposedPorts().get(8080).toString());
+        }
+        sm2.close();
+
+        svc.setInstanceCount(count / 10);
+        assertEquals(count / 10, svc.listContainers().size());
+        assertEquals(count / 10, docker.getContainers().size());
+        waitFor(() -> svc.getActualInstanceCount() == count / 10);
+
+        svc.destroy();
+        assertEquals(0, docker.getContainers().size());
+        sm.close();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition not met in time", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.aries.containers.HealthCheck;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+public class HealthCheckerTest {
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private HealthChecker checker;
+
+    @Before
+    public void setUp() throws IOException {
+        // Intervals, timeouts and grace periods are in milliseconds
+        checker = new HealthChecker(new HealthChecker.Listener() {
+            @Override
+            public void healthChanged(ContainerImpl container, boolean healthy) {
+                events.add(container.getID() + (healthy ? " healthy" : " unhealthy"));
+            }
+
+            @Override
+            public void failed(ContainerImpl container) {
+                events.add(container.getID() + " failed");
+            }
+        }, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        checker.close();
+    }
+
+    @Test
+    public void testTcp() throws Exception {
+        ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ContainerImpl c = container("c1", ss.getLocalPort());
+        HealthCheck hc = HealthCheck.builder(HealthCheck.Type.TCP).
+                interval(20).timeout(1000).gracePeriod(0).maxFailures(2).portIndex(0).build();
+
+        checker.register(c, Collections.singletonList(hc), Collections.singletonList(8080));
+        assertEquals("c1 healthy", events.poll(10, TimeUnit.SECONDS));
+        assertTrue(checker.isHealthy("c1"));
+
+        ss.close();
+        assertEquals("c1 unhealthy", events.poll(10, TimeUnit.SECONDS));
+        assertEquals("c1 failed", events.poll(10, TimeUnit.SECONDS));
+        assertFalse(checker.isChecked("c1"));
+    }
+
+    @Test
+    public void testHttp() throws Exception {
+        AtomicInteger status = new AtomicInteger(204);
+        List<String> paths = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            paths.add(exchange.getRequestURI().toString());
+            exchange.sendResponseHeaders(status.get(), -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            ContainerImpl c = container("c2", server.getAddress().getPort());
+            HealthCheck hc = HealthCheck.builder(HealthCheck.Type.HTTP).parameters("/health?deep=true").
+                    interval(20).timeout(1000).gracePeriod(0).maxFailures(3).build();
+
+            checker.register(c, Collections.singletonList(hc), Collections.singletonList(8080));
+            assertEquals("c2 healthy", events.poll(10, TimeUnit.SECONDS));
+            assertEquals("/health?deep=true", paths.get(0));
+
+            status.set(503);
+            assertEquals("c2 unhealthy", events.poll(10, TimeUnit.SECONDS));
+            assertEquals("c2 failed", events.poll(10, TimeUnit.SECONDS));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHttps() throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream is = getClass().getResourceAsStream("/health-check.p12")) {
+            ks.load(is, "changeit".toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, "changeit".toCharArray());
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+
+        HttpsServer server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(ctx));
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        try {
+            ContainerImpl c = container("c3", server.getAddress().getPort());
+            HealthCheck hc = HealthCheck.builder(HealthCheck.Type.HTTPS).parameters("https://localhost/status").
+                    interval(20).timeout(5000).gracePeriod(0).maxFailures(3).build();
+
+            checker.register(c, Collections.singletonList(hc), Collections.singletonList(8080));
+            assertEquals("c3 healthy", events.poll(10, TimeUnit.SECONDS));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testGracePeriodAndUnregister() throws Exception {
+        // Nothing listens on this port
+        ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int port = ss.getLocalPort();
+        ss.close();
+
+        ContainerImpl c = container("c4", port);
+        HealthCheck tcp = HealthCheck.builder(HealthCheck.Type.TCP).
+                interval(10).timeout(1000).gracePeriod(60000).maxFailures(1).build();
+        HealthCheck cmd = HealthCheck.builder(HealthCheck.Type.COMMAND).parameters("exit 0").build();
+
+        checker.register(c, Arrays.asList(tcp, cmd), Collections.singletonList(8080));
+        assertTrue(checker.isChecked("c4"));
+        assertNull("Failures are ignored during the grace period", events.poll(300, TimeUnit.MILLISECONDS));
+        assertFalse(checker.isHealthy("c4"));
+
+        checker.unregister("c4");
+        assertFalse(checker.isChecked("c4"));
+    }
+
+    @Test
+    public void testCommandOnly() {
+        ContainerImpl c = container("c5", 1);
+        HealthCheck cmd = HealthCheck.builder(HealthCheck.Type.COMMAND).parameters("exit 0").build();
+        checker.register(c, Collections.singletonList(cmd), Collections.singletonList(8080));
+        assertFalse("Command checks are run by docker", checker.isChecked("c5"));
+    }
+
+    private static ContainerImpl container(String id, int hostPort) {
+        return new ContainerImpl(id, "127.0.0.1", Collections.singletonMap(8080, hostPort));
+    }
+}
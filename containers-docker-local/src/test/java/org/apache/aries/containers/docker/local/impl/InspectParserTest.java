@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InspectParserTest {
+    @Test
+    public void testParse() throws IOException {
+        String json = "Error: No such object: gone\n" +
+                "[\n  {\n" +
+                "    \"Id\": \"c1\",\n" +
+                "    \"Args\": [\"-c\", \"echo \\\"[}\\\"\"],\n" +
+                "    \"State\": {\"Running\": true, \"Pid\": 1234, \"Error\": \"\", \"Health\": null},\n" +
+                "    \"Config\": {\"Env\": [\"A=B\"], \"Labels\": {\"svc\": \"foo\", \"x\\u0041\": \"a\\/b\\n\"}},\n" +
+                "    \"NetworkSettings\": {\"Ports\": {\n" +
+                "        \"80/tcp\": [{\"HostIp\": \"0.0.0.0\", \"HostPort\": \"32768\"}],\n" +
+                "        \"90/udp\": [{\"HostPort\": 14524}],\n" +
+                "        \"443/tcp\": null,\n" +
+                "        \"8080/tcp\": []},\n" +
+                "      \"Networks\": {\"bridge\": {\"IPAddress\": \"172.17.0.2\"}}}\n" +
+                "  },\n" +
+                "  {\"Id\": \"c2\", \"Config\": {\"Labels\": null}, \"NetworkSettings\": {\"Ports\": {}}, \"Size\": 1.5e3}\n" +
+                "]\n";
+
+        List<DockerContainerInfo> infos = InspectParser.parse(stream(json), "myhost");
+        assertEquals(2, infos.size());
+
+        DockerContainerInfo c1 = infos.get(0);
+        assertEquals("c1", c1.getID());
+        assertEquals("myhost", c1.getIP());
+        Map<Integer, Integer> ports = new HashMap<>();
+        ports.put(80, 32768);
+        ports.put(90, 14524);
+        assertEquals(ports, c1.getPorts());
+        Map<String, String> labels = new HashMap<>();
+        labels.put("svc", "foo");
+        labels.put("xA", "a/b\n");
+        assertEquals(labels, c1.getLabels());
+
+        assertNull(c1.getHealth());
+
+        DockerContainerInfo c2 = infos.get(1);
+        assertEquals("c2", c2.getID());
+        assertEquals(Collections.emptyMap(), c2.getPorts());
+        assertEquals(Collections.emptyMap(), c2.getLabels());
+    }
+
+    @Test
+    public void testParseEmpty() throws IOException {
+        assertEquals(Collections.emptyList(), InspectParser.parse(stream("[]"), "localhost"));
+        assertEquals(Collections.emptyList(), InspectParser.parse(stream(""), "localhost"));
+    }
+
+    @Test
+    public void testParseContainer() throws IOException {
+        DockerContainerInfo info = InspectParser.parseContainer(
+                stream("{\"Id\": \"abc\", \"NetworkSettings\": {\"Ports\": {\"80/tcp\": [{\"HostPort\": \"1234\"}]}}}"),
+                "localhost");
+        assertEquals("abc", info.getID());
+        assertEquals(Collections.singletonMap(80, 1234), info.getPorts());
+    }
+
+    @Test
+    public void testParseHealth() throws IOException {
+        DockerContainerInfo info = InspectParser.parseContainer(
+                stream("{\"Id\": \"abc\", \"State\": {\"Status\": \"running\", \"Health\": {\"Status\": \"healthy\", " +
+                        "\"FailingStreak\": 0, \"Log\": [{\"ExitCode\": 0, \"Output\": \"\"}]}}}"),
+                "localhost");
+        assertEquals("abc", info.getID());
+        assertEquals("healthy", info.getHealth());
+    }
+
+    @Test
+    public void testParseTruncated() {
+        try {
+            InspectParser.parse(stream("[{\"Id\": \"c1\", \"Config\": {\"Labels\": {\"a\": \"b"), "localhost");
+            fail("Should have thrown an exception");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Unterminated"));
+        }
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -18,9 +18,15 @@
  */
 package org.apache.aries.containers.docker.local.impl;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -28,6 +34,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class LocalDockerControllerTest {
     @BeforeClass
@@ -76,6 +83,41 @@ public class LocalDockerControllerTest {
         assertEquals("ok", ldc.remove("123abc"));
     }
 
+    @Test
+    public void testRemoveBulk() throws Exception {
+        List<String[]> commands = new ArrayList<>();
+        LocalDockerController ldc = new LocalDockerController() {
+            @Override
+            String runCommand(String... command) throws IOException {
+                commands.add(command);
+                return "a1\nError response from daemon: No such container: b2\nc3";
+            }
+        };
+        assertEquals(Collections.singletonMap("b2", "Error response from daemon: No such container: b2"),
+                ldc.remove(Arrays.asList("a1", "b2", "c3")));
+        assertEquals(1, commands.size());
+        assertArrayEquals(new String [] {"docker", "rm", "-f", "a1", "b2", "c3"}, commands.get(0));
+    }
+
+    @Test
+    public void testChunk() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add(String.format("%064x", i));
+        }
+        List<List<String>> chunks = LocalDockerController.chunk(ids, LocalDockerController.MAX_ID_ARGS_LENGTH);
+        assertEquals(3, chunks.size());
+        List<String> all = new ArrayList<>();
+        for (List<String> chunk : chunks) {
+            assertTrue(String.join(" ", chunk).length() <= LocalDockerController.MAX_ID_ARGS_LENGTH);
+            all.addAll(chunk);
+        }
+        assertEquals(ids, all);
+
+        assertEquals(Arrays.asList(Arrays.asList("abc"), Arrays.asList("de")),
+                LocalDockerController.chunk(Arrays.asList("abc", "de"), 3));
+    }
+
     @Test
     public void testRun() throws Exception {
         LocalDockerController ldc = new LocalDockerController() {
@@ -91,6 +133,24 @@ public class LocalDockerControllerTest {
         assertEquals(LocalDockerServiceManager.getContainerHost(), info.getIP());
     }
 
+    @Test
+    public void testCreateAndStart() throws Exception {
+        List<String[]> commands = new ArrayList<>();
+        LocalDockerController ldc = new LocalDockerController() {
+            @Override
+            String runCommand(String... command) throws IOException {
+                commands.add(command);
+                return "abc123\n";
+            }
+        };
+        DockerContainerInfo info = ldc.create(Arrays.asList("-l", "a=b", "myimg"));
+        assertEquals("abc123", info.getID());
+        assertEquals("abc123", ldc.start("abc123"));
+
+        assertArrayEquals(new String [] {"docker", "create", "-l", "a=b", "myimg"}, commands.get(0));
+        assertArrayEquals(new String [] {"docker", "start", "abc123"}, commands.get(1));
+    }
+
     @Test
     public void testPS() throws Exception {
         LocalDockerController ldc = new LocalDockerController() {
@@ -117,6 +177,25 @@ public class LocalDockerControllerTest {
         assertEquals(Collections.emptyList(), ldc.ps("mylabel"));
     }
 
+    @Test
+    public void testPSLabels() throws Exception {
+        LocalDockerController ldc = new LocalDockerController() {
+            @Override
+            String runCommand(String... command) {
+                assertArrayEquals(new String [] {
+                        "docker", "ps", "--no-trunc", "-f", "label=mylabel",
+                        "--format", "{{.ID}} {{.Label \"mylabel\"}}"}, command);
+                return "a1 svc1\n\nb2 svc2\nc3\n";
+            }
+        };
+
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("a1", "svc1");
+        expected.put("b2", "svc2");
+        expected.put("c3", "");
+        assertEquals(expected, ldc.psLabels("mylabel"));
+    }
+
     @Test
     public void testInspect() throws IOException {
         LocalDockerController ldc = new LocalDockerController() {
@@ -130,6 +209,24 @@ public class LocalDockerControllerTest {
         assertEquals("[\"some_json\"]", ldc.inspect(Arrays.asList("a1", "b2")));
     }
 
+    @Test
+    public void testInspectContainers() throws IOException {
+        LocalDockerController ldc = new LocalDockerController() {
+            @Override
+            <T> T runCommand(StreamParser<T> parser, String... command) throws IOException {
+                assertArrayEquals(new String [] {
+                        "docker", "inspect", "a1", "b2"}, command);
+                return parser.parse(new ByteArrayInputStream(
+                        "[{\"Id\": \"a1\"}, {\"Id\": \"b2\"}]".getBytes(StandardCharsets.UTF_8)));
+            }
+        };
+        List<DockerContainerInfo> infos = ldc.inspectContainers(Arrays.asList("a1", "b2"));
+        assertEquals(2, infos.size());
+        assertEquals("a1", infos.get(0).getID());
+        assertEquals("b2", infos.get(1).getID());
+        assertEquals(Collections.emptyList(), ldc.inspectContainers(Collections.emptyList()));
+    }
+
     @Test
     public void testInspect2() throws IOException {
         LocalDockerController ldc = new LocalDockerController();
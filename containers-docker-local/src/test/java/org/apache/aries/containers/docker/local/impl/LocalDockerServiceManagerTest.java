@@ -18,6 +18,14 @@
  */
 package org.apache.aries.containers.docker.local.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -26,23 +34,39 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 import org.apache.aries.containers.Container;
 import org.apache.aries.containers.HealthCheck;
 import org.apache.aries.containers.Service;
 import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.metrics.OperationStats;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LocalDockerServiceManagerTest {
-    private String INSPECT_JSON1 = "[{\"Config\": {\"Labels\": {\""
-            + LocalDockerServiceManager.SERVICE_NAME_LABEL + "\": \"svc1\"}}},"
-            + "{\"Config\": {\"Labels\": {\""
-            + LocalDockerServiceManager.SERVICE_NAME_LABEL + "\": \"svc2\"}}}]";
     private String INSPECT_JSON2 =
             "[{\"Id\": \"c2\","
             + "\"NetworkSettings\": {\"Ports\": {\"80/tcp\": [{\"HostPort\": 14524}]}}},"
@@ -74,7 +98,7 @@ public class LocalDockerServiceManagerTest {
         LocalDockerController dc = Mockito.mock(LocalDockerController.class);
         Mockito.when(dc.ps(LocalDockerServiceManager.SERVICE_NAME_LABEL + "=lalala")).
             thenReturn(ids);
-        Mockito.when(dc.inspect(ids)).thenReturn(INSPECT_JSON2);
+        Mockito.when(dc.inspectContainers(ids)).thenReturn(parseInspect(INSPECT_JSON2));
 
         LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
 
@@ -86,25 +110,25 @@ public class LocalDockerServiceManagerTest {
         ports.put(90, 32768);
         ports.put(8080, 63758);
         Set<Container> expectedContainers = new HashSet<>(Arrays.asList(
-                new ContainerImpl("c1", LocalDockerServiceManager.CONTAINER_HOST, ports),
-                new ContainerImpl("c2", LocalDockerServiceManager.CONTAINER_HOST,
+                new ContainerImpl("c1", LocalDockerServiceManager.getContainerHost(), ports),
+                new ContainerImpl("c2", LocalDockerServiceManager.getContainerHost(),
                         Collections.singletonMap(80, 14524))));
         assertEquals(expectedContainers, new HashSet<>(lalaSvc.listContainers()));
     }
 
     @Test
     public void testGetServiceCreate() throws Exception {
+        ServiceConfig cfg = ServiceConfig.builder("mysvc", "acontainer").
+                instances(3).cpu(1.2).memory(40).build();
         List<String> expectedCmd = Arrays.asList(
                 "-d", "-l", "org.apache.aries.containers.service.name=mysvc",
+                "-l", "org.apache.aries.containers.service.fingerprint=" + cfg.getFingerprint(),
                 "--cpus", "1.2", "-m", "40m", "acontainer");
         LocalDockerController dc = Mockito.mock(LocalDockerController.class);
         Mockito.when(dc.run(expectedCmd)).thenReturn(new DockerContainerInfo("fooctr", "1.2.3.4"));
 
         LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
 
-        ServiceConfig cfg = ServiceConfig.builder("mysvc", "acontainer").
-                instances(3).cpu(1.2).memory(40).build();
-
         Mockito.verify(dc, Mockito.times(0)).run(expectedCmd);
         Service svc = sm.getService(cfg);
         Mockito.verify(dc, Mockito.times(3)).run(expectedCmd);
@@ -115,18 +139,35 @@ public class LocalDockerServiceManagerTest {
 
     @Test
     public void testListServices() throws Exception {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("a1", "svc1");
+        labels.put("b2", "svc2");
+        labels.put("c3", "svc3");
+        labels.put("d4", "svc3");
+        labels.put("e5", "");
         LocalDockerController dc = Mockito.mock(LocalDockerController.class);
-        Mockito.when(dc.ps(LocalDockerServiceManager.SERVICE_NAME_LABEL)).
-            thenReturn(new ArrayList<>(Arrays.asList("a1", "b2", "c3", "d4")));
-        Mockito.when(dc.inspect(Arrays.asList("a1", "b2"))).thenReturn(INSPECT_JSON1);
+        Mockito.when(dc.psLabels(LocalDockerServiceManager.SERVICE_NAME_LABEL)).thenReturn(labels);
 
         LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
-        ServiceConfig config = ServiceConfig.builder("svc3", "myimg").build();
-        sm.services.putIfAbsent("c3", new ServiceImpl(config, sm, Arrays.asList(
-                new ContainerImpl("c3", "localhost", Collections.emptyMap()),
-                new ContainerImpl("d4", "localhost", Collections.emptyMap()))));
+        ServiceConfig config = ServiceConfig.builder("svc4", "myimg").build();
+        sm.services.putIfAbsent("svc4", new ServiceImpl(config, sm, Collections.emptyList()));
 
-        assertEquals(new HashSet<>(Arrays.asList("svc1", "svc2", "svc3")), sm.listServices());
+        assertEquals(new HashSet<>(Arrays.asList("svc1", "svc2", "svc3", "svc4")), sm.listServices());
+        Mockito.verify(dc, Mockito.never()).inspectContainers(Mockito.anyList());
+    }
+
+    @Test
+    public void testListServicesFromIndex() throws Exception {
+        LocalDockerController dc = Mockito.mock(LocalDockerController.class);
+        Mockito.when(dc.events(Mockito.anyString(), Mockito.any(), Mockito.any())).thenReturn(() -> {});
+        Mockito.when(dc.psLabels(LocalDockerServiceManager.SERVICE_NAME_LABEL)).
+            thenReturn(Collections.singletonMap("a1", "svc1"));
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        sm.enableContainerIndex();
+        assertEquals(Collections.singleton("svc1"), sm.listServices());
+        assertEquals(Collections.singleton("svc1"), sm.listServices());
+        Mockito.verify(dc, Mockito.times(1)).psLabels(LocalDockerServiceManager.SERVICE_NAME_LABEL);
     }
 
     @Test
@@ -166,4 +207,1374 @@ public class LocalDockerServiceManagerTest {
         assertEquals("anid", ctr.getID());
         assertEquals("99.99.99.99", ctr.getHostName());
     }
+
+    @Test
+    public void testPortsLeasedAndReleased() throws Exception {
+        List<List<String>> commands = new ArrayList<>();
+        AtomicInteger counter = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                commands.add(command);
+                if (counter.incrementAndGet() == 3)
+                    throw new Exception("Port is already allocated");
+                return new DockerContainerInfo("id" + counter.get(), "localhost");
+            }
+
+            @Override
+            public String remove(String id) throws Exception {
+                return id;
+            }
+        };
+
+        PortAllocator pa = new PortAllocator(40000, 40099);
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 1, pa);
+        ServiceConfig cfg = ServiceConfig.builder("portsvc", "img").port(80).port(443).build();
+
+        ContainerImpl c1 = sm.createDockerContainer(cfg);
+        ContainerImpl c2 = sm.createDockerContainer(cfg);
+        assertEquals(4, pa.getLeasedCount());
+        Set<Integer> hostPorts = new HashSet<>(c1.getExposedPorts().values());
+        hostPorts.addAll(c2.getExposedPorts().values());
+        assertEquals(4, hostPorts.size());
+        assertTrue(commands.get(0).contains(c1.getExposedPorts().get(80) + ":80"));
+
+        try {
+            sm.createDockerContainer(cfg);
+            fail("Should have thrown an exception");
+        } catch (Exception e) {
+            assertEquals("Ports of a container that failed to start should be released", 4, pa.getLeasedCount());
+        }
+
+        ServiceImpl svc = new ServiceImpl(cfg, sm, Arrays.asList(c1, c2));
+        c1.setService(svc);
+        c1.destroy();
+        assertEquals(2, pa.getLeasedCount());
+        for (int port : c1.getExposedPorts().values()) {
+            assertFalse(pa.isLeased(port));
+        }
+
+        svc.containerExited("id2");
+        assertEquals(0, pa.getLeasedCount());
+        sm.close();
+    }
+
+    @Test
+    public void testDiscoveredPortsReserved() throws Exception {
+        List<String> ids = Arrays.asList("c1", "c2");
+        LocalDockerController dc = Mockito.mock(LocalDockerController.class);
+        Mockito.when(dc.ps(LocalDockerServiceManager.SERVICE_NAME_LABEL + "=lalala")).thenReturn(ids);
+        Mockito.when(dc.inspectContainers(ids)).thenReturn(parseInspect(INSPECT_JSON2));
+
+        PortAllocator pa = new PortAllocator(14524, 14525);
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 1, pa);
+        sm.discoverContainers(ServiceConfig.builder("lalala", "myimg").build());
+
+        assertTrue(pa.isLeased(14524));
+        assertEquals(14525, pa.allocate());
+        sm.close();
+    }
+
+    @Test
+    public void testVanishedContainersReleased() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        Map<String, Map<Integer, Integer>> running = new ConcurrentHashMap<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                String id = "v" + counter.incrementAndGet();
+                Map<Integer, Integer> ports = new HashMap<>();
+                for (int i = 0; i < command.size() - 1; i++) {
+                    if (command.get(i).equals("-p")) {
+                        String[] mapping = command.get(i + 1).split(":");
+                        ports.put(Integer.parseInt(mapping[1]), Integer.parseInt(mapping[0]));
+                    }
+                }
+                running.put(id, ports);
+                return new DockerContainerInfo(id, "localhost");
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) throws IOException {
+                return new ArrayList<>(new TreeSet<>(running.keySet()));
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+                List<DockerContainerInfo> res = new ArrayList<>();
+                for (String id : ids) {
+                    res.add(new DockerContainerInfo(id, "localhost", running.get(id), Collections.emptyMap()));
+                }
+                return res;
+            }
+        };
+
+        File dir = Files.createTempDirectory("aries-containers-registry").toFile();
+        PortAllocator pa = new PortAllocator(40000, 40099);
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 2, pa);
+        LocalDockerServiceManager sm2 = null;
+        try {
+            sm.enableServiceRegistry(dir);
+            ServiceConfig cfg = ServiceConfig.builder("vanishsvc", "img").port(80).instances(3).build();
+            Service svc = sm.getService(cfg);
+            assertEquals(3, pa.getLeasedCount());
+            ContainerImpl v2 = (ContainerImpl) container(svc, "v2");
+            int port = v2.getExposedPorts().get(80);
+
+            // The container exits without the service manager noticing
+            running.remove("v2");
+            svc.refresh();
+            assertEquals(2, svc.listContainers().size());
+            assertEquals(2, pa.getLeasedCount());
+            assertFalse(pa.isLeased(port));
+
+            // The registry no longer records the exited container, and another service manager
+            // only holds the host ports of the recorded containers that still run
+            running.remove("v3");
+            PortAllocator pa2 = new PortAllocator(40000, 40099);
+            sm2 = new LocalDockerServiceManager(dc, 2, pa2);
+            sm2.enableServiceRegistry(dir);
+            assertEquals(2, pa2.getLeasedCount());
+            sm2.discoverContainers(cfg);
+            assertEquals(1, pa2.getLeasedCount());
+            assertTrue(pa2.isLeased(container(svc, "v1").getExposedPorts().get(80)));
+        } finally {
+            sm.close();
+            if (sm2 != null)
+                sm2.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testWarmPool() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        List<String> removed = Collections.synchronizedList(new ArrayList<>());
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                assertTrue(command.contains("-d"));
+                return new DockerContainerInfo("run" + counter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public List<String> psCreated(String... labelFilters) {
+                assertEquals(Arrays.asList(LocalDockerServiceManager.SERVICE_NAME_LABEL + "=warmsvc",
+                        LocalDockerServiceManager.WARM_POOL_LABEL + "=true"), Arrays.asList(labelFilters));
+                // Left behind by the pool of an earlier service manager
+                return Collections.singletonList("leftover");
+            }
+
+            @Override
+            public DockerContainerInfo create(List<String> command) throws Exception {
+                assertFalse(command.contains("-d"));
+                assertEquals("true", label(command, LocalDockerServiceManager.WARM_POOL_LABEL));
+                assertEquals("The leftovers are removed before the pool is filled",
+                        Collections.singletonList("leftover"), removed);
+                return new DockerContainerInfo("warm" + counter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public String start(String id) throws Exception {
+                started.add(id);
+                return id;
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) throws Exception {
+                removed.addAll(ids);
+                return Collections.emptyMap();
+            }
+        };
+
+        PortAllocator pa = new PortAllocator(40000, 40099);
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 2, pa);
+        ServiceConfig cfg = ServiceConfig.builder("warmsvc", "img").port(80).warmPool(2).build();
+        Service svc = sm.getService(cfg);
+        assertEquals(1, svc.listContainers().size());
+        assertTrue(svc.listContainers().get(0).getID().startsWith("run"));
+
+        WarmPool pool = sm.getWarmPool(cfg);
+        waitFor(() -> pool.size() == 2);
+        assertEquals("Pooled containers hold on to their ports", 3, pa.getLeasedCount());
+
+        svc.setInstanceCount(4);
+        assertEquals(4, svc.listContainers().size());
+        assertEquals("Two containers should have been taken from the pool", 2, started.size());
+        for (String id : started) {
+            assertTrue(id.startsWith("warm"));
+        }
+
+        waitFor(() -> pool.size() == 2);
+        svc.destroy();
+        assertEquals(0, svc.listContainers().size());
+        assertEquals(7, removed.size());
+        assertEquals(0, pool.size());
+        assertEquals(0, pa.getLeasedCount());
+        sm.close();
+    }
+
+    @Test
+    public void testServiceRegistry() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        AtomicInteger inspections = new AtomicInteger();
+        List<String> running = new CopyOnWriteArrayList<>();
+        Map<String, String> fingerprints = new ConcurrentHashMap<>();
+        AtomicReference<CountDownLatch> psGate = new AtomicReference<>(new CountDownLatch(0));
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                String id = "r" + counter.incrementAndGet();
+                running.add(id);
+                fingerprints.put(id, label(command, LocalDockerServiceManager.FINGERPRINT_LABEL));
+                return new DockerContainerInfo(id, "localhost");
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) throws IOException {
+                try {
+                    psGate.get().await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return new ArrayList<>(running);
+            }
+
+            @Override
+            public Map<String, String> psLabels(String labelFilter, String label) throws IOException {
+                Map<String, String> res = new HashMap<>();
+                for (String id : ps(labelFilter)) {
+                    res.put(id, fingerprints.get(id));
+                }
+                return res;
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+                inspections.incrementAndGet();
+                return Collections.emptyList();
+            }
+        };
+
+        File dir = Files.createTempDirectory("aries-containers-registry").toFile();
+        LocalDockerServiceManager sm1 = new LocalDockerServiceManager(dc, 2, new PortAllocator(40000, 40099));
+        LocalDockerServiceManager sm2 = null;
+        try {
+            sm1.enableServiceRegistry(dir);
+            ServiceConfig cfg = ServiceConfig.builder("regsvc", "img").port(80).instances(2).build();
+            Service svc1 = sm1.getService(cfg);
+            assertEquals(2, svc1.listContainers().size());
+
+            // The manager stops while scaling up and one of the containers exits
+            sm1.scaleStarted(cfg, 3);
+            running.remove("r2");
+            // Hold back the verification against docker
+            psGate.set(new CountDownLatch(1));
+
+            PortAllocator pa = new PortAllocator(40000, 40099);
+            sm2 = new LocalDockerServiceManager(dc, 2, pa);
+            sm2.enableServiceRegistry(dir);
+            assertEquals("The recorded ports are not handed out again", 2, pa.getLeasedCount());
+
+            Service svc2 = sm2.getService(cfg);
+            assertEquals(0, inspections.get());
+            Set<String> ids = new HashSet<>();
+            for (Container c : svc2.listContainers()) {
+                ids.add(c.getID());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("r1", "r2")), ids);
+            assertEquals(container(svc1, "r1").getExposedPorts(), container(svc2, "r1").getExposedPorts());
+
+            // The exited container is dropped and the interrupted scale-up resumed
+            psGate.get().countDown();
+            waitFor(() -> svc2.listContainers().size() == 3 &&
+                    !svc2.listContainers().stream().anyMatch(c -> c.getID().equals("r2")));
+            assertEquals(0, inspections.get());
+            waitFor(() -> pa.getLeasedCount() == 3);
+        } finally {
+            sm1.close();
+            if (sm2 != null)
+                sm2.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAdoptedHealthyContainersReady() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        Map<String, String> running = new ConcurrentHashMap<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                String id = "h" + counter.incrementAndGet();
+                running.put(id, "healthsvc");
+                return new DockerContainerInfo(id, "localhost");
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) {
+                return new ArrayList<>(running.keySet());
+            }
+
+            @Override
+            public Closeable events(String label, Consumer<DockerEvent> l, Runnable onEnd) {
+                // Docker does not report the health status again for healthy containers
+                return () -> {};
+            }
+
+            @Override
+            public Map<String, String> psLabels(String label) {
+                return new HashMap<>(running);
+            }
+
+            @Override
+            public Map<String, String> psLabels(String labelFilter, String label) {
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+                List<DockerContainerInfo> res = new ArrayList<>();
+                for (String id : ids) {
+                    res.add(new DockerContainerInfo(id, "localhost", Collections.emptyMap(),
+                            Collections.singletonMap(LocalDockerServiceManager.SERVICE_NAME_LABEL, "healthsvc"),
+                            "healthy"));
+                }
+                return res;
+            }
+        };
+
+        HealthCheck hc = HealthCheck.builder(HealthCheck.Type.COMMAND).parameters("exit 0").build();
+        ServiceConfig cfg = ServiceConfig.builder("healthsvc", "img").healthCheck(hc).instances(2).build();
+        File dir = Files.createTempDirectory("aries-containers-registry").toFile();
+        LocalDockerServiceManager sm1 = new LocalDockerServiceManager(dc, 2);
+        LocalDockerServiceManager sm2 = new LocalDockerServiceManager(dc, 2);
+        LocalDockerServiceManager sm3 = new LocalDockerServiceManager(dc, 2);
+        try {
+            sm1.enableServiceRegistry(dir);
+            assertEquals(2, sm1.getService(cfg).listContainers().size());
+
+            // Restored from the service registry
+            sm2.enableContainerIndex();
+            sm2.enableServiceRegistry(dir);
+            assertEquals(2, sm2.getService(cfg).awaitReady(2).toCompletableFuture().get(10, TimeUnit.SECONDS).size());
+
+            // Discovered from docker
+            sm3.enableContainerIndex();
+            assertEquals(2, sm3.getService(cfg).awaitReady(2).toCompletableFuture().get(10, TimeUnit.SECONDS).size());
+        } finally {
+            sm1.close();
+            sm2.close();
+            sm3.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testDriftedContainersReplaced() throws Exception {
+        ServiceConfig cfg = ServiceConfig.builder("driftsvc", "img:2").instances(3).build();
+        AtomicInteger idCounter = new AtomicInteger();
+        List<String> removed = new CopyOnWriteArrayList<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public List<String> ps(String labelFilter) {
+                return Arrays.asList("d1", "d2", "d3");
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) {
+                // d1 was started from an older configuration, d3 predates the fingerprint label
+                return Arrays.asList(discovered("d1", "0123456789abcdef0123456789abcdef"),
+                        discovered("d2", cfg.getFingerprint()),
+                        discovered("d3", null));
+            }
+
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                assertEquals(cfg.getFingerprint(), label(command, LocalDockerServiceManager.FINGERPRINT_LABEL));
+                return new DockerContainerInfo("n" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) throws Exception {
+                removed.addAll(ids);
+                return Collections.emptyMap();
+            }
+
+            private DockerContainerInfo discovered(String id, String fingerprint) {
+                Map<String, String> labels = new HashMap<>();
+                labels.put(LocalDockerServiceManager.SERVICE_NAME_LABEL, cfg.getServiceName());
+                if (fingerprint != null)
+                    labels.put(LocalDockerServiceManager.FINGERPRINT_LABEL, fingerprint);
+                return new DockerContainerInfo(id, "localhost", Collections.emptyMap(), labels);
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        try {
+            Service svc = sm.getService(cfg);
+            waitFor(() -> removed.contains("d1"));
+            Set<String> ids = new HashSet<>();
+            for (Container c : svc.listContainers()) {
+                ids.add(c.getID());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("d2", "d3", "n1")), ids);
+            assertEquals(Collections.singletonList("d1"), removed);
+        } finally {
+            sm.close();
+        }
+    }
+
+    private static String label(List<String> command, String name) {
+        for (String arg : command) {
+            if (arg.startsWith(name + "="))
+                return arg.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    private static Container container(Service svc, String id) {
+        for (Container c : svc.listContainers()) {
+            if (c.getID().equals(id))
+                return c;
+        }
+        throw new AssertionError("No container " + id);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testDriftedContainersReplacedWithContainerIndex() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        Map<String, String> fingerprints = new ConcurrentHashMap<>();
+        List<String> removed = new CopyOnWriteArrayList<>();
+        AtomicReference<Consumer<DockerEvent>> listener = new AtomicReference<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                String id = "f" + counter.incrementAndGet();
+                fingerprints.put(id, label(command, LocalDockerServiceManager.FINGERPRINT_LABEL));
+                return new DockerContainerInfo(id, "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                for (String id : ids) {
+                    fingerprints.remove(id);
+                    removed.add(id);
+                }
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) {
+                return new ArrayList<>(fingerprints.keySet());
+            }
+
+            @Override
+            public Closeable events(String label, Consumer<DockerEvent> l, Runnable onEnd) {
+                listener.set(l);
+                return () -> {};
+            }
+
+            @Override
+            public Map<String, String> psLabels(String labelFilter, String label) {
+                Map<String, String> res = new HashMap<>();
+                for (String id : fingerprints.keySet()) {
+                    res.put(id, label.equals(LocalDockerServiceManager.FINGERPRINT_LABEL)
+                            ? fingerprints.get(id) : "driftsvc");
+                }
+                return res;
+            }
+        };
+
+        ServiceConfig cfg1 = ServiceConfig.builder("driftsvc", "img:1").instances(2).build();
+        ServiceConfig cfg2 = ServiceConfig.builder("driftsvc", "img:2").instances(2).build();
+        File dir = Files.createTempDirectory("aries-containers-registry").toFile();
+        LocalDockerServiceManager sm1 = new LocalDockerServiceManager(dc, 2);
+        LocalDockerServiceManager sm2 = new LocalDockerServiceManager(dc, 2);
+        try {
+            sm1.enableServiceRegistry(dir);
+            assertEquals(2, sm1.getService(cfg1).listContainers().size());
+
+            // The fingerprints are taken from the seed of the index and from the events
+            sm2.enableContainerIndex();
+            Map<String, String> labels = new HashMap<>();
+            labels.put(LocalDockerServiceManager.SERVICE_NAME_LABEL, "driftsvc");
+            labels.put(LocalDockerServiceManager.FINGERPRINT_LABEL, cfg1.getFingerprint());
+            listener.get().accept(new DockerEvent("start", "f0", labels));
+            Map<String, String> expected = new HashMap<>();
+            expected.put("f0", cfg1.getFingerprint());
+            expected.put("f1", cfg1.getFingerprint());
+            expected.put("f2", cfg1.getFingerprint());
+            assertEquals(expected, sm2.getFingerprints(cfg1));
+            listener.get().accept(event("destroy", "f0", "driftsvc"));
+
+            // The service is restored from the registry with a changed configuration
+            sm2.enableServiceRegistry(dir);
+            Service svc = sm2.getService(cfg2);
+            waitFor(() -> removed.containsAll(Arrays.asList("f1", "f2")));
+            waitFor(() -> svc.listContainers().size() == 2 &&
+                    svc.listContainers().stream().allMatch(c -> c.getID().equals("f3") || c.getID().equals("f4")));
+            assertEquals(cfg2.getFingerprint(), fingerprints.get("f3"));
+        } finally {
+            sm1.close();
+            sm2.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSetInstanceCountInParallel() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger idCounter = new AtomicInteger();
+        AtomicInteger removeCalls = new AtomicInteger();
+        List<String> removed = Collections.synchronizedList(new ArrayList<>());
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                int r = running.incrementAndGet();
+                maxRunning.accumulateAndGet(r, Math::max);
+                Thread.sleep(20);
+                running.decrementAndGet();
+                return new DockerContainerInfo("id" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) throws Exception {
+                removeCalls.incrementAndGet();
+                removed.addAll(ids);
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        ServiceConfig cfg = ServiceConfig.builder("parsvc", "img").build();
+        ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+
+        svc.setInstanceCount(20);
+        assertEquals(20, svc.listContainers().size());
+        Set<String> ids = new HashSet<>();
+        for (Container c : svc.listContainers()) {
+            ids.add(c.getID());
+            assertEquals(svc, c.getService());
+        }
+        assertEquals(20, ids.size());
+        assertTrue("Creation should be parallel", maxRunning.get() > 1);
+        assertTrue("Concurrency should be bounded", maxRunning.get() <= 4);
+
+        svc.setInstanceCount(5);
+        assertEquals(5, svc.listContainers().size());
+        assertEquals(15, removed.size());
+        assertEquals("The containers should be removed in bulk", 1, removeCalls.get());
+        for (Container c : svc.listContainers()) {
+            assertTrue(!removed.contains(c.getID()));
+        }
+        sm.close();
+    }
+
+    @Test
+    public void testSetInstanceCountCoalesced() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger idCounter = new AtomicInteger();
+        AtomicInteger removeCalls = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                latch.await(10, TimeUnit.SECONDS);
+                return new DockerContainerInfo("id" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                removeCalls.incrementAndGet();
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        try {
+            ServiceConfig cfg = ServiceConfig.builder("coalescesvc", "img").build();
+            ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+
+            CompletableFuture<Void> f1 = svc.setInstanceCountAsync(5);
+            // Superseded while the first change is being applied
+            CompletableFuture<Void> f2 = svc.setInstanceCountAsync(10);
+            CompletableFuture<Void> f3 = svc.setInstanceCountAsync(2);
+            CompletableFuture<Void> f4 = svc.setInstanceCountAsync(8);
+            assertFalse(f2.isDone() || f3.isDone());
+
+            latch.countDown();
+            CompletableFuture.allOf(f1, f2, f3, f4).get(10, TimeUnit.SECONDS);
+            assertEquals(8, svc.listContainers().size());
+            assertEquals("Only the newest count is applied", 8, idCounter.get());
+            assertEquals(0, removeCalls.get());
+        } finally {
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testSetInstanceCountChurn() throws Exception {
+        AtomicInteger idCounter = new AtomicInteger();
+        AtomicInteger live = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                live.incrementAndGet();
+                return new DockerContainerInfo("id" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                live.addAndGet(-ids.size());
+                return Collections.emptyMap();
+            }
+        };
+
+        int threads = 16;
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ServiceConfig cfg = ServiceConfig.builder("churnsvc", "img").build();
+            ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+
+            CyclicBarrier start = new CyclicBarrier(threads);
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int seed = i;
+                results.add(executor.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    for (int j = 0; j < 50; j++) {
+                        svc.setInstanceCountAsync((seed * 7 + j * 13) % 30);
+                        svc.listContainers();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : results) {
+                f.get(30, TimeUnit.SECONDS);
+            }
+
+            svc.setInstanceCountAsync(7).get(30, TimeUnit.SECONDS);
+            assertEquals(7, svc.listContainers().size());
+            assertEquals("Neither more nor less containers than requested run", 7, live.get());
+        } finally {
+            executor.shutdownNow();
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testRollingUpdate() throws Exception {
+        AtomicInteger idCounter = new AtomicInteger();
+        AtomicInteger live = new AtomicInteger();
+        AtomicInteger maxLive = new AtomicInteger();
+        AtomicInteger minLive = new AtomicInteger(Integer.MAX_VALUE);
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                maxLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+                String prefix = command.contains("img:2") ? "new" : "old";
+                return new DockerContainerInfo(prefix + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) throws Exception {
+                minLive.accumulateAndGet(live.addAndGet(-ids.size()), Math::min);
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        ServiceConfig cfg = ServiceConfig.builder("rollsvc", "img:1").instances(10).build();
+        ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+        svc.setInstanceCount(10);
+        maxLive.set(10);
+
+        ServiceConfig cfg2 = ServiceConfig.builder("rollsvc", "img:2").instances(10).
+                rollingUpdate(2, 1).build();
+        svc.update(cfg2);
+        assertEquals(cfg2, svc.getConfiguration());
+        assertEquals(10, svc.listContainers().size());
+        for (Container c : svc.listContainers()) {
+            assertTrue(c.getID().startsWith("new"));
+        }
+        assertEquals(10, live.get());
+        assertTrue("At most maxSurge containers above the instance count", maxLive.get() <= 12);
+        assertTrue("At most maxUnavailable containers below the instance count", minLive.get() >= 9);
+
+        // Scale down while rolling back
+        ServiceConfig cfg3 = ServiceConfig.builder("rollsvc", "img:1").instances(4).build();
+        svc.updateAsync(cfg3).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(4, svc.listContainers().size());
+        for (Container c : svc.listContainers()) {
+            assertTrue(c.getID().startsWith("old"));
+        }
+        assertEquals(4, live.get());
+        sm.close();
+    }
+
+    @Test
+    public void testRollingUpdateWhileScaling() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger idCounter = new AtomicInteger();
+        AtomicInteger live = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                String prefix = command.contains("img:2") ? "new" : "old";
+                if (prefix.equals("old"))
+                    latch.await(10, TimeUnit.SECONDS);
+                live.incrementAndGet();
+                return new DockerContainerInfo(prefix + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) throws Exception {
+                live.addAndGet(-ids.size());
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        try {
+            ServiceConfig cfg = ServiceConfig.builder("rollscalesvc", "img:1").instances(6).build();
+            ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+            CompletableFuture<Void> scaled = svc.setInstanceCountAsync(6);
+
+            // The update waits for the containers that are being created with the old image
+            ServiceConfig cfg2 = ServiceConfig.builder("rollscalesvc", "img:2").instances(6).build();
+            CompletableFuture<Void> updated = svc.updateAsync(cfg2);
+            assertFalse(updated.isDone());
+
+            latch.countDown();
+            CompletableFuture.allOf(scaled, updated).get(10, TimeUnit.SECONDS);
+            assertEquals(6, svc.listContainers().size());
+            for (Container c : svc.listContainers()) {
+                assertTrue(c.getID().startsWith("new"));
+            }
+            assertEquals(6, live.get());
+        } finally {
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testUnhealthyContainerReplaced() throws Exception {
+        ServerSocket probe = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        int healthPort = probe.getLocalPort();
+        probe.close();
+
+        AtomicInteger idCounter = new AtomicInteger();
+        List<String> removed = new ArrayList<>();
+        AtomicReference<ServerSocket> healthy = new AtomicReference<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public List<String> ps(String labelFilter) throws IOException {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                int id = idCounter.incrementAndGet();
+                if (id == 2) {
+                    // The replacement container passes its health check
+                    healthy.set(new ServerSocket(healthPort, 50, InetAddress.getLoopbackAddress()));
+                }
+                return new DockerContainerInfo("ctr" + id, "127.0.0.1");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) throws Exception {
+                synchronized (removed) {
+                    removed.addAll(ids);
+                }
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        HealthCheck hc = HealthCheck.builder(HealthCheck.Type.TCP).port(healthPort).
+                interval(1).timeout(1).gracePeriod(0).maxFailures(1).build();
+        ServiceConfig cfg = ServiceConfig.builder("healthsvc", "img").healthCheck(hc).instances(1).build();
+        try {
+            Service svc = sm.getService(cfg);
+            waitFor(() -> svc.listContainers().size() == 1 && "ctr2".equals(svc.listContainers().get(0).getID()));
+            synchronized (removed) {
+                assertEquals(Collections.singletonList("ctr1"), removed);
+            }
+            HealthChecker checker = sm.getHealthChecker();
+            waitFor(() -> checker.isHealthy("ctr2"));
+            assertFalse(checker.isChecked("ctr1"));
+        } finally {
+            sm.close();
+            if (healthy.get() != null)
+                healthy.get().close();
+        }
+    }
+
+    @Test
+    public void testAwaitReadyWithoutHealthChecks() throws Exception {
+        AtomicInteger idCounter = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                return new DockerContainerInfo("ctr" + idCounter.incrementAndGet(), "localhost");
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        ServiceConfig cfg = ServiceConfig.builder("readysvc", "img").build();
+        ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+        CompletableFuture<List<Container>> ready = svc.awaitReady(3);
+        assertFalse(ready.isDone());
+
+        svc.setInstanceCount(3);
+        assertEquals(3, ready.get(10, TimeUnit.SECONDS).size());
+        assertEquals(svc.listContainers().get(0),
+                svc.listContainers().get(0).readiness().toCompletableFuture().get(10, TimeUnit.SECONDS));
+        sm.close();
+    }
+
+    @Test
+    public void testAwaitReadyCommandHealthCheck() throws Exception {
+        AtomicInteger idCounter = new AtomicInteger();
+        Set<String> healthy = Collections.synchronizedSet(new HashSet<>());
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                return new DockerContainerInfo("ctr" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+                List<DockerContainerInfo> res = new ArrayList<>();
+                for (String id : ids) {
+                    res.add(new DockerContainerInfo(id, "localhost", Collections.emptyMap(), Collections.emptyMap(),
+                            healthy.contains(id) ? "healthy" : "starting"));
+                }
+                return res;
+            }
+
+            @Override
+            public String remove(String id) throws Exception {
+                return id;
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        HealthCheck hc = HealthCheck.builder(HealthCheck.Type.COMMAND).parameters("exit 0").build();
+        ServiceConfig cfg = ServiceConfig.builder("cmdsvc", "img").healthCheck(hc).build();
+        ServiceImpl svc = new ServiceImpl(cfg, sm, Collections.emptyList());
+        svc.setInstanceCount(3);
+        CompletableFuture<List<Container>> ready = svc.awaitReady(2);
+
+        // Health status changes reported by the docker event stream
+        ContainerIndex index = new ContainerIndex();
+        sm.handleEvent(index, new DockerEvent("health_status: healthy", "ctr1", Collections.emptyMap()));
+        sm.handleEvent(index, new DockerEvent("health_status: unhealthy", "ctr2", Collections.emptyMap()));
+        assertTrue(container(svc, "ctr1").readiness().toCompletableFuture().isDone());
+        assertFalse(container(svc, "ctr2").readiness().toCompletableFuture().isDone());
+        assertFalse(ready.isDone());
+
+        // Health status obtained from docker inspect
+        healthy.add("ctr3");
+        List<Container> readyContainers = ready.get(10, TimeUnit.SECONDS);
+        assertEquals(2, readyContainers.size());
+        assertEquals(new HashSet<>(Arrays.asList("ctr1", "ctr3")),
+                new HashSet<>(Arrays.asList(readyContainers.get(0).getID(), readyContainers.get(1).getID())));
+
+        // A container that is removed before it is ready
+        CompletableFuture<Container> removed = container(svc, "ctr2").readiness().toCompletableFuture();
+        container(svc, "ctr2").destroy();
+        try {
+            removed.get(10, TimeUnit.SECONDS);
+            fail("Should have completed exceptionally");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        sm.close();
+    }
+
+    @Test
+    public void testCreateContainersPartialFailure() throws Exception {
+        AtomicInteger counter = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                int i = counter.incrementAndGet();
+                if (i % 3 == 0)
+                    throw new Exception("Failed to start " + i);
+                return new DockerContainerInfo("id" + i, "localhost");
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 2);
+        ServiceConfig cfg = ServiceConfig.builder("failsvc", "img").build();
+        List<ContainerImpl> created = Collections.synchronizedList(new ArrayList<>());
+        try {
+            sm.createContainers(cfg, 9, created::add);
+            fail("Should have thrown a ContainerOperationException");
+        } catch (ContainerOperationException e) {
+            assertEquals(6, e.getSucceeded().size());
+            assertEquals(3, e.getFailures().size());
+            assertEquals(new HashSet<>(created), new HashSet<>(e.getSucceeded()));
+            assertTrue(e.getMessage().contains("6 of 9"));
+        }
+        sm.close();
+    }
+
+    @Test
+    public void testDestroyContainersPartialFailure() throws Exception {
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                assertEquals(Arrays.asList("a1", "b2", "c3"), ids);
+                return Collections.singletonMap("b2", "Error response from daemon: removal in progress");
+            }
+        };
+
+        PortAllocator pa = new PortAllocator(40000, 40099);
+        pa.reserve(Arrays.asList(40001, 40002, 40003));
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 2, pa);
+        ContainerImpl a1 = new ContainerImpl("a1", "localhost", Collections.singletonMap(80, 40001));
+        ContainerImpl b2 = new ContainerImpl("b2", "localhost", Collections.singletonMap(80, 40002));
+        ContainerImpl c3 = new ContainerImpl("c3", "localhost", Collections.singletonMap(80, 40003));
+        try {
+            LocalDockerServiceManager.join(sm.destroyContainersAsync(Arrays.asList(a1, b2, c3)));
+            fail("Should have thrown a ContainerOperationException");
+        } catch (ContainerOperationException e) {
+            assertEquals(Arrays.asList(a1, c3), e.getSucceeded());
+            assertEquals(Collections.singleton("b2"), e.getFailures().keySet());
+            assertTrue(e.getFailures().get("b2").getMessage().contains("removal in progress"));
+        }
+        assertEquals("Only the ports of the removed containers are released", 1, pa.getLeasedCount());
+        assertTrue(pa.isLeased(40002));
+        sm.close();
+    }
+
+    @Test
+    public void testGetServiceAsync() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger idCounter = new AtomicInteger();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public List<String> ps(String labelFilter) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                latch.await(10, TimeUnit.SECONDS);
+                return new DockerContainerInfo("id" + idCounter.incrementAndGet(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 4);
+        ServiceConfig cfg1 = ServiceConfig.builder("async1", "img").instances(3).build();
+        ServiceConfig cfg2 = ServiceConfig.builder("async2", "img").instances(2).build();
+
+        CompletableFuture<Service> f1 = sm.getServiceAsync(cfg1);
+        CompletableFuture<Service> f2 = sm.getServiceAsync(cfg2);
+        assertFalse("The caller should not be blocked", f1.isDone() || f2.isDone());
+
+        latch.countDown();
+        Service svc1 = f1.get(10, TimeUnit.SECONDS);
+        Service svc2 = f2.get(10, TimeUnit.SECONDS);
+        assertEquals(3, svc1.listContainers().size());
+        assertEquals(2, svc2.listContainers().size());
+        assertEquals(svc1, sm.getService(cfg1));
+
+        svc1.setInstanceCountAsync(5).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(5, svc1.listContainers().size());
+        svc2.destroyAsync().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(0, svc2.listContainers().size());
+        sm.close();
+    }
+
+    @Test
+    public void testGetServiceSingleFlight() throws Exception {
+        Map<String, AtomicInteger> psCalls = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> runCalls = new ConcurrentHashMap<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public List<String> ps(String labelFilter) throws IOException {
+                psCalls.computeIfAbsent(labelFilter, k -> new AtomicInteger()).incrementAndGet();
+                try {
+                    // Keep the discovery in flight while the other callers arrive
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return Collections.emptyList();
+            }
+
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                String name = label(command, LocalDockerServiceManager.SERVICE_NAME_LABEL);
+                int n = runCalls.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+                return new DockerContainerInfo(name + "-" + n, "localhost");
+            }
+        };
+
+        int threads = 200;
+        int serviceCount = 4;
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 8);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CyclicBarrier start = new CyclicBarrier(threads);
+            List<Future<Service>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                ServiceConfig cfg = ServiceConfig.builder("flight" + (i % serviceCount), "img").
+                        instances(3).build();
+                results.add(executor.submit(() -> {
+                    start.await(10, TimeUnit.SECONDS);
+                    return sm.getService(cfg);
+                }));
+            }
+
+            Map<String, Set<Service>> obtained = new HashMap<>();
+            for (Future<Service> f : results) {
+                Service svc = f.get(30, TimeUnit.SECONDS);
+                obtained.computeIfAbsent(svc.getConfiguration().getServiceName(), k -> new HashSet<>()).add(svc);
+            }
+
+            assertEquals(serviceCount, obtained.size());
+            for (Map.Entry<String, Set<Service>> entry : obtained.entrySet()) {
+                String name = entry.getKey();
+                assertEquals("All callers share one service " + name, 1, entry.getValue().size());
+                assertEquals(3, entry.getValue().iterator().next().listContainers().size());
+                assertEquals("Discovered once " + name, 1,
+                        psCalls.get(LocalDockerServiceManager.SERVICE_NAME_LABEL + "=" + name).get());
+                assertEquals("Created once " + name, 3, runCalls.get(name).get());
+            }
+        } finally {
+            executor.shutdownNow();
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testGetServiceFailureNotShared() throws Exception {
+        AtomicInteger psCalls = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(1);
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public List<String> ps(String labelFilter) throws IOException {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (psCalls.incrementAndGet() == 1)
+                    throw new IOException("Docker is not running");
+                return Collections.emptyList();
+            }
+
+            @Override
+            public DockerContainerInfo run(List<String> command) throws Exception {
+                return new DockerContainerInfo("ok" + psCalls.get(), "localhost");
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        try {
+            ServiceConfig cfg = ServiceConfig.builder("flaky", "img").build();
+            CompletableFuture<Service> f1 = sm.getServiceAsync(cfg);
+            CompletableFuture<Service> f2 = sm.getServiceAsync(cfg);
+            latch.countDown();
+            for (CompletableFuture<Service> f : Arrays.asList(f1, f2)) {
+                try {
+                    f.get(10, TimeUnit.SECONDS);
+                    fail("Should have failed");
+                } catch (ExecutionException e) {
+                    assertEquals("Docker is not running", LocalDockerServiceManager.unwrap(e).getMessage());
+                }
+            }
+            assertEquals(1, psCalls.get());
+
+            // The failure is not remembered
+            Service svc = sm.getService(cfg);
+            assertEquals(1, svc.listContainers().size());
+            assertEquals(2, psCalls.get());
+        } finally {
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public List<String> ps(String labelFilter) {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public Map<String, String> psLabels(String label) throws IOException {
+                throw new IOException("docker not available");
+            }
+
+            @Override
+            public DockerContainerInfo run(List<String> command) {
+                return new DockerContainerInfo("id" + command.size(), "localhost");
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc, 2);
+        Service svc = sm.getService(ServiceConfig.builder("metrics1", "img").instances(2).build());
+        svc.setInstanceCount(1);
+        svc.listContainers();
+        try {
+            sm.listServices();
+            fail("Should have thrown an exception");
+        } catch (IOException e) {
+            // good
+        }
+
+        Map<String, OperationStats> stats = new HashMap<>(sm.getMetrics().getSnapshot());
+        // Container host probes are recorded too, when they run while the service manager is open
+        stats.keySet().removeIf(k -> k.startsWith("hostProbe."));
+        assertEquals(new HashSet<>(Arrays.asList("getService", "setInstanceCount", "listContainers", "listServices",
+                "docker.ps", "docker.psLabels", "docker.run", "docker.rm")), stats.keySet());
+        assertEquals(1, stats.get("getService").getCount());
+        assertEquals(2, stats.get("docker.run").getCount());
+        assertEquals(0, stats.get("docker.run").getErrorCount());
+        assertEquals(1, stats.get("docker.rm").getCount());
+        assertEquals(1, stats.get("listServices").getErrorCount());
+        assertEquals(1, stats.get("docker.psLabels").getErrorCount());
+
+        LocalDockerServiceManager.refreshContainerHost();
+        LocalDockerServiceManager.getContainerHost();
+        assertNotNull(sm.getMetrics().getStats("hostProbe.env"));
+        sm.close();
+    }
+
+    @Test
+    public void testContainerIndex() throws Exception {
+        AtomicReference<Consumer<DockerEvent>> listener = new AtomicReference<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public Closeable events(String label, Consumer<DockerEvent> l, Runnable onEnd) {
+                assertEquals(LocalDockerServiceManager.SERVICE_NAME_LABEL, label);
+                listener.set(l);
+                return () -> {};
+            }
+
+            @Override
+            public Map<String, String> psLabels(String label) {
+                // The first container already exited before the seed arrived
+                listener.get().accept(event("die", "c0", "svc1"));
+
+                Map<String, String> m = new HashMap<>();
+                m.put("c0", "svc1");
+                m.put("c1", "svc1");
+                m.put("c2", "svc1");
+                m.put("c3", "svc2");
+                return m;
+            }
+
+            @Override
+            public Map<String, String> psLabels(String labelFilter, String label) {
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) {
+                throw new AssertionError("Should not query docker when the index is enabled");
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+                return parseInspect(INSPECT_JSON2);
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        sm.enableContainerIndex();
+
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "myimg").build();
+        Service svc = sm.getService(cfg);
+        assertEquals(2, svc.getActualInstanceCount());
+        assertEquals(2, svc.listContainers().size());
+
+        listener.get().accept(event("die", "c1", "svc1"));
+        assertEquals(1, svc.getActualInstanceCount());
+        assertEquals(1, svc.listContainers().size());
+        assertEquals("c2", svc.listContainers().get(0).getID());
+
+        listener.get().accept(event("start", "c4", "svc1"));
+        assertEquals(2, svc.getActualInstanceCount());
+        sm.close();
+    }
+
+    @Test
+    public void testContainerIndexEnabledInBackground() throws Exception {
+        CountDownLatch seeding = new CountDownLatch(1);
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public Closeable events(String label, Consumer<DockerEvent> l, Runnable onEnd) {
+                return () -> {};
+            }
+
+            @Override
+            public Map<String, String> psLabels(String label) throws IOException {
+                try {
+                    seeding.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return Collections.singletonMap("c1", "svc1");
+            }
+
+            @Override
+            public Map<String, String> psLabels(String labelFilter, String label) {
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public List<String> ps(String labelFilter) {
+                return Arrays.asList("c1", "c2");
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        CompletableFuture<Void> enabled = sm.enableContainerIndexAsync();
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "myimg").build();
+        assertFalse(enabled.isDone());
+        assertEquals("Should query docker until the index is seeded", 2, sm.getActualInstanceCount(cfg));
+
+        seeding.countDown();
+        enabled.get(10, TimeUnit.SECONDS);
+        assertEquals(1, sm.getActualInstanceCount(cfg));
+        sm.close();
+    }
+
+    @Test
+    public void testContainerExitListener() throws Exception {
+        AtomicReference<Consumer<DockerEvent>> listener = new AtomicReference<>();
+        LocalDockerController dc = new LocalDockerController() {
+            @Override
+            public Closeable events(String label, Consumer<DockerEvent> l, Runnable onEnd) {
+                listener.set(l);
+                return () -> {};
+            }
+
+            @Override
+            public Map<String, String> psLabels(String label) {
+                Map<String, String> m = new HashMap<>();
+                m.put("c1", "svc1");
+                m.put("c2", "svc1");
+                return m;
+            }
+
+            @Override
+            public Map<String, String> psLabels(String labelFilter, String label) {
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public List<DockerContainerInfo> inspectContainers(List<String> ids) throws IOException {
+                return parseInspect(INSPECT_JSON2);
+            }
+
+            @Override
+            public Map<String, String> remove(List<String> ids) {
+                return Collections.emptyMap();
+            }
+        };
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        sm.enableContainerIndex();
+        List<String> exits = new CopyOnWriteArrayList<>();
+        sm.addContainerExitListener(exits::add);
+
+        Service svc = sm.getService(ServiceConfig.builder("svc1", "myimg").build());
+        assertEquals(2, svc.listContainers().size());
+
+        listener.get().accept(event("die", "c1", "svc1"));
+        listener.get().accept(event("destroy", "c1", "svc1"));
+        listener.get().accept(event("die", "c1", "svc1"));
+        assertEquals("Notified once per container", Collections.singletonList("svc1"), exits);
+
+        // Not a container of the service, for example a warm pool container
+        listener.get().accept(event("die", "w1", "svc1"));
+        // A service that was not obtained
+        listener.get().accept(event("die", "c9", "svc9"));
+        // Removed by the service itself
+        svc.setInstanceCount(0);
+        listener.get().accept(event("die", "c2", "svc1"));
+        assertEquals(1, exits.size());
+        sm.close();
+    }
+
+    @Test
+    public void testContainerIndexStreamEnded() throws Exception {
+        AtomicReference<Runnable> onEndRef = new AtomicReference<>();
+        LocalDockerController dc = Mockito.mock(LocalDockerController.class);
+        Mockito.when(dc.events(Mockito.anyString(), Mockito.any(), Mockito.any())).thenAnswer(
+                inv -> {
+                    onEndRef.set((Runnable) inv.getArguments()[2]);
+                    return (Closeable) () -> {};
+                });
+        Mockito.when(dc.psLabels(LocalDockerServiceManager.SERVICE_NAME_LABEL)).
+            thenReturn(Collections.singletonMap("c1", "svc1"));
+        Mockito.when(dc.ps(LocalDockerServiceManager.SERVICE_NAME_LABEL + "=svc1")).
+            thenReturn(Arrays.asList("c1", "c2", "c3"));
+
+        LocalDockerServiceManager sm = new LocalDockerServiceManager(dc);
+        sm.enableContainerIndex();
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "myimg").build();
+        assertEquals(Collections.singletonList("c1"), sm.getDockerIDs(cfg));
+
+        // Once the event stream is gone docker is queried directly again
+        onEndRef.get().run();
+        assertEquals(Arrays.asList("c1", "c2", "c3"), sm.getDockerIDs(cfg));
+    }
+
+    private static List<DockerContainerInfo> parseInspect(String json) throws IOException {
+        return InspectParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)),
+                LocalDockerServiceManager.getContainerHost());
+    }
+
+    private static DockerEvent event(String action, String id, String serviceName) {
+        return new DockerEvent(action, id,
+                Collections.singletonMap(LocalDockerServiceManager.SERVICE_NAME_LABEL, serviceName));
+    }
 }
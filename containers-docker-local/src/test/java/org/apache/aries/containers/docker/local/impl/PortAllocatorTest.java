@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PortAllocatorTest {
+    @Test
+    public void testAllocateAndRelease() throws Exception {
+        PortAllocator pa = new PortAllocator(40000, 40002);
+        assertEquals(40000, pa.allocate());
+        assertEquals(40001, pa.allocate());
+        assertEquals(40002, pa.allocate());
+        assertEquals(3, pa.getLeasedCount());
+
+        try {
+            pa.allocate();
+            fail("All ports are leased");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("40000-40002"));
+        }
+
+        pa.release(Collections.singletonList(40001));
+        assertFalse(pa.isLeased(40001));
+        assertEquals(40001, pa.allocate());
+    }
+
+    @Test
+    public void testReleasedPortNotReusedImmediately() throws Exception {
+        PortAllocator pa = new PortAllocator(40000, 40009);
+        int p1 = pa.allocate();
+        pa.release(Collections.singletonList(p1));
+        assertEquals(p1 + 1, pa.allocate());
+    }
+
+    @Test
+    public void testReserve() throws Exception {
+        PortAllocator pa = new PortAllocator(40000, 40003);
+        pa.reserve(Arrays.asList(40000, 40002, 12345));
+        assertTrue(pa.isLeased(40000));
+        assertFalse(pa.isLeased(12345));
+        assertEquals(40001, pa.allocate());
+        assertEquals(40003, pa.allocate());
+    }
+
+    @Test
+    public void testForRange() {
+        PortAllocator pa = PortAllocator.forRange(" 30000 - 32767 ");
+        assertEquals("PortAllocator [30000-32767]", pa.toString());
+
+        for (String invalid : Arrays.asList("30000", "a-b", "2000-1000", "0-10", "60000-70000")) {
+            try {
+                PortAllocator.forRange(invalid);
+                fail("Should not accept " + invalid);
+            } catch (IllegalArgumentException e) {
+                // good
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAllocation() throws Exception {
+        PortAllocator pa = new PortAllocator(40000, 49999);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<List<Integer>>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(() -> {
+                    List<Integer> ports = new ArrayList<>();
+                    for (int j = 0; j < 1000; j++) {
+                        ports.add(pa.allocate());
+                    }
+                    return ports;
+                });
+            }
+
+            Set<Integer> all = new HashSet<>();
+            for (Future<List<Integer>> f : executor.invokeAll(tasks)) {
+                all.addAll(f.get());
+            }
+            assertEquals("No port should be handed out twice", 8000, all.size());
+            assertEquals(8000, pa.getLeasedCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
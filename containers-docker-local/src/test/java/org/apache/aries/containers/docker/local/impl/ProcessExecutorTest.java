@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProcessExecutorTest {
+    @BeforeClass
+    public static void setupClass() {
+        Assume.assumeTrue("Requires a POSIX shell", new File("/bin/sh").exists());
+    }
+
+    @Test
+    public void testOutputLargerThanPipeBuffer() throws Exception {
+        try (ProcessExecutor pe = new ProcessExecutor(2, 10000)) {
+            String res = pe.execute("/bin/sh", "-c", "head -c 1000000 /dev/zero | tr '\\0' a").
+                    get(10, TimeUnit.SECONDS);
+            assertEquals(1000000, res.length());
+            assertEquals('a', res.charAt(999999));
+
+            assertEquals("hello", pe.execute("/bin/sh", "-c", "echo hello").get(10, TimeUnit.SECONDS).trim());
+        }
+    }
+
+    @Test
+    public void testParseAndDiscardRemainder() throws Exception {
+        try (ProcessExecutor pe = new ProcessExecutor(1, 10000)) {
+            CompletableFuture<Integer> f = pe.execute(in -> in.read(),
+                    "/bin/sh", "-c", "head -c 1000000 /dev/zero | tr '\\0' b");
+            assertEquals(Integer.valueOf('b'), f.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        try (ProcessExecutor pe = new ProcessExecutor(1, 10000)) {
+            long start = System.nanoTime();
+            CompletableFuture<String> f = pe.execute(pe::readFully, 200, TimeUnit.MILLISECONDS,
+                    "/bin/sh", "-c", "sleep 30");
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail("Should have timed out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+
+            // The permit is returned once the process is gone
+            assertEquals("ok", pe.execute("/bin/sh", "-c", "echo ok").get(10, TimeUnit.SECONDS).trim());
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        try (ProcessExecutor pe = new ProcessExecutor(1, 60000)) {
+            CompletableFuture<String> f = pe.execute("/bin/sh", "-c", "sleep 30");
+            CompletableFuture<String> queued = pe.execute("/bin/sh", "-c", "echo queued");
+            assertTrue(f.cancel(true));
+            assertEquals("queued", queued.get(10, TimeUnit.SECONDS).trim());
+        }
+    }
+
+    @Test
+    public void testBoundedConcurrency() throws Exception {
+        try (ProcessExecutor pe = new ProcessExecutor(2, 10000)) {
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                futures.add(pe.execute("/bin/sh", "-c", "sleep 0.2; echo " + i));
+            }
+
+            int maxRunning = 0;
+            while (!futures.stream().allMatch(CompletableFuture::isDone)) {
+                maxRunning = Math.max(maxRunning, pe.getRunningCount());
+                Thread.sleep(5);
+            }
+            assertTrue("At most two processes should run at the same time", maxRunning <= 2);
+            for (int i = 0; i < 6; i++) {
+                assertEquals("" + i, futures.get(i).get().trim());
+            }
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        ProcessExecutor pe = new ProcessExecutor(1, 10000);
+        CompletableFuture<String> running = pe.execute("/bin/sh", "-c", "sleep 0.2; echo done");
+        CompletableFuture<String> queued = pe.execute("/bin/sh", "-c", "echo queued");
+        pe.close();
+
+        assertEquals("done", running.get(10, TimeUnit.SECONDS).trim());
+        try {
+            queued.get(10, TimeUnit.SECONDS);
+            fail("Commands that did not start should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("closed"));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.docker.local.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceRegistryTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("aries-containers-registry");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        Map<Integer, Integer> ports = new HashMap<>();
+        ports.put(8080, 30001);
+        ports.put(9090, 30002);
+
+        ServiceRegistry reg = ServiceRegistry.open(dir);
+        reg.containerAdded("svc1", "a1", ports);
+        reg.containerAdded("svc1", "a2", Collections.singletonMap(8080, 30003));
+        reg.containerAdded("svc2", "b1", Collections.emptyMap());
+        reg.containerRemoved("a2");
+        reg.scaleStarted("svc2", 3);
+        reg.scaleStarted("svc1", 5);
+        reg.scaleCompleted("svc1");
+        // Not closed, so nothing but the journal is written
+
+        ServiceRegistry reg2 = ServiceRegistry.open(dir);
+        try {
+            assertEquals(Collections.singletonMap("a1", ports), reg2.getContainers("svc1"));
+            assertEquals(Collections.singleton("b1"), reg2.getContainers("svc2").keySet());
+            assertEquals(3, (int) reg2.getPendingScale("svc2"));
+            assertNull(reg2.getPendingScale("svc1"));
+            assertTrue(reg2.getContainers("svc3").isEmpty());
+        } finally {
+            reg2.close();
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        ServiceRegistry reg = ServiceRegistry.open(dir);
+        reg.containerAdded("svc1", "a1", Collections.singletonMap(80, 30001));
+        reg.scaleStarted("svc1", 2);
+        reg.close();
+        assertEquals("The journal is folded into the snapshot on close",
+                0, Files.size(dir.resolve(ServiceRegistry.JOURNAL_FILE)));
+
+        ServiceRegistry reg2 = ServiceRegistry.open(dir);
+        reg2.containerAdded("svc1", "a2", Collections.singletonMap(80, 30002));
+        reg2.containerRemoved("a1");
+        reg2.close();
+
+        ServiceRegistry reg3 = ServiceRegistry.open(dir);
+        try {
+            assertEquals(Collections.singletonMap("a2", Collections.singletonMap(80, 30002)),
+                    reg3.getContainers("svc1"));
+            assertEquals(2, (int) reg3.getPendingScale("svc1"));
+        } finally {
+            reg3.close();
+        }
+    }
+
+    @Test
+    public void testTornJournalRecord() throws IOException {
+        ServiceRegistry reg = ServiceRegistry.open(dir);
+        reg.containerAdded("svc1", "a1", Collections.singletonMap(80, 30001));
+        reg.containerAdded("svc1", "a2", Collections.singletonMap(80, 30002));
+
+        // Cut the last record short, as a crash halfway through a write would
+        Path journal = dir.resolve(ServiceRegistry.JOURNAL_FILE);
+        try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        ServiceRegistry reg2 = ServiceRegistry.open(dir);
+        try {
+            assertEquals(Collections.singleton("a1"), reg2.getContainers("svc1").keySet());
+
+            // Appending continues after the last complete record
+            reg2.containerAdded("svc1", "a3", Collections.singletonMap(80, 30003));
+        } finally {
+            reg2.close();
+        }
+
+        ServiceRegistry reg3 = ServiceRegistry.open(dir);
+        try {
+            assertEquals(2, reg3.getContainers("svc1").size());
+        } finally {
+            reg3.close();
+        }
+    }
+
+    @Test
+    public void testCorruptSnapshotIgnored() throws IOException {
+        Files.write(dir.resolve(ServiceRegistry.SNAPSHOT_FILE), new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+        ServiceRegistry reg = ServiceRegistry.open(dir);
+        try {
+            assertTrue(reg.getServiceNames().isEmpty());
+        } finally {
+            reg.close();
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -37,6 +38,7 @@ import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
 
 @Component(service = Servlet.class,
     property = {HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN + "=/manager",
+            HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_ASYNC_SUPPORTED + "=true",
             HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_SELECT + "=(" +
                     HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_NAME + "=" + MyServletContext.NAME + ")"
     })
@@ -91,18 +93,26 @@ public class ServiceManagerServlet extends HttpServlet {
             builder.port(p);
         }
 
-        try {
-            serviceManager.getService(builder.build());
-        } catch (Exception e) {
-            throw new ServletException(e);
-        }
-
-        PrintWriter pw = resp.getWriter();
-        pw.println("<HTML>");
-        pw.println(getHeader());
-        pw.println("<BODY><H1>Service Created!</H1>");
-        pw.println("<A HREF='manager'>List Services</A>");
-        pw.println("</BODY>");
+        // Don't tie up the HTTP worker thread while the service is being created
+        AsyncContext async = req.startAsync();
+        serviceManager.getServiceAsync(builder.build()).whenComplete((svc, ex) -> {
+            try {
+                PrintWriter pw = async.getResponse().getWriter();
+                pw.println("<HTML>");
+                pw.println(getHeader());
+                if (ex == null) {
+                    pw.println("<BODY><H1>Service Created!</H1>");
+                } else {
+                    pw.println("<BODY><H1>Service Creation Failed: " + ex.getMessage() + "</H1>");
+                }
+                pw.println("<A HREF='manager'>List Services</A>");
+                pw.println("</BODY>");
+            } catch (IOException e) {
+                log("Problem writing response", e);
+            } finally {
+                async.complete();
+            }
+        });
     }
 
     private String getHeader() {
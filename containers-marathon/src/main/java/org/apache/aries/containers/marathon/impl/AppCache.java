@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import mesosphere.marathon.client.Marathon;
+import mesosphere.marathon.client.model.v2.App;
+
+/**
+ * Cache of the Marathon apps, invalidated by events from the Marathon event bus.
+ * The cache is only used while the event stream is connected, otherwise every
+ * lookup goes to Marathon.
+ */
+class AppCache implements MarathonEventStream.Listener {
+    /**
+     * The Marathon events that signal that the state of an app or its tasks changed.
+     */
+    static final List<String> EVENT_TYPES = Arrays.asList(
+            "status_update_event", "instance_changed_event", "health_status_changed_event",
+            "failed_health_check_event", "unhealthy_task_kill_event", "app_terminated_event",
+            "api_post_event", "deployment_info", "deployment_success", "deployment_failed",
+            "deployment_step_success", "deployment_step_failure");
+
+    private static final Logger LOG = LoggerFactory.getLogger(AppCache.class);
+
+    private final Marathon marathonClient;
+    private final ConcurrentMap<String, App> apps = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean enabled;
+
+    AppCache(Marathon marathon) {
+        marathonClient = marathon;
+    }
+
+    App getApp(String appID) {
+        if (!enabled)
+            return marathonClient.getApp(appID).getApp();
+
+        String key = normalize(appID);
+        App app = apps.get(key);
+        if (app != null)
+            return app;
+
+        // Only cache the result if nothing was invalidated in the mean time, as
+        // the app might have been fetched before the change was applied
+        long gen = generation.get();
+        app = marathonClient.getApp(appID).getApp();
+        if (enabled && generation.get() == gen)
+            apps.putIfAbsent(key, app);
+        return app;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    boolean isCached(String appID) {
+        return apps.containsKey(normalize(appID));
+    }
+
+    void invalidate(String appID) {
+        generation.incrementAndGet();
+        if (appID != null)
+            apps.remove(normalize(appID));
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        apps.clear();
+    }
+
+    @Override
+    public void connected() {
+        invalidateAll();
+        enabled = true;
+    }
+
+    @Override
+    public void disconnected() {
+        enabled = false;
+        invalidateAll();
+    }
+
+    @Override
+    public void event(String eventType, String data) {
+        if (!EVENT_TYPES.contains(eventType))
+            return;
+
+        JsonObject event;
+        try {
+            event = new JsonParser().parse(data).getAsJsonObject();
+        } catch (RuntimeException e) {
+            LOG.debug("Ignoring unparseable Marathon event {}: {}", eventType, data, e);
+            invalidateAll();
+            return;
+        }
+
+        String appID = getString(event, "appId");
+        if (appID == null && event.has("appDefinition"))
+            appID = getString(event.getAsJsonObject("appDefinition"), "id");
+
+        if (appID != null) {
+            invalidate(appID);
+        } else if (event.has("plan")) {
+            invalidateDeployment(event.getAsJsonObject("plan"));
+        } else {
+            invalidateAll();
+        }
+    }
+
+    private void invalidateDeployment(JsonObject plan) {
+        boolean found = false;
+        if (plan.has("steps")) {
+            for (JsonElement step : plan.getAsJsonArray("steps")) {
+                JsonElement actions = step.getAsJsonObject().get("actions");
+                if (actions == null || !actions.isJsonArray())
+                    continue;
+
+                for (JsonElement action : actions.getAsJsonArray()) {
+                    String appID = getString(action.getAsJsonObject(), "app");
+                    if (appID != null) {
+                        invalidate(appID);
+                        found = true;
+                    }
+                }
+            }
+        }
+        if (!found)
+            invalidateAll();
+    }
+
+    private static String getString(JsonObject obj, String member) {
+        JsonElement el = obj.get(member);
+        return el != null && el.isJsonPrimitive() ? el.getAsString() : null;
+    }
+
+    private static String normalize(String appID) {
+        return appID.startsWith("/") ? appID : "/" + appID;
+    }
+}
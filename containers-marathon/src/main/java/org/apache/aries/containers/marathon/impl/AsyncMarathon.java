@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import mesosphere.marathon.client.Marathon;
+import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.GetAppsResponse;
+
+/**
+ * The Marathon REST calls made by the asynchronous operations of the service
+ * manager. The futures complete when Marathon has answered, exceptionally with a
+ * {@link mesosphere.marathon.client.utils.MarathonException} if it returned an
+ * error status. Dependent stages may run on a thread of the HTTP client, so they
+ * should not block.
+ */
+interface AsyncMarathon {
+    CompletableFuture<GetAppsResponse> getAppsAsync(Map<String, String> query);
+
+    CompletableFuture<App> createAppAsync(App app);
+
+    CompletableFuture<Void> updateAppAsync(String appID, App app, boolean force);
+
+    CompletableFuture<Void> deleteAppAsync(String appID);
+
+    /**
+     * Run the calls of a blocking Marathon client on an executor, for transports
+     * that cannot enqueue requests.
+     */
+    static AsyncMarathon onExecutor(Marathon marathon, Executor executor) {
+        return new AsyncMarathon() {
+            @Override
+            public CompletableFuture<GetAppsResponse> getAppsAsync(Map<String, String> query) {
+                return CompletableFuture.supplyAsync(() -> marathon.getApps(query), executor);
+            }
+
+            @Override
+            public CompletableFuture<App> createAppAsync(App app) {
+                return CompletableFuture.supplyAsync(() -> marathon.createApp(app), executor);
+            }
+
+            @Override
+            public CompletableFuture<Void> updateAppAsync(String appID, App app, boolean force) {
+                return CompletableFuture.runAsync(() -> marathon.updateApp(appID, app, force), executor);
+            }
+
+            @Override
+            public CompletableFuture<Void> deleteAppAsync(String appID) {
+                return CompletableFuture.runAsync(() -> marathon.deleteApp(appID), executor);
+            }
+        };
+    }
+}
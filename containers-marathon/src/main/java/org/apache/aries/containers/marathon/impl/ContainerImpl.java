@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.apache.aries.containers.Container;
 import org.apache.aries.containers.Service;
@@ -37,10 +39,20 @@ public class ContainerImpl implements Container {
     private final Marathon marathonClient;
     private final Map<Integer, Integer> ports;
     private final Service service;
+    private final boolean ready;
 
     public ContainerImpl(Marathon marathon, String appID, String taskID, String host,
             Collection<Integer> ports, Service service) {
+        this(marathon, appID, taskID, host, ports, service, false);
+    }
+
+    /**
+     * @param ready {@code true} if the task passed its health checks when it was obtained.
+     */
+    ContainerImpl(Marathon marathon, String appID, String taskID, String host,
+            Collection<Integer> ports, Service service, boolean ready) {
         this.marathonClient = marathon;
+        this.ready = ready;
         this.appID = appID;
         this.taskID = taskID;
         this.host = host;
@@ -60,6 +72,8 @@ public class ContainerImpl implements Container {
     @Override
     public void destroy() {
         marathonClient.deleteAppTask(appID, taskID, "true");
+        if (service instanceof ServiceImpl)
+            ((ServiceImpl) service).invalidate();
     }
 
     @Override
@@ -77,6 +91,20 @@ public class ContainerImpl implements Container {
         return ports;
     }
 
+    @Override
+    public CompletionStage<Container> readiness() {
+        if (ready)
+            return CompletableFuture.completedFuture(this);
+
+        if (!(service instanceof ServiceImpl)) {
+            CompletableFuture<Container> res = new CompletableFuture<>();
+            res.completeExceptionally(new IllegalStateException("The readiness of task " + taskID +
+                    " cannot be tracked"));
+            return res;
+        }
+        return ((ServiceImpl) service).awaitTaskReady(taskID);
+    }
+
     @Override
     public Service getService() {
         return service;
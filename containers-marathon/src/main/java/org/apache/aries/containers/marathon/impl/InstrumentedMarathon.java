@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.aries.containers.metrics.MetricsRecorder;
+
+import mesosphere.marathon.client.Marathon;
+
+/**
+ * Records the latency of every Marathon REST call made through the client
+ * as the operation {@code marathon.<method name>}. Calls of an asynchronous
+ * client are recorded under the same name, without the {@code Async} suffix,
+ * when their future completes.
+ */
+class InstrumentedMarathon implements InvocationHandler {
+    private final Object delegate;
+    private final MetricsRecorder metrics;
+
+    private InstrumentedMarathon(Object delegate, MetricsRecorder metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    static Marathon wrap(Marathon marathon, MetricsRecorder metrics) {
+        return (Marathon) Proxy.newProxyInstance(Marathon.class.getClassLoader(),
+                new Class<?>[] {Marathon.class}, new InstrumentedMarathon(marathon, metrics));
+    }
+
+    static AsyncMarathon wrap(AsyncMarathon marathon, MetricsRecorder metrics) {
+        return (AsyncMarathon) Proxy.newProxyInstance(AsyncMarathon.class.getClassLoader(),
+                new Class<?>[] {AsyncMarathon.class}, new InstrumentedMarathon(marathon, metrics));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class)
+            return method.invoke(delegate, args);
+
+        String name = method.getName();
+        if (name.endsWith("Async"))
+            name = name.substring(0, name.length() - "Async".length());
+        String operation = "marathon." + name;
+
+        long start = System.nanoTime();
+        Object res;
+        try {
+            res = method.invoke(delegate, args);
+        } catch (InvocationTargetException e) {
+            metrics.record(operation, start, true);
+            throw e.getCause();
+        }
+
+        if (res instanceof CompletableFuture)
+            ((CompletableFuture<?>) res).whenComplete((r, t) -> metrics.record(operation, start, t != null));
+        else
+            metrics.record(operation, start, false);
+        return res;
+    }
+}
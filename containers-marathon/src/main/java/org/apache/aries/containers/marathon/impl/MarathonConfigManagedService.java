@@ -18,10 +18,13 @@
  */
 package org.apache.aries.containers.marathon.impl;
 
+import java.net.MalformedURLException;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Objects;
 
 import org.apache.aries.containers.ServiceManager;
+import org.apache.aries.containers.metrics.ContainerMetrics;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationException;
@@ -34,7 +37,10 @@ public class MarathonConfigManagedService implements ManagedService {
 
     private final BundleContext bundleContext;
     volatile String marathonURL;
+    volatile String marathonTransport;
     volatile ServiceRegistration<ServiceManager> reg;
+    volatile ServiceRegistration<ContainerMetrics> metricsReg;
+    volatile MarathonServiceManager serviceManager;
 
     MarathonConfigManagedService(BundleContext bc) {
         bundleContext = bc;
@@ -50,7 +56,9 @@ public class MarathonConfigManagedService implements ManagedService {
 
         String marURL = (String) newURL;
         marURL = marURL.trim();
-        if (marURL.equals(marathonURL)) {
+        Object transport = properties.get("marathon.transport");
+        String marTransport = transport == null ? null : String.valueOf(transport).trim();
+        if (marURL.equals(marathonURL) && Objects.equals(marTransport, marathonTransport)) {
             // Configuration didn't change
             return;
         }
@@ -58,12 +66,35 @@ public class MarathonConfigManagedService implements ManagedService {
         // The configuration has changed, unregister previous service
         if (reg != null)
             reg.unregister();
+        if (metricsReg != null)
+            metricsReg.unregister();
+        if (serviceManager != null)
+            serviceManager.close();
 
+        reg = null;
+        metricsReg = null;
+        serviceManager = null;
+        marathonURL = null;
+
+        try {
+            serviceManager = marTransport == null ? new MarathonServiceManager(marURL) :
+                new MarathonServiceManager(marURL, marTransport);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("marathon.transport", e.getMessage(), e);
+        }
         marathonURL = marURL;
-        ServiceManager cf = new MarathonServiceManager(marathonURL);
+        marathonTransport = marTransport;
+        if (!"false".equals(String.valueOf(properties.get("marathon.events")))) {
+            try {
+                serviceManager.enableEventStream();
+            } catch (MalformedURLException e) {
+                LOG.error("Invalid marathon.url {} - not subscribing to Marathon events", marathonURL, e);
+            }
+        }
 
         Dictionary<String, Object> props = new Hashtable<>();
         props.put(ServiceManager.BINDING, "marathon");
-        reg = bundleContext.registerService(ServiceManager.class, cf, props);
+        reg = bundleContext.registerService(ServiceManager.class, serviceManager, props);
+        metricsReg = bundleContext.registerService(ContainerMetrics.class, serviceManager.getMetrics(), props);
     }
 }
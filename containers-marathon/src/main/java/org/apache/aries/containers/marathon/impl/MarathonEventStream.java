@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Subscription to the Marathon event bus through its server-sent events endpoint
+ * ({@code /v2/events}). The subscription runs on its own thread and reconnects
+ * with an exponential backoff if the connection is lost.
+ */
+class MarathonEventStream implements Closeable {
+    static final long INITIAL_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 30000;
+    static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(MarathonEventStream.class);
+
+    /**
+     * Receives the events from the stream. All methods are called on the thread
+     * of the subscription.
+     */
+    interface Listener {
+        /**
+         * Called when a connection to the event stream has been established. Events
+         * that occurred while the stream was not connected are lost.
+         */
+        void connected();
+
+        /**
+         * @param eventType The type of the event, for example {@code status_update_event}.
+         * @param data The event data, a JSON document.
+         */
+        void event(String eventType, String data);
+
+        /**
+         * Called when the connection to the event stream is lost or closed.
+         */
+        void disconnected();
+    }
+
+    private final URL eventsURL;
+    private final Supplier<String> authorization;
+    private final Listener listener;
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /**
+     * @param eventsURL The URL of the events endpoint.
+     * @param authorization Supplies the value of the {@code Authorization} header for
+     * each connection attempt, or {@code null} if no authorization is needed.
+     * @param listener The listener that receives the events.
+     */
+    MarathonEventStream(String eventsURL, Supplier<String> authorization, Listener listener)
+            throws MalformedURLException {
+        this.eventsURL = new URL(eventsURL);
+        this.authorization = authorization;
+        this.listener = listener;
+
+        thread = new Thread(this::run, "aries-containers-marathon-events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeSocket();
+        thread.interrupt();
+    }
+
+    private void run() {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        while (!closed) {
+            try {
+                InputStream body = connect();
+                listener.connected();
+                backoff = INITIAL_BACKOFF_MILLIS;
+                read(new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8)), listener);
+            } catch (Exception e) {
+                if (!closed)
+                    LOG.warn("Marathon event stream {} disconnected, reconnecting in {} ms", eventsURL, backoff, e);
+            } finally {
+                closeSocket();
+                listener.disconnected();
+            }
+
+            if (closed)
+                break;
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                // Closed
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Open the connection and send the request. A plain socket is used rather than
+     * {@link java.net.HttpURLConnection} as the latter cannot be closed from another
+     * thread without draining the, never-ending, response first.
+     *
+     * @return The response body.
+     */
+    private InputStream connect() throws IOException {
+        String host = eventsURL.getHost();
+        int port = eventsURL.getPort() < 0 ? eventsURL.getDefaultPort() : eventsURL.getPort();
+
+        Socket s = new Socket();
+        socket = s;
+        s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        if ("https".equals(eventsURL.getProtocol())) {
+            SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).
+                    createSocket(s, host, port, true);
+            SSLParameters params = ssl.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(params);
+            s = ssl;
+            socket = s;
+        }
+        if (closed)
+            throw new IOException("Closed");
+
+        StringBuilder req = new StringBuilder();
+        req.append("GET ").append(eventsURL.getFile()).append(" HTTP/1.1\r\n");
+        req.append("Host: ").append(host);
+        if (eventsURL.getPort() >= 0)
+            req.append(':').append(port);
+        req.append("\r\n");
+        req.append("Accept: text/event-stream\r\n");
+        if (authorization != null)
+            req.append("Authorization: ").append(authorization.get()).append("\r\n");
+        req.append("Connection: close\r\n\r\n");
+
+        OutputStream out = s.getOutputStream();
+        out.write(req.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        String statusLine = readLine(in);
+        String[] parts = statusLine == null ? new String[0] : statusLine.split(" ", 3);
+        if (parts.length < 2 || !"200".equals(parts[1]))
+            throw new IOException("Marathon returned " + statusLine + " for " + eventsURL);
+
+        boolean chunked = false;
+        String header;
+        while ((header = readLine(in)) != null && header.length() > 0) {
+            if (header.toLowerCase().startsWith("transfer-encoding:") && header.toLowerCase().contains("chunked"))
+                chunked = true;
+        }
+        return chunked ? new ChunkedInputStream(in) : in;
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r')
+                    sb.setLength(len - 1);
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Decodes a chunked response body, passing on each chunk as soon as it arrives.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private int remaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof)
+                return -1;
+
+            if (remaining == 0) {
+                String line = readLine(in);
+                if (line == null)
+                    throw new EOFException("Unexpected end of chunked response");
+                int idx = line.indexOf(';');
+                remaining = Integer.parseInt((idx < 0 ? line : line.substring(0, idx)).trim(), 16);
+                if (remaining == 0) {
+                    eof = true;
+                    return -1;
+                }
+            }
+
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read == -1)
+                throw new EOFException("Unexpected end of chunked response");
+            remaining -= read;
+            if (remaining == 0)
+                readLine(in); // CRLF at the end of each chunk
+            return read;
+        }
+    }
+
+    /**
+     * Read server-sent events from the reader until the end of the stream.
+     */
+    static void read(BufferedReader reader, Listener listener) throws IOException {
+        String eventType = null;
+        StringBuilder data = new StringBuilder();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                // An empty line dispatches the event
+                if (data.length() > 0)
+                    listener.event(eventType == null ? "message" : eventType, data.toString());
+                eventType = null;
+                data.setLength(0);
+                continue;
+            }
+            if (line.startsWith(":"))
+                continue; // Comment, used as a keep-alive
+
+            int idx = line.indexOf(':');
+            String field = idx < 0 ? line : line.substring(0, idx);
+            String value = idx < 0 ? "" : line.substring(idx + 1);
+            if (value.startsWith(" "))
+                value = value.substring(1);
+
+            if ("event".equals(field)) {
+                eventType = value;
+            } else if ("data".equals(field)) {
+                if (data.length() > 0)
+                    data.append('\n');
+                data.append(value);
+            }
+        }
+    }
+}
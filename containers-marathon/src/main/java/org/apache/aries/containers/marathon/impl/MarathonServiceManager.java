@@ -18,19 +18,33 @@
  */
 package org.apache.aries.containers.marathon.impl;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import javax.naming.OperationNotSupportedException;
 
 import org.apache.aries.containers.Service;
 import org.apache.aries.containers.ServiceConfig;
 import org.apache.aries.containers.ServiceManager;
+import org.apache.aries.containers.metrics.MetricsRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import mesosphere.dcos.client.DCOS;
 import mesosphere.dcos.client.DCOSClient;
 import mesosphere.dcos.client.model.DCOSAuthCredentials;
 import mesosphere.marathon.client.Marathon;
@@ -42,14 +56,94 @@ import mesosphere.marathon.client.model.v2.Docker;
 import mesosphere.marathon.client.model.v2.GetAppsResponse;
 import mesosphere.marathon.client.model.v2.HealthCheck;
 import mesosphere.marathon.client.model.v2.Port;
+import mesosphere.marathon.client.model.v2.UpgradeStrategy;
 
 public class MarathonServiceManager implements ServiceManager {
     static final String SERVICE_NAME = "org.apache.aries.containers.service.name";
+    static final String FINGERPRINT = "org.apache.aries.containers.service.fingerprint";
+
+    /**
+     * System property to configure the maximum number of Marathon requests that
+     * the asynchronous operations have in flight, 8 by default; further requests
+     * queue. With the default transport, whose client is blocking, this is the
+     * number of threads that execute the requests.
+     */
+    public static final String CONCURRENCY_PROPERTY = "org.apache.aries.containers.marathon.concurrency";
+    static final int DEFAULT_CONCURRENCY = 8;
+
+    /**
+     * System property to select the HTTP transport used for the Marathon REST calls,
+     * {@link #TRANSPORT_DEFAULT}, {@link #TRANSPORT_POOLED} or {@link #TRANSPORT_H2C}.
+     */
+    public static final String TRANSPORT_PROPERTY = "org.apache.aries.containers.marathon.transport";
+
+    /**
+     * The transport of the Marathon client, a connection per request.
+     */
+    public static final String TRANSPORT_DEFAULT = "default";
+
+    /**
+     * A transport that keeps pooled connections alive between requests and
+     * requests gzip compressed responses. The asynchronous operations enqueue
+     * their requests instead of blocking a thread.
+     */
+    public static final String TRANSPORT_POOLED = "pooled";
+
+    /**
+     * Like {@link #TRANSPORT_POOLED}, but speaks HTTP/2 over plain HTTP without
+     * negotiating it first, so that concurrent requests share one connection. Only
+     * for Marathon URLs that accept cleartext HTTP/2, such as some proxies.
+     */
+    public static final String TRANSPORT_H2C = "h2c";
+
+    static final Logger LOG = LoggerFactory.getLogger(MarathonServiceManager.class);
 
     private final Marathon marathonClient;
+    private final AsyncMarathon asyncClient;
+    private final String marathonURL;
+    private final Supplier<String> authorization;
+    private final AppCache appCache;
+    private final ExecutorService executor;
+    private final MetricsRecorder metrics = new MetricsRecorder();
+    private final Closeable transport;
+    private final ReadinessPoller readinessPoller = new ReadinessPoller();
+    private MarathonEventStream eventStream;
 
     MarathonServiceManager(Marathon mc) {
-        marathonClient = mc;
+        this(mc, null, null);
+    }
+
+    /**
+     * @param mc The Marathon client.
+     * @param marathonURL The Marathon URL, used to subscribe to the event stream.
+     * @param authorization Supplies the {@code Authorization} header for the event
+     * stream or {@code null} if not needed.
+     */
+    MarathonServiceManager(Marathon mc, String marathonURL, Supplier<String> authorization) {
+        this(mc, marathonURL, authorization, null);
+    }
+
+    private MarathonServiceManager(Marathon mc, String marathonURL, Supplier<String> authorization,
+            PooledMarathonTransport transport) {
+        this.transport = transport;
+        marathonClient = InstrumentedMarathon.wrap(mc, metrics);
+        this.marathonURL = marathonURL;
+        this.authorization = authorization;
+        appCache = new AppCache(marathonClient);
+        executor = Executors.newFixedThreadPool(Integer.getInteger(CONCURRENCY_PROPERTY, DEFAULT_CONCURRENCY),
+                new ThreadFactory() {
+                    private final AtomicInteger counter = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "aries-containers-marathon-" + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // The calls of the blocking client are recorded by its instrumentation already
+        asyncClient = transport == null ? AsyncMarathon.onExecutor(marathonClient, executor) :
+            InstrumentedMarathon.wrap(transport.createAsyncClient(marathonURL), metrics);
     }
 
     /**
@@ -58,7 +152,36 @@ public class MarathonServiceManager implements ServiceManager {
      * @param marathonURL The Marathon URL
      */
     public MarathonServiceManager(String marathonURL) {
-        this(MarathonClient.getInstance(marathonURL));
+        this(marathonURL, System.getProperty(TRANSPORT_PROPERTY, TRANSPORT_DEFAULT));
+    }
+
+    /**
+     * Create the Marathon Service Manager.
+     *
+     * @param marathonURL The Marathon URL
+     * @param transport The HTTP transport, {@link #TRANSPORT_DEFAULT}, {@link #TRANSPORT_POOLED}
+     * or {@link #TRANSPORT_H2C}.
+     */
+    public MarathonServiceManager(String marathonURL, String transport) {
+        this(marathonURL, createTransport(transport));
+    }
+
+    private MarathonServiceManager(String marathonURL, PooledMarathonTransport transport) {
+        this(transport == null ? MarathonClient.getInstance(marathonURL) : transport.createClient(marathonURL),
+                marathonURL, null, transport);
+    }
+
+    private static PooledMarathonTransport createTransport(String transport) {
+        switch (transport) {
+        case TRANSPORT_DEFAULT:
+            return null;
+        case TRANSPORT_POOLED:
+            return new PooledMarathonTransport();
+        case TRANSPORT_H2C:
+            return new PooledMarathonTransport(true);
+        default:
+            throw new IllegalArgumentException("Unknown Marathon transport: " + transport);
+        }
     }
 
     /**
@@ -70,23 +193,128 @@ public class MarathonServiceManager implements ServiceManager {
      * @param serviceAcct {@code true} if this is a service account {@code false} if this is a plain user.
      */
     public MarathonServiceManager(String marathonURL, String dcosUser, String passToken, boolean serviceAcct) {
-        DCOSAuthCredentials authCredentials;
+        this(marathonURL, getCredentials(dcosUser, passToken, serviceAcct));
+    }
+
+    private MarathonServiceManager(String marathonURL, DCOSAuthCredentials credentials) {
+        this(DCOSClient.getInstance(marathonURL, credentials), marathonURL, credentials);
+    }
+
+    private MarathonServiceManager(DCOS dcos, String marathonURL, DCOSAuthCredentials credentials) {
+        this(dcos, marathonURL, () -> "token=" + dcos.authenticate(credentials).getToken());
+    }
+
+    private static DCOSAuthCredentials getCredentials(String dcosUser, String passToken, boolean serviceAcct) {
         if (serviceAcct) {
-            authCredentials = DCOSAuthCredentials.forServiceAccount(dcosUser, passToken);
+            return DCOSAuthCredentials.forServiceAccount(dcosUser, passToken);
         } else {
-            authCredentials = DCOSAuthCredentials.forUserAccount(dcosUser, passToken);
+            return DCOSAuthCredentials.forUserAccount(dcosUser, passToken);
+        }
+    }
+
+    /**
+     * Release the resources held by this service manager. The Marathon apps
+     * are not affected.
+     */
+    public synchronized void close() {
+        if (eventStream != null) {
+            eventStream.close();
+            eventStream = null;
         }
-        marathonClient = DCOSClient.getInstance(marathonURL, authCredentials);
+        executor.shutdown();
+        readinessPoller.close();
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (IOException e) {
+                LOG.warn("Problem closing the Marathon transport", e);
+            }
+        }
+    }
+
+    /**
+     * Subscribe to the Marathon event bus and serve app and task lookups from a
+     * local cache that is invalidated by the events. While the event stream is
+     * not connected every lookup goes to Marathon.
+     */
+    public synchronized void enableEventStream() throws MalformedURLException {
+        if (eventStream != null)
+            return;
+        if (marathonURL == null)
+            throw new IllegalStateException("The Marathon URL is not known");
+
+        StringBuilder url = new StringBuilder(marathonURL);
+        if (url.charAt(url.length() - 1) == '/')
+            url.setLength(url.length() - 1);
+        url.append("/v2/events");
+        char sep = '?';
+        for (String eventType : AppCache.EVENT_TYPES) {
+            url.append(sep).append("event_type=").append(eventType);
+            sep = '&';
+        }
+        eventStream = new MarathonEventStream(url.toString(), authorization, appCache);
+    }
+
+    AppCache getAppCache() {
+        return appCache;
+    }
+
+    /**
+     * @return The metrics of the service manager operations and of the Marathon
+     * REST calls they make.
+     */
+    public MetricsRecorder getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * With the pooled transports the Marathon requests are enqueued, no thread
+     * waits for them. With the default transport, whose client is blocking, the
+     * requests run on a fixed pool of {@link #CONCURRENCY_PROPERTY} threads owned
+     * by this service manager, further requests wait in the queue of the pool.
+     */
+    @Override
+    public CompletableFuture<Service> getServiceAsync(ServiceConfig config) {
+        return metrics.timeAsync("getService", () ->
+            asyncClient.getAppsAsync(labelQuery(config)).thenCompose(existing -> {
+                if (existing.getApps().size() > 0)
+                    return createServiceFromAppAsync(getExistingApp(existing.getApps(), config), config);
+
+                App app;
+                try {
+                    app = toApp(config);
+                } catch (OperationNotSupportedException e) {
+                    throw new CompletionException(e);
+                }
+                return asyncClient.createAppAsync(app).thenCompose(res -> createServiceFromAppAsync(res, config));
+            }));
     }
 
     @Override
     public Service getService(ServiceConfig config) throws Exception {
-        GetAppsResponse existing = marathonClient.getApps(
-                Collections.singletonMap("label", SERVICE_NAME + "==" + config.getServiceName()));
+        return metrics.time("getService", () -> obtainService(config));
+    }
+
+    private Service obtainService(ServiceConfig config) throws Exception {
+        GetAppsResponse existing = marathonClient.getApps(labelQuery(config));
         if (existing.getApps().size() > 0) {
-            return createServiceFromExistingApp(existing.getApps(), config);
+            return createServiceFromApp(getExistingApp(existing.getApps(), config), config);
         }
 
+        App res = marathonClient.createApp(toApp(config));
+        return createServiceFromApp(res, config);
+    }
+
+    private static Map<String, String> labelQuery(ServiceConfig config) {
+        return Collections.singletonMap("label", SERVICE_NAME + "==" + config.getServiceName());
+    }
+
+    /**
+     * Create the Marathon app definition of a service.
+     */
+    static App toApp(ServiceConfig config) throws OperationNotSupportedException {
         App app = new App();
         app.setId(config.getServiceName());
         app.setCpus(config.getRequestedCpuUnits());
@@ -94,6 +322,7 @@ public class MarathonServiceManager implements ServiceManager {
         app.setInstances(config.getRequestedInstances());
         app.setEnv(Collections.unmodifiableMap(config.getEnvVars()));
         app.addLabel(SERVICE_NAME, config.getServiceName());
+        app.addLabel(FINGERPRINT, config.getFingerprint());
 
         StringBuilder cmd = new StringBuilder();
         if (config.getEntryPoint() != null) {
@@ -160,29 +389,77 @@ public class MarathonServiceManager implements ServiceManager {
         }
         app.setHealthChecks(healthChecks);
 
-        App res = marathonClient.createApp(app);
-        return createServiceFromApp(res, config);
+        // Roll to a new configuration within the bounds of the configuration
+        int instances = Math.max(1, config.getRequestedInstances());
+        UpgradeStrategy upgradeStrategy = new UpgradeStrategy();
+        upgradeStrategy.setMinimumHealthCapacity(
+                Math.max(0, instances - config.getMaxUnavailable()) / (double) instances);
+        upgradeStrategy.setMaximumOverCapacity(Math.min(1, config.getMaxSurge() / (double) instances));
+        app.setUpgradeStrategy(upgradeStrategy);
+        return app;
     }
 
-    private Service createServiceFromExistingApp(List<App> apps, ServiceConfig config) {
+    private static App getExistingApp(List<App> apps, ServiceConfig config) {
         if (apps.size() != 1)
             throw new IllegalStateException("More than one existing app found for service " +
                     config.getServiceName() + " " + apps);
 
-        return createServiceFromApp(apps.get(0), config);
+        return apps.get(0);
     }
 
+    /**
+     * Create the service for an app. If the app was launched with a different
+     * configuration, as told by its fingerprint label, it is updated to the given
+     * configuration and Marathon rolls its tasks. Apps without a fingerprint label
+     * are left as they are.
+     */
     private Service createServiceFromApp(App app, ServiceConfig cfg) {
-        // TODO make this check more thorough
+        ServiceImpl svc = newService(app, cfg);
+        if (isDrifted(app, cfg)) {
+            try {
+                svc.update(cfg);
+            } catch (RuntimeException e) {
+                LOG.error("Unable to update app {} of service {}", app.getId(), cfg.getServiceName(), e);
+            }
+        }
+        return svc;
+    }
+
+    private CompletableFuture<Service> createServiceFromAppAsync(App app, ServiceConfig cfg) {
+        ServiceImpl svc = newService(app, cfg);
+        if (!isDrifted(app, cfg))
+            return CompletableFuture.completedFuture(svc);
+
+        return svc.updateAsync(cfg).handle((v, e) -> {
+            if (e != null)
+                LOG.error("Unable to update app {} of service {}", app.getId(), cfg.getServiceName(), e);
+            return svc;
+        });
+    }
+
+    private ServiceImpl newService(App app, ServiceConfig cfg) {
         if (!cfg.getServiceName().equals(app.getLabels().get(SERVICE_NAME)))
             throw new IllegalStateException("Application and configuration don't match");
 
-        ServiceImpl svc = new ServiceImpl(marathonClient, app, cfg);
-        return svc;
+        return new ServiceImpl(marathonClient, asyncClient, appCache, app, cfg, metrics, readinessPoller);
+    }
+
+    private static boolean isDrifted(App app, ServiceConfig cfg) {
+        String fingerprint = app.getLabels().get(FINGERPRINT);
+        if (fingerprint == null || fingerprint.equals(cfg.getFingerprint()))
+            return false;
+
+        LOG.warn("App {} of service {} runs a different configuration, updating it",
+                app.getId(), cfg.getServiceName());
+        return true;
     }
 
     @Override
     public Set<String> listServices() throws Exception {
+        return metrics.time("listServices", this::collectServiceNames);
+    }
+
+    private Set<String> collectServiceNames() {
         GetAppsResponse services = marathonClient.getApps(
                 Collections.singletonMap("label", SERVICE_NAME));
 
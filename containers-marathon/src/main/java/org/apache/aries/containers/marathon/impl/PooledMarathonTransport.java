@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import feign.Client;
+import feign.Feign;
+import feign.Request;
+import feign.Response;
+import feign.gson.GsonDecoder;
+import feign.gson.GsonEncoder;
+import mesosphere.marathon.client.Marathon;
+import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.GetAppsResponse;
+import mesosphere.marathon.client.utils.MarathonException;
+import mesosphere.marathon.client.utils.ModelUtils;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+
+/**
+ * Marathon REST transport on a shared OkHttp client. Connections are kept alive
+ * and pooled across requests. OkHttp asks for gzip compressed responses on every
+ * request and decompresses them transparently.
+ * <p>
+ * The transport serves two clients. The {@link Marathon} client created by
+ * {@link #createClient(String)} is synchronous, each request blocks its thread.
+ * The {@link AsyncMarathon} client created by {@link #createAsyncClient(String)}
+ * enqueues its requests with OkHttp instead, so no thread waits for Marathon.
+ * <p>
+ * Over TLS, HTTP/2 is negotiated with ALPN when the JVM and Marathon support
+ * it, and concurrent requests are then multiplexed on one connection. Marathon
+ * is normally reached over plain HTTP/1.1, where a connection carries one
+ * request at a time, so the number of connections follows the number of
+ * concurrent requests. For plain HTTP endpoints that accept HTTP/2, such as a
+ * proxy in front of Marathon, the transport can use HTTP/2 with prior knowledge.
+ * <p>
+ * At most {@link MarathonServiceManager#CONCURRENCY_PROPERTY} requests of the
+ * asynchronous client are in flight at a time, the same number of idle
+ * connections is kept for reuse.
+ */
+class PooledMarathonTransport implements Client, Closeable {
+    static final int MAX_IDLE_CONNECTIONS = Integer.getInteger(MarathonServiceManager.CONCURRENCY_PROPERTY,
+            MarathonServiceManager.DEFAULT_CONCURRENCY);
+    static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final OkHttpClient client;
+
+    PooledMarathonTransport() {
+        this(false);
+    }
+
+    /**
+     * @param h2PriorKnowledge {@code true} to speak HTTP/2 without negotiating
+     * it, which only works with endpoints that accept cleartext HTTP/2.
+     */
+    PooledMarathonTransport(boolean h2PriorKnowledge) {
+        this(new Request.Options(), h2PriorKnowledge);
+    }
+
+    PooledMarathonTransport(Request.Options options, boolean h2PriorKnowledge) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_IDLE_CONNECTIONS);
+        dispatcher.setMaxRequestsPerHost(MAX_IDLE_CONNECTIONS);
+
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .protocols(h2PriorKnowledge ? Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE) :
+                        Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(options.connectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(options.readTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .followRedirects(true)
+                .build();
+    }
+
+    /**
+     * Create a Marathon client that sends its requests through this transport.
+     *
+     * @param marathonURL The Marathon URL.
+     * @return The Marathon client.
+     */
+    Marathon createClient(String marathonURL) {
+        return Feign.builder()
+                .client(this)
+                .encoder(new GsonEncoder(ModelUtils.GSON))
+                .decoder(new GsonDecoder(ModelUtils.GSON))
+                .errorDecoder((methodKey, response) -> new MarathonException(response.status(), response.reason()))
+                .requestInterceptor(template -> {
+                    template.header("Accept", "application/json");
+                    template.header("Content-Type", "application/json");
+                })
+                .target(Marathon.class, marathonURL);
+    }
+
+    /**
+     * Create a Marathon client that enqueues its requests on this transport.
+     *
+     * @param marathonURL The Marathon URL.
+     * @return The asynchronous Marathon client.
+     */
+    AsyncMarathon createAsyncClient(String marathonURL) {
+        HttpUrl apps = HttpUrl.get(marathonURL).newBuilder().addPathSegments("v2/apps").build();
+        return new AsyncMarathon() {
+            @Override
+            public CompletableFuture<GetAppsResponse> getAppsAsync(Map<String, String> query) {
+                HttpUrl.Builder url = apps.newBuilder();
+                for (Map.Entry<String, String> entry : query.entrySet()) {
+                    url.addQueryParameter(entry.getKey(), entry.getValue());
+                }
+                return sendAsync("GET", url.build(), null, GetAppsResponse.class);
+            }
+
+            @Override
+            public CompletableFuture<App> createAppAsync(App app) {
+                return sendAsync("POST", apps, app, App.class);
+            }
+
+            @Override
+            public CompletableFuture<Void> updateAppAsync(String appID, App app, boolean force) {
+                HttpUrl url = appURL(appID).newBuilder().addQueryParameter("force", String.valueOf(force)).build();
+                return sendAsync("PUT", url, app, Void.class);
+            }
+
+            @Override
+            public CompletableFuture<Void> deleteAppAsync(String appID) {
+                return sendAsync("DELETE", appURL(appID), null, Void.class);
+            }
+
+            private HttpUrl appURL(String appID) {
+                // App IDs are paths, possibly nested in groups
+                return apps.newBuilder().addPathSegments(appID.startsWith("/") ? appID.substring(1) : appID).build();
+            }
+        };
+    }
+
+    /**
+     * Enqueue a request. The future completes on a thread of the OkHttp dispatcher
+     * once the response has been read, or exceptionally with a
+     * {@link MarathonException} if Marathon returned an error status.
+     */
+    <T> CompletableFuture<T> sendAsync(String method, HttpUrl url, Object body, Type responseType) {
+        okhttp3.Request request = new okhttp3.Request.Builder()
+                .url(url)
+                .header("Accept", "application/json")
+                .method(method, body == null ? null : RequestBody.create(JSON, ModelUtils.GSON.toJson(body)))
+                .build();
+
+        CompletableFuture<T> res = new CompletableFuture<>();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                res.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, okhttp3.Response response) {
+                T result;
+                try (ResponseBody rbody = response.body()) {
+                    if (!response.isSuccessful()) {
+                        res.completeExceptionally(new MarathonException(response.code(), response.message()));
+                        return;
+                    }
+                    result = responseType == Void.class || rbody == null ? null :
+                        ModelUtils.GSON.fromJson(rbody.charStream(), responseType);
+                } catch (RuntimeException e) {
+                    res.completeExceptionally(e);
+                    return;
+                }
+                // Complete after the connection was released, so that dependent requests can reuse it
+                res.complete(result);
+            }
+        });
+        return res;
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+        okhttp3.Request.Builder rb = new okhttp3.Request.Builder().url(request.url());
+
+        MediaType mediaType = null;
+        for (Map.Entry<String, Collection<String>> header : request.headers().entrySet()) {
+            for (String value : header.getValue()) {
+                // Leave Accept-Encoding to OkHttp, which only decompresses what it asked for
+                if ("Accept-Encoding".equalsIgnoreCase(header.getKey()))
+                    continue;
+                if ("Content-Type".equalsIgnoreCase(header.getKey()))
+                    mediaType = MediaType.parse(value);
+                rb.addHeader(header.getKey(), value);
+            }
+        }
+
+        RequestBody body = null;
+        if (request.body() != null) {
+            body = RequestBody.create(mediaType, request.body());
+        } else if ("POST".equals(request.method()) || "PUT".equals(request.method())) {
+            body = RequestBody.create(mediaType, new byte[0]);
+        }
+        rb.method(request.method(), body);
+
+        OkHttpClient c = client;
+        if (options.connectTimeoutMillis() != client.connectTimeoutMillis() ||
+                options.readTimeoutMillis() != client.readTimeoutMillis()) {
+            // Shares the connection pool and dispatcher of the original client
+            c = client.newBuilder()
+                    .connectTimeout(options.connectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .readTimeout(options.readTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .build();
+        }
+
+        okhttp3.Response response = c.newCall(rb.build()).execute();
+        Map<String, Collection<String>> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : response.headers().toMultimap().entrySet()) {
+            headers.put(header.getKey(), header.getValue());
+        }
+
+        ResponseBody rbody = response.body();
+        if (rbody == null) {
+            response.close();
+            return Response.create(response.code(), response.message(), headers, (byte[]) null);
+        }
+        long length = rbody.contentLength();
+        return Response.create(response.code(), response.message(), headers, rbody.byteStream(),
+                length < 0 || length > Integer.MAX_VALUE ? null : (int) length);
+    }
+
+    /**
+     * Close the pooled connections. The transport must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluates the readiness waiters of services from the task health results that
+ * Marathon reports. A service is only polled while someone waits for it, with a
+ * single app lookup per poll regardless of the number of waiters. While the event
+ * stream is connected the lookup is served from the {@link AppCache}, which is
+ * invalidated by the health status events, so Marathon is only asked again after
+ * the health of a task changed.
+ */
+class ReadinessPoller implements Closeable {
+    static final long DEFAULT_POLL_MILLIS = 1000;
+
+    private final long pollMillis;
+    private final Set<ServiceImpl> watched = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService scheduler;
+    private boolean closed;
+
+    ReadinessPoller() {
+        this(DEFAULT_POLL_MILLIS);
+    }
+
+    ReadinessPoller(long pollMillis) {
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Poll the service until it has no more readiness waiters.
+     */
+    void watch(ServiceImpl svc) {
+        watched.add(svc);
+        start();
+    }
+
+    private synchronized void start() {
+        if (scheduler != null || closed)
+            return;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "aries-containers-marathon-readiness");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        for (ServiceImpl svc : watched) {
+            try {
+                if (!svc.checkReadiness()) {
+                    watched.remove(svc);
+                    // A waiter might have been added in the mean time
+                    if (svc.hasReadinessWaiters())
+                        watched.add(svc);
+                }
+            } catch (RuntimeException e) {
+                MarathonServiceManager.LOG.warn("Unable to check the readiness of service {}",
+                        svc.getConfiguration().getServiceName(), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (scheduler != null)
+            scheduler.shutdown();
+    }
+}
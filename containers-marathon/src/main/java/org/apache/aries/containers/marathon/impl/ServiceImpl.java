@@ -19,35 +19,87 @@
 package org.apache.aries.containers.marathon.impl;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.naming.OperationNotSupportedException;
 
 import org.apache.aries.containers.Container;
 import org.apache.aries.containers.Service;
 import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.metrics.MetricsRecorder;
 
 import mesosphere.marathon.client.Marathon;
 import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.HealthCheckResults;
 import mesosphere.marathon.client.model.v2.Task;
 
 class ServiceImpl implements Service {
-    private final ServiceConfig configuration;
+    private volatile ServiceConfig configuration;
     private final String marathonAppID;
     private final Marathon marathonClient;
+    private final AsyncMarathon asyncClient;
+    private final AppCache appCache;
+    private final MetricsRecorder metrics;
+    private final ReadinessPoller readinessPoller;
+    private final List<ReadyWaiter> readyWaiters = new CopyOnWriteArrayList<>();
+    private final Map<String, CompletableFuture<Container>> taskWaiters = new ConcurrentHashMap<>();
 
     ServiceImpl(Marathon marathon, App app, ServiceConfig cfg) {
+        this(marathon, app, cfg, ForkJoinPool.commonPool());
+    }
+
+    ServiceImpl(Marathon marathon, App app, ServiceConfig cfg, Executor executor) {
+        this(marathon, new AppCache(marathon), app, cfg, executor, new MetricsRecorder());
+    }
+
+    ServiceImpl(Marathon marathon, AppCache cache, App app, ServiceConfig cfg, Executor executor,
+            MetricsRecorder metrics) {
+        this(marathon, cache, app, cfg, executor, metrics, new ReadinessPoller());
+    }
+
+    /**
+     * @param executor Runs the blocking Marathon calls of the asynchronous operations.
+     */
+    ServiceImpl(Marathon marathon, AppCache cache, App app, ServiceConfig cfg, Executor executor,
+            MetricsRecorder metrics, ReadinessPoller poller) {
+        this(marathon, AsyncMarathon.onExecutor(marathon, executor), cache, app, cfg, metrics, poller);
+    }
+
+    ServiceImpl(Marathon marathon, AsyncMarathon asyncMarathon, AppCache cache, App app, ServiceConfig cfg,
+            MetricsRecorder metrics, ReadinessPoller poller) {
         marathonClient = marathon;
+        asyncClient = asyncMarathon;
+        readinessPoller = poller;
+        appCache = cache;
         marathonAppID = app.getId();
         configuration = cfg;
+        this.metrics = metrics;
     }
 
     @Override
     public void destroy() {
         marathonClient.deleteApp(marathonAppID);
+        appCache.invalidate(marathonAppID);
+    }
+
+    @Override
+    public CompletableFuture<Void> destroyAsync() {
+        return asyncClient.deleteAppAsync(marathonAppID).thenRun(() -> appCache.invalidate(marathonAppID));
     }
 
     @Override
     public int getActualInstanceCount() {
-        return marathonClient.getApp(marathonAppID).getApp().getInstances();
+        return appCache.getApp(marathonAppID).getInstances();
     }
 
     @Override
@@ -57,12 +109,16 @@ class ServiceImpl implements Service {
 
     @Override
     public List<Container> listContainers() {
-        App app = marathonClient.getApp(marathonAppID).getApp();
+        return metrics.time("listContainers", this::createContainers);
+    }
+
+    private List<Container> createContainers() {
+        App app = appCache.getApp(marathonAppID);
 
         List<Container> res = new ArrayList<>();
         for (Task t : app.getTasks()) {
             Container c = new ContainerImpl(marathonClient, app.getId(), t.getId(),
-                    t.getHost(), t.getPorts(), this);
+                    t.getHost(), t.getPorts(), this, isReady(t));
 
             res.add(c);
         }
@@ -71,13 +127,184 @@ class ServiceImpl implements Service {
 
     @Override
     public void setInstanceCount(int count) {
+        metrics.time("setInstanceCount", () -> {
+            App updatedApp = new App();
+            updatedApp.setInstances(count);
+            marathonClient.updateApp(marathonAppID, updatedApp, true);
+            appCache.invalidate(marathonAppID);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> setInstanceCountAsync(int count) {
         App updatedApp = new App();
         updatedApp.setInstances(count);
-        marathonClient.updateApp(marathonAppID, updatedApp, true);
+        return metrics.timeAsync("setInstanceCount", () ->
+            asyncClient.updateAppAsync(marathonAppID, updatedApp, true).
+                thenRun(() -> appCache.invalidate(marathonAppID)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The app definition is replaced with a single request, together with an upgrade
+     * strategy derived from the rolling update bounds. Marathon then replaces the
+     * tasks, so this returns as soon as Marathon accepted the new definition.
+     */
+    @Override
+    public void update(ServiceConfig config) {
+        App app = toApp(config);
+        metrics.time("update", () -> {
+            marathonClient.updateApp(marathonAppID, app, true);
+            configuration = config;
+            appCache.invalidate(marathonAppID);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAsync(ServiceConfig config) {
+        App app;
+        try {
+            app = toApp(config);
+        } catch (IllegalArgumentException e) {
+            CompletableFuture<Void> res = new CompletableFuture<>();
+            res.completeExceptionally(e);
+            return res;
+        }
+
+        return metrics.timeAsync("update", () ->
+            asyncClient.updateAppAsync(marathonAppID, app, true).thenRun(() -> {
+                configuration = config;
+                appCache.invalidate(marathonAppID);
+            }));
+    }
+
+    private App toApp(ServiceConfig config) {
+        if (!configuration.getServiceName().equals(config.getServiceName()))
+            throw new IllegalArgumentException("Cannot update service " + configuration.getServiceName() +
+                    " to the configuration of service " + config.getServiceName());
+
+        App app;
+        try {
+            app = MarathonServiceManager.toApp(config);
+        } catch (OperationNotSupportedException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        app.setId(marathonAppID);
+        return app;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Readiness is derived from the health check results of the tasks. All waiters
+     * of the service share a single app lookup per poll.
+     */
+    @Override
+    public CompletableFuture<List<Container>> awaitReady(int count) {
+        ReadyWaiter waiter = new ReadyWaiter(count);
+        readyWaiters.add(waiter);
+        readinessPoller.watch(this);
+        return waiter.future;
+    }
+
+    CompletableFuture<Container> awaitTaskReady(String taskID) {
+        CompletableFuture<Container> res = taskWaiters.computeIfAbsent(taskID, id -> new CompletableFuture<>());
+        readinessPoller.watch(this);
+        // A dependent stage, so that callers cannot complete the shared one
+        return res.thenApply(c -> c);
+    }
+
+    boolean hasReadinessWaiters() {
+        return !readyWaiters.isEmpty() || !taskWaiters.isEmpty();
+    }
+
+    /**
+     * Complete the readiness waiters for which the tasks are ready.
+     *
+     * @return {@code true} if there are waiters left.
+     */
+    boolean checkReadiness() {
+        if (!hasReadinessWaiters())
+            return false;
+
+        App app = appCache.getApp(marathonAppID);
+        List<Container> ready = new ArrayList<>();
+        Set<String> taskIDs = new HashSet<>();
+        for (Task t : app.getTasks()) {
+            taskIDs.add(t.getId());
+            if (!isReady(t))
+                continue;
+
+            Container c = new ContainerImpl(marathonClient, app.getId(), t.getId(),
+                    t.getHost(), t.getPorts(), this, true);
+            ready.add(c);
+            CompletableFuture<Container> f = taskWaiters.remove(t.getId());
+            if (f != null)
+                f.complete(c);
+        }
+
+        for (String taskID : taskWaiters.keySet()) {
+            if (!taskIDs.contains(taskID)) {
+                CompletableFuture<Container> f = taskWaiters.remove(taskID);
+                if (f != null)
+                    f.completeExceptionally(new IllegalStateException("Task " + taskID + " was removed"));
+            }
+        }
+
+        for (ReadyWaiter waiter : readyWaiters) {
+            if (ready.size() >= waiter.count && readyWaiters.remove(waiter))
+                waiter.future.complete(Collections.unmodifiableList(ready));
+        }
+        return hasReadinessWaiters();
+    }
+
+    /**
+     * A task is ready when it runs and, if the service has health checks, all
+     * its health check results are alive.
+     */
+    private boolean isReady(Task task) {
+        int checks = configuration.getHealthChecks().size();
+        if (checks == 0)
+            return task.getStartedAt() != null;
+
+        Collection<HealthCheckResults> results = task.getHealthCheckResults();
+        if (results == null || results.size() < checks)
+            return false;
+        for (HealthCheckResults r : results) {
+            if (!Boolean.TRUE.equals(r.getAlive()))
+                return false;
+        }
+        return true;
     }
 
     @Override
     public void refresh() {
-        // No state held - noop
+        // Only cached state is held, which is dropped so that it is fetched again
+        metrics.time("refresh", () -> {
+            appCache.invalidate(marathonAppID);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> refreshAsync() {
+        refresh();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    void invalidate() {
+        appCache.invalidate(marathonAppID);
+    }
+
+    private static class ReadyWaiter {
+        final int count;
+        final CompletableFuture<List<Container>> future = new CompletableFuture<>();
+
+        ReadyWaiter(int count) {
+            this.count = count;
+        }
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.aries.containers.Container;
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.test.marathon.FakeApp;
+import org.apache.aries.containers.test.marathon.FakeMarathon;
+import org.apache.aries.containers.test.marathon.FakeMarathonServer;
+import org.apache.aries.containers.test.marathon.FakeTask;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FakeMarathonTest {
+    private static final String SERVICE_LABEL = "org.apache.aries.containers.service.name";
+
+    @Test
+    public void testServiceManager() throws Exception {
+        try (FakeMarathon marathon = new FakeMarathon();
+                FakeMarathonServer server = new FakeMarathonServer(marathon)) {
+            MarathonServiceManager sm = new MarathonServiceManager(server.getURL());
+            ServiceConfig cfg = ServiceConfig.builder("fakesvc", "myimg").instances(500).port(8080).port(8443).build();
+            Service svc = sm.getService(cfg);
+            assertEquals(500, svc.getActualInstanceCount());
+
+            List<Container> containers = svc.listContainers();
+            assertEquals(500, containers.size());
+            FakeApp app = marathon.getApp("fakesvc");
+            assertEquals("fakesvc", app.getLabels().get(SERVICE_LABEL));
+            FakeTask task = app.getTasks().get(0);
+            Container c = containers.get(0);
+            assertEquals(task.getID(), c.getID());
+            assertEquals(task.getHost(), c.getHostName());
+            assertEquals(task.getPorts().get(1), c.getExposedPorts().get(8443));
+
+            // The existing app is found through the label query
+            assertEquals(500, sm.getService(cfg).listContainers().size());
+            assertEquals(1, marathon.getInvocationCount("createApp"));
+
+            c.destroy();
+            assertEquals(499, svc.listContainers().size());
+            assertEquals(499, app.getInstances());
+
+            svc.setInstanceCount(50);
+            assertEquals(50, svc.listContainers().size());
+            assertEquals(50, app.getTasks().size());
+
+            sm.getService(ServiceConfig.builder("othersvc", "myimg").build());
+            assertEquals(2, sm.listServices().size());
+
+            svc.destroy();
+            assertEquals(1, marathon.getApps().size());
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testEventStream() throws Exception {
+        try (FakeMarathon marathon = new FakeMarathon();
+                FakeMarathonServer server = new FakeMarathonServer(marathon)) {
+            marathon.setDeploymentDuration(200, TimeUnit.MILLISECONDS);
+            MarathonServiceManager sm = new MarathonServiceManager(server.getURL());
+            sm.enableEventStream();
+
+            Service svc = sm.getService(ServiceConfig.builder("eventsvc", "myimg").instances(3).build());
+            FakeApp app = marathon.getApp("eventsvc");
+            assertEquals(3, app.getTasks().size());
+            assertEquals(1, app.getDeployments().size());
+            waitFor(() -> app.getDeployments().isEmpty());
+            for (FakeTask t : app.getTasks()) {
+                assertTrue(t.isRunning());
+            }
+
+            // Changes made behind the back of the service manager reach it through the events
+            waitFor(() -> marathon.getInvocationCount("events") > 0);
+            assertEquals(3, svc.listContainers().size());
+            marathon.updateApp("eventsvc", Collections.<String, Object>singletonMap("instances", 5));
+            waitFor(() -> svc.listContainers().size() == 5);
+            sm.close();
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        try (FakeMarathon marathon = new FakeMarathon();
+                FakeMarathonServer server = new FakeMarathonServer(marathon)) {
+            marathon.setDefaultLatency(1, TimeUnit.MILLISECONDS);
+            marathon.setLatency("getApps", 200, TimeUnit.MILLISECONDS);
+            MarathonServiceManager sm = new MarathonServiceManager(server.getURL());
+            long start = System.nanoTime();
+            sm.listServices();
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertEquals(1, marathon.getInvocationCount("getApps"));
+            sm.close();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition not met in time", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.aries.containers.Service;
+import org.apache.aries.containers.ServiceConfig;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import mesosphere.marathon.client.Marathon;
+import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.GetAppResponse;
+import mesosphere.marathon.client.model.v2.GetAppsResponse;
+
+public class MarathonEventStreamTest {
+    @Test
+    public void testRead() throws IOException {
+        String stream = ": keep-alive\n\n" +
+                "event: status_update_event\n" +
+                "data: {\"appId\": \"/a\"}\n\n" +
+                "event: deployment_info\n" +
+                "data: {\"plan\":\n" +
+                "data: {}}\n\n" +
+                "data:no type\n\n";
+
+        List<String> events = new ArrayList<>();
+        MarathonEventStream.read(new BufferedReader(new StringReader(stream)), new MarathonEventStream.Listener() {
+            @Override
+            public void connected() {}
+
+            @Override
+            public void event(String eventType, String data) {
+                events.add(eventType + "=" + data);
+            }
+
+            @Override
+            public void disconnected() {}
+        });
+
+        assertEquals(Arrays.asList(
+                "status_update_event={\"appId\": \"/a\"}",
+                "deployment_info={\"plan\":\n{}}",
+                "message=no type"), events);
+    }
+
+    @Test
+    public void testAppCacheInvalidatedByEvents() throws Exception {
+        BlockingQueue<String> events = new ArrayBlockingQueue<>(10);
+        CountDownLatch subscribed = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v2/events", exchange -> {
+            assertTrue(exchange.getRequestURI().getQuery().contains("event_type=status_update_event"));
+            exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            subscribed.countDown();
+            try (OutputStream os = exchange.getResponseBody()) {
+                while (true) {
+                    String event = events.poll(10, TimeUnit.SECONDS);
+                    if (event == null)
+                        break;
+                    os.write(event.getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+            } catch (InterruptedException e) {
+                // done
+            }
+        });
+        server.start();
+
+        try {
+            App app = new App();
+            app.setId("/svc1");
+            app.setInstances(2);
+            app.setTasks(Collections.emptyList());
+            app.addLabel(MarathonServiceManager.SERVICE_NAME, "svc1");
+            GetAppsResponse gasr = new GetAppsResponse();
+            gasr.setApps(Arrays.asList(app));
+            GetAppResponse gar = new GetAppResponse();
+            gar.setApp(app);
+
+            Marathon mc = Mockito.mock(Marathon.class);
+            Mockito.when(mc.getApps(Mockito.anyMap())).thenReturn(gasr);
+            Mockito.when(mc.getApp("/svc1")).thenReturn(gar);
+
+            MarathonServiceManager msm = new MarathonServiceManager(mc,
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/", null);
+            msm.enableEventStream();
+            assertTrue(subscribed.await(10, TimeUnit.SECONDS));
+            AppCache cache = msm.getAppCache();
+            waitFor(cache::isEnabled);
+
+            Service svc = msm.getService(ServiceConfig.builder("svc1", "img").build());
+            assertEquals(2, svc.getActualInstanceCount());
+            assertEquals(2, svc.getActualInstanceCount());
+            svc.listContainers();
+            Mockito.verify(mc, Mockito.times(1)).getApp("/svc1");
+
+            // An event for another app doesn't affect the cache
+            events.add("event: status_update_event\ndata: {\"appId\": \"/other\"}\n\n");
+            events.add("event: status_update_event\ndata: {\"appId\": \"/svc1\", \"taskStatus\": \"TASK_RUNNING\"}\n\n");
+            waitFor(() -> !cache.isCached("/svc1"));
+
+            app.setInstances(3);
+            assertEquals(3, svc.getActualInstanceCount());
+            Mockito.verify(mc, Mockito.times(2)).getApp("/svc1");
+
+            msm.close();
+            waitFor(() -> !cache.isEnabled());
+            assertFalse(cache.isCached("/svc1"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("Condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -22,13 +22,17 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.aries.containers.HealthCheck;
 import org.apache.aries.containers.Service;
 import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.metrics.OperationStats;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -37,13 +41,16 @@ import org.mockito.stubbing.Answer;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import mesosphere.marathon.client.Marathon;
 import mesosphere.marathon.client.model.v2.App;
 import mesosphere.marathon.client.model.v2.Container;
 import mesosphere.marathon.client.model.v2.Docker;
+import mesosphere.marathon.client.model.v2.GetAppResponse;
 import mesosphere.marathon.client.model.v2.GetAppsResponse;
 import mesosphere.marathon.client.model.v2.Port;
+import mesosphere.marathon.client.model.v2.Result;
 
 public class MarathonServiceManagerTest {
     @Test
@@ -186,6 +193,69 @@ public class MarathonServiceManagerTest {
         ServiceConfig cfg = ServiceConfig.builder("asvc", "img.1").build();
         Service svc = msm.getService(cfg);
         assertSame(cfg, svc.getConfiguration());
+        Mockito.verify(mc, Mockito.never()).updateApp(Mockito.anyString(), Mockito.any(App.class), Mockito.anyBoolean());
+    }
+
+    @Test
+    public void testGetExistingServiceAsync() throws Exception {
+        App app = new App();
+        app.setLabels(Collections.singletonMap(MarathonServiceManager.SERVICE_NAME, "asvc"));
+
+        GetAppsResponse ear = Mockito.mock(GetAppsResponse.class);
+        Mockito.when(ear.getApps()).thenReturn(Collections.singletonList(app));
+
+        Marathon mc = Mockito.mock(Marathon.class);
+        Mockito.when(mc.getApps(Collections.singletonMap(
+                "label", MarathonServiceManager.SERVICE_NAME + "==asvc"))).thenReturn(ear);
+
+        MarathonServiceManager msm = new MarathonServiceManager(mc);
+
+        ServiceConfig cfg = ServiceConfig.builder("asvc", "img.1").build();
+        Service svc = msm.getServiceAsync(cfg).get(10, TimeUnit.SECONDS);
+        assertSame(cfg, svc.getConfiguration());
+        msm.close();
+    }
+
+    @Test
+    public void testGetExistingServiceDrifted() throws Exception {
+        ServiceConfig cfg = ServiceConfig.builder("asvc", "img.2").build();
+
+        Map<String, String> labels = new HashMap<>();
+        labels.put(MarathonServiceManager.SERVICE_NAME, "asvc");
+        labels.put(MarathonServiceManager.FINGERPRINT, "launched-with-img.1");
+        App app = new App();
+        app.setId("/asvc");
+        app.setLabels(labels);
+
+        GetAppsResponse ear = Mockito.mock(GetAppsResponse.class);
+        Mockito.when(ear.getApps()).thenReturn(Collections.singletonList(app));
+
+        List<App> updatedApps = new ArrayList<>();
+        Marathon mc = Mockito.mock(Marathon.class);
+        Mockito.when(mc.getApps(Collections.singletonMap(
+                "label", MarathonServiceManager.SERVICE_NAME + "==asvc"))).thenReturn(ear);
+        Mockito.when(mc.updateApp(Mockito.eq("/asvc"), Mockito.isA(App.class), Mockito.eq(true))).
+            then(new Answer<Result>() {
+                @Override
+                public Result answer(InvocationOnMock invocation) throws Throwable {
+                    updatedApps.add((App) invocation.getArguments()[1]);
+                    return Mockito.mock(Result.class);
+                }
+            });
+
+        MarathonServiceManager msm = new MarathonServiceManager(mc);
+        Service svc = msm.getService(cfg);
+        assertSame(cfg, svc.getConfiguration());
+
+        assertEquals("The app should be rolled to the requested configuration", 1, updatedApps.size());
+        App updated = updatedApps.get(0);
+        assertEquals("img.2", updated.getContainer().getDocker().getImage());
+        assertEquals(cfg.getFingerprint(), updated.getLabels().get(MarathonServiceManager.FINGERPRINT));
+
+        // A matching fingerprint leaves the app alone
+        labels.put(MarathonServiceManager.FINGERPRINT, cfg.getFingerprint());
+        msm.getService(cfg);
+        assertEquals(1, updatedApps.size());
     }
 
     @Test
@@ -209,4 +279,46 @@ public class MarathonServiceManagerTest {
         Set<String> names = msm.listServices();
         assertEquals(new HashSet<>(Arrays.asList("svc1", "svc2")), names);
     }
+
+    @Test
+    public void testMetrics() throws Exception {
+        App app = new App();
+        app.setId("msvc");
+        app.setLabels(Collections.singletonMap(MarathonServiceManager.SERVICE_NAME, "msvc"));
+        app.setTasks(Collections.emptyList());
+
+        GetAppsResponse ear = Mockito.mock(GetAppsResponse.class);
+        Mockito.when(ear.getApps()).thenReturn(Collections.singletonList(app));
+        GetAppResponse gar = Mockito.mock(GetAppResponse.class);
+        Mockito.when(gar.getApp()).thenReturn(app);
+
+        Marathon mc = Mockito.mock(Marathon.class);
+        Mockito.when(mc.getApps(Collections.singletonMap(
+                "label", MarathonServiceManager.SERVICE_NAME + "==msvc"))).thenReturn(ear);
+        Mockito.when(mc.getApps(Collections.singletonMap(
+                "label", MarathonServiceManager.SERVICE_NAME))).thenThrow(new IllegalStateException("unavailable"));
+        Mockito.when(mc.getApp("msvc")).thenReturn(gar);
+
+        MarathonServiceManager msm = new MarathonServiceManager(mc);
+        Service svc = msm.getService(ServiceConfig.builder("msvc", "img").build());
+        svc.setInstanceCount(3);
+        assertEquals(0, svc.listContainers().size());
+        svc.refresh();
+        try {
+            msm.listServices();
+            fail("Should have thrown an exception");
+        } catch (IllegalStateException e) {
+            assertEquals("unavailable", e.getMessage());
+        }
+
+        Map<String, OperationStats> stats = msm.getMetrics().getSnapshot();
+        assertEquals(new HashSet<>(Arrays.asList("getService", "setInstanceCount", "listContainers", "refresh",
+                "listServices", "marathon.getApps", "marathon.updateApp", "marathon.getApp")), stats.keySet());
+        assertEquals(2, stats.get("marathon.getApps").getCount());
+        assertEquals(1, stats.get("marathon.getApps").getErrorCount());
+        assertEquals(1, stats.get("listServices").getErrorCount());
+        assertEquals(0, stats.get("getService").getErrorCount());
+        Mockito.verify(mc).updateApp(Mockito.eq("msvc"), Mockito.isA(App.class), Mockito.eq(true));
+        msm.close();
+    }
 }
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.marathon.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import mesosphere.marathon.client.Marathon;
+import mesosphere.marathon.client.model.v2.App;
+import mesosphere.marathon.client.model.v2.GetAppsResponse;
+import mesosphere.marathon.client.utils.MarathonException;
+
+public class PooledMarathonTransportTest {
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+    private final List<String> requestBodies = new CopyOnWriteArrayList<>();
+    private volatile CyclicBarrier barrier;
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private PooledMarathonTransport transport;
+    private Marathon marathon;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v2/apps", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            acceptEncodings.add(String.valueOf(exchange.getRequestHeaders().getFirst("Accept-Encoding")));
+            requestBodies.add(readFully(exchange.getRequestBody()));
+            CyclicBarrier b = barrier;
+            if (b != null) {
+                try {
+                    // Hold each response until the expected number of requests is in flight
+                    b.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+
+            if ("/v2/apps/missing".equals(exchange.getRequestURI().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            if ("POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 201, "{\"id\": \"/svc2\", \"instances\": 1}");
+            } else {
+                respond(exchange, 200, "{\"apps\": [{\"id\": \"/svc1\", \"instances\": 3, " +
+                        "\"labels\": {\"" + MarathonServiceManager.SERVICE_NAME + "\": \"svc1\"}}]}");
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        transport = new PooledMarathonTransport();
+        marathon = transport.createClient("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testConnectionReusedAndGzip() {
+        for (int i = 0; i < 10; i++) {
+            GetAppsResponse apps = marathon.getApps();
+            assertEquals(1, apps.getApps().size());
+            assertEquals("/svc1", apps.getApps().get(0).getId());
+            assertEquals(3, apps.getApps().get(0).getInstances().intValue());
+        }
+
+        assertEquals("All requests should share one kept-alive connection", 1, clientPorts.size());
+        assertEquals(10, acceptEncodings.size());
+        for (String ae : acceptEncodings) {
+            assertTrue(ae, ae.contains("gzip"));
+        }
+    }
+
+    @Test
+    public void testConcurrentAsyncRequestsShareConnections() throws Exception {
+        int concurrency = 4;
+        barrier = new CyclicBarrier(concurrency);
+        AsyncMarathon async = transport.createAsyncClient("http://127.0.0.1:" + server.getAddress().getPort());
+
+        for (int round = 0; round < 5; round++) {
+            List<CompletableFuture<GetAppsResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(async.getAppsAsync(Collections.singletonMap("label", MarathonServiceManager.SERVICE_NAME)));
+            }
+            for (CompletableFuture<GetAppsResponse> f : futures) {
+                GetAppsResponse apps = f.get(10, TimeUnit.SECONDS);
+                assertEquals("/svc1", apps.getApps().get(0).getId());
+            }
+        }
+
+        assertEquals(20, acceptEncodings.size());
+        assertEquals("Each round should reuse the connections of the previous one",
+                concurrency, clientPorts.size());
+    }
+
+    @Test
+    public void testAsyncRequests() throws Exception {
+        AsyncMarathon async = transport.createAsyncClient("http://127.0.0.1:" + server.getAddress().getPort());
+        App app = new App();
+        app.setId("/svc2");
+        app.setInstances(1);
+        assertEquals("/svc2", async.createAppAsync(app).get(10, TimeUnit.SECONDS).getId());
+        assertTrue(requestBodies.get(0), requestBodies.get(0).contains("\"/svc2\""));
+
+        try {
+            async.deleteAppAsync("/missing").get(10, TimeUnit.SECONDS);
+            fail("Should have thrown a MarathonException");
+        } catch (ExecutionException e) {
+            assertEquals(404, ((MarathonException) e.getCause()).getStatus());
+        }
+    }
+
+    @Test
+    public void testRequestBody() {
+        App app = new App();
+        app.setId("/svc2");
+        app.setInstances(1);
+        App created = marathon.createApp(app);
+        assertEquals("/svc2", created.getId());
+        assertTrue(requestBodies.get(0), requestBodies.get(0).contains("\"/svc2\""));
+    }
+
+    @Test
+    public void testErrorStatus() {
+        try {
+            marathon.getApp("missing");
+            fail("Should have thrown a MarathonException");
+        } catch (MarathonException e) {
+            assertEquals(404, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testServiceManager() throws Exception {
+        MarathonServiceManager msm = new MarathonServiceManager("http://127.0.0.1:" + server.getAddress().getPort(),
+                MarathonServiceManager.TRANSPORT_POOLED);
+        try {
+            assertEquals(Collections.singleton("svc1"), msm.listServices());
+            assertEquals(Collections.singleton("svc1"), msm.listServices());
+            assertEquals(2, msm.getMetrics().getStats("marathon.getApps").getCount());
+        } finally {
+            msm.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String ae = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (ae != null && ae.contains("gzip")) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(baos)) {
+                gzip.write(bytes);
+            }
+            bytes = baos.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            baos.write(buf, 0, n);
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
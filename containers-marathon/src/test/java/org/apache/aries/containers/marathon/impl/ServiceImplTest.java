@@ -20,25 +20,36 @@ package org.apache.aries.containers.marathon.impl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.aries.containers.Container;
+import org.apache.aries.containers.HealthCheck;
 import org.apache.aries.containers.ServiceConfig;
+import org.apache.aries.containers.metrics.MetricsRecorder;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import mesosphere.marathon.client.Marathon;
 import mesosphere.marathon.client.model.v2.App;
 import mesosphere.marathon.client.model.v2.GetAppResponse;
+import mesosphere.marathon.client.model.v2.HealthCheckResults;
 import mesosphere.marathon.client.model.v2.Result;
 import mesosphere.marathon.client.model.v2.Task;
 
@@ -160,6 +171,168 @@ public class ServiceImplTest {
         assertEquals(5, (int) updated.getInstances());
     }
 
+    @Test
+    public void testSetInstanceCountAsync() throws Exception {
+        List<App> updatedApps = new ArrayList<>();
+
+        Marathon mc = Mockito.mock(Marathon.class);
+        Mockito.when(mc.updateApp(Mockito.eq("mid1"), Mockito.isA(App.class), Mockito.eq(true))).
+            then(new Answer<Result>() {
+                @Override
+                public Result answer(InvocationOnMock invocation) throws Throwable {
+                    updatedApps.add((App) invocation.getArguments()[1]);
+                    return Mockito.mock(Result.class);
+                }
+            });
+
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "a/b/c:d").build();
+
+        App app = new App();
+        app.setId("mid1");
+        ServiceImpl svc = new ServiceImpl(mc, app, cfg);
+
+        svc.setInstanceCountAsync(7).toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(1, updatedApps.size());
+        assertEquals(7, (int) updatedApps.get(0).getInstances());
+
+        svc.destroyAsync().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        Mockito.verify(mc).deleteApp("mid1");
+    }
+
+    @Test
+    public void testAsyncOperationsComposeOnAsyncClient() throws Exception {
+        Marathon mc = Mockito.mock(Marathon.class);
+        AsyncMarathon amc = Mockito.mock(AsyncMarathon.class);
+        CompletableFuture<Void> updated = new CompletableFuture<>();
+        Mockito.when(amc.updateAppAsync(Mockito.eq("mid1"), Mockito.isA(App.class), Mockito.eq(true))).
+            thenReturn(updated);
+        Mockito.when(amc.deleteAppAsync("mid1")).thenReturn(CompletableFuture.completedFuture(null));
+
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "a/b/c:d").build();
+        App app = new App();
+        app.setId("mid1");
+        MetricsRecorder metrics = new MetricsRecorder();
+        ServiceImpl svc = new ServiceImpl(mc, amc, new AppCache(mc), app, cfg, metrics, new ReadinessPoller());
+
+        CompletableFuture<Void> f = svc.setInstanceCountAsync(7).toCompletableFuture();
+        assertFalse("Should complete when Marathon answered", f.isDone());
+        updated.complete(null);
+        f.get(10, TimeUnit.SECONDS);
+        assertEquals(1, metrics.getStats("setInstanceCount").getCount());
+
+        svc.destroyAsync().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        Mockito.verify(amc).deleteAppAsync("mid1");
+        Mockito.verifyNoMoreInteractions(mc);
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        List<App> updatedApps = new ArrayList<>();
+
+        Marathon mc = Mockito.mock(Marathon.class);
+        Mockito.when(mc.updateApp(Mockito.eq("mid1"), Mockito.isA(App.class), Mockito.eq(true))).
+            then(new Answer<Result>() {
+                @Override
+                public Result answer(InvocationOnMock invocation) throws Throwable {
+                    updatedApps.add((App) invocation.getArguments()[1]);
+                    return Mockito.mock(Result.class);
+                }
+            });
+
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "a/b/c:d").instances(10).build();
+
+        App app = new App();
+        app.setId("mid1");
+        ServiceImpl svc = new ServiceImpl(mc, app, cfg);
+
+        ServiceConfig cfg2 = ServiceConfig.builder("svc1", "a/b/c:e").instances(10).port(80).
+                rollingUpdate(5, 2).build();
+        svc.update(cfg2);
+        assertEquals(cfg2, svc.getConfiguration());
+        assertEquals(1, updatedApps.size());
+
+        App updated = updatedApps.get(0);
+        assertEquals("mid1", updated.getId());
+        assertEquals(10, (int) updated.getInstances());
+        assertEquals("a/b/c:e", updated.getContainer().getDocker().getImage());
+        assertEquals(0.8, updated.getUpgradeStrategy().getMinimumHealthCapacity(), 0.001);
+        assertEquals(0.5, updated.getUpgradeStrategy().getMaximumOverCapacity(), 0.001);
+
+        try {
+            svc.update(ServiceConfig.builder("svc2", "a/b/c:e").build());
+            fail("Should not be able to update to the configuration of another service");
+        } catch (IllegalArgumentException e) {
+            // good
+        }
+    }
+
+    @Test
+    public void testAwaitReady() throws Exception {
+        Marathon mc = Mockito.mock(Marathon.class);
+
+        App a1 = new App();
+        a1.setTasks(Arrays.asList(task("task1", true), task("task2", false)));
+        App a2 = new App();
+        a2.setTasks(Arrays.asList(task("task1", true), task("task2", true)));
+        App a3 = new App();
+        a3.setTasks(Collections.singletonList(task("task1", true)));
+        GetAppResponse gar = Mockito.mock(GetAppResponse.class);
+        AtomicReference<App> current = new AtomicReference<>(a1);
+        Mockito.when(gar.getApp()).then(i -> current.get());
+        Mockito.when(mc.getApp("mid1")).thenReturn(gar);
+
+        ServiceConfig cfg = ServiceConfig.builder("svc1", "a/b/c:d").instances(2).port(8080).
+                healthCheck(HealthCheck.builder(HealthCheck.Type.HTTP).parameters("/health").build()).
+                build();
+        App app = new App();
+        app.setId("mid1");
+
+        try (ReadinessPoller poller = new ReadinessPoller(10)) {
+            ServiceImpl svc = new ServiceImpl(mc, new AppCache(mc), app, cfg,
+                    Runnable::run, new MetricsRecorder(), poller);
+
+            Map<String, Container> containers = new HashMap<>();
+            for (Container c : svc.listContainers()) {
+                containers.put(c.getID(), c);
+            }
+            assertTrue(containers.get("task1").readiness().toCompletableFuture().isDone());
+            CompletableFuture<Container> task2 = containers.get("task2").readiness().toCompletableFuture();
+            CompletableFuture<List<Container>> one = svc.awaitReady(1);
+            CompletableFuture<List<Container>> two = svc.awaitReady(2);
+
+            assertEquals(1, one.get(10, TimeUnit.SECONDS).size());
+            Thread.sleep(100);
+            assertFalse(two.isDone());
+            assertFalse(task2.isDone());
+
+            current.set(a2);
+            assertEquals(2, two.get(10, TimeUnit.SECONDS).size());
+            assertEquals("task2", task2.get(10, TimeUnit.SECONDS).getID());
+
+            // A task that disappears fails its readiness future
+            current.set(a3);
+            CompletableFuture<Container> vanished = containers.get("task2").readiness().toCompletableFuture();
+            try {
+                vanished.get(10, TimeUnit.SECONDS);
+                fail("Should have failed as the task was removed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    private static Task task(String id, boolean alive) {
+        HealthCheckResults hcr = new HealthCheckResults();
+        hcr.setAlive(alive);
+
+        Task t = new Task();
+        t.setId(id);
+        t.setHost("1.2.3.4");
+        t.setPorts(Collections.singletonList(31000));
+        t.setHealthCheckResults(Collections.singletonList(hcr));
+        return t;
+    }
+
     private GetAppResponse getAppResponse(App a) {
         GetAppResponse gar = Mockito.mock(GetAppResponse.class);
         Mockito.when(gar.getApp()).thenReturn(a);
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.docker;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A container held by the {@link FakeDocker}.
+ */
+public class FakeContainer {
+    private final String id;
+    private final String name;
+    private final String image;
+    private final List<String> command;
+    private final List<String> env;
+    private final Map<String, String> labels;
+    private final Map<String, String> portBindings;
+    private final String ipAddress;
+    private final long created;
+    private volatile String state = "created";
+
+    FakeContainer(String id, String name, String image, List<String> command, List<String> env,
+            Map<String, String> labels, Map<String, String> portBindings, String ipAddress, long created) {
+        this.id = id;
+        this.name = name;
+        this.image = image;
+        this.command = Collections.unmodifiableList(command);
+        this.env = Collections.unmodifiableList(env);
+        this.labels = Collections.unmodifiableMap(labels);
+        this.portBindings = Collections.unmodifiableMap(portBindings);
+        this.ipAddress = ipAddress;
+        this.created = created;
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getImage() {
+        return image;
+    }
+
+    public List<String> getCommand() {
+        return command;
+    }
+
+    public List<String> getEnv() {
+        return env;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return The published ports, container port and protocol such as {@code 80/tcp}
+     * mapped to the host port.
+     */
+    public Map<String, String> getPortBindings() {
+        return portBindings;
+    }
+
+    public String getIPAddress() {
+        return ipAddress;
+    }
+
+    /** @return The creation time in milliseconds since the epoch. */
+    public long getCreated() {
+        return created;
+    }
+
+    /** @return The state, one of {@code created}, {@code running} or {@code exited}. */
+    public String getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return "running".equals(state);
+    }
+
+    void setState(String state) {
+        this.state = state;
+    }
+
+    @Override
+    public String toString() {
+        return "FakeContainer [id=" + id + ", name=" + name + ", image=" + image + ", state=" + state + "]";
+    }
+}
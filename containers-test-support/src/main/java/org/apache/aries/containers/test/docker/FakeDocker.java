@@ -0,0 +1,443 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.docker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.apache.felix.utils.json.JSONWriter;
+
+/**
+ * An in-memory docker daemon. Containers are only book-kept, nothing is executed.
+ * The state can be driven through the {@code docker} command line stand-in
+ * provided by {@link FakeDockerCli} or through the Engine API served by
+ * {@link FakeEngineServer}, both of which can be used at the same time. <p>
+ *
+ * To make load tests more realistic a latency can be configured per command,
+ * which is applied before the command is executed. Commands are named after
+ * their {@code docker} sub-command, for example {@code run}, {@code ps} or {@code rm}.
+ */
+public class FakeDocker {
+    private final ConcurrentMap<String, FakeContainer> containers = new ConcurrentHashMap<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, Long> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> invocations = new ConcurrentHashMap<>();
+    private final AtomicLong counter = new AtomicLong();
+    private volatile long defaultLatency;
+
+    /**
+     * Configure the latency of a command.
+     *
+     * @param command The command, for example {@code run}.
+     * @param latency The time to wait before the command is executed.
+     * @param unit The unit of the latency.
+     */
+    public void setLatency(String command, long latency, TimeUnit unit) {
+        latencies.put(command, unit.toNanos(latency));
+    }
+
+    /**
+     * Configure the latency of all commands that don't have their own latency configured.
+     */
+    public void setDefaultLatency(long latency, TimeUnit unit) {
+        defaultLatency = unit.toNanos(latency);
+    }
+
+    /**
+     * @return The number of times the command was invoked.
+     */
+    public long getInvocationCount(String command) {
+        LongAdder count = invocations.get(command);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Count an invocation of a command and wait for its configured latency.
+     */
+    void invoke(String command) {
+        invocations.computeIfAbsent(command, c -> new LongAdder()).increment();
+        long latency = latencies.getOrDefault(command, defaultLatency);
+        if (latency <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create a container without starting it.
+     *
+     * @param name The container name or {@code null} to generate one.
+     * @param image The image.
+     * @param command The command line.
+     * @param env The environment in the form {@code key=value}.
+     * @param labels The labels.
+     * @param portBindings Container port and protocol, for example {@code 80/tcp}, mapped to the
+     * host port. An empty host port is assigned one.
+     * @return The created container.
+     */
+    public FakeContainer create(String name, String image, List<String> command, List<String> env,
+            Map<String, String> labels, Map<String, String> portBindings) {
+        if (image == null || image.length() == 0)
+            throw new FakeDockerException(400, "No image specified");
+
+        long n = counter.incrementAndGet();
+        String id = String.format("%016x%016x%016x%016x", n, ThreadLocalRandom.current().nextLong(),
+                ThreadLocalRandom.current().nextLong(), ThreadLocalRandom.current().nextLong());
+        Map<String, String> ports = new LinkedHashMap<>();
+        for (Map.Entry<String, String> p : portBindings.entrySet()) {
+            String hostPort = p.getValue();
+            if (hostPort == null || hostPort.length() == 0)
+                hostPort = Long.toString(32768 + n % 28000);
+            ports.put(p.getKey(), hostPort);
+        }
+
+        FakeContainer c = new FakeContainer(id, name == null ? "fake_" + n : name, image,
+                new ArrayList<>(command), new ArrayList<>(env), new LinkedHashMap<>(labels), ports,
+                "172.17." + (n / 250 % 250) + "." + (n % 250 + 2), System.currentTimeMillis());
+        containers.put(id, c);
+        fire(c, "create");
+        return c;
+    }
+
+    /**
+     * Start a container.
+     *
+     * @param idOrName The full or abbreviated ID or the name of the container.
+     * @return The started container.
+     */
+    public FakeContainer start(String idOrName) {
+        FakeContainer c = get(idOrName);
+        synchronized (c) {
+            if (c.isRunning())
+                return c;
+            c.setState("running");
+        }
+        fire(c, "start");
+        return c;
+    }
+
+    /**
+     * Kill a running container.
+     *
+     * @param idOrName The full or abbreviated ID or the name of the container.
+     * @return The killed container.
+     */
+    public FakeContainer kill(String idOrName) {
+        FakeContainer c = get(idOrName);
+        synchronized (c) {
+            if (!c.isRunning())
+                throw new FakeDockerException(409, "Cannot kill container: " + idOrName +
+                        ": Container " + c.getID() + " is not running");
+            c.setState("exited");
+        }
+        fire(c, "kill");
+        fire(c, "die");
+        return c;
+    }
+
+    /**
+     * Remove a container.
+     *
+     * @param idOrName The full or abbreviated ID or the name of the container.
+     * @param force Whether to kill the container first if it is running.
+     * @return The removed container.
+     */
+    public FakeContainer remove(String idOrName, boolean force) {
+        FakeContainer c = get(idOrName);
+        boolean wasRunning;
+        synchronized (c) {
+            wasRunning = c.isRunning();
+            if (wasRunning && !force)
+                throw new FakeDockerException(409, "You cannot remove a running container " + c.getID() +
+                        ". Stop the container before attempting removal or force remove");
+            if (containers.remove(c.getID()) == null)
+                throw noSuchContainer(idOrName);
+            c.setState("exited");
+        }
+        if (wasRunning) {
+            fire(c, "kill");
+            fire(c, "die");
+        }
+        fire(c, "destroy");
+        return c;
+    }
+
+    /**
+     * Look up a container.
+     *
+     * @param idOrName The full or abbreviated ID or the name of the container.
+     * @return The container.
+     * @throws FakeDockerException If there is no such container.
+     */
+    public FakeContainer get(String idOrName) {
+        FakeContainer c = containers.get(idOrName);
+        if (c != null)
+            return c;
+
+        FakeContainer match = null;
+        for (FakeContainer candidate : containers.values()) {
+            if (candidate.getName().equals(idOrName))
+                return candidate;
+            if (candidate.getID().startsWith(idOrName)) {
+                if (match != null)
+                    throw new FakeDockerException(400, "Multiple IDs found with provided prefix: " + idOrName);
+                match = candidate;
+            }
+        }
+        if (match == null)
+            throw noSuchContainer(idOrName);
+        return match;
+    }
+
+    private static FakeDockerException noSuchContainer(String idOrName) {
+        return new FakeDockerException(404, "No such container: " + idOrName);
+    }
+
+    /**
+     * List containers, newest first.
+     *
+     * @param all Whether to include containers that are not running.
+     * @param labelFilters Label filters in the form {@code key} or {@code key=value},
+     * all of which must match.
+     * @return The matching containers.
+     */
+    public List<FakeContainer> list(boolean all, Collection<String> labelFilters) {
+        return list(all, labelFilters, Collections.emptyList());
+    }
+
+    /**
+     * List containers, newest first.
+     *
+     * @param all Whether to include containers that are not running.
+     * @param labelFilters Label filters in the form {@code key} or {@code key=value},
+     * all of which must match.
+     * @param states The states of the containers to list, see
+     * {@link FakeContainer#getState()}, or empty to list containers in any state.
+     * @return The matching containers.
+     */
+    public List<FakeContainer> list(boolean all, Collection<String> labelFilters, Collection<String> states) {
+        List<FakeContainer> res = new ArrayList<>();
+        for (FakeContainer c : containers.values()) {
+            if ((all || c.isRunning()) && matches(c, labelFilters) &&
+                    (states.isEmpty() || states.contains(c.getState())))
+                res.add(c);
+        }
+        res.sort(Comparator.comparing(FakeContainer::getCreated).reversed());
+        return res;
+    }
+
+    /**
+     * @return All containers, in no particular order.
+     */
+    public Collection<FakeContainer> getContainers() {
+        return containers.values();
+    }
+
+    /**
+     * Subscribe to container events.
+     *
+     * @param labelFilters Label filters in the form {@code key} or {@code key=value},
+     * all of which must match.
+     * @param listener Receives each event as a line of JSON in the format of the
+     * Engine API, on the thread that caused the event. If the listener throws
+     * it is unsubscribed.
+     * @return A handle that cancels the subscription.
+     */
+    public Closeable subscribe(Collection<String> labelFilters, Consumer<String> listener) {
+        Subscription s = new Subscription(new ArrayList<>(labelFilters), listener);
+        subscriptions.add(s);
+        return () -> subscriptions.remove(s);
+    }
+
+    private void fire(FakeContainer c, String action) {
+        if (subscriptions.isEmpty())
+            return;
+
+        String event = eventJSON(c, action);
+        for (Subscription s : subscriptions) {
+            if (!matches(c, s.labelFilters))
+                continue;
+
+            try {
+                s.listener.accept(event);
+            } catch (RuntimeException e) {
+                subscriptions.remove(s);
+            }
+        }
+    }
+
+    static boolean matches(FakeContainer c, Collection<String> labelFilters) {
+        for (String filter : labelFilters) {
+            int idx = filter.indexOf('=');
+            String key = idx < 0 ? filter : filter.substring(0, idx);
+            String value = c.getLabels().get(key);
+            if (value == null)
+                return false;
+            if (idx >= 0 && !value.equals(filter.substring(idx + 1)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The container in the format of {@code docker inspect}.
+     */
+    public static String inspectJSON(FakeContainer c) {
+        return json(w -> {
+            w.object();
+            w.key("Id").value(c.getID());
+            w.key("Created").value(Instant.ofEpochMilli(c.getCreated()).toString());
+            w.key("Name").value("/" + c.getName());
+            w.key("Image").value(c.getImage());
+            w.key("State").object();
+            w.key("Status").value(c.getState());
+            w.key("Running").value(c.isRunning());
+            w.key("ExitCode").value(c.isRunning() ? 0 : 137);
+            w.endObject();
+            w.key("Config").object();
+            w.key("Image").value(c.getImage());
+            w.key("Cmd").value(c.getCommand());
+            w.key("Env").value(c.getEnv());
+            w.key("Labels").value(c.getLabels());
+            w.key("ExposedPorts").object();
+            for (String p : c.getPortBindings().keySet()) {
+                w.key(p).object().endObject();
+            }
+            w.endObject();
+            w.endObject();
+            w.key("NetworkSettings").object();
+            w.key("IPAddress").value(c.isRunning() ? c.getIPAddress() : "");
+            w.key("Ports").object();
+            if (c.isRunning()) {
+                for (Map.Entry<String, String> p : c.getPortBindings().entrySet()) {
+                    w.key(p.getKey()).array().object();
+                    w.key("HostIp").value("0.0.0.0");
+                    w.key("HostPort").value(p.getValue());
+                    w.endObject().endArray();
+                }
+            }
+            w.endObject();
+            w.endObject();
+            w.key("Mounts").array().endArray();
+            w.endObject();
+        });
+    }
+
+    /**
+     * @return The container in the format of the Engine API container list.
+     */
+    public static String summaryJSON(FakeContainer c) {
+        return json(w -> {
+            w.object();
+            w.key("Id").value(c.getID());
+            w.key("Names").array().value("/" + c.getName()).endArray();
+            w.key("Image").value(c.getImage());
+            w.key("Command").value(String.join(" ", c.getCommand()));
+            w.key("Created").value(c.getCreated() / 1000);
+            w.key("State").value(c.getState());
+            w.key("Status").value(c.isRunning() ? "Up" : "Exited (137)");
+            w.key("Labels").value(c.getLabels());
+            w.key("Ports").array();
+            for (Map.Entry<String, String> p : c.getPortBindings().entrySet()) {
+                String[] portProto = p.getKey().split("/");
+                w.object();
+                w.key("IP").value("0.0.0.0");
+                w.key("PrivatePort").value(Integer.parseInt(portProto[0]));
+                w.key("PublicPort").value(Integer.parseInt(p.getValue()));
+                w.key("Type").value(portProto.length > 1 ? portProto[1] : "tcp");
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+        });
+    }
+
+    static String eventJSON(FakeContainer c, String action) {
+        long now = System.currentTimeMillis();
+        return json(w -> {
+            w.object();
+            w.key("status").value(action);
+            w.key("id").value(c.getID());
+            w.key("from").value(c.getImage());
+            w.key("Type").value("container");
+            w.key("Action").value(action);
+            w.key("Actor").object();
+            w.key("ID").value(c.getID());
+            w.key("Attributes").object();
+            for (Map.Entry<String, String> l : c.getLabels().entrySet()) {
+                w.key(l.getKey()).value(l.getValue());
+            }
+            w.key("image").value(c.getImage());
+            w.key("name").value(c.getName());
+            w.endObject();
+            w.endObject();
+            w.key("time").value(now / 1000);
+            w.key("timeNano").value(TimeUnit.MILLISECONDS.toNanos(now));
+            w.endObject();
+        });
+    }
+
+    static String json(JSONBody body) {
+        StringWriter sw = new StringWriter();
+        try {
+            JSONWriter w = new JSONWriter(sw);
+            body.write(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    interface JSONBody {
+        void write(JSONWriter w) throws IOException;
+    }
+
+    private static class Subscription {
+        final List<String> labelFilters;
+        final Consumer<String> listener;
+
+        Subscription(List<String> labelFilters, Consumer<String> listener) {
+            this.labelFilters = labelFilters;
+            this.listener = listener;
+        }
+    }
+}
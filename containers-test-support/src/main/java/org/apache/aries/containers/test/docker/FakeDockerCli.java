@@ -0,0 +1,473 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.docker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for the {@code docker} command line tool, backed by a {@link FakeDocker}. <p>
+ *
+ * {@link #getExecutable()} is a small bash script that passes its arguments over
+ * a loopback socket to this class and prints the output, so the command costs a
+ * process launch like the real tool but no JVM start. The commands used by the
+ * service managers are supported: {@code run}, {@code create}, {@code start},
+ * {@code ps}, {@code inspect}, {@code kill}, {@code rm} and {@code events}.
+ * Like the real tool, errors are printed after the regular output. <p>
+ *
+ * Requires bash.
+ */
+public class FakeDockerCli implements Closeable {
+    private static final Pattern TEMPLATE_FIELD = Pattern.compile("\\{\\{\\s*(json\\s+)?\\.(\\w*)(?:\\s+\"([^\"]*)\")?\\s*\\}\\}");
+
+    private final FakeDocker docker;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final Path directory;
+    private final Path executable;
+    private volatile boolean closed;
+
+    public FakeDockerCli(FakeDocker docker) throws IOException {
+        this.docker = docker;
+        serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("aries-containers-fake-docker-cli"));
+
+        directory = Files.createTempDirectory("fake-docker");
+        executable = directory.resolve("docker");
+        String script = "#!/bin/bash\n"
+                + "exec 3<>/dev/tcp/127.0.0.1/" + serverSocket.getLocalPort() + " || exit 1\n"
+                + "printf '%s\\0' \"$#\" \"$@\" >&3\n"
+                + "exec cat <&3\n";
+        Files.write(executable, script.getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(executable, PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        executor.execute(this::accept);
+    }
+
+    /**
+     * @return The path of the {@code docker} executable to invoke.
+     */
+    public Path getExecutable() {
+        return executable;
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        sockets.add(socket);
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            int argc = Integer.parseInt(readArg(in));
+            List<String> args = new ArrayList<>(argc);
+            for (int i = 0; i < argc; i++) {
+                args.add(readArg(in));
+            }
+
+            OutputStream out = s.getOutputStream();
+            if (args.size() > 0 && args.get(0).equals("events")) {
+                events(args.subList(1, args.size()), in, out);
+            } else {
+                out.write(execute(args).getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            // The client went away
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    private static String readArg(InputStream in) throws IOException {
+        ByteArrayOutputStream arg = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            arg.write(b);
+        }
+        if (b < 0)
+            throw new IOException("Unexpected end of arguments");
+        return new String(arg.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Execute a docker command.
+     *
+     * @param args The arguments, without the {@code docker} executable itself.
+     * @return The output, including error messages.
+     */
+    String execute(List<String> args) {
+        if (args.isEmpty())
+            return "Usage: docker COMMAND\n";
+
+        String command = args.get(0);
+        List<String> params = args.subList(1, args.size());
+        docker.invoke(command);
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        try {
+            switch (command) {
+            case "run":
+                FakeContainer c = create(params);
+                docker.start(c.getID());
+                out.append(c.getID()).append('\n');
+                break;
+            case "create":
+                out.append(create(params).getID()).append('\n');
+                break;
+            case "start":
+                for (String id : operands(params)) {
+                    try {
+                        docker.start(id);
+                        out.append(id).append('\n');
+                    } catch (FakeDockerException e) {
+                        err.append("Error response from daemon: ").append(e.getMessage()).append('\n');
+                    }
+                }
+                break;
+            case "ps":
+                ps(params, out);
+                break;
+            case "inspect":
+                inspect(params, out, err);
+                break;
+            case "kill":
+                for (String id : operands(params, "-s", "--signal")) {
+                    try {
+                        docker.kill(id);
+                        out.append(id).append('\n');
+                    } catch (FakeDockerException e) {
+                        err.append("Error response from daemon: ").append(e.getMessage()).append('\n');
+                    }
+                }
+                break;
+            case "rm":
+                boolean force = params.contains("-f") || params.contains("--force");
+                for (String id : operands(params)) {
+                    try {
+                        docker.remove(id, force);
+                        out.append(id).append('\n');
+                    } catch (FakeDockerException e) {
+                        err.append(e.getStatus() == 404 ? "Error: " : "Error response from daemon: ")
+                            .append(e.getMessage()).append('\n');
+                    }
+                }
+                break;
+            default:
+                err.append("docker: '").append(command).append("' is not a docker command.\n");
+            }
+        } catch (FakeDockerException | IllegalArgumentException e) {
+            err.append("docker: Error response from daemon: ").append(e.getMessage()).append('\n');
+        }
+        return out.append(err).toString();
+    }
+
+    private FakeContainer create(List<String> params) {
+        String name = null;
+        String image = null;
+        List<String> cmd = new ArrayList<>();
+        List<String> env = new ArrayList<>();
+        Map<String, String> labels = new LinkedHashMap<>();
+        Map<String, String> ports = new LinkedHashMap<>();
+
+        for (int i = 0; i < params.size(); i++) {
+            String arg = params.get(i);
+            if (image != null) {
+                cmd.add(arg);
+                continue;
+            }
+
+            switch (arg) {
+            case "-d":
+            case "--detach":
+            case "--rm":
+            case "-i":
+            case "-t":
+                break;
+            case "-l":
+            case "--label":
+                String label = value(params, ++i, arg);
+                int idx = label.indexOf('=');
+                labels.put(idx < 0 ? label : label.substring(0, idx), idx < 0 ? "" : label.substring(idx + 1));
+                break;
+            case "-e":
+            case "--env":
+                env.add(value(params, ++i, arg));
+                break;
+            case "-p":
+            case "--publish":
+                String mapping = value(params, ++i, arg);
+                int pidx = mapping.lastIndexOf(':');
+                String containerPort = mapping.substring(pidx + 1);
+                if (containerPort.indexOf('/') < 0)
+                    containerPort += "/tcp";
+                ports.put(containerPort, pidx < 0 ? "" : mapping.substring(mapping.lastIndexOf(':', pidx - 1) + 1, pidx));
+                break;
+            case "--name":
+                name = value(params, ++i, arg);
+                break;
+            case "--entrypoint":
+            case "--cpus":
+            case "-m":
+            case "--memory":
+            case "--health-cmd":
+            case "--health-interval":
+            case "--health-timeout":
+            case "--health-retries":
+            case "--health-start-period":
+                value(params, ++i, arg);
+                break;
+            default:
+                if (arg.startsWith("-"))
+                    throw new IllegalArgumentException("unknown flag: " + arg);
+                image = arg;
+            }
+        }
+        return docker.create(name, image, cmd, env, labels, ports);
+    }
+
+    private void ps(List<String> params, StringBuilder out) {
+        boolean quiet = false;
+        boolean noTrunc = false;
+        boolean all = false;
+        String format = null;
+        List<String> labelFilters = new ArrayList<>();
+        List<String> states = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            String arg = params.get(i);
+            switch (arg) {
+            case "-q":
+            case "--quiet":
+                quiet = true;
+                break;
+            case "--no-trunc":
+                noTrunc = true;
+                break;
+            case "-a":
+            case "--all":
+                all = true;
+                break;
+            case "--format":
+                format = value(params, ++i, arg);
+                break;
+            case "-f":
+            case "--filter":
+                String filter = value(params, ++i, arg);
+                if (filter.startsWith("label="))
+                    labelFilters.add(filter.substring("label=".length()));
+                else if (filter.startsWith("status="))
+                    states.add(filter.substring("status=".length()));
+                else
+                    throw new IllegalArgumentException("Unsupported filter: " + filter);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown flag: " + arg);
+            }
+        }
+
+        List<FakeContainer> containers = docker.list(all, labelFilters, states);
+        if (quiet) {
+            for (FakeContainer c : containers) {
+                out.append(id(c, noTrunc)).append('\n');
+            }
+        } else if (format != null) {
+            for (FakeContainer c : containers) {
+                out.append(format(format, c, noTrunc)).append('\n');
+            }
+        } else {
+            out.append(String.format("%-14s %-20s %-10s %s%n", "CONTAINER ID", "IMAGE", "STATUS", "NAMES"));
+            for (FakeContainer c : containers) {
+                out.append(String.format("%-14s %-20s %-10s %s%n", id(c, noTrunc), c.getImage(),
+                        c.isRunning() ? "Up" : "Exited", c.getName()));
+            }
+        }
+    }
+
+    private static String id(FakeContainer c, boolean noTrunc) {
+        return noTrunc ? c.getID() : c.getID().substring(0, 12);
+    }
+
+    static String format(String template, FakeContainer c, boolean noTrunc) {
+        Matcher m = TEMPLATE_FIELD.matcher(template);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String value;
+            if (m.group(1) != null) {
+                value = FakeDocker.summaryJSON(c);
+            } else {
+                switch (m.group(2)) {
+                case "ID":
+                    value = id(c, noTrunc);
+                    break;
+                case "Image":
+                    value = c.getImage();
+                    break;
+                case "Names":
+                    value = c.getName();
+                    break;
+                case "Status":
+                    value = c.isRunning() ? "Up" : "Exited";
+                    break;
+                case "Label":
+                    value = c.getLabels().getOrDefault(m.group(3), "");
+                    break;
+                default:
+                    value = "";
+                }
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(value));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private void inspect(List<String> params, StringBuilder out, StringBuilder err) {
+        out.append('[');
+        boolean first = true;
+        for (String id : operands(params)) {
+            try {
+                String json = FakeDocker.inspectJSON(docker.get(id));
+                if (!first)
+                    out.append(',');
+                out.append('\n').append(json);
+                first = false;
+            } catch (FakeDockerException e) {
+                err.append("Error: No such object: ").append(id).append('\n');
+            }
+        }
+        out.append("\n]\n");
+    }
+
+    private void events(List<String> params, InputStream in, OutputStream out) throws IOException {
+        docker.invoke("events");
+        List<String> labelFilters = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            String arg = params.get(i);
+            if (arg.equals("-f") || arg.equals("--filter")) {
+                String filter = value(params, ++i, arg);
+                if (filter.startsWith("label="))
+                    labelFilters.add(filter.substring("label=".length()));
+            } else if (arg.equals("--format")) {
+                // Events are always written as JSON
+                i++;
+            }
+        }
+
+        Closeable subscription = docker.subscribe(labelFilters, event -> {
+            try {
+                synchronized (out) {
+                    out.write((event + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            // The client never writes, the stream ends when it goes away
+            while (in.read() >= 0) {
+                // Ignore
+            }
+        } finally {
+            subscription.close();
+        }
+    }
+
+    private static List<String> operands(List<String> params, String... optionsWithValue) {
+        List<String> res = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            String arg = params.get(i);
+            if (arg.startsWith("-")) {
+                for (String o : optionsWithValue) {
+                    if (o.equals(arg))
+                        i++;
+                }
+                continue;
+            }
+            res.add(arg);
+        }
+        return res;
+    }
+
+    private static String value(List<String> params, int i, String option) {
+        if (i >= params.size())
+            throw new IllegalArgumentException("flag needs an argument: " + option);
+        return params.get(i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket s : sockets) {
+            s.close();
+        }
+        executor.shutdownNow();
+        Files.deleteIfExists(executable);
+        Files.deleteIfExists(directory);
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.docker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.felix.utils.json.JSONParser;
+
+/**
+ * A minimal HTTP/1.1 server that stands in for the Docker Engine API. It either
+ * serves a {@link FakeDocker}, or answers each request with a handler so that tests
+ * can script the responses, including chunked, truncated and missing responses.
+ * The server listens on the loopback interface or on a unix domain socket, use
+ * {@link #getDockerHost()} as the docker host. Connections are kept alive, so that
+ * connection reuse can be verified with {@link #getConnectionCount()}.
+ * <p>
+ * When serving a {@link FakeDocker}, requests may carry an API version prefix such
+ * as {@code /v1.25}. The endpoints used by the service managers are supported:
+ * container create, start, kill, remove, list and inspect, and the event stream.
+ */
+public class FakeEngineServer implements Closeable {
+    private static final Pattern VERSION_PREFIX = Pattern.compile("^/v\\d+\\.\\d+");
+    private static final Pattern CONTAINER_PATH = Pattern.compile("^/containers/([^/]+)(/\\w+)?$");
+
+    /**
+     * A request received by the server.
+     */
+    public static class Request {
+        private final String method;
+        private final String path;
+        private final String body;
+
+        Request(String method, String path, String body) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        /** @return The request method, for example {@code GET}. */
+        public String getMethod() {
+            return method;
+        }
+
+        /** @return The request path including the query string, as sent. */
+        public String getPath() {
+            return path;
+        }
+
+        /** @return The request body, an empty string if there is none. */
+        public String getBody() {
+            return body;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path;
+        }
+    }
+
+    /**
+     * A response to send, see {@link FakeEngineServer#tcp(Function)}.
+     */
+    public static class Response {
+        private final int status;
+        private final String body;
+        private final boolean chunked;
+        private final EventSource events;
+        private boolean truncated;
+
+        public Response(int status, String body) {
+            this(status, body, false);
+        }
+
+        /**
+         * @param status The status code.
+         * @param body The body or {@code null} for an empty body.
+         * @param chunked If {@code true} the body is sent with chunked transfer encoding,
+         * one chunk per line.
+         */
+        public Response(int status, String body, boolean chunked) {
+            this(status, body, chunked, null);
+        }
+
+        private Response(int status, String body, boolean chunked, EventSource events) {
+            this.status = status;
+            this.body = body;
+            this.chunked = chunked;
+            this.events = events;
+        }
+
+        /**
+         * @return A response that closes the connection without answering the request.
+         */
+        public static Response disconnect() {
+            return new Response(0, null);
+        }
+
+        /**
+         * @return This response, but the connection is closed halfway through the body.
+         */
+        public Response truncated() {
+            truncated = true;
+            return this;
+        }
+    }
+
+    /**
+     * Supplies the lines of a response that is streamed until the server is closed.
+     */
+    private interface EventSource {
+        /**
+         * @return The next line or {@code null} if there is none yet.
+         */
+        String poll() throws InterruptedException;
+
+        void close();
+    }
+
+    private final ServerSocketChannel server;
+    private final String dockerHost;
+    private final Function<Request, Response> handler;
+    private final FakeDocker docker;
+    private final ExecutorService executor;
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    /**
+     * Serve a {@link FakeDocker} on the loopback interface.
+     *
+     * @param docker The docker stand-in.
+     * @throws IOException If the server cannot be started.
+     */
+    public FakeEngineServer(FakeDocker docker) throws IOException {
+        this(tcpChannel(), null, docker, null);
+    }
+
+    private FakeEngineServer(ServerSocketChannel server, String dockerHost, FakeDocker docker,
+            Function<Request, Response> handler) throws IOException {
+        this.server = server;
+        this.dockerHost = dockerHost != null ? dockerHost
+                : "tcp://127.0.0.1:" + ((InetSocketAddress) server.getLocalAddress()).getPort();
+        this.docker = docker;
+        this.handler = handler != null ? handler : this::handle;
+        executor = Executors.newCachedThreadPool(
+                new FakeDockerCli.DaemonThreadFactory("aries-containers-fake-docker-engine"));
+        executor.execute(this::acceptLoop);
+    }
+
+    /**
+     * Answer requests on the loopback interface with a handler.
+     *
+     * @param handler Called for each request, possibly from several threads at the same time.
+     * @return The server.
+     * @throws IOException If the server cannot be started.
+     */
+    public static FakeEngineServer tcp(Function<Request, Response> handler) throws IOException {
+        return new FakeEngineServer(tcpChannel(), null, null, handler);
+    }
+
+    /**
+     * Answer requests on a unix domain socket with a handler. Unix domain socket
+     * channels are only available from Java 16.
+     *
+     * @param socketFile The socket file to create.
+     * @param handler Called for each request, possibly from several threads at the same time.
+     * @return The server.
+     * @throws Exception If the server cannot be started, for example because the
+     * Java version does not support unix domain socket channels.
+     */
+    public static FakeEngineServer unix(Path socketFile, Function<Request, Response> handler) throws Exception {
+        ServerSocketChannel ssc = (ServerSocketChannel) ServerSocketChannel.class.
+                getMethod("open", ProtocolFamily.class).
+                invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        ssc.bind((SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").
+                getMethod("of", String.class).invoke(null, socketFile.toString()));
+        return new FakeEngineServer(ssc, "unix://" + socketFile, null, handler);
+    }
+
+    private static ServerSocketChannel tcpChannel() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        return ssc;
+    }
+
+    /**
+     * @return The docker host to connect to, for example {@code tcp://127.0.0.1:38475}.
+     */
+    public String getDockerHost() {
+        return dockerHost;
+    }
+
+    /**
+     * @return The requests received so far, in the order in which they were received.
+     */
+    public List<Request> getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return The number of connections accepted so far.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (server.isOpen()) {
+                SocketChannel sc = server.accept();
+                // Like the client, send each response without waiting for the previous one to be acknowledged
+                if (sc.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY))
+                    sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                connections.incrementAndGet();
+                channels.add(sc);
+                executor.execute(() -> serve(sc));
+            }
+        } catch (IOException e) {
+            // Server closed
+        }
+    }
+
+    private void serve(SocketChannel sc) {
+        try (SocketChannel channel = sc) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 8192);
+
+            String requestLine;
+            while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+                int contentLength = 0;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0) {
+                    if (header.toLowerCase().startsWith("content-length:"))
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                }
+
+                byte[] body = new byte[contentLength];
+                for (int read = 0; read < contentLength; ) {
+                    int r = in.read(body, read, contentLength - read);
+                    if (r < 0)
+                        return;
+                    read += r;
+                }
+
+                String[] parts = requestLine.split(" ");
+                Request req = new Request(parts[0], parts[1], new String(body, StandardCharsets.UTF_8));
+                requests.add(req);
+
+                Response res = handler.apply(req);
+                if (res.status == 0)
+                    return;
+                if (res.events != null) {
+                    stream(out, res);
+                    return;
+                }
+                if (res.chunked) {
+                    writeChunked(out, res);
+                    continue;
+                }
+
+                byte[] resBody = res.body == null ? new byte[0] : res.body.getBytes(StandardCharsets.UTF_8);
+                out.write(head(res.status, "Content-Length: " + resBody.length));
+                if (res.truncated) {
+                    out.write(resBody, 0, resBody.length / 2);
+                    out.flush();
+                    return;
+                }
+                out.write(resBody);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed
+        } finally {
+            channels.remove(sc);
+        }
+    }
+
+    private static byte[] head(int status, String header) {
+        return ("HTTP/1.1 " + status + (status < 400 ? " OK" : " Error") + "\r\n" +
+                "Content-Type: application/json\r\n" +
+                header + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void writeChunked(OutputStream out, Response res) throws IOException {
+        out.write(head(res.status, "Transfer-Encoding: chunked"));
+        if (res.body != null) {
+            for (String line : res.body.split("(?<=\n)")) {
+                writeChunk(out, line);
+            }
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static void writeChunk(OutputStream out, String data) throws IOException {
+        byte[] chunk = data.getBytes(StandardCharsets.UTF_8);
+        out.write((Integer.toHexString(chunk.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(chunk);
+        out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Send a chunked response with one chunk per line of its event source until
+     * the server is closed or the client goes away.
+     */
+    private void stream(OutputStream out, Response res) throws IOException {
+        try {
+            out.write(head(res.status, "Transfer-Encoding: chunked"));
+            out.flush();
+            while (!closed) {
+                String line = res.events.poll();
+                if (line != null)
+                    writeChunk(out, line + "\n");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            res.events.close();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n')
+                return new String(baos.toByteArray(), StandardCharsets.US_ASCII).trim();
+            baos.write(c);
+        }
+        return baos.size() == 0 ? null : new String(baos.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Answer a request from the {@link FakeDocker}.
+     */
+    private Response handle(Request req) {
+        try {
+            int idx = req.getPath().indexOf('?');
+            String path = VERSION_PREFIX.matcher(idx < 0 ? req.getPath() : req.getPath().substring(0, idx)).
+                    replaceFirst("");
+            Map<String, String> query = parseQuery(idx < 0 ? null : req.getPath().substring(idx + 1));
+            String method = req.getMethod();
+
+            if (path.equals("/_ping")) {
+                return new Response(200, "OK");
+            } else if (path.equals("/events") && method.equals("GET")) {
+                return events(query);
+            } else if (path.equals("/containers/json") && method.equals("GET")) {
+                docker.invoke("ps");
+                List<FakeContainer> containers = docker.list(isTrue(query.get("all")), filters(query, "label"),
+                        filters(query, "status"));
+                StringBuilder sb = new StringBuilder("[");
+                for (FakeContainer c : containers) {
+                    if (sb.length() > 1)
+                        sb.append(',');
+                    sb.append(FakeDocker.summaryJSON(c));
+                }
+                return new Response(200, sb.append(']').toString());
+            } else if (path.equals("/containers/create") && method.equals("POST")) {
+                docker.invoke("create");
+                FakeContainer c = create(query.get("name"), req.getBody());
+                return new Response(201, "{\"Id\":\"" + c.getID() + "\",\"Warnings\":[]}");
+            } else {
+                Matcher m = CONTAINER_PATH.matcher(path);
+                if (!m.matches())
+                    return new Response(404, "{\"message\":\"page not found\"}");
+                return container(method, m.group(1), m.group(2), query);
+            }
+        } catch (FakeDockerException e) {
+            return new Response(e.getStatus(),
+                    FakeDocker.json(w -> w.object().key("message").value(e.getMessage()).endObject()));
+        } catch (RuntimeException e) {
+            return new Response(500,
+                    FakeDocker.json(w -> w.object().key("message").value(String.valueOf(e)).endObject()));
+        }
+    }
+
+    private Response container(String method, String id, String action, Map<String, String> query) {
+        String operation = method + " " + (action == null ? "" : action);
+        switch (operation) {
+        case "GET /json":
+            docker.invoke("inspect");
+            return new Response(200, FakeDocker.inspectJSON(docker.get(id)));
+        case "POST /start":
+            docker.invoke("start");
+            boolean running = docker.get(id).isRunning();
+            docker.start(id);
+            return new Response(running ? 304 : 204, null);
+        case "POST /kill":
+            docker.invoke("kill");
+            docker.kill(id);
+            return new Response(204, null);
+        case "DELETE ":
+            docker.invoke("rm");
+            docker.remove(id, isTrue(query.get("force")));
+            return new Response(204, null);
+        default:
+            return new Response(404, "{\"message\":\"page not found\"}");
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private FakeContainer create(String name, String body) {
+        Map<String, Object> req = new JSONParser(body).getParsed();
+        Map<String, String> labels = new LinkedHashMap<>();
+        if (req.get("Labels") instanceof Map) {
+            for (Map.Entry e : ((Map<?, ?>) req.get("Labels")).entrySet()) {
+                labels.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+            }
+        }
+
+        Map<String, String> ports = new LinkedHashMap<>();
+        if (req.get("ExposedPorts") instanceof Map) {
+            for (Object p : ((Map) req.get("ExposedPorts")).keySet()) {
+                ports.put(String.valueOf(p), "");
+            }
+        }
+        Object hostConfig = req.get("HostConfig");
+        Object bindings = hostConfig instanceof Map ? ((Map) hostConfig).get("PortBindings") : null;
+        if (bindings instanceof Map) {
+            for (Map.Entry e : ((Map<?, ?>) bindings).entrySet()) {
+                String hostPort = "";
+                if (e.getValue() instanceof List && !((List) e.getValue()).isEmpty()) {
+                    Object binding = ((List) e.getValue()).get(0);
+                    if (binding instanceof Map && ((Map) binding).get("HostPort") != null)
+                        hostPort = String.valueOf(((Map) binding).get("HostPort"));
+                }
+                ports.put(String.valueOf(e.getKey()), hostPort);
+            }
+        }
+
+        return docker.create(name, (String) req.get("Image"), strings(req.get("Cmd")), strings(req.get("Env")),
+                labels, ports);
+    }
+
+    private Response events(Map<String, String> query) {
+        docker.invoke("events");
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        Closeable subscription = docker.subscribe(filters(query, "label"), queue::add);
+        return new Response(200, null, true, new EventSource() {
+            @Override
+            public String poll() throws InterruptedException {
+                return queue.poll(100, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void close() {
+                try {
+                    subscription.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Collection<String> filters(Map<String, String> query, String key) {
+        String filters = query.get("filters");
+        if (filters == null)
+            return Collections.emptyList();
+
+        Object values = new JSONParser(filters).getParsed().get(key);
+        if (values instanceof Map)
+            return strings(new ArrayList<>(((Map) values).keySet()));
+        return strings(values);
+    }
+
+    private static List<String> strings(Object list) {
+        List<String> res = new ArrayList<>();
+        if (list instanceof List) {
+            for (Object o : (List<?>) list) {
+                res.add(String.valueOf(o));
+            }
+        }
+        return res;
+    }
+
+    private static boolean isTrue(String value) {
+        return "1".equals(value) || "true".equals(value);
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        if (query == null)
+            return Collections.emptyMap();
+
+        Map<String, String> res = new HashMap<>();
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            try {
+                res.put(URLDecoder.decode(idx < 0 ? param : param.substring(0, idx), "UTF-8"),
+                        idx < 0 ? "" : URLDecoder.decode(param.substring(idx + 1), "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+            for (SocketChannel sc : channels) {
+                sc.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.marathon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An app held by the {@link FakeMarathon}. The app definition is kept as the
+ * parsed JSON it was created or last updated with.
+ */
+public class FakeApp {
+    private final String id;
+    private final Map<String, FakeTask> tasks = new LinkedHashMap<>();
+    private final Set<String> deployments = new LinkedHashSet<>();
+    private Map<String, Object> definition;
+    private String version;
+
+    FakeApp(String id, Map<String, Object> definition, String version) {
+        this.id = id;
+        this.definition = definition;
+        this.version = version;
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    /** @return The requested number of instances. */
+    public synchronized int getInstances() {
+        Object instances = definition.get("instances");
+        return instances instanceof Number ? ((Number) instances).intValue() : 1;
+    }
+
+    /** @return The version of the app definition, changed by each update other than scaling. */
+    public synchronized String getVersion() {
+        return version;
+    }
+
+    /** @return The app definition, as parsed JSON. */
+    public synchronized Map<String, Object> getDefinition() {
+        return Collections.unmodifiableMap(definition);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, String> getLabels() {
+        Object labels = definition.get("labels");
+        return labels instanceof Map ? (Map<String, String>) labels : Collections.<String, String>emptyMap();
+    }
+
+    /** @return A snapshot of the tasks, oldest first. */
+    public synchronized List<FakeTask> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    /** @return The IDs of the deployments in progress. */
+    public synchronized Set<String> getDeployments() {
+        return new LinkedHashSet<>(deployments);
+    }
+
+    /** @return The number of host ports each task is given. */
+    @SuppressWarnings("rawtypes")
+    synchronized int getPortCount() {
+        Object container = definition.get("container");
+        Object docker = container instanceof Map ? ((Map) container).get("docker") : null;
+        Object mappings = docker instanceof Map ? ((Map) docker).get("portMappings") : null;
+        if (mappings instanceof List)
+            return ((List) mappings).size();
+        Object portDefinitions = definition.get("portDefinitions");
+        return portDefinitions instanceof List ? ((List) portDefinitions).size() : 0;
+    }
+
+    void setDefinition(Map<String, Object> definition, String version) {
+        this.definition = definition;
+        this.version = version;
+    }
+
+    Map<String, Object> definition() {
+        return definition;
+    }
+
+    Map<String, FakeTask> tasks() {
+        return tasks;
+    }
+
+    Set<String> deployments() {
+        return deployments;
+    }
+}
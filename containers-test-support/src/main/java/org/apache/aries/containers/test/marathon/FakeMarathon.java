@@ -0,0 +1,584 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.marathon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.apache.felix.utils.json.JSONWriter;
+
+/**
+ * An in-memory Marathon. Apps and their tasks are only book-kept, nothing is
+ * executed. The state can be driven through this class directly or through
+ * the REST API served by {@link FakeMarathonServer}. <p>
+ *
+ * Every change to an app is carried out by a deployment, which stages the
+ * missing tasks and kills the surplus ones, or all tasks of an older version
+ * if the app definition changed. Staged tasks start running once the configured
+ * deployment duration has passed, immediately by default. The events of the
+ * Marathon event bus are emitted along the way. <p>
+ *
+ * To make load tests more realistic a latency can be configured per operation,
+ * which is applied before the operation is executed. Operations are named after
+ * the methods of the Marathon client, for example {@code getApps}, {@code getApp},
+ * {@code createApp}, {@code updateApp}, {@code deleteApp} or {@code deleteAppTask}.
+ */
+public class FakeMarathon implements Closeable {
+    private final ConcurrentMap<String, FakeApp> apps = new ConcurrentHashMap<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, Long> latencies = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> invocations = new ConcurrentHashMap<>();
+    private final AtomicLong counter = new AtomicLong();
+    private final AtomicLong lastVersion = new AtomicLong();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "aries-containers-fake-marathon-deployments");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile long defaultLatency;
+    private volatile long deploymentDuration;
+
+    /**
+     * Configure the latency of an operation.
+     *
+     * @param operation The operation, for example {@code getApps}.
+     * @param latency The time to wait before the operation is executed.
+     * @param unit The unit of the latency.
+     */
+    public void setLatency(String operation, long latency, TimeUnit unit) {
+        latencies.put(operation, unit.toNanos(latency));
+    }
+
+    /**
+     * Configure the latency of all operations that don't have their own latency configured.
+     */
+    public void setDefaultLatency(long latency, TimeUnit unit) {
+        defaultLatency = unit.toNanos(latency);
+    }
+
+    /**
+     * Configure the time it takes for staged tasks to start running.
+     */
+    public void setDeploymentDuration(long duration, TimeUnit unit) {
+        deploymentDuration = unit.toNanos(duration);
+    }
+
+    /**
+     * @return The number of times the operation was invoked.
+     */
+    public long getInvocationCount(String operation) {
+        LongAdder count = invocations.get(operation);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Count an invocation of an operation and wait for its configured latency.
+     */
+    void invoke(String operation) {
+        invocations.computeIfAbsent(operation, o -> new LongAdder()).increment();
+        long latency = latencies.getOrDefault(operation, defaultLatency);
+        if (latency <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create an app and deploy its instances.
+     *
+     * @param definition The app definition, as parsed JSON. It must contain an {@code id}.
+     * @return The created app.
+     */
+    public FakeApp createApp(Map<String, Object> definition) {
+        Object id = definition.get("id");
+        if (!(id instanceof String) || ((String) id).replace("/", "").isEmpty())
+            throw new FakeMarathonException(422, "The app id must not be empty");
+
+        String appID = normalize((String) id);
+        Map<String, Object> def = new LinkedHashMap<>(definition);
+        def.put("id", appID);
+        FakeApp app = new FakeApp(appID, def, newVersion());
+        if (apps.putIfAbsent(appID, app) != null)
+            throw new FakeMarathonException(409, "An app with id [" + appID + "] already exists.");
+
+        fire("api_post_event", json(w -> {
+            w.object();
+            w.key("eventType").value("api_post_event");
+            w.key("timestamp").value(Instant.now().toString());
+            w.key("uri").value("/v2/apps" + appID);
+            w.key("appDefinition");
+            writeDefinition(w, app);
+            w.endObject();
+        }));
+        deploy(app, "StartApplication");
+        return app;
+    }
+
+    /**
+     * Look up an app.
+     *
+     * @param appID The app ID, with or without the leading slash.
+     * @return The app.
+     * @throws FakeMarathonException If there is no such app.
+     */
+    public FakeApp getApp(String appID) {
+        FakeApp app = apps.get(normalize(appID));
+        if (app == null)
+            throw new FakeMarathonException(404, "App '" + normalize(appID) + "' does not exist");
+        return app;
+    }
+
+    /**
+     * List apps, ordered by ID.
+     *
+     * @param labelSelector A Marathon label selector such as {@code key}, {@code key==value}
+     * or {@code key!=value}, several of which can be separated by commas. May be {@code null}.
+     * @return The matching apps.
+     */
+    public List<FakeApp> getApps(String labelSelector) {
+        List<FakeApp> res = new ArrayList<>();
+        for (FakeApp app : apps.values()) {
+            if (matches(app.getLabels(), labelSelector))
+                res.add(app);
+        }
+        res.sort(Comparator.comparing(FakeApp::getID));
+        return res;
+    }
+
+    /**
+     * @return All apps, in no particular order.
+     */
+    public Collection<FakeApp> getApps() {
+        return apps.values();
+    }
+
+    /**
+     * Update an app. If only the number of instances changes the app is scaled,
+     * otherwise a new version of the app is deployed that replaces all its tasks.
+     *
+     * @param appID The app ID.
+     * @param update The members of the app definition to change, as parsed JSON.
+     * @return The ID of the deployment.
+     */
+    public String updateApp(String appID, Map<String, Object> update) {
+        FakeApp app = getApp(appID);
+        boolean restart = false;
+        synchronized (app) {
+            Map<String, Object> def = new LinkedHashMap<>(app.definition());
+            for (Map.Entry<String, Object> e : update.entrySet()) {
+                if (e.getKey().equals("id") || e.getKey().equals("version"))
+                    continue;
+                if (!e.getKey().equals("instances") && !Objects.equals(e.getValue(), def.get(e.getKey())))
+                    restart = true;
+                def.put(e.getKey(), e.getValue());
+            }
+            app.setDefinition(def, restart ? newVersion() : app.getVersion());
+        }
+
+        fire("api_post_event", json(w -> {
+            w.object();
+            w.key("eventType").value("api_post_event");
+            w.key("timestamp").value(Instant.now().toString());
+            w.key("uri").value("/v2/apps" + app.getID());
+            w.key("appDefinition");
+            writeDefinition(w, app);
+            w.endObject();
+        }));
+        return deploy(app, restart ? "RestartApplication" : "ScaleApplication");
+    }
+
+    /**
+     * Delete an app and kill all its tasks.
+     *
+     * @param appID The app ID.
+     * @return The ID of the deployment.
+     */
+    public String deleteApp(String appID) {
+        FakeApp app = apps.remove(normalize(appID));
+        if (app == null)
+            throw new FakeMarathonException(404, "App '" + normalize(appID) + "' does not exist");
+
+        String deploymentID = UUID.randomUUID().toString();
+        String plan = plan(deploymentID, app, "StopApplication");
+        fire("deployment_info", deploymentEvent("deployment_info", plan));
+
+        List<FakeTask> killed;
+        synchronized (app) {
+            killed = new ArrayList<>(app.tasks().values());
+            app.tasks().clear();
+        }
+        for (FakeTask t : killed) {
+            t.setState("TASK_KILLED");
+            fire("status_update_event", statusEvent(t));
+        }
+        fire("app_terminated_event", json(w -> {
+            w.object();
+            w.key("eventType").value("app_terminated_event");
+            w.key("timestamp").value(Instant.now().toString());
+            w.key("appId").value(app.getID());
+            w.endObject();
+        }));
+        fire("deployment_success", deploymentEvent("deployment_success", plan));
+        return deploymentID;
+    }
+
+    /**
+     * Kill a task.
+     *
+     * @param appID The app ID.
+     * @param taskID The task ID.
+     * @param scale Whether to decrease the number of instances of the app, otherwise
+     * a replacement task is deployed.
+     * @return The killed task.
+     */
+    public FakeTask killTask(String appID, String taskID, boolean scale) {
+        FakeApp app = getApp(appID);
+        FakeTask task;
+        synchronized (app) {
+            task = app.tasks().remove(taskID);
+            if (task == null)
+                throw new FakeMarathonException(404, "Task '" + taskID + "' does not exist");
+            if (scale) {
+                Map<String, Object> def = new LinkedHashMap<>(app.definition());
+                def.put("instances", Math.max(0, app.getInstances() - 1));
+                app.setDefinition(def, app.getVersion());
+            }
+        }
+        task.setState("TASK_KILLED");
+        fire("status_update_event", statusEvent(task));
+
+        if (!scale)
+            deploy(app, "ScaleApplication");
+        return task;
+    }
+
+    /**
+     * Subscribe to the events of the Marathon event bus.
+     *
+     * @param listener Receives the event type and the event as JSON, on the thread
+     * that caused the event. If the listener throws it is unsubscribed.
+     * @return A handle that cancels the subscription.
+     */
+    public Closeable subscribe(BiConsumer<String, String> listener) {
+        Subscription s = new Subscription(listener);
+        subscriptions.add(s);
+        return () -> subscriptions.remove(s);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        subscriptions.clear();
+    }
+
+    /**
+     * Bring the tasks of the app in line with its definition.
+     *
+     * @return The ID of the deployment.
+     */
+    private String deploy(FakeApp app, String action) {
+        String deploymentID = UUID.randomUUID().toString();
+        String plan = plan(deploymentID, app, action);
+
+        List<FakeTask> killed = new ArrayList<>();
+        List<FakeTask> staged = new ArrayList<>();
+        synchronized (app) {
+            app.deployments().add(deploymentID);
+            Map<String, FakeTask> tasks = app.tasks();
+            tasks.values().removeIf(t -> {
+                if (t.getVersion().equals(app.getVersion()))
+                    return false;
+                killed.add(t);
+                return true;
+            });
+
+            List<FakeTask> newestFirst = new ArrayList<>(tasks.values());
+            for (int i = newestFirst.size() - 1; i >= 0 && tasks.size() > app.getInstances(); i--) {
+                killed.add(tasks.remove(newestFirst.get(i).getID()));
+            }
+
+            int portCount = app.getPortCount();
+            while (tasks.size() < app.getInstances()) {
+                FakeTask t = newTask(app, portCount);
+                tasks.put(t.getID(), t);
+                staged.add(t);
+            }
+        }
+
+        fire("deployment_info", deploymentEvent("deployment_info", plan));
+        for (FakeTask t : killed) {
+            t.setState("TASK_KILLED");
+            fire("status_update_event", statusEvent(t));
+        }
+        for (FakeTask t : staged) {
+            fire("status_update_event", statusEvent(t));
+        }
+
+        Runnable finish = () -> {
+            for (FakeTask t : staged) {
+                if ("TASK_STAGING".equals(t.getState())) {
+                    t.setState("TASK_RUNNING");
+                    fire("status_update_event", statusEvent(t));
+                }
+            }
+            synchronized (app) {
+                app.deployments().remove(deploymentID);
+            }
+            fire("deployment_success", deploymentEvent("deployment_success", plan));
+        };
+        long duration = deploymentDuration;
+        if (duration <= 0)
+            finish.run();
+        else
+            scheduler.schedule(finish, duration, TimeUnit.NANOSECONDS);
+        return deploymentID;
+    }
+
+    private FakeTask newTask(FakeApp app, int portCount) {
+        long n = counter.incrementAndGet();
+        List<Integer> ports = new ArrayList<>(portCount);
+        for (int i = 0; i < portCount; i++) {
+            ports.add(31000 + (int) ((n * portCount + i) % 1000));
+        }
+        String taskID = app.getID().substring(1).replace('/', '_') + "." + UUID.randomUUID();
+        return new FakeTask(taskID, app.getID(), "agent-" + (n % 100 + 1) + ".fake.local", ports,
+                app.getVersion(), System.currentTimeMillis());
+    }
+
+    private String newVersion() {
+        long now = System.currentTimeMillis();
+        long version = lastVersion.updateAndGet(last -> Math.max(last + 1, now));
+        return Instant.ofEpochMilli(version).toString();
+    }
+
+    private void fire(String eventType, String event) {
+        for (Subscription s : subscriptions) {
+            try {
+                s.listener.accept(eventType, event);
+            } catch (RuntimeException e) {
+                subscriptions.remove(s);
+            }
+        }
+    }
+
+    static boolean matches(Map<String, String> labels, String labelSelector) {
+        if (labelSelector == null || labelSelector.trim().isEmpty())
+            return true;
+
+        for (String selector : labelSelector.split(",")) {
+            selector = selector.trim();
+            int idx;
+            if ((idx = selector.indexOf("!=")) >= 0) {
+                String value = labels.get(selector.substring(0, idx).trim());
+                if (selector.substring(idx + 2).trim().equals(value))
+                    return false;
+            } else if ((idx = selector.indexOf("==")) >= 0) {
+                String value = labels.get(selector.substring(0, idx).trim());
+                if (!selector.substring(idx + 2).trim().equals(value))
+                    return false;
+            } else if (!labels.containsKey(selector)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String normalize(String appID) {
+        int i = 0;
+        while (i < appID.length() && appID.charAt(i) == '/') {
+            i++;
+        }
+        return "/" + appID.substring(i);
+    }
+
+    /**
+     * @return The app in the format of the Marathon REST API.
+     */
+    public static String appJSON(FakeApp app, boolean embedTasks) {
+        return json(w -> writeApp(w, app, embedTasks));
+    }
+
+    /**
+     * @return The task in the format of the Marathon REST API.
+     */
+    public static String taskJSON(FakeTask task) {
+        return json(w -> writeTask(w, task));
+    }
+
+    static void writeApp(JSONWriter w, FakeApp app, boolean embedTasks) throws IOException {
+        Map<String, Object> def;
+        List<FakeTask> tasks;
+        List<String> deployments;
+        synchronized (app) {
+            def = app.definition();
+            tasks = app.getTasks();
+            deployments = new ArrayList<>(app.deployments());
+        }
+
+        int running = 0;
+        for (FakeTask t : tasks) {
+            if (t.isRunning())
+                running++;
+        }
+
+        w.object();
+        writeMembers(w, def);
+        w.key("version").value(app.getVersion());
+        w.key("tasksStaged").value(tasks.size() - running);
+        w.key("tasksRunning").value(running);
+        w.key("tasksHealthy").value(0);
+        w.key("tasksUnhealthy").value(0);
+        w.key("deployments").array();
+        for (String d : deployments) {
+            w.object().key("id").value(d).endObject();
+        }
+        w.endArray();
+        if (embedTasks) {
+            w.key("tasks").array();
+            for (FakeTask t : tasks) {
+                writeTask(w, t);
+            }
+            w.endArray();
+        }
+        w.endObject();
+    }
+
+    private static void writeDefinition(JSONWriter w, FakeApp app) throws IOException {
+        w.object();
+        writeMembers(w, app.getDefinition());
+        w.key("version").value(app.getVersion());
+        w.endObject();
+    }
+
+    private static void writeMembers(JSONWriter w, Map<String, Object> def) throws IOException {
+        for (Map.Entry<String, Object> e : def.entrySet()) {
+            switch (e.getKey()) {
+            case "version":
+            case "tasks":
+            case "tasksStaged":
+            case "tasksRunning":
+            case "tasksHealthy":
+            case "tasksUnhealthy":
+            case "deployments":
+                break;
+            default:
+                w.key(e.getKey()).value(e.getValue());
+            }
+        }
+    }
+
+    static void writeTask(JSONWriter w, FakeTask t) throws IOException {
+        w.object();
+        w.key("id").value(t.getID());
+        w.key("appId").value(t.getAppID());
+        w.key("host").value(t.getHost());
+        w.key("ports").value(t.getPorts());
+        w.key("stagedAt").value(Instant.ofEpochMilli(t.getStagedAt()).toString());
+        if (t.getStartedAt() > 0)
+            w.key("startedAt").value(Instant.ofEpochMilli(t.getStartedAt()).toString());
+        w.key("state").value(t.getState());
+        w.key("version").value(t.getVersion());
+        w.endObject();
+    }
+
+    private static String statusEvent(FakeTask t) {
+        return json(w -> {
+            w.object();
+            w.key("eventType").value("status_update_event");
+            w.key("timestamp").value(Instant.now().toString());
+            w.key("slaveId").value(t.getHost());
+            w.key("taskId").value(t.getID());
+            w.key("taskStatus").value(t.getState());
+            w.key("appId").value(t.getAppID());
+            w.key("host").value(t.getHost());
+            w.key("ports").value(t.getPorts());
+            w.key("version").value(t.getVersion());
+            w.endObject();
+        });
+    }
+
+    private static String plan(String deploymentID, FakeApp app, String action) {
+        return json(w -> {
+            w.object();
+            w.key("id").value(deploymentID);
+            w.key("version").value(app.getVersion());
+            w.key("steps").array().object();
+            w.key("actions").array().object();
+            w.key("action").value(action);
+            w.key("app").value(app.getID());
+            w.endObject().endArray();
+            w.endObject().endArray();
+            w.endObject();
+        });
+    }
+
+    private static String deploymentEvent(String eventType, String plan) {
+        // The plan is already JSON, so it is spliced in rather than written as a value
+        String timestamp = json(w -> w.value(Instant.now().toString()));
+        return "{\"eventType\":\"" + eventType + "\",\"timestamp\":" + timestamp + ",\"plan\":" + plan + "}";
+    }
+
+    static String json(JSONBody body) {
+        StringWriter sw = new StringWriter();
+        try {
+            JSONWriter w = new JSONWriter(sw);
+            body.write(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sw.toString();
+    }
+
+    interface JSONBody {
+        void write(JSONWriter w) throws IOException;
+    }
+
+    private static class Subscription {
+        final BiConsumer<String, String> listener;
+
+        Subscription(BiConsumer<String, String> listener) {
+            this.listener = listener;
+        }
+    }
+}
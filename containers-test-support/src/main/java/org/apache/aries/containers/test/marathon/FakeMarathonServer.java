@@ -0,0 +1,298 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.marathon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.utils.json.JSONParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the Marathon REST API, backed by a {@link FakeMarathon}. The server
+ * listens on the loopback interface, use {@link #getURL()} as the Marathon URL.
+ * The endpoints used by the Marathon service manager are supported: listing apps
+ * by label, creating, reading, updating and deleting apps, listing and killing
+ * tasks, and the server-sent event stream.
+ */
+public class FakeMarathonServer implements Closeable {
+    private static final String APPS = "/v2/apps";
+    private static final String TASKS = "/tasks";
+
+    private final FakeMarathon marathon;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile boolean closed;
+
+    public FakeMarathonServer(FakeMarathon marathon) throws IOException {
+        this.marathon = marathon;
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "aries-containers-fake-marathon-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return The Marathon URL, for example {@code http://127.0.0.1:38475}.
+     */
+    public String getURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getRawPath();
+            Map<String, List<String>> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+
+            if (path.equals("/ping")) {
+                respond(exchange, 200, "\"pong\"");
+            } else if (path.equals("/v2/events") && method.equals("GET")) {
+                events(exchange, query);
+            } else if (path.equals(APPS) || path.equals(APPS + "/")) {
+                apps(exchange, method, query);
+            } else if (path.startsWith(APPS + "/")) {
+                String rest = decode(path.substring(APPS.length()));
+                int idx = rest.lastIndexOf(TASKS + "/");
+                if (idx >= 0) {
+                    task(exchange, method, rest.substring(0, idx), rest.substring(idx + TASKS.length() + 1), query);
+                } else if (rest.endsWith(TASKS)) {
+                    tasks(exchange, method, rest.substring(0, rest.length() - TASKS.length()));
+                } else {
+                    app(exchange, method, rest, query);
+                }
+            } else {
+                notFound(exchange);
+            }
+        } catch (FakeMarathonException e) {
+            respond(exchange, e.getStatus(), message(e.getMessage()));
+        } catch (RuntimeException e) {
+            respond(exchange, 500, message(String.valueOf(e)));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void apps(HttpExchange exchange, String method, Map<String, List<String>> query) throws IOException {
+        switch (method) {
+        case "GET":
+            marathon.invoke("getApps");
+            boolean embedTasks = first(query, "embed", "").contains("tasks");
+            List<FakeApp> apps = marathon.getApps(first(query, "label", null));
+            respond(exchange, 200, FakeMarathon.json(w -> {
+                w.object().key("apps").array();
+                for (FakeApp app : apps) {
+                    FakeMarathon.writeApp(w, app, embedTasks);
+                }
+                w.endArray().endObject();
+            }));
+            break;
+        case "POST":
+            marathon.invoke("createApp");
+            FakeApp app = marathon.createApp(new JSONParser(exchange.getRequestBody()).getParsed());
+            respond(exchange, 201, FakeMarathon.appJSON(app, false));
+            break;
+        default:
+            notFound(exchange);
+        }
+    }
+
+    private void app(HttpExchange exchange, String method, String appID, Map<String, List<String>> query)
+            throws IOException {
+        switch (method) {
+        case "GET":
+            marathon.invoke("getApp");
+            FakeApp app = marathon.getApp(appID);
+            respond(exchange, 200, FakeMarathon.json(w -> {
+                w.object().key("app");
+                FakeMarathon.writeApp(w, app, true);
+                w.endObject();
+            }));
+            break;
+        case "PUT":
+            marathon.invoke("updateApp");
+            String deploymentID = marathon.updateApp(appID, new JSONParser(exchange.getRequestBody()).getParsed());
+            respond(exchange, 200, deploymentResult(marathon.getApp(appID).getVersion(), deploymentID));
+            break;
+        case "DELETE":
+            marathon.invoke("deleteApp");
+            respond(exchange, 200, deploymentResult(null, marathon.deleteApp(appID)));
+            break;
+        default:
+            notFound(exchange);
+        }
+    }
+
+    private void tasks(HttpExchange exchange, String method, String appID) throws IOException {
+        if (!method.equals("GET")) {
+            notFound(exchange);
+            return;
+        }
+
+        marathon.invoke("getAppTasks");
+        List<FakeTask> tasks = marathon.getApp(appID).getTasks();
+        respond(exchange, 200, FakeMarathon.json(w -> {
+            w.object().key("tasks").array();
+            for (FakeTask t : tasks) {
+                FakeMarathon.writeTask(w, t);
+            }
+            w.endArray().endObject();
+        }));
+    }
+
+    private void task(HttpExchange exchange, String method, String appID, String taskID,
+            Map<String, List<String>> query) throws IOException {
+        if (!method.equals("DELETE")) {
+            notFound(exchange);
+            return;
+        }
+
+        marathon.invoke("deleteAppTask");
+        boolean scale = Boolean.parseBoolean(first(query, "scale", "false"));
+        FakeTask task = marathon.killTask(appID, taskID, scale);
+        if (scale) {
+            respond(exchange, 200, deploymentResult(marathon.getApp(appID).getVersion(), null));
+        } else {
+            respond(exchange, 200, FakeMarathon.json(w -> {
+                w.object().key("task");
+                FakeMarathon.writeTask(w, task);
+                w.endObject();
+            }));
+        }
+    }
+
+    private void events(HttpExchange exchange, Map<String, List<String>> query) throws IOException {
+        marathon.invoke("events");
+        List<String> eventTypes = query.getOrDefault("event_type", Collections.<String>emptyList());
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        Closeable subscription = marathon.subscribe((eventType, data) -> {
+            if (eventTypes.isEmpty() || eventTypes.contains(eventType))
+                queue.add("event: " + eventType + "\ndata: " + data + "\n\n");
+        });
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            out.flush();
+            while (!closed) {
+                String event = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    out.write(event.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            subscription.close();
+        }
+    }
+
+    private static String deploymentResult(String version, String deploymentID) {
+        return FakeMarathon.json(w -> {
+            w.object();
+            if (version != null)
+                w.key("version").value(version);
+            if (deploymentID != null)
+                w.key("deploymentId").value(deploymentID);
+            w.endObject();
+        });
+    }
+
+    private static String message(String message) {
+        return FakeMarathon.json(w -> w.object().key("message").value(message).endObject());
+    }
+
+    private static String first(Map<String, List<String>> query, String key, String defaultValue) {
+        List<String> values = query.get(key);
+        return values == null || values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        if (query == null)
+            return Collections.emptyMap();
+
+        Map<String, List<String>> res = new HashMap<>();
+        for (String param : query.split("&")) {
+            int idx = param.indexOf('=');
+            try {
+                String key = URLDecoder.decode(idx < 0 ? param : param.substring(0, idx), "UTF-8");
+                String value = idx < 0 ? "" : URLDecoder.decode(param.substring(idx + 1), "UTF-8");
+                res.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+            } catch (UnsupportedEncodingException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return res;
+    }
+
+    private static void notFound(HttpExchange exchange) throws IOException {
+        respond(exchange, 404, message("Not found"));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
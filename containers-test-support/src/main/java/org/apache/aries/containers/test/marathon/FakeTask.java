@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.aries.containers.test.marathon;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A task of a {@link FakeApp}.
+ */
+public class FakeTask {
+    private final String id;
+    private final String appID;
+    private final String host;
+    private final List<Integer> ports;
+    private final String version;
+    private final long stagedAt;
+    private volatile String state = "TASK_STAGING";
+    private volatile long startedAt;
+
+    FakeTask(String id, String appID, String host, List<Integer> ports, String version, long stagedAt) {
+        this.id = id;
+        this.appID = appID;
+        this.host = host;
+        this.ports = Collections.unmodifiableList(ports);
+        this.version = version;
+        this.stagedAt = stagedAt;
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    public String getAppID() {
+        return appID;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /** @return The host ports, in the order of the port mappings of the app. */
+    public List<Integer> getPorts() {
+        return ports;
+    }
+
+    /** @return The version of the app definition the task was launched with. */
+    public String getVersion() {
+        return version;
+    }
+
+    /** @return The time the task was staged in milliseconds since the epoch. */
+    public long getStagedAt() {
+        return stagedAt;
+    }
+
+    /** @return The time the task started running in milliseconds since the epoch, or 0. */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /** @return The Mesos task state, one of {@code TASK_STAGING}, {@code TASK_RUNNING} or {@code TASK_KILLED}. */
+    public String getState() {
+        return state;
+    }
+
+    public boolean isRunning() {
+        return "TASK_RUNNING".equals(state);
+    }
+
+    void setState(String state) {
+        if ("TASK_RUNNING".equals(state) && startedAt == 0)
+            startedAt = System.currentTimeMillis();
+        this.state = state;
+    }
+
+    @Override
+    public String toString() {
+        return "FakeTask [id=" + id + ", appID=" + appID + ", host=" + host + ", state=" + state + "]";
+    }
+}